@@ -0,0 +1,1561 @@
+package karyon.data;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A compact binary encoding of the records of a DataObject class.  The codec is derived
+ * once for each class from the field layout of its DataSchema, so records are written as a
+ * bitmap of the fields that are null followed by the values in schema order, with no names,
+ * tags or lengths for values whose type is known from the field.
+ *
+ * Integral values are written as variable length integers, signed values zig-zag encoded so
+ * small negative numbers are small too.  Strings are dictionary encoded, the first use of a
+ * string in a Writer writes it in full and later uses write its index, so repeated values in
+ * a page or a block of records cost one or two bytes.  Dates are written as milliseconds
+ * since the epoch.  Values of fields whose type is not
+ * known, such as Object, are written with a tag for the type of the value, and values of
+ * types the codec does not know are written with Java serialization.
+ *
+ * Writers encode in to ByteBuffers taken from a shared pool and return them when closed, so
+ * encoding does not allocate a buffer for each page or message.
+ * @param <T> the type of data object encoded
+ */
+public final class DataCodec<T extends DataObject>
+    extends karyon.Object
+{
+    /**
+     * The size of the buffers in the pool, writers start with a buffer of this size
+     */
+    public static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The number of buffers kept in the pool
+     */
+    private static final int MAXIMUM_POOLED = 64;
+
+    /**
+     * Buffers that have grown beyond this size are not returned to the pool
+     */
+    private static final int MAXIMUM_POOLED_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * The number of strings held in the dictionary of a writer, strings after this are
+     * written in full each time they are used
+     */
+    private static final int MAXIMUM_DICTIONARY = 64 * 1024;
+
+    /**
+     * Strings longer than this are always written in full, long strings rarely repeat
+     */
+    private static final int MAXIMUM_DICTIONARY_LENGTH = 256;
+
+    /**
+     * Marks the start of a stream written by write(DataCursor, WritableByteChannel)
+     */
+    private static final int MAGIC = 0x4B444331;
+
+    private static final ClassValue<DataCodec<?>> g_oCodecs = new ClassValue<DataCodec<?>>()
+    {
+        @Override
+        protected DataCodec<?> computeValue(Class<?> toClass)
+        {
+            return create(toClass.asSubclass(DataObject.class));
+        }
+    };
+
+    /**
+     * Creates the codec for the class, this captures the type of the class for the constructor
+     * @param toClass the class to create the codec for
+     * @param <K> the type of data object
+     * @return the new codec
+     */
+    private static <K extends DataObject> DataCodec<K> create(Class<K> toClass)
+    {
+        return new DataCodec<K>(toClass);
+    }
+
+    /**
+     * Holds the pool of buffers, created when first used
+     */
+    private static final class PoolHolder
+    {
+        private static final ConcurrentLinkedQueue<ByteBuffer> g_oBuffers = new ConcurrentLinkedQueue<ByteBuffer>();
+        private static final AtomicInteger g_nPooled = new AtomicInteger();
+    }
+
+    /**
+     * How the value of a field is encoded
+     */
+    private static enum Kind
+    {
+        BOOLEAN,
+        BYTE,
+        CHAR,
+        SHORT,
+        INT,
+        LONG,
+        FLOAT,
+        DOUBLE,
+        STRING,
+        DATE,
+        BYTES,
+        BIG_INTEGER,
+        BIG_DECIMAL,
+        ENUM,
+        SERIALIZED,
+        /**
+         * The type of the field does not determine the encoding, the value is written with
+         * a tag for its kind
+         */
+        DYNAMIC;
+
+        private static final Kind[] g_aKinds = values();
+
+        /**
+         * Gets the kind values of the class specified are encoded as
+         * @param toClass the class of the field or value
+         * @param tlDeclared true if the class is the declared type of a field, so every value
+         *                   is an instance of the class
+         * @return the kind
+         */
+        private static Kind fromClass(Class<?> toClass, boolean tlDeclared)
+        {
+            if (toClass == String.class)
+            {
+                return STRING;
+            }
+            if (toClass == Integer.class || toClass == int.class)
+            {
+                return INT;
+            }
+            if (toClass == Long.class || toClass == long.class)
+            {
+                return LONG;
+            }
+            if (toClass == Boolean.class || toClass == boolean.class)
+            {
+                return BOOLEAN;
+            }
+            if (toClass == Double.class || toClass == double.class)
+            {
+                return DOUBLE;
+            }
+            if (toClass == Float.class || toClass == float.class)
+            {
+                return FLOAT;
+            }
+            if (toClass == Short.class || toClass == short.class)
+            {
+                return SHORT;
+            }
+            if (toClass == Byte.class || toClass == byte.class)
+            {
+                return BYTE;
+            }
+            if (toClass == Character.class || toClass == char.class)
+            {
+                return CHAR;
+            }
+            if (toClass == Date.class)
+            {
+                return DATE;
+            }
+            if (toClass == byte[].class)
+            {
+                return BYTES;
+            }
+            if (toClass == BigInteger.class)
+            {
+                return BIG_INTEGER;
+            }
+            if (toClass == BigDecimal.class)
+            {
+                return BIG_DECIMAL;
+            }
+            if (tlDeclared && toClass.isEnum())
+            {
+                return ENUM;
+            }
+            // A field of a final type can only hold that type, anything else could hold any
+            // of the types above so is tagged
+            return tlDeclared && !Modifier.isFinal(toClass.getModifiers()) ? DYNAMIC : SERIALIZED;
+        }
+    }
+
+    /**
+     * Encodes records in to a pooled buffer which grows as needed.  The strings written are
+     * remembered so later uses of the same string are written as an index, the dictionary
+     * lasts until the writer is reset, so everything written between resets must be read
+     * back with a single Reader.  Writers are not thread safe
+     */
+    public static final class Writer
+        extends karyon.Object
+        implements Closeable
+    {
+        private ByteBuffer m_oBuffer;
+        private final HashMap<String, Integer> m_oDictionary;
+
+        /**
+         * Creates a new writer with a buffer from the pool
+         */
+        public Writer()
+        {
+            m_oBuffer = acquireBuffer(BUFFER_SIZE);
+            m_oDictionary = new HashMap<String, Integer>();
+        }
+
+        /**
+         * Gets the number of bytes written since the writer was created or reset
+         * @return the number of bytes
+         */
+        public int getLength()
+        {
+            return m_oBuffer.position();
+        }
+
+        /**
+         * Gets the buffer holding the bytes written.  The position of the buffer is the end
+         * of the bytes written, so the buffer should be flipped, or a duplicate flipped, to
+         * read them.  The buffer may be replaced as the writer grows and must not be used once
+         * the writer is closed
+         * @return the buffer
+         */
+        public ByteBuffer getBuffer()
+        {
+            return m_oBuffer;
+        }
+
+        /**
+         * Copies the bytes written in to a new array
+         * @return the bytes written
+         */
+        public byte[] toByteArray()
+        {
+            ByteBuffer loBuffer = m_oBuffer.duplicate();
+            loBuffer.flip();
+            byte[] laBytes = new byte[loBuffer.remaining()];
+            loBuffer.get(laBytes);
+            return laBytes;
+        }
+
+        /**
+         * Discards the bytes written and the dictionary, ready to write a new page or block
+         */
+        public void reset()
+        {
+            m_oBuffer.clear();
+            m_oDictionary.clear();
+        }
+
+        /**
+         * Returns the buffer to the pool, the writer can not be used after it is closed
+         */
+        @Override
+        public void close()
+        {
+            if (m_oBuffer != null)
+            {
+                releaseBuffer(m_oBuffer);
+                m_oBuffer = null;
+            }
+        }
+
+        /**
+         * Makes sure there is space for the number of bytes specified, replacing the buffer
+         * with a larger one if there is not
+         * @param tnBytes the number of bytes about to be written
+         * @return the buffer to write to
+         */
+        ByteBuffer reserve(int tnBytes)
+        {
+            if (m_oBuffer.remaining() < tnBytes)
+            {
+                long lnRequired = (long)m_oBuffer.position() + tnBytes;
+                if (lnRequired > Integer.MAX_VALUE - 8)
+                {
+                    throw new IllegalStateException("Unable to encode more than " + (Integer.MAX_VALUE - 8) + " bytes in a single writer");
+                }
+                ByteBuffer loBuffer = acquireBuffer((int)Math.min(Integer.MAX_VALUE - 8, Math.max(lnRequired, 2L * m_oBuffer.capacity())));
+                m_oBuffer.flip();
+                loBuffer.put(m_oBuffer);
+                releaseBuffer(m_oBuffer);
+                m_oBuffer = loBuffer;
+            }
+            return m_oBuffer;
+        }
+
+        void putByte(byte tnValue)
+        {
+            reserve(1).put(tnValue);
+        }
+
+        void putBoolean(boolean tlValue)
+        {
+            reserve(1).put(tlValue ? (byte)1 : (byte)0);
+        }
+
+        void putChar(char tnValue)
+        {
+            putVarInt(tnValue);
+        }
+
+        void putShort(short tnValue)
+        {
+            putVarInt((tnValue << 1) ^ (tnValue >> 31));
+        }
+
+        void putInt(int tnValue)
+        {
+            putVarInt((tnValue << 1) ^ (tnValue >> 31));
+        }
+
+        void putLong(long tnValue)
+        {
+            putVarLong((tnValue << 1) ^ (tnValue >> 63));
+        }
+
+        void putFloat(float tnValue)
+        {
+            reserve(4).putFloat(tnValue);
+        }
+
+        void putDouble(double tnValue)
+        {
+            reserve(8).putDouble(tnValue);
+        }
+
+        /**
+         * Writes an unsigned int in one to five bytes, seven bits to a byte with the high
+         * bit set on every byte but the last
+         * @param tnValue the value, treated as unsigned
+         */
+        void putVarInt(int tnValue)
+        {
+            ByteBuffer loBuffer = reserve(5);
+            while ((tnValue & ~0x7F) != 0)
+            {
+                loBuffer.put((byte)((tnValue & 0x7F) | 0x80));
+                tnValue >>>= 7;
+            }
+            loBuffer.put((byte)tnValue);
+        }
+
+        /**
+         * Writes an unsigned long in one to ten bytes
+         * @param tnValue the value, treated as unsigned
+         */
+        void putVarLong(long tnValue)
+        {
+            ByteBuffer loBuffer = reserve(10);
+            while ((tnValue & ~0x7FL) != 0)
+            {
+                loBuffer.put((byte)((tnValue & 0x7F) | 0x80));
+                tnValue >>>= 7;
+            }
+            loBuffer.put((byte)tnValue);
+        }
+
+        void putBytes(byte[] taBytes)
+        {
+            putVarInt(taBytes.length);
+            reserve(taBytes.length).put(taBytes);
+        }
+
+        /**
+         * Writes a string.  0 is followed by a string that is added to the dictionary, 1 by a
+         * string that is not, and any other value is the index of a dictionary string plus 2
+         * @param tcValue the string
+         */
+        void putString(String tcValue)
+        {
+            Integer lnIndex = m_oDictionary.get(tcValue);
+            if (lnIndex != null)
+            {
+                putVarInt(lnIndex + 2);
+                return;
+            }
+            boolean llAdd = tcValue.length() <= MAXIMUM_DICTIONARY_LENGTH && m_oDictionary.size() < MAXIMUM_DICTIONARY;
+            putVarInt(llAdd ? 0 : 1);
+            if (llAdd)
+            {
+                m_oDictionary.put(tcValue, m_oDictionary.size());
+            }
+
+            int lnLength = tcValue.length();
+            for (int i = 0; i < lnLength; i++)
+            {
+                if (tcValue.charAt(i) >= 0x80)
+                {
+                    putBytes(tcValue.getBytes(StandardCharsets.UTF_8));
+                    return;
+                }
+            }
+            // ASCII is copied without creating an array
+            putVarInt(lnLength);
+            ByteBuffer loBuffer = reserve(lnLength);
+            for (int i = 0; i < lnLength; i++)
+            {
+                loBuffer.put((byte)tcValue.charAt(i));
+            }
+        }
+    }
+
+    /**
+     * Decodes records written by a Writer from a buffer.  A reader must read everything that
+     * was written between resets of the writer, in order, as it rebuilds the dictionary as
+     * it reads.  Readers are not thread safe
+     */
+    public static final class Reader
+        extends karyon.Object
+    {
+        private final ByteBuffer m_oBuffer;
+        private final ArrayList<String> m_oDictionary;
+
+        /**
+         * Creates a reader of the remaining bytes of the buffer
+         * @param toBuffer the buffer to read from, reading moves its position
+         */
+        public Reader(ByteBuffer toBuffer)
+        {
+            m_oBuffer = toBuffer;
+            m_oDictionary = new ArrayList<String>();
+        }
+
+        /**
+         * Creates a reader of the bytes specified
+         * @param taBytes the bytes written by a writer
+         */
+        public Reader(byte[] taBytes)
+        {
+            this(ByteBuffer.wrap(taBytes));
+        }
+
+        /**
+         * Checks if there are bytes left to read
+         * @return true if there are bytes remaining
+         */
+        public boolean hasRemaining()
+        {
+            return m_oBuffer.hasRemaining();
+        }
+
+        ByteBuffer getBuffer()
+        {
+            return m_oBuffer;
+        }
+
+        byte getByte()
+        {
+            return m_oBuffer.get();
+        }
+
+        boolean getBoolean()
+        {
+            return m_oBuffer.get() != 0;
+        }
+
+        char getChar()
+        {
+            return (char)getVarInt();
+        }
+
+        short getShort()
+        {
+            return (short)getInt();
+        }
+
+        int getInt()
+        {
+            int lnValue = getVarInt();
+            return (lnValue >>> 1) ^ -(lnValue & 1);
+        }
+
+        long getLong()
+        {
+            long lnValue = getVarLong();
+            return (lnValue >>> 1) ^ -(lnValue & 1);
+        }
+
+        float getFloat()
+        {
+            return m_oBuffer.getFloat();
+        }
+
+        double getDouble()
+        {
+            return m_oBuffer.getDouble();
+        }
+
+        int getVarInt()
+        {
+            int lnValue = 0;
+            for (int lnShift = 0; lnShift < 35; lnShift += 7)
+            {
+                byte lnByte = m_oBuffer.get();
+                lnValue |= (lnByte & 0x7F) << lnShift;
+                if (lnByte >= 0)
+                {
+                    return lnValue;
+                }
+            }
+            throw new IllegalStateException("Malformed variable length int");
+        }
+
+        long getVarLong()
+        {
+            long lnValue = 0;
+            for (int lnShift = 0; lnShift < 70; lnShift += 7)
+            {
+                byte lnByte = m_oBuffer.get();
+                lnValue |= (long)(lnByte & 0x7F) << lnShift;
+                if (lnByte >= 0)
+                {
+                    return lnValue;
+                }
+            }
+            throw new IllegalStateException("Malformed variable length long");
+        }
+
+        byte[] getBytes()
+        {
+            byte[] laBytes = new byte[getVarInt()];
+            m_oBuffer.get(laBytes);
+            return laBytes;
+        }
+
+        String getString()
+        {
+            int lnIndex = getVarInt();
+            if (lnIndex > 1)
+            {
+                return m_oDictionary.get(lnIndex - 2);
+            }
+            int lnLength = getVarInt();
+            String lcValue;
+            if (m_oBuffer.hasArray())
+            {
+                lcValue = new String(m_oBuffer.array(), m_oBuffer.arrayOffset() + m_oBuffer.position(), lnLength, StandardCharsets.UTF_8);
+                m_oBuffer.position(m_oBuffer.position() + lnLength);
+            }
+            else
+            {
+                byte[] laBytes = new byte[lnLength];
+                m_oBuffer.get(laBytes);
+                lcValue = new String(laBytes, StandardCharsets.UTF_8);
+            }
+            if (lnIndex == 0)
+            {
+                m_oDictionary.add(lcValue);
+            }
+            return lcValue;
+        }
+    }
+
+    /**
+     * Gets the codec for the class specified
+     * @param toClass the class to get the codec for
+     * @param <K> the type of data object
+     * @return the codec for the class
+     */
+    @SuppressWarnings("unchecked")
+    public static <K extends DataObject> DataCodec<K> getCodec(Class<K> toClass)
+    {
+        return (DataCodec<K>)g_oCodecs.get(toClass);
+    }
+
+    /**
+     * Takes a buffer from the pool, or allocates one if the pool has none large enough.  The
+     * buffer should be returned with releaseBuffer once it is no longer used
+     * @param tnMinimumSize the minimum capacity of the buffer
+     * @return a cleared buffer
+     */
+    public static ByteBuffer acquireBuffer(int tnMinimumSize)
+    {
+        ByteBuffer loBuffer = PoolHolder.g_oBuffers.poll();
+        if (loBuffer != null)
+        {
+            PoolHolder.g_nPooled.decrementAndGet();
+            if (loBuffer.capacity() >= tnMinimumSize)
+            {
+                loBuffer.clear();
+                return loBuffer;
+            }
+        }
+        return ByteBuffer.allocateDirect(Math.max(tnMinimumSize, BUFFER_SIZE));
+    }
+
+    /**
+     * Returns a buffer to the pool.  The buffer must not be used after it is released
+     * @param toBuffer the buffer from acquireBuffer
+     */
+    public static void releaseBuffer(ByteBuffer toBuffer)
+    {
+        if (toBuffer != null && toBuffer.isDirect() && toBuffer.capacity() <= MAXIMUM_POOLED_SIZE)
+        {
+            if (PoolHolder.g_nPooled.incrementAndGet() <= MAXIMUM_POOLED)
+            {
+                PoolHolder.g_oBuffers.offer(toBuffer);
+            }
+            else
+            {
+                PoolHolder.g_nPooled.decrementAndGet();
+            }
+        }
+    }
+
+    private final DataSchema<T> m_oSchema;
+    private final Kind[] m_aKinds;
+    private final Class<?>[] m_aClasses;
+    private final MethodHandle[] m_aDateConstructors;
+    private final int[] m_aNullable;
+    private final long m_nFingerprint;
+
+    /**
+     * Not publicly creatable, use getCodec
+     * @param toClass the class to encode
+     */
+    private DataCodec(Class<T> toClass)
+    {
+        m_oSchema = DataSchema.getSchema(toClass);
+        int lnFields = m_oSchema.getFieldCount();
+        m_aKinds = new Kind[lnFields];
+        m_aClasses = new Class<?>[lnFields];
+        m_aDateConstructors = new MethodHandle[lnFields];
+        int lnNullable = 0;
+        // FNV-1a over the names and types of the fields
+        long lnFingerprint = 0xcbf29ce484222325L;
+        for (int i = 0; i < lnFields; i++)
+        {
+            m_aClasses[i] = m_oSchema.getField(i).getType();
+            m_aKinds[i] = Kind.fromClass(m_aClasses[i], true);
+            if (m_aClasses[i] != Date.class && Date.class.isAssignableFrom(m_aClasses[i]))
+            {
+                // Date subclasses that can be created empty are written as milliseconds too
+                m_aDateConstructors[i] = createDateConstructor(m_aClasses[i]);
+                if (m_aDateConstructors[i] != null)
+                {
+                    m_aKinds[i] = Kind.DATE;
+                }
+            }
+            if (!m_oSchema.getType(i).isPrimitive())
+            {
+                lnNullable++;
+            }
+            String lcField = m_oSchema.getName(i) + ':' + m_aClasses[i].getName() + ';';
+            for (int j = 0; j < lcField.length(); j++)
+            {
+                lnFingerprint ^= lcField.charAt(j);
+                lnFingerprint *= 0x100000001b3L;
+            }
+        }
+        m_aNullable = new int[lnNullable];
+        for (int i = 0, j = 0; i < lnFields; i++)
+        {
+            if (!m_oSchema.getType(i).isPrimitive())
+            {
+                m_aNullable[j++] = i;
+            }
+        }
+        m_nFingerprint = lnFingerprint;
+    }
+
+    private static MethodHandle createDateConstructor(Class<?> toClass)
+    {
+        try
+        {
+            return MethodHandles.publicLookup().findConstructor(toClass, MethodType.methodType(void.class)).asType(MethodType.methodType(Date.class));
+        }
+        catch (NoSuchMethodException | IllegalAccessException ex)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Gets the schema of the records encoded
+     * @return the schema
+     */
+    public DataSchema<T> getSchema()
+    {
+        return m_oSchema;
+    }
+
+    /**
+     * Gets a hash of the names and types of the fields, the codecs of two classes can only
+     * read each other's records if their fingerprints match
+     * @return the fingerprint
+     */
+    public long getFingerprint()
+    {
+        return m_nFingerprint;
+    }
+
+    /**
+     * Encodes the object
+     * @param toWriter the writer to encode in to
+     * @param toObject the object, primitive fields are read without boxing
+     */
+    public void write(Writer toWriter, T toObject)
+    {
+        writeNulls(toWriter, toObject, null);
+        try
+        {
+            for (int i = 0; i < m_aKinds.length; i++)
+            {
+                MethodHandle loGetter = m_oSchema.getGetter(i);
+                switch (m_oSchema.getType(i))
+                {
+                    case BOOLEAN:
+                        toWriter.putBoolean((boolean)loGetter.invokeExact((DataObject)toObject));
+                        break;
+                    case BYTE:
+                        toWriter.putByte((byte)loGetter.invokeExact((DataObject)toObject));
+                        break;
+                    case CHAR:
+                        toWriter.putChar((char)loGetter.invokeExact((DataObject)toObject));
+                        break;
+                    case SHORT:
+                        toWriter.putShort((short)loGetter.invokeExact((DataObject)toObject));
+                        break;
+                    case INT:
+                        toWriter.putInt((int)loGetter.invokeExact((DataObject)toObject));
+                        break;
+                    case LONG:
+                        toWriter.putLong((long)loGetter.invokeExact((DataObject)toObject));
+                        break;
+                    case FLOAT:
+                        toWriter.putFloat((float)loGetter.invokeExact((DataObject)toObject));
+                        break;
+                    case DOUBLE:
+                        toWriter.putDouble((double)loGetter.invokeExact((DataObject)toObject));
+                        break;
+                    default:
+                        Object loValue = (Object)loGetter.invokeExact((DataObject)toObject);
+                        if (loValue != null)
+                        {
+                            writeValue(toWriter, m_aKinds[i], loValue);
+                        }
+                }
+            }
+        }
+        catch (RuntimeException | Error ex)
+        {
+            throw ex;
+        }
+        catch (Throwable ex)
+        {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Encodes a record held as an array of values
+     * @param toWriter the writer to encode in to
+     * @param taValues the values of the record in schema order
+     */
+    public void write(Writer toWriter, Object[] taValues)
+    {
+        writeNulls(toWriter, null, taValues);
+        for (int i = 0; i < m_aKinds.length; i++)
+        {
+            Object loValue = taValues[i];
+            if (loValue != null)
+            {
+                writeValue(toWriter, m_aKinds[i], loValue);
+            }
+            else if (m_oSchema.getType(i).isPrimitive())
+            {
+                writeValue(toWriter, m_aKinds[i], defaultValue(m_oSchema.getType(i)));
+            }
+        }
+    }
+
+    /**
+     * Encodes the record at the index of the cursor, primitive fields are read from the
+     * pages without boxing where the cursor has a typed getter
+     * @param toWriter the writer to encode in to
+     * @param toCursor the cursor
+     * @param tnIndex the index of the record
+     */
+    private void write(Writer toWriter, DataCursor<?> toCursor, long tnIndex)
+    {
+        Object[] laValues = null;
+        if (m_aNullable.length > 0)
+        {
+            laValues = new Object[m_aKinds.length];
+            for (int lnField : m_aNullable)
+            {
+                laValues[lnField] = toCursor.getValue(tnIndex, lnField);
+            }
+            writeNulls(toWriter, null, laValues);
+        }
+        for (int i = 0; i < m_aKinds.length; i++)
+        {
+            switch (m_oSchema.getType(i))
+            {
+                case BOOLEAN:
+                    toWriter.putBoolean(toCursor.getBoolean(tnIndex, i));
+                    break;
+                case INT:
+                    toWriter.putInt(toCursor.getInt(tnIndex, i));
+                    break;
+                case LONG:
+                    toWriter.putLong(toCursor.getLong(tnIndex, i));
+                    break;
+                case FLOAT:
+                    toWriter.putFloat(toCursor.getFloat(tnIndex, i));
+                    break;
+                case DOUBLE:
+                    toWriter.putDouble(toCursor.getDouble(tnIndex, i));
+                    break;
+                case OBJECT:
+                    if (laValues[i] != null)
+                    {
+                        writeValue(toWriter, m_aKinds[i], laValues[i]);
+                    }
+                    break;
+                default:
+                    Object loValue = toCursor.getValue(tnIndex, i);
+                    writeValue(toWriter, m_aKinds[i], loValue == null ? defaultValue(m_oSchema.getType(i)) : loValue);
+            }
+        }
+    }
+
+    /**
+     * Writes the bitmap of the object fields that are null, from either the object or the values
+     * @param toWriter the writer
+     * @param toObject the object, or null if the values are specified
+     * @param taValues the values in schema order, or null if the object is specified
+     */
+    private void writeNulls(Writer toWriter, T toObject, Object[] taValues)
+    {
+        for (int i = 0; i < m_aNullable.length; i += 8)
+        {
+            int lnBits = 0;
+            for (int j = i; j < i + 8 && j < m_aNullable.length; j++)
+            {
+                Object loValue = toObject == null ? taValues[m_aNullable[j]] : m_oSchema.getValue(toObject, m_aNullable[j]);
+                if (loValue == null)
+                {
+                    lnBits |= 1 << (j - i);
+                }
+            }
+            toWriter.putByte((byte)lnBits);
+        }
+    }
+
+    /**
+     * Reads the bitmap of the object fields that are null
+     * @param toReader the reader
+     * @return true for each field in schema order that is null
+     */
+    private boolean[] readNulls(Reader toReader)
+    {
+        boolean[] laNulls = new boolean[m_aKinds.length];
+        for (int i = 0; i < m_aNullable.length; i += 8)
+        {
+            int lnBits = toReader.getByte();
+            for (int j = i; j < i + 8 && j < m_aNullable.length; j++)
+            {
+                laNulls[m_aNullable[j]] = (lnBits & (1 << (j - i))) != 0;
+            }
+        }
+        return laNulls;
+    }
+
+    /**
+     * Decodes a record in to the object, every field of the object is set
+     * @param toReader the reader to decode from
+     * @param toObject the object to populate, primitive fields are set without boxing
+     */
+    public void read(Reader toReader, T toObject)
+    {
+        boolean[] laNulls = readNulls(toReader);
+        try
+        {
+            for (int i = 0; i < m_aKinds.length; i++)
+            {
+                MethodHandle loSetter = m_oSchema.getSetter(i);
+                switch (m_oSchema.getType(i))
+                {
+                    case BOOLEAN:
+                        loSetter.invokeExact((DataObject)toObject, toReader.getBoolean());
+                        break;
+                    case BYTE:
+                        loSetter.invokeExact((DataObject)toObject, toReader.getByte());
+                        break;
+                    case CHAR:
+                        loSetter.invokeExact((DataObject)toObject, toReader.getChar());
+                        break;
+                    case SHORT:
+                        loSetter.invokeExact((DataObject)toObject, toReader.getShort());
+                        break;
+                    case INT:
+                        loSetter.invokeExact((DataObject)toObject, toReader.getInt());
+                        break;
+                    case LONG:
+                        loSetter.invokeExact((DataObject)toObject, toReader.getLong());
+                        break;
+                    case FLOAT:
+                        loSetter.invokeExact((DataObject)toObject, toReader.getFloat());
+                        break;
+                    case DOUBLE:
+                        loSetter.invokeExact((DataObject)toObject, toReader.getDouble());
+                        break;
+                    default:
+                        loSetter.invokeExact((DataObject)toObject, laNulls[i] ? null : readValue(toReader, i, m_aKinds[i]));
+                }
+            }
+        }
+        catch (RuntimeException | Error ex)
+        {
+            throw ex;
+        }
+        catch (Throwable ex)
+        {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Decodes a record in to an array of values
+     * @param toReader the reader to decode from
+     * @return the values of the record in schema order
+     */
+    public Object[] read(Reader toReader)
+    {
+        boolean[] laNulls = readNulls(toReader);
+        Object[] laValues = new Object[m_aKinds.length];
+        for (int i = 0; i < laValues.length; i++)
+        {
+            laValues[i] = laNulls[i] ? null : readValue(toReader, i, m_aKinds[i]);
+        }
+        return laValues;
+    }
+
+    /**
+     * Encodes a record held as an array of values in to a new array, used to hold records compactly
+     * @param taValues the values of the record in schema order
+     * @return the encoded record
+     */
+    public byte[] encode(Object[] taValues)
+    {
+        Writer loWriter = new Writer();
+        try
+        {
+            write(loWriter, taValues);
+            return loWriter.toByteArray();
+        }
+        finally
+        {
+            loWriter.close();
+        }
+    }
+
+    /**
+     * Decodes a record encoded with encode
+     * @param taBytes the encoded record
+     * @return the values of the record in schema order
+     */
+    public Object[] decode(byte[] taBytes)
+    {
+        return read(new Reader(taBytes));
+    }
+
+    /**
+     * Encodes a column of a DataPage.  Primitive columns are written value by value, object
+     * columns as a bitmap of the non null values followed by those values
+     * @param toWriter the writer to encode in to
+     * @param tnField the field the column holds
+     * @param toColumn the array of column values
+     * @param tnLength the number of values to write
+     */
+    void writeColumn(Writer toWriter, int tnField, Object toColumn, int tnLength)
+    {
+        switch (m_oSchema.getType(tnField))
+        {
+            case BOOLEAN:
+                boolean[] laBooleans = (boolean[])toColumn;
+                for (int i = 0; i < tnLength; i++)
+                {
+                    toWriter.putBoolean(laBooleans[i]);
+                }
+                break;
+            case BYTE:
+                toWriter.reserve(tnLength).put((byte[])toColumn, 0, tnLength);
+                break;
+            case CHAR:
+                char[] laChars = (char[])toColumn;
+                for (int i = 0; i < tnLength; i++)
+                {
+                    toWriter.putChar(laChars[i]);
+                }
+                break;
+            case SHORT:
+                short[] laShorts = (short[])toColumn;
+                for (int i = 0; i < tnLength; i++)
+                {
+                    toWriter.putShort(laShorts[i]);
+                }
+                break;
+            case INT:
+                int[] laInts = (int[])toColumn;
+                for (int i = 0; i < tnLength; i++)
+                {
+                    toWriter.putInt(laInts[i]);
+                }
+                break;
+            case LONG:
+                long[] laLongs = (long[])toColumn;
+                for (int i = 0; i < tnLength; i++)
+                {
+                    toWriter.putLong(laLongs[i]);
+                }
+                break;
+            case FLOAT:
+                ByteBuffer loFloats = toWriter.reserve(4 * tnLength);
+                loFloats.asFloatBuffer().put((float[])toColumn, 0, tnLength);
+                loFloats.position(loFloats.position() + 4 * tnLength);
+                break;
+            case DOUBLE:
+                ByteBuffer loDoubles = toWriter.reserve(8 * tnLength);
+                loDoubles.asDoubleBuffer().put((double[])toColumn, 0, tnLength);
+                loDoubles.position(loDoubles.position() + 8 * tnLength);
+                break;
+            default:
+                Object[] laObjects = (Object[])toColumn;
+                ByteBuffer loBits = toWriter.reserve((tnLength + 7) / 8);
+                for (int i = 0; i < tnLength; i += 8)
+                {
+                    int lnBits = 0;
+                    for (int j = i; j < i + 8 && j < tnLength; j++)
+                    {
+                        if (laObjects[j] != null)
+                        {
+                            lnBits |= 1 << (j - i);
+                        }
+                    }
+                    loBits.put((byte)lnBits);
+                }
+                for (int i = 0; i < tnLength; i++)
+                {
+                    if (laObjects[i] != null)
+                    {
+                        writeValue(toWriter, m_aKinds[tnField], laObjects[i]);
+                    }
+                }
+        }
+    }
+
+    /**
+     * Decodes a column written by writeColumn
+     * @param toReader the reader to decode from
+     * @param tnField the field the column holds
+     * @param tnLength the number of values written
+     * @param tnCapacity the length of the array to create
+     * @return the array of column values
+     */
+    Object readColumn(Reader toReader, int tnField, int tnLength, int tnCapacity)
+    {
+        Object loColumn = m_oSchema.getType(tnField).newArray(tnCapacity);
+        switch (m_oSchema.getType(tnField))
+        {
+            case BOOLEAN:
+                boolean[] laBooleans = (boolean[])loColumn;
+                for (int i = 0; i < tnLength; i++)
+                {
+                    laBooleans[i] = toReader.getBoolean();
+                }
+                break;
+            case BYTE:
+                toReader.getBuffer().get((byte[])loColumn, 0, tnLength);
+                break;
+            case CHAR:
+                char[] laChars = (char[])loColumn;
+                for (int i = 0; i < tnLength; i++)
+                {
+                    laChars[i] = toReader.getChar();
+                }
+                break;
+            case SHORT:
+                short[] laShorts = (short[])loColumn;
+                for (int i = 0; i < tnLength; i++)
+                {
+                    laShorts[i] = toReader.getShort();
+                }
+                break;
+            case INT:
+                int[] laInts = (int[])loColumn;
+                for (int i = 0; i < tnLength; i++)
+                {
+                    laInts[i] = toReader.getInt();
+                }
+                break;
+            case LONG:
+                long[] laLongs = (long[])loColumn;
+                for (int i = 0; i < tnLength; i++)
+                {
+                    laLongs[i] = toReader.getLong();
+                }
+                break;
+            case FLOAT:
+                ByteBuffer loFloats = toReader.getBuffer();
+                loFloats.asFloatBuffer().get((float[])loColumn, 0, tnLength);
+                loFloats.position(loFloats.position() + 4 * tnLength);
+                break;
+            case DOUBLE:
+                ByteBuffer loDoubles = toReader.getBuffer();
+                loDoubles.asDoubleBuffer().get((double[])loColumn, 0, tnLength);
+                loDoubles.position(loDoubles.position() + 8 * tnLength);
+                break;
+            default:
+                Object[] laObjects = (Object[])loColumn;
+                byte[] laBits = new byte[(tnLength + 7) / 8];
+                toReader.getBuffer().get(laBits);
+                for (int i = 0; i < tnLength; i++)
+                {
+                    if ((laBits[i >> 3] & (1 << (i & 7))) != 0)
+                    {
+                        laObjects[i] = readValue(toReader, tnField, m_aKinds[tnField]);
+                    }
+                }
+        }
+        return loColumn;
+    }
+
+    /**
+     * Writes the records of the cursor which have not been deleted to the channel.  The
+     * stream starts with the fingerprint of the codec and the records follow in blocks of
+     * about BUFFER_SIZE bytes, each with its own dictionary, so the reader never holds
+     * more than a block.  A cursor that can fetch its pages again is made forward only while
+     * it is written so each page is released once it has been written, the cursor is returned
+     * to its previous mode afterwards
+     * @param toCursor the cursor
+     * @param toChannel the channel to write to, this is not closed
+     * @return the number of records written
+     * @throws IOException if the records could not be written
+     */
+    public long write(DataCursor<T> toCursor, WritableByteChannel toChannel)
+            throws IOException
+    {
+        boolean llForwardOnly = toCursor.isForwardOnly();
+        // Pages of other cursors could not be read again, so they are kept
+        if (toCursor.isRefetchable())
+        {
+            toCursor.setForwardOnly(true);
+        }
+        try
+        {
+            return writeRecords(toCursor, toChannel);
+        }
+        finally
+        {
+            toCursor.setForwardOnly(llForwardOnly);
+        }
+    }
+
+    /**
+     * Writes the header and blocks of records of the cursor to the channel
+     * @param toCursor the cursor
+     * @param toChannel the channel to write to
+     * @return the number of records written
+     * @throws IOException if the records could not be written
+     */
+    private long writeRecords(DataCursor<T> toCursor, WritableByteChannel toChannel)
+            throws IOException
+    {
+        ByteBuffer loHeader = ByteBuffer.allocate(12);
+        loHeader.putInt(MAGIC).putLong(m_nFingerprint).flip();
+        writeFully(toChannel, loHeader);
+
+        long lnWritten = 0;
+        Writer loWriter = new Writer();
+        try
+        {
+            int lnCount = 0;
+            // Space is left at the start of each block for its length and record count
+            loWriter.reserve(8).position(8);
+            for (long i = 0, lnLength = toCursor.getLength(); i < lnLength; i++)
+            {
+                if (toCursor.isDeleted(i))
+                {
+                    continue;
+                }
+                write(loWriter, toCursor, i);
+                lnCount++;
+                lnWritten++;
+                if (loWriter.getLength() >= BUFFER_SIZE)
+                {
+                    writeBlock(toChannel, loWriter, lnCount);
+                    lnCount = 0;
+                    loWriter.reserve(8).position(8);
+                }
+            }
+            if (lnCount > 0)
+            {
+                writeBlock(toChannel, loWriter, lnCount);
+            }
+            loHeader.clear();
+            loHeader.putInt(0).flip();
+            writeFully(toChannel, loHeader);
+        }
+        finally
+        {
+            loWriter.close();
+        }
+        return lnWritten;
+    }
+
+    /**
+     * Writes the records of the cursor to the stream, see write(DataCursor, WritableByteChannel)
+     * @param toCursor the cursor
+     * @param toStream the stream to write to, this is not closed
+     * @return the number of records written
+     * @throws IOException if the records could not be written
+     */
+    public long write(DataCursor<T> toCursor, OutputStream toStream)
+            throws IOException
+    {
+        long lnWritten = write(toCursor, Channels.newChannel(toStream));
+        toStream.flush();
+        return lnWritten;
+    }
+
+    /**
+     * Writes a block of records and resets the writer for the next block
+     * @param toChannel the channel to write to
+     * @param toWriter the writer holding the block, the first 8 bytes are left for the header
+     * @param tnCount the number of records in the block
+     * @throws IOException if the block could not be written
+     */
+    private static void writeBlock(WritableByteChannel toChannel, Writer toWriter, int tnCount)
+            throws IOException
+    {
+        ByteBuffer loBuffer = toWriter.getBuffer();
+        loBuffer.putInt(0, loBuffer.position() - 4);
+        loBuffer.putInt(4, tnCount);
+        loBuffer.flip();
+        writeFully(toChannel, loBuffer);
+        toWriter.reset();
+    }
+
+    private static void writeFully(WritableByteChannel toChannel, ByteBuffer toBuffer)
+            throws IOException
+    {
+        while (toBuffer.hasRemaining())
+        {
+            toChannel.write(toBuffer);
+        }
+    }
+
+    private static void readFully(ReadableByteChannel toChannel, ByteBuffer toBuffer)
+            throws IOException
+    {
+        while (toBuffer.hasRemaining())
+        {
+            if (toChannel.read(toBuffer) < 0)
+            {
+                throw new EOFException("The stream of records ended before the end marker");
+            }
+        }
+        toBuffer.flip();
+    }
+
+    /**
+     * Reads records written by write(DataCursor, WritableByteChannel) from the channel.  Each
+     * record is read in to the same instance of the data object and passed to the visitor,
+     * so the visitor must copy the object if it is retained
+     * @param toChannel the channel to read from, this is not closed
+     * @param toVisitor the visitor called for each record
+     * @return the number of records read
+     * @throws IOException if the stream could not be read or was written for a different layout
+     */
+    public long read(ReadableByteChannel toChannel, IDataVisitor<? super T> toVisitor)
+            throws IOException
+    {
+        ByteBuffer loHeader = ByteBuffer.allocate(12);
+        readFully(toChannel, loHeader);
+        if (loHeader.getInt() != MAGIC)
+        {
+            throw new IOException("The stream does not hold encoded records");
+        }
+        if (loHeader.getLong() != m_nFingerprint)
+        {
+            throw new IOException("The stream was written for a different layout of " + m_oSchema.getDataClass().getName());
+        }
+
+        T loObject = m_oSchema.newInstance();
+        long lnRead = 0;
+        ByteBuffer loLength = ByteBuffer.allocate(4);
+        while (true)
+        {
+            loLength.clear();
+            readFully(toChannel, loLength);
+            int lnSize = loLength.getInt();
+            if (lnSize == 0)
+            {
+                return lnRead;
+            }
+            if (lnSize < 4)
+            {
+                throw new IOException("Malformed block of " + lnSize + " bytes");
+            }
+            ByteBuffer loBlock = acquireBuffer(lnSize);
+            try
+            {
+                loBlock.limit(lnSize);
+                readFully(toChannel, loBlock);
+                Reader loReader = new Reader(loBlock);
+                for (int i = 0, lnCount = loBlock.getInt(); i < lnCount; i++)
+                {
+                    read(loReader, loObject);
+                    toVisitor.visit(loObject);
+                    lnRead++;
+                }
+            }
+            catch (BufferUnderflowException | IndexOutOfBoundsException ex)
+            {
+                throw new IOException("Malformed block of " + lnSize + " bytes", ex);
+            }
+            finally
+            {
+                releaseBuffer(loBlock);
+            }
+        }
+    }
+
+    /**
+     * Reads records from the stream, see read(ReadableByteChannel, IDataVisitor)
+     * @param toStream the stream to read from, this is not closed
+     * @param toVisitor the visitor called for each record
+     * @return the number of records read
+     * @throws IOException if the stream could not be read or was written for a different layout
+     */
+    public long read(InputStream toStream, IDataVisitor<? super T> toVisitor)
+            throws IOException
+    {
+        return read(Channels.newChannel(toStream), toVisitor);
+    }
+
+    /**
+     * Gets the value a null primitive is written as
+     * @param toType the type of the field
+     * @return the default value of the type
+     */
+    private static Object defaultValue(DataType toType)
+    {
+        switch (toType)
+        {
+            case BOOLEAN:
+                return Boolean.FALSE;
+            case CHAR:
+                return (char)0;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Writes a value that is not null
+     * @param toWriter the writer
+     * @param toKind how the value is encoded
+     * @param toValue the value
+     */
+    private static void writeValue(Writer toWriter, Kind toKind, Object toValue)
+    {
+        switch (toKind)
+        {
+            case BOOLEAN:
+                toWriter.putBoolean((Boolean)toValue);
+                break;
+            case BYTE:
+                toWriter.putByte(((Number)toValue).byteValue());
+                break;
+            case CHAR:
+                toWriter.putChar((Character)toValue);
+                break;
+            case SHORT:
+                toWriter.putShort(((Number)toValue).shortValue());
+                break;
+            case INT:
+                toWriter.putInt(((Number)toValue).intValue());
+                break;
+            case LONG:
+                toWriter.putLong(((Number)toValue).longValue());
+                break;
+            case FLOAT:
+                toWriter.putFloat(((Number)toValue).floatValue());
+                break;
+            case DOUBLE:
+                toWriter.putDouble(((Number)toValue).doubleValue());
+                break;
+            case STRING:
+                toWriter.putString((String)toValue);
+                break;
+            case DATE:
+                toWriter.putLong(((Date)toValue).getTime());
+                break;
+            case BYTES:
+                toWriter.putBytes((byte[])toValue);
+                break;
+            case BIG_INTEGER:
+                toWriter.putBytes(((BigInteger)toValue).toByteArray());
+                break;
+            case BIG_DECIMAL:
+                toWriter.putInt(((BigDecimal)toValue).scale());
+                toWriter.putBytes(((BigDecimal)toValue).unscaledValue().toByteArray());
+                break;
+            case ENUM:
+                toWriter.putString(((Enum<?>)toValue).name());
+                break;
+            case SERIALIZED:
+                toWriter.putBytes(serialize(toValue));
+                break;
+            default:
+                Kind loKind = Kind.fromClass(toValue.getClass(), false);
+                toWriter.putByte((byte)loKind.ordinal());
+                writeValue(toWriter, loKind, toValue);
+        }
+    }
+
+    /**
+     * Reads a value written by writeValue
+     * @param toReader the reader
+     * @param tnField the field the value is for
+     * @param toKind how the value is encoded
+     * @return the value
+     */
+    private Object readValue(Reader toReader, int tnField, Kind toKind)
+    {
+        switch (toKind)
+        {
+            case BOOLEAN:
+                return toReader.getBoolean();
+            case BYTE:
+                return toReader.getByte();
+            case CHAR:
+                return toReader.getChar();
+            case SHORT:
+                return toReader.getShort();
+            case INT:
+                return toReader.getInt();
+            case LONG:
+                return toReader.getLong();
+            case FLOAT:
+                return toReader.getFloat();
+            case DOUBLE:
+                return toReader.getDouble();
+            case STRING:
+                return toReader.getString();
+            case DATE:
+                return toDate(m_aDateConstructors[tnField], toReader.getLong());
+            case BYTES:
+                return toReader.getBytes();
+            case BIG_INTEGER:
+                return new BigInteger(toReader.getBytes());
+            case BIG_DECIMAL:
+                int lnScale = toReader.getInt();
+                return new BigDecimal(new BigInteger(toReader.getBytes()), lnScale);
+            case ENUM:
+                return toEnum(m_aClasses[tnField], toReader.getString());
+            case SERIALIZED:
+                return deserialize(toReader.getBytes());
+            default:
+                int lnKind = toReader.getByte();
+                if (lnKind < 0 || lnKind >= Kind.g_aKinds.length || Kind.g_aKinds[lnKind] == Kind.DYNAMIC || Kind.g_aKinds[lnKind] == Kind.ENUM)
+                {
+                    throw new IllegalStateException("Malformed value of " + m_oSchema.getName(tnField));
+                }
+                return readValue(toReader, tnField, Kind.g_aKinds[lnKind]);
+        }
+    }
+
+    private static Date toDate(MethodHandle toConstructor, long tnTime)
+    {
+        if (toConstructor == null)
+        {
+            return new Date(tnTime);
+        }
+        try
+        {
+            Date loDate = (Date)toConstructor.invokeExact();
+            loDate.setTime(tnTime);
+            return loDate;
+        }
+        catch (RuntimeException | Error ex)
+        {
+            throw ex;
+        }
+        catch (Throwable ex)
+        {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Object toEnum(Class<?> toClass, String tcName)
+    {
+        return Enum.valueOf((Class<Enum>)toClass, tcName);
+    }
+
+    private static byte[] serialize(Object toValue)
+    {
+        try
+        {
+            ByteArrayOutputStream loBytes = new ByteArrayOutputStream();
+            ObjectOutputStream loOutput = new ObjectOutputStream(loBytes);
+            loOutput.writeObject(toValue);
+            loOutput.close();
+            return loBytes.toByteArray();
+        }
+        catch (IOException ex)
+        {
+            throw new IllegalArgumentException("Unable to encode " + toValue.getClass().getName(), ex);
+        }
+    }
+
+    private static Object deserialize(byte[] taBytes)
+    {
+        try
+        {
+            ObjectInputStream loInput = new ObjectInputStream(new ByteArrayInputStream(taBytes));
+            try
+            {
+                return loInput.readObject();
+            }
+            finally
+            {
+                loInput.close();
+            }
+        }
+        catch (IOException | ClassNotFoundException ex)
+        {
+            throw new IllegalStateException("Unable to decode a serialized value", ex);
+        }
+    }
+}
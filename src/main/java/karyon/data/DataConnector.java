@@ -1,5 +1,10 @@
 package karyon.data;
 
+import karyon.exceptions.DataAccessException;
+
+import java.util.List;
+import java.util.Map;
+
 /**
  * A data connector is an adapter to manipulate data in a specific type
  * of data store.  All data connectors should extend from this class
@@ -14,6 +19,27 @@ public abstract class DataConnector
         DataManager.getInstance().map(this, toDataObjectClass);
     }
 
+    @Override
+    public <K extends DataObject> DataCursor<K> filter(DataCursor<K> toCursor, DataFilter toFilter)
+    {
+        return null;
+    }
+
+    /**
+     * Removes the objects from the data store, connectors that can remove objects override this
+     * @param toObjects the objects to remove keyed by class, each list only holds objects of that class
+     * @param tlTransaction true if every object must be removed in a single transaction
+     * @return the number of objects removed
+     * @throws DataAccessException always, as this connector can not remove objects
+     */
+    @Override
+    public long delete(Map<Class<? extends DataObject>, List<DataObject>> toObjects, boolean tlTransaction)
+            throws DataAccessException
+    {
+        Class<? extends DataObject> loClass = toObjects.isEmpty() ? DataObject.class : toObjects.keySet().iterator().next();
+        throw new DataAccessException(loClass, new UnsupportedOperationException(getClass().getName() + " can not remove objects"));
+    }
+
     /*
     private static String DATAMANAGER_VERSION_KEY = "Application.DataStore.Version";
 
@@ -1,30 +1,111 @@
 package karyon.data;
 
-import karyon.SingletonManager;
+import karyon.applications.Application;
+import karyon.collections.HashMap;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * A DataCursor represents the results of a query to the data source.  The cursor can
  * contain 0 or more records.  If a query contains more records than retrievable by a cursor then
- * the DataCursor will page in and out data as required
+ * the DataCursor will page in and out data as required.
+ *
+ * Records are held column by column using the DataSchema of the data object class, primitive
+ * fields are stored in primitive arrays and are read back through a flyweight data object
  * @param <T> the type of DataObject in this data cursor
  */
 public class DataCursor<T extends DataObject>
     extends karyon.Object
 {
+    /**
+     * The default number of records held in each page of the cursor
+     */
+    public static final int DEFAULT_PAGE_SIZE = 4096;
+
+    /**
+     * Holds the pool used for parallel operations, created when first used
+     */
+    private static final class PoolHolder
+    {
+        private static final ForkJoinPool g_oPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Holds the executor used for prefetching pages, created when first used
+     */
+    private static final class PrefetchHolder
+    {
+        private static final ExecutorService g_oExecutor = Executors.newCachedThreadPool(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable toRunnable)
+            {
+                Thread loThread = new Thread(toRunnable, "DataCursor.prefetch");
+                loThread.setDaemon(true);
+                return loThread;
+            }
+        });
+    }
+
+    private DataSchema<T> m_oSchema;
     private T m_oDataFlyweight;
     private long m_nPointer;
     private long m_nOffset;
     private long m_nLength;
-    private Object[] m_aValues;
 
-    // TODO: Multiple Object arrays for collections larger than INT size
-    // TODO: Implement iterable and navigation by pointer
-    // TODO: Implement chained operators for filtering, getting modified records, and deleting records
+    // Records are held in fixed size pages addressed by a long index, pages are
+    // only allocated when written to
+    private DataPage[] m_aPages;
+    private int m_nPageShift;
+    private int m_nPageMask;
+    private boolean m_lForwardOnly;
+    private int m_nFirstPage;
+
+    private IDataConnector m_oSource;
+    private long m_nChanges;
+    // The pages held in memory, least recently used first
+    private LinkedHashSet<Integer> m_oResident;
+
+    // Paging from the page source
+    private IDataPageSource m_oPageSource;
+    private IDataKeysetSource m_oKeysetSource;
+    private int m_nKeyField;
+    private Object[] m_aPageKeys;
+    private int m_nCurrentPage;
+    private int m_nPrefetchDepth;
+    private long m_nMemoryBudget;
+    private ExecutorService m_oPrefetchExecutor;
+    private HashMap<Integer, Future<Object[]>> m_oPrefetching;
+    // Pages being fetched by parallel scans, changes to the pages by scans hold the page lock
+    private HashMap<Integer, FutureTask<Object[]>> m_oLoading;
+    private final ReentrantLock m_oPageLock;
+
+    // Spilling pages to disk
+    private boolean m_lSpill;
+    private File m_oSpillDirectory;
+    private DataSpillFile m_oSpillFile;
+    private long[] m_aSpilled;
 
     /**
      * Creates a new instance of the DataCursor
      * @param toClass the class that this cursor is representing
-     * @param taValues the values inside this cursor
+     * @param taValues the records inside this cursor, see DataSchema.toValues for the accepted record types
      */
     public DataCursor(Class<T> toClass, Object[] taValues)
     {
@@ -34,16 +115,59 @@ public class DataCursor<T extends DataObject>
     /**
      * Creates a new instance of the DataCursor
      * @param toClass the class that this cursor is representing
-     * @param taValues the values inside this cursor
+     * @param taValues the records inside this cursor, see DataSchema.toValues for the accepted record types
      * @param tnOffset where the start of this cursor lies in comparison to the entire dataset that would have been retrieved if there were no limits on cursors
      * @param tnCount the count of the entire dataset that would have been retrieved if there were no limits on cursors
      */
     public DataCursor(Class<T> toClass, Object[] taValues, long tnOffset, long tnCount)
     {
-        m_oDataFlyweight = SingletonManager.getInstance(toClass);
-        m_aValues = taValues;
-        m_nPointer = 0;
+        this(toClass, tnCount, DEFAULT_PAGE_SIZE);
+        if (tnOffset < 0 || tnOffset + taValues.length > tnCount)
+        {
+            throw new IllegalArgumentException("Values [" + tnOffset + ", " + (tnOffset + taValues.length) + ") do not fit in a cursor of " + tnCount + " records");
+        }
         m_nOffset = tnOffset;
+        for (int i = 0; i < taValues.length; i++)
+        {
+            setValue(tnOffset + i, taValues[i]);
+        }
+    }
+
+    /**
+     * Creates a new empty DataCursor which can be populated using setValue.  The pages of the
+     * cursor are allocated as they are written to
+     * @param toClass the class that this cursor is representing
+     * @param tnCount the count of the entire dataset
+     * @param tnPageSize the number of records in each page, this will be rounded up to a power of 2
+     */
+    public DataCursor(Class<T> toClass, long tnCount, int tnPageSize)
+    {
+        if (tnCount < 0)
+        {
+            throw new IllegalArgumentException("tnCount must not be negative");
+        }
+        if (tnPageSize < 1 || tnPageSize > (1 << 30))
+        {
+            throw new IllegalArgumentException("tnPageSize must be between 1 and " + (1 << 30));
+        }
+        m_nPageShift = 32 - Integer.numberOfLeadingZeros(tnPageSize - 1);
+        m_nPageMask = (1 << m_nPageShift) - 1;
+
+        long lnPages = (tnCount + m_nPageMask) >>> m_nPageShift;
+        if (lnPages > Integer.MAX_VALUE)
+        {
+            throw new IllegalArgumentException("A cursor of " + tnCount + " records requires a larger page size than " + tnPageSize);
+        }
+
+        // The flyweight is owned by the cursor as it is rebound as the cursor is read
+        m_oSchema = DataSchema.getSchema(toClass);
+        m_oDataFlyweight = m_oSchema.newInstance();
+        m_aPages = new DataPage[(int)lnPages];
+        m_oResident = new LinkedHashSet<Integer>();
+        m_oPageLock = new ReentrantLock();
+        m_nPointer = -1;
+        m_nCurrentPage = -1;
+        m_nOffset = 0;
         m_nLength = tnCount;
     }
 
@@ -53,9 +177,1485 @@ public class DataCursor<T extends DataObject>
      */
     public boolean isEmpty()
     {
-        return m_aValues == null || m_aValues.length == 0;
+        return m_nLength == 0;
+    }
+
+    /**
+     * Gets the number of records in the entire dataset this cursor represents
+     * @return the number of records
+     */
+    public long getLength()
+    {
+        return m_nLength;
+    }
+
+    /**
+     * Gets the position of the first record provided when this cursor was created
+     * @return the offset of the cursor in the dataset
+     */
+    public long getOffset()
+    {
+        return m_nOffset;
+    }
+
+    /**
+     * Gets the schema of the records held in this cursor
+     * @return the schema
+     */
+    public DataSchema<T> getSchema()
+    {
+        return m_oSchema;
+    }
+
+    /**
+     * Gets the connector this cursor was retrieved from
+     * @return the connector or null if this cursor was not created by a connector
+     */
+    public IDataConnector getSource()
+    {
+        return m_oSource;
+    }
+
+    /**
+     * Sets the connector this cursor was retrieved from.  Filters on views of the
+     * cursor will be passed to this connector where possible
+     * @param toSource the connector
+     */
+    public void setSource(IDataConnector toSource)
+    {
+        m_oSource = toSource;
+    }
+
+    /**
+     * Gets the number of records held in each page of this cursor
+     * @return the page size
+     */
+    public int getPageSize()
+    {
+        return m_nPageMask + 1;
+    }
+
+    /**
+     * Gets the number of pages currently allocated by this cursor
+     * @return the number of allocated pages
+     */
+    public int getAllocatedPages()
+    {
+        return m_oResident.size();
+    }
+
+    /**
+     * Sets the source used to page in records that are not loaded when they are read
+     * @param toPageSource the page source, or null to stop paging
+     */
+    public void setPageSource(IDataPageSource toPageSource)
+    {
+        cancelPrefetch();
+        m_oPageSource = toPageSource;
+        m_oKeysetSource = null;
+        m_aPageKeys = null;
+    }
+
+    /**
+     * Sets the source used to page in records using keyset paging.  The cursor remembers the
+     * key of the last record of each page it has loaded and uses it to request the following page,
+     * the source must return the records in ascending key order
+     * @param toKeysetSource the keyset source
+     * @param tcKeyField the property name of the key field, the key must be unique and not null
+     */
+    public void setPageSource(IDataKeysetSource toKeysetSource, String tcKeyField)
+    {
+        int lnKeyField = m_oSchema.indexOf(tcKeyField);
+        if (lnKeyField < 0)
+        {
+            throw new IllegalArgumentException(tcKeyField + " is not a field of " + m_oSchema.getDataClass().getName());
+        }
+        cancelPrefetch();
+        m_oPageSource = null;
+        m_oKeysetSource = toKeysetSource;
+        m_nKeyField = lnKeyField;
+        m_aPageKeys = new Object[m_aPages.length];
+    }
+
+    /**
+     * Checks if this cursor pages records in from a page or keyset source
+     * @return true if this cursor pages
+     */
+    public boolean isPaged()
+    {
+        return m_oPageSource != null || m_oKeysetSource != null;
+    }
+
+    /**
+     * Checks if the pages of this cursor can be released and fetched again, which needs a
+     * keyset source or a page source that returns the same records each time
+     * @return true if released pages can be fetched again
+     */
+    public boolean isRefetchable()
+    {
+        return m_oKeysetSource != null || (m_oPageSource != null && m_oPageSource.isRepeatable());
+    }
+
+    /**
+     * Gets the source used to page in records
+     * @return the page source or null if this cursor does not page
+     */
+    public IDataPageSource getPageSource()
+    {
+        return m_oPageSource;
+    }
+
+    /**
+     * Enables prefetching using the shared prefetch executor
+     * @param tnDepth the number of pages to fetch ahead of the page being read, 0 to disable
+     * @param tnMemoryBudget the maximum number of bytes of records to hold, 0 for no limit
+     */
+    public void setPrefetch(int tnDepth, long tnMemoryBudget)
+    {
+        setPrefetch(tnDepth, tnMemoryBudget, PrefetchHolder.g_oExecutor);
+    }
+
+    /**
+     * Enables prefetching.  While page N is being read, pages N+1 to N+tnDepth are fetched
+     * from the page source on the executor.  When the budget is set, pages are not fetched ahead
+     * if they would exceed the budget, and unchanged pages away from the page being read are released
+     * to keep the cursor within the budget.  The budget is estimated from DataSchema.getRecordSize
+     * @param tnDepth the number of pages to fetch ahead of the page being read, 0 to disable
+     * @param tnMemoryBudget the maximum number of bytes of records to hold, 0 for no limit
+     * @param toExecutor the executor to fetch pages on
+     */
+    public void setPrefetch(int tnDepth, long tnMemoryBudget, ExecutorService toExecutor)
+    {
+        if (tnDepth < 0 || tnMemoryBudget < 0)
+        {
+            throw new IllegalArgumentException("tnDepth and tnMemoryBudget must not be negative");
+        }
+        cancelPrefetch();
+        m_nPrefetchDepth = tnDepth;
+        m_nMemoryBudget = tnMemoryBudget;
+        m_oPrefetchExecutor = toExecutor;
+    }
+
+    /**
+     * Cancels any pages that are currently being prefetched
+     */
+    public void cancelPrefetch()
+    {
+        if (m_oPrefetching != null)
+        {
+            for (Future<Object[]> loFuture : m_oPrefetching.values())
+            {
+                loFuture.cancel(true);
+            }
+            m_oPrefetching.clear();
+        }
+    }
+
+    /**
+     * Gets the maximum number of pages the memory budget allows
+     * @return the number of pages
+     */
+    private int getPageBudget()
+    {
+        if (m_nMemoryBudget == 0)
+        {
+            return Integer.MAX_VALUE;
+        }
+        long lnPageBytes = (long)m_oSchema.getRecordSize() * getPageSize();
+        return (int)Math.max(1, Math.min(Integer.MAX_VALUE, m_nMemoryBudget / Math.max(1, lnPageBytes)));
+    }
+
+    /**
+     * Creates the task to fetch the records for the page from the source
+     * @param tnPage the page to fetch
+     * @return the task, or null if this is a keyset cursor and the key the page follows is not known
+     */
+    private Callable<Object[]> createFetch(int tnPage)
+    {
+        final long lnStart = (long)tnPage << m_nPageShift;
+        final int lnCount = (int)Math.min(getPageSize(), m_nLength - lnStart);
+        if (m_oPageSource != null)
+        {
+            final IDataPageSource loSource = m_oPageSource;
+            return new Callable<Object[]>()
+            {
+                @Override
+                public Object[] call() throws Exception
+                {
+                    return loSource.fetch(lnStart, lnCount);
+                }
+            };
+        }
+
+        final IDataKeysetSource loSource = m_oKeysetSource;
+        final Object loAfterKey = tnPage == 0 ? null : m_aPageKeys[tnPage - 1];
+        // The previous page may still be being fetched, in which case its key comes from the fetch
+        final Future<Object[]> loPrevious = tnPage == 0 || loAfterKey != null || m_oPrefetching == null ? null : m_oPrefetching.get(tnPage - 1);
+        if (tnPage > 0 && loAfterKey == null && loPrevious == null)
+        {
+            return null;
+        }
+        return new Callable<Object[]>()
+        {
+            @Override
+            public Object[] call() throws Exception
+            {
+                Object loKey = loAfterKey;
+                if (loPrevious != null)
+                {
+                    Object[] laPrevious = loPrevious.get();
+                    if (laPrevious.length == 0)
+                    {
+                        return laPrevious;
+                    }
+                    loKey = getKey(laPrevious[laPrevious.length - 1]);
+                }
+                return loSource.fetchAfter(loKey, lnCount);
+            }
+        };
+    }
+
+    /**
+     * Gets the key of the record for keyset paging
+     * @param toRecord the record
+     * @return the key
+     */
+    private Object getKey(Object toRecord)
+    {
+        return m_oSchema.toValues(toRecord)[m_nKeyField];
+    }
+
+    /**
+     * Loads the page from the page source, using the prefetched records if they are available
+     * @param tnPage the page to load
+     * @return the page or null if the source had no records for the page
+     */
+    private DataPage loadPage(int tnPage)
+    {
+        long lnStart = (long)tnPage << m_nPageShift;
+        Object[] laRecords;
+        try
+        {
+            Future<Object[]> loFuture = m_oPrefetching == null ? null : m_oPrefetching.remove(tnPage);
+            if (loFuture != null)
+            {
+                laRecords = loFuture.get();
+            }
+            else
+            {
+                Callable<Object[]> loFetch = createFetch(tnPage);
+                if (loFetch == null)
+                {
+                    // Keyset paging needs the key of the previous page, so walk forward from the last known key
+                    int lnKnown = tnPage - 1;
+                    while (lnKnown > 0 && m_aPageKeys[lnKnown - 1] == null)
+                    {
+                        lnKnown--;
+                    }
+                    for (int lnPage = lnKnown; lnPage < tnPage; lnPage++)
+                    {
+                        Object[] laSkipped = createFetch(lnPage).call();
+                        if (laSkipped.length == 0)
+                        {
+                            return null;
+                        }
+                        m_aPageKeys[lnPage] = getKey(laSkipped[laSkipped.length - 1]);
+                    }
+                    loFetch = createFetch(tnPage);
+                }
+                laRecords = loFetch.call();
+            }
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while fetching records from " + lnStart, ex);
+        }
+        catch (ExecutionException ex)
+        {
+            throw new IllegalStateException("Unable to fetch records from " + lnStart, ex.getCause());
+        }
+        catch (Exception ex)
+        {
+            throw new IllegalStateException("Unable to fetch records from " + lnStart, ex);
+        }
+
+        return storePage(tnPage, laRecords);
+    }
+
+    /**
+     * Stores the records fetched from the source for the page
+     * @param tnPage the page
+     * @param taRecords the records fetched
+     * @return the page or null if the source had no records for the page
+     */
+    private DataPage storePage(int tnPage, Object[] taRecords)
+    {
+        long lnStart = (long)tnPage << m_nPageShift;
+        int lnCount = (int)Math.min(taRecords.length, m_nLength - lnStart);
+        if (m_aPageKeys != null && lnCount > 0)
+        {
+            m_aPageKeys[tnPage] = getKey(taRecords[lnCount - 1]);
+        }
+        for (int i = 0; i < lnCount; i++)
+        {
+            setValue(lnStart + i, taRecords[i]);
+        }
+        return m_aPages[tnPage];
+    }
+
+    /**
+     * Spills pages to a temporary file once the loaded pages exceed the heap budget.  The
+     * least recently used pages are written to the file first, and read back when they are
+     * next used.  Pages read back are not written again unless they change
+     * @param tnHeapBudget the maximum number of bytes of records to hold in memory
+     */
+    public void setSpillToDisk(long tnHeapBudget)
+    {
+        setSpillToDisk(tnHeapBudget, null);
+    }
+
+    /**
+     * Spills pages to a temporary file once the loaded pages exceed the heap budget
+     * @param tnHeapBudget the maximum number of bytes of records to hold in memory
+     * @param toDirectory the directory to create the file in, or null for the default temporary directory
+     */
+    public void setSpillToDisk(long tnHeapBudget, File toDirectory)
+    {
+        if (tnHeapBudget <= 0)
+        {
+            throw new IllegalArgumentException("tnHeapBudget must be greater than 0");
+        }
+        m_nMemoryBudget = tnHeapBudget;
+        m_oSpillDirectory = toDirectory;
+        m_lSpill = true;
+        if (m_aSpilled == null)
+        {
+            m_aSpilled = new long[m_aPages.length];
+        }
+    }
+
+    /**
+     * Gets the number of pages currently held in the spill file rather than in memory
+     * @return the number of spilled pages
+     */
+    public int getSpilledPages()
+    {
+        int lnCount = 0;
+        if (m_aSpilled != null)
+        {
+            for (int i = 0; i < m_aSpilled.length; i++)
+            {
+                if (m_aSpilled[i] != 0 && m_aPages[i] == null)
+                {
+                    lnCount++;
+                }
+            }
+        }
+        return lnCount;
+    }
+
+    /**
+     * Releases all of the resources held by this cursor, including any spill file and an
+     * open page source.  The
+     * records in this cursor can no longer be read
+     */
+    public void close()
+    {
+        cancelPrefetch();
+        if (m_oPageSource instanceof Closeable)
+        {
+            try
+            {
+                ((Closeable)m_oPageSource).close();
+            }
+            catch (IOException ex)
+            {
+                Application.log(ex);
+            }
+        }
+        m_oPageSource = null;
+        m_oKeysetSource = null;
+        release(0, m_nLength, true);
+        m_nChanges = 0;
+        if (m_oSpillFile != null)
+        {
+            m_oSpillFile.close();
+            m_oSpillFile = null;
+        }
+        m_aSpilled = null;
+        m_lSpill = false;
+    }
+
+    /**
+     * Writes the page to the spill file and removes it from memory
+     * @param tnPage the page to spill
+     */
+    private void spill(int tnPage)
+    {
+        try
+        {
+            // A page read back from the file is still in the file if it has not changed since
+            if (m_aSpilled[tnPage] == 0)
+            {
+                if (m_oSpillFile == null)
+                {
+                    m_oSpillFile = new DataSpillFile(m_oSpillDirectory);
+                }
+                m_aSpilled[tnPage] = m_oSpillFile.write(m_aPages[tnPage]) + 1;
+            }
+        }
+        catch (IOException ex)
+        {
+            throw new IllegalStateException("Unable to spill page " + tnPage, ex);
+        }
+        m_aPages[tnPage] = null;
+        m_oResident.remove(tnPage);
+    }
+
+    /**
+     * Reads the page back from the spill file
+     * @param tnPage the page to read
+     * @return the page
+     */
+    private DataPage unspill(int tnPage)
+    {
+        try
+        {
+            DataPage loPage = m_oSpillFile.read(m_oSchema, m_aSpilled[tnPage] - 1);
+            m_aPages[tnPage] = loPage;
+            onPageUsed(tnPage);
+            return loPage;
+        }
+        catch (IOException ex)
+        {
+            throw new IllegalStateException("Unable to read spilled page " + tnPage, ex);
+        }
+    }
+
+    /**
+     * Marks the page as changed so any copy in the spill file is no longer valid, the
+     * slot of the copy is freed to be used by the next page spilled
+     * @param tnPage the page
+     */
+    private void onPageModified(int tnPage)
+    {
+        if (m_aSpilled != null && m_aSpilled[tnPage] != 0)
+        {
+            m_oSpillFile.free(m_aSpilled[tnPage] - 1);
+            m_aSpilled[tnPage] = 0;
+        }
+    }
+
+    /**
+     * Marks the page as held in memory and the most recently used, so it is the last page removed
+     * @param tnPage the page
+     */
+    private void onPageUsed(int tnPage)
+    {
+        m_oResident.remove(tnPage);
+        m_oResident.add(tnPage);
+    }
+
+    /**
+     * Removes pages from memory until the cursor is within its budget.  Pages are spilled if
+     * spilling is enabled, otherwise only pages that can be fetched again from the page source
+     * are released.  The least recently used pages are removed first, so only the pages
+     * held in memory are visited rather than every page of the cursor
+     * @param tnPage the page currently being used, this page is never removed
+     */
+    private void enforceBudget(int tnPage)
+    {
+        int lnExcess = m_oResident.size() - getPageBudget();
+        if (lnExcess > 0)
+        {
+            int[] laPages = new int[lnExcess];
+            int lnCount = 0;
+            for (Iterator<Integer> loIterator = m_oResident.iterator(); loIterator.hasNext() && lnCount < lnExcess; )
+            {
+                int lnPage = loIterator.next();
+                if (lnPage != tnPage && (m_lSpill || (isRefetchable() && !m_aPages[lnPage].hasChanges())))
+                {
+                    laPages[lnCount++] = lnPage;
+                }
+            }
+            for (int i = 0; i < lnCount; i++)
+            {
+                if (m_lSpill)
+                {
+                    spill(laPages[i]);
+                }
+                else
+                {
+                    m_aPages[laPages[i]] = null;
+                    m_oResident.remove(laPages[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Called when reading moves to a different page, removes pages to stay within
+     * the budget and fetches the following pages
+     * @param tnPage the page now being read
+     */
+    private void onPageChanged(int tnPage)
+    {
+        enforceBudget(tnPage);
+        int lnBudget = getPageBudget();
+
+        if (m_nPrefetchDepth > 0 && m_oPrefetchExecutor != null)
+        {
+            if (m_oPrefetching == null)
+            {
+                m_oPrefetching = new HashMap<Integer, Future<Object[]>>();
+            }
+            int lnAvailable = lnBudget - m_oResident.size() - m_oPrefetching.size();
+            for (int lnPage = tnPage + 1; lnPage <= tnPage + m_nPrefetchDepth && lnPage < m_aPages.length && lnAvailable > 0; lnPage++)
+            {
+                if (m_aPages[lnPage] == null && !m_oPrefetching.containsKey(lnPage))
+                {
+                    Callable<Object[]> loFetch = createFetch(lnPage);
+                    if (loFetch == null)
+                    {
+                        break;
+                    }
+                    m_oPrefetching.put(lnPage, m_oPrefetchExecutor.submit(loFetch));
+                    lnAvailable--;
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks if this cursor releases pages once they have been read past
+     * @return true if this cursor is forward only
+     */
+    public boolean isForwardOnly()
+    {
+        return m_lForwardOnly;
+    }
+
+    /**
+     * Sets this cursor to be forward only.  A forward only cursor will release pages
+     * that lie entirely before the record being read, which caps the memory used when
+     * scanning large result sets.  Released records can not be read again.  Only pages
+     * that can be fetched again from the page source and hold no unsaved changes are released.
+     * @param tlForwardOnly true to make this cursor forward only
+     */
+    public void setForwardOnly(boolean tlForwardOnly)
+    {
+        // Pages released by an earlier forward only read can be fetched again by the next one
+        if (tlForwardOnly && !m_lForwardOnly)
+        {
+            m_nFirstPage = 0;
+        }
+        m_lForwardOnly = tlForwardOnly;
+    }
+
+    /**
+     * Gets the record at the specified position as an array of values in schema order.
+     * This boxes primitive values, the typed getters or get should be used when scanning
+     * @param tnIndex the position of the record in the dataset
+     * @return the record values or null if the record has not been loaded or has been released
+     */
+    public Object[] getValue(long tnIndex)
+    {
+        DataPage loPage = getPage(tnIndex);
+        return loPage == null ? null : loPage.get((int)(tnIndex & m_nPageMask));
+    }
+
+    /**
+     * Gets the record at the specified position.  The object returned is the flyweight
+     * for this cursor, it is rebound each time a record is read so should not be retained
+     * @param tnIndex the position of the record in the dataset
+     * @return the flyweight bound to the record, or null if the record has not been loaded or has been released
+     */
+    public T get(long tnIndex)
+    {
+        DataPage loPage = getPage(tnIndex);
+        int lnOffset = (int)(tnIndex & m_nPageMask);
+        if (loPage == null || !loPage.isSet(lnOffset))
+        {
+            return null;
+        }
+        loPage.read(lnOffset, m_oDataFlyweight);
+        return m_oDataFlyweight;
+    }
+
+    /**
+     * Gets the position of the pointer in the dataset
+     * @return the position, or -1 if the pointer is before the first record
+     */
+    public long getPosition()
+    {
+        return m_nPointer;
+    }
+
+    /**
+     * Gets the record at the pointer.  The object returned is the flyweight for this
+     * cursor so should not be retained
+     * @return the record or null if the pointer is not on a loaded record
+     */
+    public T current()
+    {
+        return m_nPointer >= 0 && m_nPointer < m_nLength ? get(m_nPointer) : null;
+    }
+
+    /**
+     * Moves the pointer to the next record
+     * @return true if the pointer is on a record, false if the pointer has moved past the last record
+     */
+    public boolean next()
+    {
+        return seek(1);
     }
 
+    /**
+     * Moves the pointer to the previous record
+     * @return true if the pointer is on a record, false if the pointer has moved before the first record
+     */
+    public boolean previous()
+    {
+        return seek(-1);
+    }
 
+    /**
+     * Moves the pointer relative to its current position
+     * @param tnRecords the number of records to move, negative values move backwards
+     * @return true if the pointer is on a record
+     */
+    public boolean seek(long tnRecords)
+    {
+        return absolute(m_nPointer + tnRecords);
+    }
 
+    /**
+     * Moves the pointer to the position specified and binds the flyweight to the record.
+     * Positions outside of the dataset leave the pointer before the first or after the last record
+     * @param tnPosition the position in the dataset
+     * @return true if the pointer is on a record
+     */
+    public boolean absolute(long tnPosition)
+    {
+        if (tnPosition < 0 || tnPosition >= m_nLength)
+        {
+            m_nPointer = tnPosition < 0 ? -1 : m_nLength;
+            return false;
+        }
+        m_nPointer = tnPosition;
+        get(tnPosition);
+        return true;
+    }
+
+    /**
+     * Moves the pointer before the first record
+     */
+    public void beforeFirst()
+    {
+        m_nPointer = -1;
+    }
+
+    /**
+     * Gets a view of this cursor that creates a new data object for each record which has
+     * not been deleted.  This should only be used where the records need to be retained,
+     * otherwise navigate the cursor and use the flyweight
+     * @return an iterable of new data objects
+     */
+    public Iterable<T> objects()
+    {
+        return new Iterable<T>()
+        {
+            @Override
+            public Iterator<T> iterator()
+            {
+                return new ObjectIterator();
+            }
+        };
+    }
+
+    /**
+     * Sets the record at the specified position, allocating the page if required
+     * @param tnIndex the position of the record in the dataset
+     * @param toValue the record, see DataSchema.toValues for the accepted record types
+     */
+    public void setValue(long tnIndex, Object toValue)
+    {
+        checkIndex(tnIndex);
+        int lnPage = (int)(tnIndex >>> m_nPageShift);
+        DataPage loPage = m_aPages[lnPage];
+        if (loPage == null)
+        {
+            if (m_aSpilled != null && m_aSpilled[lnPage] != 0)
+            {
+                loPage = unspill(lnPage);
+            }
+            else if (toValue == null)
+            {
+                return;
+            }
+            else
+            {
+                // The final page only needs to be as large as the records remaining
+                loPage = new DataPage(m_oSchema, (int)Math.min(getPageSize(), m_nLength - ((long)lnPage << m_nPageShift)));
+                m_aPages[lnPage] = loPage;
+                onPageUsed(lnPage);
+            }
+            if (m_lSpill)
+            {
+                enforceBudget(lnPage);
+            }
+        }
+        loPage.set((int)(tnIndex & m_nPageMask), toValue);
+        onPageModified(lnPage);
+    }
+
+    /**
+     * Adds records to the end of the cursor, growing it by the number of records given.  This
+     * lets a connector read a result it has not counted in to the cursor as it is read, so
+     * the budget and spilling apply as the result grows.  Records can only be added while the
+     * cursor ends on a page boundary, so the final page is never too small for them
+     * @param taRecords the records to add, see DataSchema.toValues for the accepted record types
+     */
+    void append(Object[] taRecords)
+    {
+        if (taRecords.length == 0)
+        {
+            return;
+        }
+        if ((m_nLength & m_nPageMask) != 0)
+        {
+            throw new IllegalStateException("Records can only be added to a cursor that ends on a page boundary");
+        }
+        long lnStart = m_nLength;
+        long lnPages = (lnStart + taRecords.length + m_nPageMask) >>> m_nPageShift;
+        if (lnPages > Integer.MAX_VALUE)
+        {
+            throw new IllegalArgumentException("A cursor of " + (lnStart + taRecords.length) + " records requires a larger page size than " + getPageSize());
+        }
+        // The page arrays are sized to the pages of the cursor, the page count is their length
+        m_aPages = Arrays.copyOf(m_aPages, (int)lnPages);
+        if (m_aSpilled != null)
+        {
+            m_aSpilled = Arrays.copyOf(m_aSpilled, (int)lnPages);
+        }
+        if (m_aPageKeys != null)
+        {
+            m_aPageKeys = Arrays.copyOf(m_aPageKeys, (int)lnPages);
+        }
+        m_nLength = lnStart + taRecords.length;
+        for (int i = 0; i < taRecords.length; i++)
+        {
+            setValue(lnStart + i, taRecords[i]);
+        }
+        if (m_nMemoryBudget > 0)
+        {
+            enforceBudget((int)lnPages - 1);
+        }
+    }
+
+    /**
+     * Updates the record at the specified position and marks it as modified
+     * @param tnIndex the position of the record in the dataset
+     * @param toValue the record, see DataSchema.toValues for the accepted record types
+     */
+    public void update(long tnIndex, Object toValue)
+    {
+        if (toValue == null)
+        {
+            throw new IllegalArgumentException("toValue must be specified, use delete to remove a record");
+        }
+        setValue(tnIndex, toValue);
+        DataPage loPage = getPage(tnIndex);
+        int lnOffset = (int)(tnIndex & m_nPageMask);
+        if (!loPage.isModified(lnOffset))
+        {
+            loPage.setModified(lnOffset, true);
+            onPageModified((int)(tnIndex >>> m_nPageShift));
+            m_nChanges++;
+        }
+    }
+
+    /**
+     * Writes any changes made to the flyweight back to the record at the pointer
+     * and marks the record as modified
+     */
+    public void update()
+    {
+        if (m_nPointer < 0 || m_nPointer >= m_nLength)
+        {
+            throw new IllegalStateException("The cursor is not positioned on a record");
+        }
+        update(m_nPointer, m_oDataFlyweight);
+    }
+
+    /**
+     * Marks the record at the specified position for deletion
+     * @param tnIndex the position of the record in the dataset
+     * @return true if the record was marked, false if it was already marked or is not loaded
+     */
+    public boolean delete(long tnIndex)
+    {
+        DataPage loPage = getPage(tnIndex);
+        int lnOffset = (int)(tnIndex & m_nPageMask);
+        if (loPage == null || !loPage.isSet(lnOffset) || loPage.isDeleted(lnOffset))
+        {
+            return false;
+        }
+        loPage.setDeleted(lnOffset, true);
+        onPageModified((int)(tnIndex >>> m_nPageShift));
+        m_nChanges++;
+        return true;
+    }
+
+    /**
+     * Creates a new instance of the data object holding the values of the record.  Unlike
+     * get(long) the object is not shared
+     * @param tnIndex the position of the record
+     * @return the object, or null if the record has not been loaded
+     */
+    T newObject(long tnIndex)
+    {
+        DataPage loPage = getPage(tnIndex);
+        int lnOffset = (int)(tnIndex & m_nPageMask);
+        if (loPage == null || !loPage.isSet(lnOffset))
+        {
+            return null;
+        }
+        T loObject = m_oSchema.newInstance();
+        loPage.read(lnOffset, loObject);
+        return loObject;
+    }
+
+    /**
+     * Clears the modified flag of the record once it has been written to the data store.  A
+     * deleted record has been removed from the data store, so it is cleared from the page
+     * and the deleted mark goes with it
+     * @param tnIndex the position of the record
+     */
+    void markSaved(long tnIndex)
+    {
+        DataPage loPage = getPage(tnIndex);
+        int lnOffset = (int)(tnIndex & m_nPageMask);
+        if (loPage != null && loPage.isDeleted(lnOffset))
+        {
+            // The deletion was counted as a change, as was any update before it
+            m_nChanges -= loPage.isModified(lnOffset) ? 2 : 1;
+            loPage.set(lnOffset, null);
+            onPageModified((int)(tnIndex >>> m_nPageShift));
+        }
+        else if (loPage != null && loPage.isModified(lnOffset))
+        {
+            loPage.setModified(lnOffset, false);
+            onPageModified((int)(tnIndex >>> m_nPageShift));
+            m_nChanges--;
+        }
+    }
+
+    /**
+     * Checks if the record at the specified position has been modified since it was loaded
+     * @param tnIndex the position of the record in the dataset
+     * @return true if the record is modified
+     */
+    public boolean isModified(long tnIndex)
+    {
+        DataPage loPage = getPage(tnIndex);
+        return loPage != null && loPage.isModified((int)(tnIndex & m_nPageMask));
+    }
+
+    /**
+     * Checks if the record at the specified position has been marked for deletion, or has
+     * been removed from the data store by DataManager.saveAll
+     * @param tnIndex the position of the record in the dataset
+     * @return true if the record is deleted
+     */
+    public boolean isDeleted(long tnIndex)
+    {
+        DataPage loPage = getPage(tnIndex);
+        int lnOffset = (int)(tnIndex & m_nPageMask);
+        return loPage != null && (loPage.isDeleted(lnOffset) || !loPage.isSet(lnOffset));
+    }
+
+    /**
+     * Checks if any record in this cursor has been modified or deleted
+     * @return true if there are changes which have not been saved
+     */
+    public boolean hasChanges()
+    {
+        return m_nChanges > 0;
+    }
+
+    /**
+     * Creates a lazy view of the records in this cursor which have not been deleted
+     * @return the view
+     */
+    public DataView<T> view()
+    {
+        return new DataView<T>(this);
+    }
+
+    /**
+     * Creates a lazy view of the records accepted by the filter
+     * @param toFilter the filter
+     * @return the view
+     */
+    public DataView<T> filter(DataFilter toFilter)
+    {
+        return view().filter(toFilter);
+    }
+
+    /**
+     * Creates a lazy view of the records accepted by the filter
+     * @param toFilter the filter
+     * @return the view
+     */
+    public DataView<T> filter(IDataFilter<? super T> toFilter)
+    {
+        return view().filter(toFilter);
+    }
+
+    /**
+     * Creates a lazy view of the records modified since they were loaded
+     * @return the view
+     */
+    public DataView<T> modified()
+    {
+        return view().modified();
+    }
+
+    /**
+     * Gets a single field of the record at the specified position, primitive values will be boxed
+     * @param tnIndex the position of the record in the dataset
+     * @param tnField the index of the field in the schema
+     * @return the value of the field
+     */
+    public Object getValue(long tnIndex, int tnField)
+    {
+        return requirePage(tnIndex).getValue(tnField, (int)(tnIndex & m_nPageMask));
+    }
+
+    // Typed access to single fields, these never box the value
+
+    /**
+     * Gets a boolean field of the record at the specified position
+     * @param tnIndex the position of the record in the dataset
+     * @param tnField the index of the field in the schema
+     * @return the value of the field
+     */
+    public boolean getBoolean(long tnIndex, int tnField)
+    {
+        return requirePage(tnIndex).getBoolean(tnField, (int)(tnIndex & m_nPageMask));
+    }
+
+    /**
+     * Gets a byte field of the record at the specified position
+     * @param tnIndex the position of the record in the dataset
+     * @param tnField the index of the field in the schema
+     * @return the value of the field
+     */
+    public byte getByte(long tnIndex, int tnField)
+    {
+        return requirePage(tnIndex).getByte(tnField, (int)(tnIndex & m_nPageMask));
+    }
+
+    /**
+     * Gets a char field of the record at the specified position
+     * @param tnIndex the position of the record in the dataset
+     * @param tnField the index of the field in the schema
+     * @return the value of the field
+     */
+    public char getChar(long tnIndex, int tnField)
+    {
+        return requirePage(tnIndex).getChar(tnField, (int)(tnIndex & m_nPageMask));
+    }
+
+    /**
+     * Gets a short field of the record at the specified position
+     * @param tnIndex the position of the record in the dataset
+     * @param tnField the index of the field in the schema
+     * @return the value of the field
+     */
+    public short getShort(long tnIndex, int tnField)
+    {
+        return requirePage(tnIndex).getShort(tnField, (int)(tnIndex & m_nPageMask));
+    }
+
+    /**
+     * Gets an int field of the record at the specified position
+     * @param tnIndex the position of the record in the dataset
+     * @param tnField the index of the field in the schema
+     * @return the value of the field
+     */
+    public int getInt(long tnIndex, int tnField)
+    {
+        return requirePage(tnIndex).getInt(tnField, (int)(tnIndex & m_nPageMask));
+    }
+
+    /**
+     * Gets a long field of the record at the specified position
+     * @param tnIndex the position of the record in the dataset
+     * @param tnField the index of the field in the schema
+     * @return the value of the field
+     */
+    public long getLong(long tnIndex, int tnField)
+    {
+        return requirePage(tnIndex).getLong(tnField, (int)(tnIndex & m_nPageMask));
+    }
+
+    /**
+     * Gets a float field of the record at the specified position
+     * @param tnIndex the position of the record in the dataset
+     * @param tnField the index of the field in the schema
+     * @return the value of the field
+     */
+    public float getFloat(long tnIndex, int tnField)
+    {
+        return requirePage(tnIndex).getFloat(tnField, (int)(tnIndex & m_nPageMask));
+    }
+
+    /**
+     * Gets a double field of the record at the specified position
+     * @param tnIndex the position of the record in the dataset
+     * @param tnField the index of the field in the schema
+     * @return the value of the field
+     */
+    public double getDouble(long tnIndex, int tnField)
+    {
+        return requirePage(tnIndex).getDouble(tnField, (int)(tnIndex & m_nPageMask));
+    }
+
+    /**
+     * Calls the visitor for each record in the cursor which has not been deleted.  The
+     * object passed to the visitor is the flyweight so should not be retained
+     * @param toVisitor the visitor
+     */
+    public void forEach(IDataVisitor<? super T> toVisitor)
+    {
+        view().forEach(toVisitor);
+    }
+
+    /**
+     * Calls the visitor for each record in the cursor which has not been deleted, spreading
+     * the records across the shared fork join pool
+     * @param toVisitor the visitor, this will be called from multiple threads
+     */
+    public void parallelForEach(IDataVisitor<? super T> toVisitor)
+    {
+        parallelForEach(toVisitor, PoolHolder.g_oPool);
+    }
+
+    /**
+     * Calls the visitor for each record in the cursor which has not been deleted, spreading
+     * the records across the pool specified.  Work is split on page boundaries and each
+     * thread binds its own flyweight, so the records are not copied.  Pages that are not in
+     * memory are fetched or read back from the spill file as they are reached.  Pages are not
+     * released during a parallel scan even if the cursor is forward only
+     * @param toVisitor the visitor, this will be called from multiple threads
+     * @param toPool the pool to run in
+     */
+    public void parallelForEach(IDataVisitor<? super T> toVisitor, ForkJoinPool toPool)
+    {
+        if (m_aPages.length > 0)
+        {
+            toPool.invoke(new DataCursorTask<T>(this, toVisitor, 0, m_aPages.length));
+        }
+    }
+
+    /**
+     * Publishes the records of the cursor on the DataManager executor, see publish(Executor)
+     * @return the publisher
+     */
+    public IDataPublisher<T> publish()
+    {
+        return publish(DataManager.getInstance().getExecutor());
+    }
+
+    /**
+     * Publishes the records of the cursor which have not been deleted.  Records are only
+     * read as the subscriber asks for them and a paged cursor is made forward only, so however
+     * slow the subscriber is, only the page being sent and any prefetched pages are held.
+     * The cursor can only be subscribed to once and is closed when the records have been sent,
+     * a cursor with changes which have not been saved is refused
+     * @param toExecutor the executor the records are sent to the subscriber on
+     * @return the publisher
+     */
+    public IDataPublisher<T> publish(Executor toExecutor)
+    {
+        return new DataCursorPublisher<T>(this, toExecutor);
+    }
+
+    /**
+     * Gets the number of pages needed to hold every record in the dataset
+     * @return the number of pages
+     */
+    public int getPageCount()
+    {
+        return m_aPages.length;
+    }
+
+    /**
+     * Gets the page specified for a parallel scan, reading it back from the spill file or
+     * fetching it from the page source if it is not in memory.  Forward only cursors do not
+     * release pages here, as parallel scans visit the pages out of order.  Scans call this
+     * from many threads, so the pages of the cursor are only changed while the page lock is
+     * held, but the records are fetched outside the lock so threads fetch different pages at
+     * the same time.  Threads asking for a page that is already being fetched wait for that
+     * fetch.  The page returned can be read after the lock is released even if the budget
+     * then removes it from the cursor
+     * @param tnPage the index of the page
+     * @return the page or null if the page is not loaded and can not be fetched
+     */
+    DataPage getPageAt(int tnPage)
+    {
+        FutureTask<Object[]> loLoad;
+        boolean llFetch = false;
+        m_oPageLock.lock();
+        try
+        {
+            DataPage loPage = getLoadedPage(tnPage);
+            if (loPage != null || !isPaged() || (m_lForwardOnly && tnPage < m_nFirstPage))
+            {
+                return usePage(tnPage, loPage);
+            }
+            if (m_oLoading == null)
+            {
+                m_oLoading = new HashMap<Integer, FutureTask<Object[]>>();
+            }
+            loLoad = m_oLoading.get(tnPage);
+            if (loLoad == null)
+            {
+                Future<Object[]> loPrefetched = m_oPrefetching == null ? null : m_oPrefetching.get(tnPage);
+                Callable<Object[]> loFetch = loPrefetched == null ? createFetch(tnPage) : null;
+                if (loPrefetched == null && loFetch == null)
+                {
+                    // Keyset paging has to walk forward from the last known key
+                    return usePage(tnPage, loadPage(tnPage));
+                }
+                if (loPrefetched != null)
+                {
+                    m_oPrefetching.remove(tnPage);
+                    loFetch = createWait(loPrefetched);
+                }
+                loLoad = new FutureTask<Object[]>(loFetch);
+                m_oLoading.put(tnPage, loLoad);
+                llFetch = true;
+            }
+        }
+        finally
+        {
+            m_oPageLock.unlock();
+        }
+
+        long lnStart = (long)tnPage << m_nPageShift;
+        Object[] laRecords = null;
+        Throwable loError = null;
+        if (llFetch)
+        {
+            loLoad.run();
+        }
+        try
+        {
+            laRecords = loLoad.get();
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            loError = ex;
+        }
+        catch (ExecutionException ex)
+        {
+            loError = ex.getCause();
+        }
+
+        m_oPageLock.lock();
+        try
+        {
+            if (m_oLoading.get(tnPage) == loLoad)
+            {
+                m_oLoading.remove(tnPage);
+            }
+            if (loError != null)
+            {
+                throw new IllegalStateException("Unable to fetch records from " + lnStart, loError);
+            }
+            // The budget may have removed the page again before this thread got the lock
+            DataPage loPage = getLoadedPage(tnPage);
+            return usePage(tnPage, loPage == null ? storePage(tnPage, laRecords) : loPage);
+        }
+        finally
+        {
+            m_oPageLock.unlock();
+        }
+    }
+
+    /**
+     * Gets the page if it is in memory or the spill file, the page lock must be held
+     * @param tnPage the index of the page
+     * @return the page or null if it is not loaded
+     */
+    private DataPage getLoadedPage(int tnPage)
+    {
+        DataPage loPage = m_aPages[tnPage];
+        if (loPage == null && m_aSpilled != null && m_aSpilled[tnPage] != 0)
+        {
+            loPage = unspill(tnPage);
+        }
+        return loPage;
+    }
+
+    /**
+     * Marks the page as used by a parallel scan and keeps the cursor within its budget,
+     * the page lock must be held
+     * @param tnPage the index of the page
+     * @param toPage the page, or null if it could not be loaded
+     * @return the page
+     */
+    private DataPage usePage(int tnPage, DataPage toPage)
+    {
+        if (toPage != null && (isPaged() || m_nMemoryBudget > 0))
+        {
+            onPageUsed(tnPage);
+            enforceBudget(tnPage);
+        }
+        return toPage;
+    }
+
+    /**
+     * Creates a task that waits for records being prefetched
+     * @param toPrefetched the prefetch of the records
+     * @return the task
+     */
+    private static Callable<Object[]> createWait(final Future<Object[]> toPrefetched)
+    {
+        return new Callable<Object[]>()
+        {
+            @Override
+            public Object[] call() throws Exception
+            {
+                return toPrefetched.get();
+            }
+        };
+    }
+
+    /**
+     * Gets the flyweight for this cursor without binding it to a record
+     * @return the flyweight
+     */
+    T getFlyweight()
+    {
+        return m_oDataFlyweight;
+    }
+
+    /**
+     * Gets the page holding the record at the specified position, releasing earlier pages
+     * if this is a forward only cursor
+     * @param tnIndex the position of the record in the dataset
+     * @return the page or null if the page is not loaded
+     */
+    DataPage getPage(long tnIndex)
+    {
+        checkIndex(tnIndex);
+        int lnPage = (int)(tnIndex >>> m_nPageShift);
+        if (m_lForwardOnly && lnPage > m_nFirstPage)
+        {
+            release((long)m_nFirstPage << m_nPageShift, (long)lnPage << m_nPageShift);
+            m_nFirstPage = lnPage;
+        }
+        DataPage loPage = m_aPages[lnPage];
+        if (loPage == null && m_aSpilled != null && m_aSpilled[lnPage] != 0)
+        {
+            loPage = unspill(lnPage);
+        }
+        if (isPaged() || m_nMemoryBudget > 0)
+        {
+            if (loPage == null && isPaged() && (!m_lForwardOnly || lnPage >= m_nFirstPage))
+            {
+                loPage = loadPage(lnPage);
+            }
+            if (lnPage != m_nCurrentPage)
+            {
+                m_nCurrentPage = lnPage;
+                if (loPage != null)
+                {
+                    onPageUsed(lnPage);
+                }
+                onPageChanged(lnPage);
+            }
+        }
+        return loPage;
+    }
+
+    /**
+     * Gets the page holding the record at the specified position, failing if the record is not loaded
+     * @param tnIndex the position of the record in the dataset
+     * @return the page
+     */
+    private DataPage requirePage(long tnIndex)
+    {
+        DataPage loPage = getPage(tnIndex);
+        if (loPage == null || !loPage.isSet((int)(tnIndex & m_nPageMask)))
+        {
+            throw new IllegalStateException("Record " + tnIndex + " is not loaded");
+        }
+        return loPage;
+    }
+
+    /**
+     * Releases the pages that lie entirely within the range specified and can be fetched
+     * again from the page source.  Pages holding changes which have not been saved are kept
+     * @param tnFrom the first record in the range, inclusive
+     * @param tnTo the last record in the range, exclusive
+     * @return the number of pages released
+     */
+    public int release(long tnFrom, long tnTo)
+    {
+        return release(tnFrom, tnTo, false);
+    }
+
+    /**
+     * Releases the pages that lie entirely within the range specified
+     * @param tnFrom the first record in the range, inclusive
+     * @param tnTo the last record in the range, exclusive
+     * @param tlDiscard true to release every page including those with changes, false to
+     * only release pages that can be fetched again unchanged
+     * @return the number of pages released
+     */
+    private int release(long tnFrom, long tnTo, boolean tlDiscard)
+    {
+        if (!tlDiscard && !isRefetchable())
+        {
+            return 0;
+        }
+        long lnFirst = (Math.max(tnFrom, 0) + m_nPageMask) >>> m_nPageShift;
+        long lnLast = Math.min(tnTo, m_nLength) >>> m_nPageShift;
+        // The final page is partial, so it can be released if the range reaches the end
+        if (tnTo >= m_nLength && lnLast < m_aPages.length)
+        {
+            lnLast = m_aPages.length;
+        }
+        int lnReleased = 0;
+        for (int i = (int)lnFirst; i < lnLast; i++)
+        {
+            boolean llSpilled = m_aSpilled != null && m_aSpilled[i] != 0;
+            if ((m_aPages[i] == null && !llSpilled) || (!tlDiscard && hasChanges(i)))
+            {
+                continue;
+            }
+            if (m_aPages[i] != null)
+            {
+                m_aPages[i] = null;
+                m_oResident.remove(i);
+            }
+            if (llSpilled)
+            {
+                m_oSpillFile.free(m_aSpilled[i] - 1);
+                m_aSpilled[i] = 0;
+            }
+            lnReleased++;
+        }
+        return lnReleased;
+    }
+
+    /**
+     * Checks if the page holds changes which have not been saved, reading a spilled page
+     * from the spill file without making it resident.  Pages with changes are never released,
+     * so a page that is neither in memory nor spilled has no changes and is not fetched
+     * @param tnPage the page
+     * @return true if the page has changes
+     */
+    boolean hasChanges(int tnPage)
+    {
+        if (m_nChanges == 0)
+        {
+            return false;
+        }
+        DataPage loPage = m_aPages[tnPage];
+        if (loPage == null && m_aSpilled != null && m_aSpilled[tnPage] != 0)
+        {
+            try
+            {
+                loPage = m_oSpillFile.read(m_oSchema, m_aSpilled[tnPage] - 1);
+            }
+            catch (IOException ex)
+            {
+                throw new IllegalStateException("Unable to read spilled page " + tnPage, ex);
+            }
+        }
+        return loPage != null && loPage.hasChanges();
+    }
+
+    /**
+     * Ensures the index is within the bounds of the dataset
+     * @param tnIndex the index to check
+     */
+    private void checkIndex(long tnIndex)
+    {
+        if (tnIndex < 0 || tnIndex >= m_nLength)
+        {
+            throw new IndexOutOfBoundsException("Index: " + tnIndex + ", Length: " + m_nLength);
+        }
+    }
+
+    /**
+     * Iterates the records of the cursor which have not been deleted, creating a new object
+     * for each.  Pages are fetched or read back from the spill file as they are reached
+     */
+    private class ObjectIterator
+        implements Iterator<T>
+    {
+        private long m_nNext = findNext(0);
+
+        /**
+         * Finds the first record at or after the position specified which is loaded and not deleted
+         * @param tnFrom the position to start from
+         * @return the position of the record or the length of the cursor if there are no more records
+         */
+        private long findNext(long tnFrom)
+        {
+            long lnIndex = tnFrom;
+            while (lnIndex < m_nLength)
+            {
+                DataPage loPage = getPage(lnIndex);
+                int lnOffset = (int)(lnIndex & m_nPageMask);
+                if (loPage == null)
+                {
+                    // Skip the whole page
+                    lnIndex = ((lnIndex >>> m_nPageShift) + 1) << m_nPageShift;
+                }
+                else if (loPage.isSet(lnOffset) && !loPage.isDeleted(lnOffset))
+                {
+                    return lnIndex;
+                }
+                else
+                {
+                    lnIndex++;
+                }
+            }
+            return m_nLength;
+        }
+
+        @Override
+        public boolean hasNext()
+        {
+            return m_nNext < m_nLength;
+        }
+
+        @Override
+        public T next()
+        {
+            if (!hasNext())
+            {
+                throw new NoSuchElementException();
+            }
+            T loObject = newObject(m_nNext);
+            m_nNext = findNext(m_nNext + 1);
+            return loObject;
+        }
+
+        @Override
+        public void remove()
+        {
+            throw new UnsupportedOperationException();
+        }
+    }
 }
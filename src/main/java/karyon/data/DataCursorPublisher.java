@@ -0,0 +1,240 @@
+package karyon.data;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publishes the records of a DataCursor which have not been deleted to a single subscriber.
+ * Records are read from the cursor only as the subscriber asks for them and a paged cursor is
+ * made forward only, so pages are fetched from the page source as demand reaches them and
+ * released once they have been sent.  However slowly the subscriber consumes, no more than
+ * the page being sent and any prefetched pages are held.
+ *
+ * Records are sent on the executor, one task runs at a time so the subscriber is called
+ * serially and the cursor is only used by one thread at a time.  The cursor is closed once
+ * every record has been sent, the subscription is cancelled or an error occurs, so cursors
+ * with changes which have not been saved are refused rather than losing the changes.
+ * @param <T> the type of data object published
+ */
+final class DataCursorPublisher<T extends DataObject>
+    extends karyon.Object
+    implements IDataPublisher<T>
+{
+    /**
+     * The subscription of the subscriber, this is also the task that sends the records
+     */
+    private final class Subscription
+        implements IDataSubscription, Runnable
+    {
+        private final IDataSubscriber<? super T> m_oSubscriber;
+        private final AtomicLong m_nDemand;
+        private final AtomicInteger m_nWork;
+        private volatile boolean m_lCancelled;
+        private volatile Throwable m_oError;
+        private boolean m_lStarted;
+        private boolean m_lDone;
+        private long m_nIndex;
+
+        private Subscription(IDataSubscriber<? super T> toSubscriber)
+        {
+            m_oSubscriber = toSubscriber;
+            m_nDemand = new AtomicLong();
+            m_nWork = new AtomicInteger();
+        }
+
+        @Override
+        public void request(long tnCount)
+        {
+            if (tnCount <= 0)
+            {
+                m_oError = new IllegalArgumentException("The number of records requested must be greater than 0 but was " + tnCount);
+            }
+            else
+            {
+                long lnDemand;
+                long lnNew;
+                do
+                {
+                    lnDemand = m_nDemand.get();
+                    lnNew = lnDemand + tnCount < 0 ? Long.MAX_VALUE : lnDemand + tnCount;
+                }
+                while (!m_nDemand.compareAndSet(lnDemand, lnNew));
+            }
+            schedule();
+        }
+
+        @Override
+        public void cancel()
+        {
+            m_lCancelled = true;
+            schedule();
+        }
+
+        /**
+         * Makes sure a task is running to act on the change in state
+         */
+        private void schedule()
+        {
+            if (m_nWork.getAndIncrement() == 0)
+            {
+                try
+                {
+                    m_oExecutor.execute(this);
+                }
+                catch (RejectedExecutionException ex)
+                {
+                    // Without an executor there is no thread to send the error on but this one
+                    m_lCancelled = true;
+                    if (!m_lDone)
+                    {
+                        m_lDone = true;
+                        m_oCursor.close();
+                        m_oSubscriber.onError(ex);
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void run()
+        {
+            int lnMissed = 1;
+            do
+            {
+                if (!m_lStarted)
+                {
+                    m_lStarted = true;
+                    m_oSubscriber.onSubscribe(this);
+                }
+                send();
+                lnMissed = m_nWork.addAndGet(-lnMissed);
+            }
+            while (lnMissed != 0);
+        }
+
+        /**
+         * Sends as many records as have been asked for
+         */
+        private void send()
+        {
+            if (m_lDone)
+            {
+                return;
+            }
+            long lnLength = m_oCursor.getLength();
+            long lnDemand = m_nDemand.get();
+            long lnSent = 0;
+            while (!m_lCancelled && m_oError == null && lnSent < lnDemand && m_nIndex < lnLength)
+            {
+                T loObject;
+                try
+                {
+                    if (m_oCursor.isDeleted(m_nIndex))
+                    {
+                        m_nIndex++;
+                        continue;
+                    }
+                    loObject = m_oCursor.newObject(m_nIndex);
+                    if (loObject == null)
+                    {
+                        throw new IllegalStateException("Record " + m_nIndex + " is not loaded");
+                    }
+                }
+                catch (RuntimeException ex)
+                {
+                    m_oError = ex;
+                    break;
+                }
+                m_nIndex++;
+                lnSent++;
+                m_oSubscriber.onNext(loObject);
+            }
+
+            if (m_lCancelled || m_oError != null || m_nIndex >= lnLength)
+            {
+                m_lDone = true;
+                m_oCursor.close();
+                if (m_oError != null && !m_lCancelled)
+                {
+                    m_oSubscriber.onError(m_oError);
+                }
+                else if (!m_lCancelled)
+                {
+                    m_oSubscriber.onComplete();
+                }
+            }
+            else if (lnDemand != Long.MAX_VALUE)
+            {
+                m_nDemand.addAndGet(-lnSent);
+            }
+        }
+    }
+
+    private final DataCursor<T> m_oCursor;
+    private final Executor m_oExecutor;
+    private final AtomicBoolean m_lSubscribed;
+
+    /**
+     * Creates a new publisher of the records of the cursor
+     * @param toCursor the cursor, this should not be used by anything else once subscribed to
+     * @param toExecutor the executor to send the records on
+     */
+    DataCursorPublisher(DataCursor<T> toCursor, Executor toExecutor)
+    {
+        m_oCursor = toCursor;
+        m_oExecutor = toExecutor;
+        m_lSubscribed = new AtomicBoolean();
+    }
+
+    /**
+     * Refuses a subscriber, giving it a subscription that does nothing and the error
+     * @param toSubscriber the subscriber
+     * @param toError the reason the subscriber is refused
+     */
+    private static void refuse(IDataSubscriber<?> toSubscriber, Throwable toError)
+    {
+        toSubscriber.onSubscribe(new IDataSubscription()
+        {
+            @Override
+            public void request(long tnCount)
+            {
+            }
+
+            @Override
+            public void cancel()
+            {
+            }
+        });
+        toSubscriber.onError(toError);
+    }
+
+    @Override
+    public void subscribe(IDataSubscriber<? super T> toSubscriber)
+    {
+        if (toSubscriber == null)
+        {
+            throw new NullPointerException("toSubscriber must be specified");
+        }
+        if (!m_lSubscribed.compareAndSet(false, true))
+        {
+            // The records can only be read once, so later subscribers are refused
+            refuse(toSubscriber, new IllegalStateException("The cursor has already been subscribed to"));
+            return;
+        }
+        if (m_oCursor.hasChanges())
+        {
+            // Publishing consumes and closes the cursor, which would discard the changes
+            refuse(toSubscriber, new IllegalStateException("The cursor has changes which have not been saved"));
+            return;
+        }
+        // Only pages that can be fetched again are released, so other cursors are held in full
+        if (m_oCursor.isPaged())
+        {
+            m_oCursor.setForwardOnly(true);
+        }
+        new Subscription(toSubscriber).schedule();
+    }
+}
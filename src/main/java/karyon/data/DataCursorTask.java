@@ -0,0 +1,69 @@
+package karyon.data;
+
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Visits the records of a range of pages in a DataCursor using fork join.  The range is
+ * split in half on page boundaries until each task holds a single page, so no page is
+ * shared between tasks.  Each leaf binds its own flyweight, the cursor flyweight is not used.
+ * @param <T> the type of data object being visited
+ */
+class DataCursorTask<T extends DataObject>
+    extends RecursiveAction
+{
+    private static final long serialVersionUID = 1L;
+
+    private final DataCursor<T> m_oCursor;
+    private final IDataVisitor<? super T> m_oVisitor;
+    private final int m_nFirstPage;
+    private final int m_nLastPage;
+
+    /**
+     * Creates a task to visit the pages specified
+     * @param toCursor the cursor holding the pages
+     * @param toVisitor the visitor to call for each record, this will be called from multiple threads
+     * @param tnFirstPage the first page to visit, inclusive
+     * @param tnLastPage the last page to visit, exclusive
+     */
+    DataCursorTask(DataCursor<T> toCursor, IDataVisitor<? super T> toVisitor, int tnFirstPage, int tnLastPage)
+    {
+        m_oCursor = toCursor;
+        m_oVisitor = toVisitor;
+        m_nFirstPage = tnFirstPage;
+        m_nLastPage = tnLastPage;
+    }
+
+    @Override
+    protected void compute()
+    {
+        if (m_nLastPage - m_nFirstPage > 1)
+        {
+            int lnMiddle = (m_nFirstPage + m_nLastPage) >>> 1;
+            invokeAll(new DataCursorTask<T>(m_oCursor, m_oVisitor, m_nFirstPage, lnMiddle),
+                    new DataCursorTask<T>(m_oCursor, m_oVisitor, lnMiddle, m_nLastPage));
+            return;
+        }
+
+        T loFlyweight = null;
+        for (int lnPage = m_nFirstPage; lnPage < m_nLastPage; lnPage++)
+        {
+            DataPage loPage = m_oCursor.getPageAt(lnPage);
+            if (loPage == null || loPage.getCount() == 0)
+            {
+                continue;
+            }
+            if (loFlyweight == null)
+            {
+                loFlyweight = m_oCursor.getSchema().newInstance();
+            }
+            for (int i = 0, lnCapacity = loPage.getCapacity(); i < lnCapacity; i++)
+            {
+                if (loPage.isSet(i) && !loPage.isDeleted(i))
+                {
+                    loPage.read(i, loFlyweight);
+                    m_oVisitor.visit(loFlyweight);
+                }
+            }
+        }
+    }
+}
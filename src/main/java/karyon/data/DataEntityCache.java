@@ -0,0 +1,605 @@
+package karyon.data;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A cache of the records of a data object class keyed by a key property, used by the
+ * DataManager to answer reads for a single key without going to the connector.
+ *
+ * Eviction uses the W-TinyLFU policy.  New records enter a small LRU window, records
+ * leaving the window compete with the least recently used record of the main space and
+ * only the one used most often, as estimated by a count-min sketch, is kept.  The main
+ * space is a segmented LRU so records used more than once are protected from a scan of
+ * records used only once.
+ *
+ * Lookups do not lock.  The policy is updated under a lock which reads only try to take,
+ * so under heavy contention some reads are not counted, which only makes the frequency
+ * estimates slightly less accurate.
+ * @param <T> the type of data object
+ */
+public class DataEntityCache<T extends DataObject>
+    extends karyon.Object
+{
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+
+    /**
+     * A cached record, also a node in the list of the space it is in
+     */
+    private static final class Node
+    {
+        private final Object m_oKey;
+        /**
+         * The values in schema order, or the record encoded by the codec if the cache is compact
+         */
+        private volatile Object m_oValues;
+        private volatile long m_nExpires;
+        private int m_nQueue;
+        private boolean m_lRemoved;
+        private Node m_oPrevious;
+        private Node m_oNext;
+
+        private Node(Object toKey)
+        {
+            m_oKey = toKey;
+        }
+    }
+
+    /**
+     * A doubly linked LRU list with a sentinel, the most recently used node is at the tail
+     */
+    private static final class Queue
+    {
+        private final Node m_oHead;
+        private int m_nSize;
+
+        private Queue()
+        {
+            m_oHead = new Node(null);
+            m_oHead.m_oPrevious = m_oHead;
+            m_oHead.m_oNext = m_oHead;
+        }
+
+        private Node first()
+        {
+            return m_oHead.m_oNext == m_oHead ? null : m_oHead.m_oNext;
+        }
+
+        private void add(Node toNode)
+        {
+            toNode.m_oPrevious = m_oHead.m_oPrevious;
+            toNode.m_oNext = m_oHead;
+            m_oHead.m_oPrevious.m_oNext = toNode;
+            m_oHead.m_oPrevious = toNode;
+            m_nSize++;
+        }
+
+        private void remove(Node toNode)
+        {
+            toNode.m_oPrevious.m_oNext = toNode.m_oNext;
+            toNode.m_oNext.m_oPrevious = toNode.m_oPrevious;
+            toNode.m_oPrevious = null;
+            toNode.m_oNext = null;
+            m_nSize--;
+        }
+
+        private void moveToTail(Node toNode)
+        {
+            remove(toNode);
+            add(toNode);
+        }
+    }
+
+    /**
+     * Estimates how often keys have been used with a count-min sketch of four bit counters.
+     * The counters are halved once enough keys have been counted so old popularity fades
+     */
+    private static final class FrequencySketch
+    {
+        private static final long[] SEEDS = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+
+        private final long[] m_aTable;
+        private final int m_nMask;
+        private final int m_nSampleSize;
+        private int m_nAdditions;
+
+        private FrequencySketch(int tnMaximumSize)
+        {
+            int lnSize = Integer.highestOneBit(Math.max(16, Math.min(tnMaximumSize, 1 << 24)) - 1) << 1;
+            m_aTable = new long[lnSize];
+            m_nMask = lnSize - 1;
+            m_nSampleSize = lnSize * 10;
+        }
+
+        private int frequency(int tnHash)
+        {
+            int lnFrequency = 15;
+            for (int i = 0; i < 4; i++)
+            {
+                long lnHash = spread(tnHash, i);
+                int lnShift = counterShift(lnHash, i);
+                lnFrequency = Math.min(lnFrequency, (int)((m_aTable[(int)lnHash & m_nMask] >>> lnShift) & 0xfL));
+            }
+            return lnFrequency;
+        }
+
+        private void increment(int tnHash)
+        {
+            boolean llAdded = false;
+            for (int i = 0; i < 4; i++)
+            {
+                long lnHash = spread(tnHash, i);
+                int lnIndex = (int)lnHash & m_nMask;
+                int lnShift = counterShift(lnHash, i);
+                if (((m_aTable[lnIndex] >>> lnShift) & 0xfL) != 0xfL)
+                {
+                    m_aTable[lnIndex] += 1L << lnShift;
+                    llAdded = true;
+                }
+            }
+            if (llAdded && ++m_nAdditions == m_nSampleSize)
+            {
+                for (int i = 0; i < m_aTable.length; i++)
+                {
+                    m_aTable[i] = (m_aTable[i] >>> 1) & 0x7777777777777777L;
+                }
+                m_nAdditions /= 2;
+            }
+        }
+
+        private static long spread(int tnHash, int tnRow)
+        {
+            long lnHash = (tnHash + SEEDS[tnRow]) * SEEDS[tnRow];
+            return lnHash ^ (lnHash >>> 32);
+        }
+
+        /**
+         * Each long holds four counters for each row, the row selects its group of counters
+         */
+        private static int counterShift(long tnHash, int tnRow)
+        {
+            return ((tnRow << 2) + (int)((tnHash >>> 40) & 3)) << 2;
+        }
+    }
+
+    private final DataSchema<T> m_oSchema;
+    private final DataCodec<T> m_oCodec;
+    private final int m_nKeyField;
+    private final int m_nMaximumSize;
+    private final long m_nTimeToLive;
+    private final int m_nWindowSize;
+    private final int m_nProtectedSize;
+    private final ConcurrentHashMap<Object, Node> m_oNodes;
+    private final ReentrantLock m_oLock;
+    private final Queue[] m_aQueues;
+    private final FrequencySketch m_oSketch;
+    private final AtomicLong m_nHits;
+    private final AtomicLong m_nMisses;
+    private final AtomicLong m_nEvictions;
+    private final AtomicLong m_nWrites;
+
+    /**
+     * Creates a new cache
+     * @param toClass the type of data object cached
+     * @param tcKeyField the property that identifies each object
+     * @param tnMaximumSize the maximum number of objects to hold
+     * @param tnTimeToLive the number of milliseconds an object is held after it is loaded
+     *                     or updated, 0 to hold objects until they are evicted
+     */
+    public DataEntityCache(Class<T> toClass, String tcKeyField, int tnMaximumSize, long tnTimeToLive)
+    {
+        this(toClass, tcKeyField, tnMaximumSize, tnTimeToLive, false);
+    }
+
+    /**
+     * Creates a new cache
+     * @param toClass the type of data object cached
+     * @param tcKeyField the property that identifies each object
+     * @param tnMaximumSize the maximum number of objects to hold
+     * @param tnTimeToLive the number of milliseconds an object is held after it is loaded
+     *                     or updated, 0 to hold objects until they are evicted
+     * @param tlCompact true to hold each record encoded with the DataCodec of the class, which
+     *                  takes a fraction of the memory of the values but decodes the record on each hit
+     */
+    public DataEntityCache(Class<T> toClass, String tcKeyField, int tnMaximumSize, long tnTimeToLive, boolean tlCompact)
+    {
+        m_oSchema = DataSchema.getSchema(toClass);
+        m_oCodec = tlCompact ? DataCodec.getCodec(toClass) : null;
+        m_nKeyField = m_oSchema.indexOf(tcKeyField);
+        if (m_nKeyField < 0)
+        {
+            throw new IllegalArgumentException(tcKeyField + " is not a field of " + toClass.getName());
+        }
+        if (tnMaximumSize < 1)
+        {
+            throw new IllegalArgumentException("tnMaximumSize must be greater than 0");
+        }
+        m_nMaximumSize = tnMaximumSize;
+        m_nTimeToLive = Math.max(0, tnTimeToLive);
+        // One percent of the space is the window, eighty percent of the rest is protected
+        m_nWindowSize = Math.max(1, tnMaximumSize / 100);
+        m_nProtectedSize = (int)((tnMaximumSize - m_nWindowSize) * 0.8);
+        m_oNodes = new ConcurrentHashMap<Object, Node>();
+        m_oLock = new ReentrantLock();
+        m_aQueues = new Queue[]{new Queue(), new Queue(), new Queue()};
+        m_oSketch = new FrequencySketch(tnMaximumSize);
+        m_nHits = new AtomicLong();
+        m_nMisses = new AtomicLong();
+        m_nEvictions = new AtomicLong();
+        m_nWrites = new AtomicLong();
+    }
+
+    /**
+     * Gets the name of the property that identifies each object
+     * @return the property name
+     */
+    public String getKeyField()
+    {
+        return m_oSchema.getName(m_nKeyField);
+    }
+
+    /**
+     * Gets the maximum number of objects held
+     * @return the maximum size
+     */
+    public int getMaximumSize()
+    {
+        return m_nMaximumSize;
+    }
+
+    /**
+     * Gets the number of objects held
+     * @return the number of objects
+     */
+    public int getSize()
+    {
+        return m_oNodes.size();
+    }
+
+    /**
+     * Gets the number of lookups that found the object
+     * @return the number of hits
+     */
+    public long getHits()
+    {
+        return m_nHits.get();
+    }
+
+    /**
+     * Gets the number of lookups that did not find the object
+     * @return the number of misses
+     */
+    public long getMisses()
+    {
+        return m_nMisses.get();
+    }
+
+    /**
+     * Gets the number of objects evicted to keep the cache within its maximum size
+     * @return the number of evictions
+     */
+    public long getEvictions()
+    {
+        return m_nEvictions.get();
+    }
+
+    /**
+     * Gets the key of the object
+     * @param toObject the object
+     * @return the key
+     */
+    public Object getKey(DataObject toObject)
+    {
+        return m_oSchema.getValue(toObject, m_nKeyField);
+    }
+
+    /**
+     * Gets the key value the filter selects, if the filter selects a single object by key.
+     * Numbers are converted to the type of the key field so a long key is found by an int
+     * @param toFilter the filter
+     * @return an array holding the key, or null if the filter is not an equality on the key
+     * or the value can not be held by the key field without loss
+     */
+    Object[] getKey(DataFilter toFilter)
+    {
+        if (toFilter == null || toFilter.isComposite() || toFilter.getOperator() != DataFilter.Operator.EQUAL ||
+                toFilter.getValue() == null || !getKeyField().equalsIgnoreCase(toFilter.getField()))
+        {
+            return null;
+        }
+        Object loKey = normalize(toFilter.getValue());
+        return loKey == null ? null : new Object[]{loKey};
+    }
+
+    /**
+     * Converts a number to the type of the key field
+     * @param toValue the value
+     * @return the value as the type of the key field, or null if the number can not be converted without loss
+     */
+    private Object normalize(Object toValue)
+    {
+        Class<?> loType = m_oSchema.getField(m_nKeyField).getType();
+        if (!(toValue instanceof Number) || loType.isInstance(toValue))
+        {
+            return toValue;
+        }
+        Number loNumber = (Number)toValue;
+        if (loType == int.class || loType == Integer.class)
+        {
+            return loNumber.intValue() == loNumber.doubleValue() ? loNumber.intValue() : null;
+        }
+        if (loType == long.class || loType == Long.class)
+        {
+            return loNumber.longValue() == loNumber.doubleValue() ? loNumber.longValue() : null;
+        }
+        if (loType == short.class || loType == Short.class)
+        {
+            return loNumber.shortValue() == loNumber.doubleValue() ? loNumber.shortValue() : null;
+        }
+        if (loType == byte.class || loType == Byte.class)
+        {
+            return loNumber.byteValue() == loNumber.doubleValue() ? loNumber.byteValue() : null;
+        }
+        if (loType == double.class || loType == Double.class)
+        {
+            return loNumber.doubleValue();
+        }
+        if (loType == float.class || loType == Float.class)
+        {
+            return loNumber.floatValue();
+        }
+        return toValue;
+    }
+
+    /**
+     * Gets a stamp that changes each time an object is written to or removed from the
+     * cache.  Loads pass the stamp taken before reading from the data store so a read that
+     * overlaps a write does not cache the value from before the write
+     * @return the stamp
+     */
+    long getWriteStamp()
+    {
+        return m_nWrites.get();
+    }
+
+    /**
+     * Gets the values of the object with the key specified
+     * @param toKey the key
+     * @return the values in schema order, or null if the object is not cached.  Unless the
+     * cache is compact the array is shared and must not be modified
+     */
+    public Object[] get(Object toKey)
+    {
+        Node loNode = m_oNodes.get(toKey);
+        if (loNode == null)
+        {
+            m_nMisses.incrementAndGet();
+            return null;
+        }
+        if (m_nTimeToLive > 0 && loNode.m_nExpires < System.currentTimeMillis())
+        {
+            invalidate(toKey);
+            m_nMisses.incrementAndGet();
+            return null;
+        }
+        m_nHits.incrementAndGet();
+        if (m_oLock.tryLock())
+        {
+            try
+            {
+                onAccess(loNode);
+            }
+            finally
+            {
+                m_oLock.unlock();
+            }
+        }
+        Object loValues = loNode.m_oValues;
+        return m_oCodec == null ? (Object[])loValues : m_oCodec.decode((byte[])loValues);
+    }
+
+    /**
+     * Gets the object with the key specified
+     * @param toKey the key
+     * @return a new instance holding the cached values, or null if the object is not cached
+     */
+    public T getObject(Object toKey)
+    {
+        Object[] laValues = get(toKey);
+        if (laValues == null)
+        {
+            return null;
+        }
+        T loObject = m_oSchema.newInstance();
+        for (int i = 0; i < laValues.length; i++)
+        {
+            m_oSchema.setValue(loObject, i, laValues[i]);
+        }
+        return loObject;
+    }
+
+    /**
+     * Adds or updates the object in the cache
+     * @param toObject the object, the values are copied so later changes to the object are not cached
+     */
+    public void put(DataObject toObject)
+    {
+        put(m_oSchema.toValues(toObject), -1);
+    }
+
+    /**
+     * Adds or updates the record in the cache
+     * @param taValues the values of the record in schema order
+     * @param tnWriteStamp the write stamp taken before the record was read, the record is
+     *                     not cached if the cache has been written since, -1 to always cache
+     * @return true if the record was cached
+     */
+    boolean put(Object[] taValues, long tnWriteStamp)
+    {
+        Object loKey = taValues[m_nKeyField];
+        if (loKey == null)
+        {
+            return false;
+        }
+        Object loValues = m_oCodec == null ? taValues.clone() : m_oCodec.encode(taValues);
+        m_oLock.lock();
+        try
+        {
+            if (tnWriteStamp >= 0 && tnWriteStamp != m_nWrites.get())
+            {
+                return false;
+            }
+            m_nWrites.incrementAndGet();
+            Node loNode = m_oNodes.get(loKey);
+            if (loNode != null)
+            {
+                loNode.m_oValues = loValues;
+                loNode.m_nExpires = expiry();
+                onAccess(loNode);
+                return true;
+            }
+
+            loNode = new Node(loKey);
+            loNode.m_oValues = loValues;
+            loNode.m_nExpires = expiry();
+            loNode.m_nQueue = WINDOW;
+            m_oNodes.put(loKey, loNode);
+            m_aQueues[WINDOW].add(loNode);
+            m_oSketch.increment(loKey.hashCode());
+            evict();
+            return true;
+        }
+        finally
+        {
+            m_oLock.unlock();
+        }
+    }
+
+    /**
+     * Removes the object with the key specified from the cache
+     * @param toKey the key
+     */
+    public void invalidate(Object toKey)
+    {
+        if (toKey == null)
+        {
+            return;
+        }
+        m_oLock.lock();
+        try
+        {
+            m_nWrites.incrementAndGet();
+            Node loNode = m_oNodes.remove(toKey);
+            if (loNode != null)
+            {
+                unlink(loNode);
+            }
+        }
+        finally
+        {
+            m_oLock.unlock();
+        }
+    }
+
+    /**
+     * Removes every object from the cache
+     */
+    public void invalidateAll()
+    {
+        m_oLock.lock();
+        try
+        {
+            m_nWrites.incrementAndGet();
+            for (Node loNode : m_oNodes.values())
+            {
+                unlink(loNode);
+            }
+            m_oNodes.clear();
+        }
+        finally
+        {
+            m_oLock.unlock();
+        }
+    }
+
+    private long expiry()
+    {
+        return m_nTimeToLive > 0 ? System.currentTimeMillis() + m_nTimeToLive : Long.MAX_VALUE;
+    }
+
+    /**
+     * Records a use of the node, must be called holding the lock
+     * @param toNode the node used
+     */
+    private void onAccess(Node toNode)
+    {
+        if (toNode.m_lRemoved)
+        {
+            return;
+        }
+        m_oSketch.increment(toNode.m_oKey.hashCode());
+        switch (toNode.m_nQueue)
+        {
+            case WINDOW:
+            case PROTECTED:
+                m_aQueues[toNode.m_nQueue].moveToTail(toNode);
+                break;
+            default:
+                // A second use promotes the node, demoting the oldest protected node if there is no room
+                m_aQueues[PROBATION].remove(toNode);
+                toNode.m_nQueue = PROTECTED;
+                m_aQueues[PROTECTED].add(toNode);
+                if (m_aQueues[PROTECTED].m_nSize > m_nProtectedSize)
+                {
+                    Node loDemoted = m_aQueues[PROTECTED].first();
+                    m_aQueues[PROTECTED].remove(loDemoted);
+                    loDemoted.m_nQueue = PROBATION;
+                    m_aQueues[PROBATION].add(loDemoted);
+                }
+                break;
+        }
+    }
+
+    /**
+     * Moves nodes out of the window and evicts to keep within the maximum size, must be
+     * called holding the lock
+     */
+    private void evict()
+    {
+        while (m_aQueues[WINDOW].m_nSize > m_nWindowSize)
+        {
+            Node loCandidate = m_aQueues[WINDOW].first();
+            m_aQueues[WINDOW].remove(loCandidate);
+            loCandidate.m_nQueue = PROBATION;
+            m_aQueues[PROBATION].add(loCandidate);
+
+            if (m_oNodes.size() > m_nMaximumSize)
+            {
+                // The candidate only stays if it is used more often than the victim
+                Node loVictim = m_aQueues[PROBATION].first();
+                if (loVictim == loCandidate)
+                {
+                    loVictim = m_aQueues[PROTECTED].first();
+                }
+                Node loEvicted = loVictim != null &&
+                        m_oSketch.frequency(loCandidate.m_oKey.hashCode()) > m_oSketch.frequency(loVictim.m_oKey.hashCode()) ?
+                        loVictim : loCandidate;
+                m_oNodes.remove(loEvicted.m_oKey);
+                unlink(loEvicted);
+                m_nEvictions.incrementAndGet();
+            }
+        }
+    }
+
+    private void unlink(Node toNode)
+    {
+        if (!toNode.m_lRemoved)
+        {
+            toNode.m_lRemoved = true;
+            m_aQueues[toNode.m_nQueue].remove(toNode);
+        }
+    }
+}
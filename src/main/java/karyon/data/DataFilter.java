@@ -0,0 +1,460 @@
+package karyon.data;
+
+import java.util.Arrays;
+
+/**
+ * A DataFilter is a declarative condition on the fields of a DataObject.  Because the
+ * condition is described rather than coded, it can be evaluated directly against the
+ * columns of a DataCursor, or passed to an IDataConnector so the data store can do
+ * the filtering.
+ */
+public final class DataFilter
+    extends karyon.Object
+    implements IDataFilter<DataObject>
+{
+    /**
+     * The operators that can be used in a filter
+     */
+    public enum Operator
+    {
+        EQUAL("="),
+        NOT_EQUAL("<>"),
+        LESS("<"),
+        LESS_OR_EQUAL("<="),
+        GREATER(">"),
+        GREATER_OR_EQUAL(">="),
+        AND("AND"),
+        OR("OR");
+
+        private final String m_cSymbol;
+
+        Operator(String tcSymbol)
+        {
+            m_cSymbol = tcSymbol;
+        }
+
+        /**
+         * Gets the symbol used for this operator, this matches the SQL operator
+         * @return the symbol
+         */
+        public String getSymbol()
+        {
+            return m_cSymbol;
+        }
+    }
+
+    /**
+     * Creates a filter that accepts records where the field equals the value.  A null value
+     * accepts records where the field is null, as IS NULL does in SQL
+     * @param tcField the property name of the field, case insensitive
+     * @param toValue the value to compare to, numbers are compared by value whatever their type
+     * @return the filter
+     */
+    public static DataFilter equal(String tcField, Object toValue)
+    {
+        return new DataFilter(Operator.EQUAL, tcField, toValue, null);
+    }
+
+    /**
+     * Creates a filter that accepts records where the field does not equal the value.  A record
+     * where the field is null is not accepted unless the value is null, in which case every
+     * record where the field is not null is accepted, as IS NOT NULL does in SQL
+     * @param tcField the property name of the field, case insensitive
+     * @param toValue the value to compare to
+     * @return the filter
+     */
+    public static DataFilter notEqual(String tcField, Object toValue)
+    {
+        return new DataFilter(Operator.NOT_EQUAL, tcField, toValue, null);
+    }
+
+    /**
+     * Creates a filter that accepts records where the field is less than the value.  Records
+     * where the field is null are not accepted, and a null value accepts no records
+     * @param tcField the property name of the field, case insensitive
+     * @param toValue the value to compare to
+     * @return the filter
+     */
+    public static DataFilter lessThan(String tcField, Object toValue)
+    {
+        return new DataFilter(Operator.LESS, tcField, toValue, null);
+    }
+
+    /**
+     * Creates a filter that accepts records where the field is less than or equal to the value.
+     * Records where the field is null are not accepted, and a null value accepts no records
+     * @param tcField the property name of the field, case insensitive
+     * @param toValue the value to compare to
+     * @return the filter
+     */
+    public static DataFilter lessThanOrEqual(String tcField, Object toValue)
+    {
+        return new DataFilter(Operator.LESS_OR_EQUAL, tcField, toValue, null);
+    }
+
+    /**
+     * Creates a filter that accepts records where the field is greater than the value.  Records
+     * where the field is null are not accepted, and a null value accepts no records
+     * @param tcField the property name of the field, case insensitive
+     * @param toValue the value to compare to
+     * @return the filter
+     */
+    public static DataFilter greaterThan(String tcField, Object toValue)
+    {
+        return new DataFilter(Operator.GREATER, tcField, toValue, null);
+    }
+
+    /**
+     * Creates a filter that accepts records where the field is greater than or equal to the
+     * value.  Records where the field is null are not accepted, and a null value accepts no records
+     * @param tcField the property name of the field, case insensitive
+     * @param toValue the value to compare to
+     * @return the filter
+     */
+    public static DataFilter greaterThanOrEqual(String tcField, Object toValue)
+    {
+        return new DataFilter(Operator.GREATER_OR_EQUAL, tcField, toValue, null);
+    }
+
+    /**
+     * Creates a filter that only accepts records accepted by all of the filters specified
+     * @param taFilters the filters to combine
+     * @return the combined filter
+     */
+    public static DataFilter and(DataFilter... taFilters)
+    {
+        return taFilters.length == 1 ? taFilters[0] : new DataFilter(Operator.AND, null, null, taFilters.clone());
+    }
+
+    /**
+     * Creates a filter that accepts records accepted by any of the filters specified
+     * @param taFilters the filters to combine
+     * @return the combined filter
+     */
+    public static DataFilter or(DataFilter... taFilters)
+    {
+        return taFilters.length == 1 ? taFilters[0] : new DataFilter(Operator.OR, null, null, taFilters.clone());
+    }
+
+    /**
+     * Holds the field index resolved for a schema so it is not looked up per record
+     */
+    private static final class Binding
+    {
+        private final DataSchema<?> m_oSchema;
+        private final int m_nField;
+
+        private Binding(DataSchema<?> toSchema, int tnField)
+        {
+            m_oSchema = toSchema;
+            m_nField = tnField;
+        }
+    }
+
+    /**
+     * The result of comparing values that have no order, this is never accepted
+     */
+    private static final int UNORDERED = Integer.MIN_VALUE;
+
+    private final Operator m_oOperator;
+    private final String m_cField;
+    private final Object m_oValue;
+    private final DataFilter[] m_aFilters;
+    private volatile Binding m_oBinding;
+
+    private DataFilter(Operator toOperator, String tcField, Object toValue, DataFilter[] taFilters)
+    {
+        if (taFilters == null && tcField == null)
+        {
+            throw new IllegalArgumentException("tcField must be specified");
+        }
+        if (taFilters != null && taFilters.length == 0)
+        {
+            throw new IllegalArgumentException("At least one filter must be specified");
+        }
+        m_oOperator = toOperator;
+        m_cField = tcField;
+        m_oValue = toValue;
+        m_aFilters = taFilters;
+    }
+
+    /**
+     * Gets the operator for this filter
+     * @return the operator
+     */
+    public Operator getOperator()
+    {
+        return m_oOperator;
+    }
+
+    /**
+     * Gets the property name this filter compares, this is null for AND and OR filters
+     * @return the property name
+     */
+    public String getField()
+    {
+        return m_cField;
+    }
+
+    /**
+     * Gets the value the field is compared to, this is null for AND and OR filters
+     * @return the value
+     */
+    public Object getValue()
+    {
+        return m_oValue;
+    }
+
+    /**
+     * Gets the filters combined by an AND or OR filter
+     * @return the filters, or null if this is a comparison
+     */
+    public DataFilter[] getFilters()
+    {
+        return m_aFilters == null ? null : m_aFilters.clone();
+    }
+
+    /**
+     * Checks if this combines other filters
+     * @return true if this is an AND or OR filter
+     */
+    public boolean isComposite()
+    {
+        return m_aFilters != null;
+    }
+
+    @Override
+    public boolean accept(DataObject toObject)
+    {
+        if (isComposite())
+        {
+            return acceptComposite(toObject, null, 0);
+        }
+        DataSchema<?> loSchema = DataSchema.getSchema(toObject.getClass());
+        return matches(compare(loSchema.getValue(toObject, resolve(loSchema))));
+    }
+
+    /**
+     * Checks if the record in the page is accepted by this filter.  Primitive columns
+     * are compared without boxing the value
+     * @param toPage the page holding the record
+     * @param tnOffset the offset of the record in the page
+     * @return true if the record is accepted
+     */
+    boolean accept(DataPage toPage, int tnOffset)
+    {
+        if (isComposite())
+        {
+            return acceptComposite(null, toPage, tnOffset);
+        }
+        int lnField = resolve(toPage.getSchema());
+        switch (toPage.getSchema().getType(lnField))
+        {
+            case BOOLEAN:
+            case CHAR:
+            case OBJECT:
+                return matches(compare(toPage.getValue(lnField, tnOffset)));
+            case LONG:
+                return m_oValue instanceof Number ? matches(compare(toPage.getLong(lnField, tnOffset))) : matches(compare(toPage.getValue(lnField, tnOffset)));
+            default:
+                return m_oValue instanceof Number ? matches(compare(getDouble(toPage, lnField, tnOffset))) : matches(compare(toPage.getValue(lnField, tnOffset)));
+        }
+    }
+
+    private boolean acceptComposite(DataObject toObject, DataPage toPage, int tnOffset)
+    {
+        boolean llAnd = m_oOperator == Operator.AND;
+        for (DataFilter loFilter : m_aFilters)
+        {
+            boolean llAccept = toPage == null ? loFilter.accept(toObject) : loFilter.accept(toPage, tnOffset);
+            if (llAccept != llAnd)
+            {
+                return llAccept;
+            }
+        }
+        return llAnd;
+    }
+
+    private static double getDouble(DataPage toPage, int tnField, int tnOffset)
+    {
+        switch (toPage.getSchema().getType(tnField))
+        {
+            case BYTE:
+                return toPage.getByte(tnField, tnOffset);
+            case SHORT:
+                return toPage.getShort(tnField, tnOffset);
+            case INT:
+                return toPage.getInt(tnField, tnOffset);
+            case FLOAT:
+                return toPage.getFloat(tnField, tnOffset);
+            default:
+                return toPage.getDouble(tnField, tnOffset);
+        }
+    }
+
+    /**
+     * Gets the index of the field in the schema specified
+     * @param toSchema the schema
+     * @return the index of the field
+     */
+    private int resolve(DataSchema<?> toSchema)
+    {
+        Binding loBinding = m_oBinding;
+        if (loBinding == null || loBinding.m_oSchema != toSchema)
+        {
+            int lnField = toSchema.indexOf(m_cField);
+            if (lnField < 0)
+            {
+                throw new IllegalArgumentException(m_cField + " is not a field of " + toSchema.getDataClass().getName());
+            }
+            loBinding = new Binding(toSchema, lnField);
+            m_oBinding = loBinding;
+        }
+        return loBinding.m_nField;
+    }
+
+    private int compare(long tnValue)
+    {
+        if (m_oValue instanceof Double || m_oValue instanceof Float)
+        {
+            return Double.compare(tnValue, ((Number)m_oValue).doubleValue());
+        }
+        long lnValue = ((Number)m_oValue).longValue();
+        return tnValue < lnValue ? -1 : (tnValue == lnValue ? 0 : 1);
+    }
+
+    private int compare(double tnValue)
+    {
+        return Double.compare(tnValue, ((Number)m_oValue).doubleValue());
+    }
+
+    /**
+     * Compares the record value to the filter value.  As in SQL a null record value, or a
+     * value of a type that can not be ordered against the filter value, is unordered so
+     * no comparison accepts it.  A null filter value is only equal to a null record value
+     * @param toValue the value from the record
+     * @return negative, zero or positive as the record value is less than, equal to or greater than
+     * the filter value, or UNORDERED
+     */
+    @SuppressWarnings("unchecked")
+    private int compare(Object toValue)
+    {
+        if (toValue == null || m_oValue == null)
+        {
+            return m_oValue == null ? (toValue == null ? 0 : 1) : UNORDERED;
+        }
+        if (toValue instanceof Number && m_oValue instanceof Number)
+        {
+            return toValue instanceof Double || toValue instanceof Float || m_oValue instanceof Double || m_oValue instanceof Float ?
+                    Double.compare(((Number)toValue).doubleValue(), ((Number)m_oValue).doubleValue()) :
+                    compareLong(((Number)toValue).longValue(), ((Number)m_oValue).longValue());
+        }
+        if (toValue instanceof Comparable && toValue.getClass().isInstance(m_oValue))
+        {
+            return Integer.signum(((Comparable<Object>)toValue).compareTo(m_oValue));
+        }
+        // Values that can not be ordered are only accepted when they are equal
+        return toValue.equals(m_oValue) ? 0 : UNORDERED;
+    }
+
+    private static int compareLong(long tnLeft, long tnRight)
+    {
+        return tnLeft < tnRight ? -1 : (tnLeft == tnRight ? 0 : 1);
+    }
+
+    private boolean matches(int tnComparison)
+    {
+        // Only equality can be checked against null, matching IS NULL and IS NOT NULL in SQL
+        if (tnComparison == UNORDERED ||
+                (m_oValue == null && m_oOperator != Operator.EQUAL && m_oOperator != Operator.NOT_EQUAL))
+        {
+            return false;
+        }
+        switch (m_oOperator)
+        {
+            case EQUAL:
+                return tnComparison == 0;
+            case NOT_EQUAL:
+                return tnComparison != 0;
+            case LESS:
+                return tnComparison < 0;
+            case LESS_OR_EQUAL:
+                return tnComparison <= 0;
+            case GREATER:
+                return tnComparison > 0;
+            case GREATER_OR_EQUAL:
+                return tnComparison >= 0;
+            default:
+                throw new IllegalStateException(m_oOperator + " is not a comparison");
+        }
+    }
+
+    /**
+     * Gets the normalised text of this filter, two filters with the same text will
+     * always accept the same records
+     * @return the filter text
+     */
+    @Override
+    public String toString()
+    {
+        StringBuilder loBuilder = new StringBuilder();
+        appendTo(loBuilder);
+        return loBuilder.toString();
+    }
+
+    private void appendTo(StringBuilder toBuilder)
+    {
+        if (isComposite())
+        {
+            toBuilder.append('(');
+            for (int i = 0; i < m_aFilters.length; i++)
+            {
+                if (i > 0)
+                {
+                    toBuilder.append(' ').append(m_oOperator.getSymbol()).append(' ');
+                }
+                m_aFilters[i].appendTo(toBuilder);
+            }
+            toBuilder.append(')');
+        }
+        else
+        {
+            toBuilder.append(m_cField.toLowerCase()).append(' ').append(m_oOperator.getSymbol()).append(' ');
+            if (m_oValue instanceof String || m_oValue instanceof Character)
+            {
+                toBuilder.append('\'').append(m_oValue.toString().replace("'", "''")).append('\'');
+            }
+            else
+            {
+                toBuilder.append(m_oValue);
+            }
+        }
+    }
+
+    @Override
+    public boolean equals(Object toObject)
+    {
+        if (this == toObject)
+        {
+            return true;
+        }
+        if (!(toObject instanceof DataFilter))
+        {
+            return false;
+        }
+        DataFilter loFilter = (DataFilter)toObject;
+        return m_oOperator == loFilter.m_oOperator &&
+                (m_cField == null ? loFilter.m_cField == null : m_cField.equalsIgnoreCase(loFilter.m_cField)) &&
+                (m_oValue == null ? loFilter.m_oValue == null : m_oValue.equals(loFilter.m_oValue)) &&
+                Arrays.equals(m_aFilters, loFilter.m_aFilters);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        int lnHash = m_oOperator.hashCode();
+        lnHash = 31 * lnHash + (m_cField == null ? 0 : m_cField.toLowerCase().hashCode());
+        lnHash = 31 * lnHash + (m_oValue == null ? 0 : m_oValue.hashCode());
+        return 31 * lnHash + Arrays.hashCode(m_aFilters);
+    }
+}
@@ -0,0 +1,471 @@
+package karyon.data;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonSerializer;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Date;
+
+/**
+ * Streams DataCursors to and from JSON using the Jackson streaming API.  A cursor is written
+ * as an array with an object for each record, keyed by property name.  Values are read from
+ * the pages of the cursor with the typed getters and written straight to the generator, so
+ * no objects or lists are built for the records.  Dates are written as milliseconds since
+ * the epoch, byte arrays as base64 and enums by name.
+ *
+ * Reading parses one record at a time in to a single instance of the data object which is
+ * passed to a visitor, so ingesting an array of any length uses a constant amount of memory.
+ */
+public final class DataJson
+    extends karyon.Object
+{
+    /**
+     * Holds the factory used when writing to and reading from streams, created when first used
+     */
+    private static final class FactoryHolder
+    {
+        private static final JsonFactory g_oFactory = new JsonFactory();
+    }
+
+    /**
+     * Allows DataCursors to be serialized by an ObjectMapper, such as the one used by the
+     * JAX-RS JSON provider, so resources can return a cursor and have it streamed
+     */
+    @SuppressWarnings("rawtypes")
+    private static final class CursorSerializer
+        extends JsonSerializer<DataCursor>
+    {
+        @Override
+        public void serialize(DataCursor toCursor, JsonGenerator toGenerator, SerializerProvider toProvider)
+                throws IOException
+        {
+            write(toCursor, toGenerator);
+        }
+    }
+
+    /**
+     * Not creatable
+     */
+    private DataJson()
+    {
+    }
+
+    /**
+     * Creates a Jackson module that serializes DataCursors with write(DataCursor, JsonGenerator)
+     * @return the module to register with an ObjectMapper
+     */
+    public static SimpleModule createModule()
+    {
+        SimpleModule loModule = new SimpleModule("karyon.data");
+        loModule.addSerializer(DataCursor.class, new CursorSerializer());
+        return loModule;
+    }
+
+    /**
+     * Writes the records of the cursor to the stream as a UTF-8 JSON array, see write(DataCursor, JsonGenerator)
+     * @param toCursor the cursor
+     * @param toStream the stream to write to, this is not closed
+     * @return the number of records written
+     * @throws IOException if the records could not be written
+     */
+    public static long write(DataCursor<?> toCursor, OutputStream toStream)
+            throws IOException
+    {
+        JsonGenerator loGenerator = FactoryHolder.g_oFactory.createGenerator(toStream);
+        loGenerator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+        try
+        {
+            return write(toCursor, loGenerator);
+        }
+        finally
+        {
+            loGenerator.close();
+        }
+    }
+
+    /**
+     * Writes the records of the cursor which have not been deleted to the generator as a JSON
+     * array.  A cursor that can fetch its pages again is made forward only while it is written
+     * so each page is released once it has been written, and it is written in a constant amount
+     * of memory.  The cursor is returned to its previous mode afterwards, released pages are
+     * fetched again when read
+     * @param toCursor the cursor
+     * @param toGenerator the generator to write to
+     * @return the number of records written
+     * @throws IOException if the records could not be written
+     */
+    public static long write(DataCursor<?> toCursor, JsonGenerator toGenerator)
+            throws IOException
+    {
+        DataSchema<?> loSchema = toCursor.getSchema();
+        int lnFields = loSchema.getFieldCount();
+        DataType[] laTypes = new DataType[lnFields];
+        for (int i = 0; i < lnFields; i++)
+        {
+            laTypes[i] = loSchema.getType(i);
+        }
+        boolean llForwardOnly = toCursor.isForwardOnly();
+        // Pages of other cursors could not be read again, so they are kept
+        if (toCursor.isRefetchable())
+        {
+            toCursor.setForwardOnly(true);
+        }
+        try
+        {
+            return write(toCursor, toGenerator, loSchema, laTypes);
+        }
+        finally
+        {
+            toCursor.setForwardOnly(llForwardOnly);
+        }
+    }
+
+    /**
+     * Writes the records of the cursor which have not been deleted to the generator as a JSON array
+     * @param toCursor the cursor
+     * @param toGenerator the generator to write to
+     * @param toSchema the schema of the cursor
+     * @param taTypes the types of the fields
+     * @return the number of records written
+     * @throws IOException if the records could not be written
+     */
+    private static long write(DataCursor<?> toCursor, JsonGenerator toGenerator, DataSchema<?> toSchema, DataType[] taTypes)
+            throws IOException
+    {
+        int lnFields = taTypes.length;
+        long lnWritten = 0;
+        toGenerator.writeStartArray();
+        for (long i = 0, lnLength = toCursor.getLength(); i < lnLength; i++)
+        {
+            if (toCursor.isDeleted(i))
+            {
+                continue;
+            }
+            toGenerator.writeStartObject();
+            for (int j = 0; j < lnFields; j++)
+            {
+                toGenerator.writeFieldName(toSchema.getName(j));
+                switch (taTypes[j])
+                {
+                    case BOOLEAN:
+                        toGenerator.writeBoolean(toCursor.getBoolean(i, j));
+                        break;
+                    case INT:
+                        toGenerator.writeNumber(toCursor.getInt(i, j));
+                        break;
+                    case LONG:
+                        toGenerator.writeNumber(toCursor.getLong(i, j));
+                        break;
+                    case FLOAT:
+                        toGenerator.writeNumber(toCursor.getFloat(i, j));
+                        break;
+                    case DOUBLE:
+                        toGenerator.writeNumber(toCursor.getDouble(i, j));
+                        break;
+                    default:
+                        writeValue(toGenerator, toCursor.getValue(i, j));
+                        break;
+                }
+            }
+            toGenerator.writeEndObject();
+            lnWritten++;
+        }
+        toGenerator.writeEndArray();
+        return lnWritten;
+    }
+
+    /**
+     * Writes a boxed value, this is used for object fields and the less common primitive types
+     * @param toGenerator the generator to write to
+     * @param toValue the value
+     * @throws IOException if the value could not be written
+     */
+    private static void writeValue(JsonGenerator toGenerator, Object toValue)
+            throws IOException
+    {
+        if (toValue == null)
+        {
+            toGenerator.writeNull();
+        }
+        else if (toValue instanceof String)
+        {
+            toGenerator.writeString((String)toValue);
+        }
+        else if (toValue instanceof Integer || toValue instanceof Short || toValue instanceof Byte)
+        {
+            toGenerator.writeNumber(((Number)toValue).intValue());
+        }
+        else if (toValue instanceof Long)
+        {
+            toGenerator.writeNumber((Long)toValue);
+        }
+        else if (toValue instanceof Float)
+        {
+            toGenerator.writeNumber((Float)toValue);
+        }
+        else if (toValue instanceof Double)
+        {
+            toGenerator.writeNumber((Double)toValue);
+        }
+        else if (toValue instanceof BigDecimal)
+        {
+            toGenerator.writeNumber((BigDecimal)toValue);
+        }
+        else if (toValue instanceof BigInteger)
+        {
+            toGenerator.writeNumber((BigInteger)toValue);
+        }
+        else if (toValue instanceof Boolean)
+        {
+            toGenerator.writeBoolean((Boolean)toValue);
+        }
+        else if (toValue instanceof Date)
+        {
+            toGenerator.writeNumber(((Date)toValue).getTime());
+        }
+        else if (toValue instanceof byte[])
+        {
+            toGenerator.writeBinary((byte[])toValue);
+        }
+        else if (toValue instanceof Enum)
+        {
+            toGenerator.writeString(((Enum<?>)toValue).name());
+        }
+        else
+        {
+            toGenerator.writeString(toValue.toString());
+        }
+    }
+
+    /**
+     * Reads a UTF-8 JSON array of records from the stream, see read(JsonParser, Class, IDataVisitor)
+     * @param toStream the stream to read from, this is not closed
+     * @param toClass the type of data object the records hold
+     * @param toVisitor the visitor called for each record
+     * @param <T> the type of data object
+     * @return the number of records read
+     * @throws IOException if the JSON could not be read or does not hold records
+     */
+    public static <T extends DataObject> long read(InputStream toStream, Class<T> toClass, IDataVisitor<? super T> toVisitor)
+            throws IOException
+    {
+        JsonParser loParser = FactoryHolder.g_oFactory.createParser(toStream);
+        loParser.disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+        try
+        {
+            return read(loParser, toClass, toVisitor);
+        }
+        finally
+        {
+            loParser.close();
+        }
+    }
+
+    /**
+     * Reads a JSON array of records, or a single record, from the parser.  Each record is read
+     * in to the same instance of the data object, which is reset between records, and passed
+     * to the visitor, so the visitor must copy the object if it is retained.  Properties that
+     * are not part of the schema are skipped
+     * @param toParser the parser to read from
+     * @param toClass the type of data object the records hold
+     * @param toVisitor the visitor called for each record
+     * @param <T> the type of data object
+     * @return the number of records read
+     * @throws IOException if the JSON could not be read or does not hold records
+     */
+    public static <T extends DataObject> long read(JsonParser toParser, Class<T> toClass, IDataVisitor<? super T> toVisitor)
+            throws IOException
+    {
+        DataSchema<T> loSchema = DataSchema.getSchema(toClass);
+        T loObject = loSchema.newInstance();
+        JsonToken loToken = toParser.getCurrentToken() == null ? toParser.nextToken() : toParser.getCurrentToken();
+        if (loToken == null)
+        {
+            return 0;
+        }
+        if (loToken == JsonToken.START_OBJECT)
+        {
+            readObject(toParser, loSchema, loObject);
+            toVisitor.visit(loObject);
+            return 1;
+        }
+        if (loToken != JsonToken.START_ARRAY)
+        {
+            throw new IOException("Expected an array of " + toClass.getName() + " records but found " + loToken);
+        }
+
+        long lnRead = 0;
+        while ((loToken = toParser.nextToken()) != JsonToken.END_ARRAY)
+        {
+            if (loToken != JsonToken.START_OBJECT)
+            {
+                throw new IOException("Expected a " + toClass.getName() + " record but found " + loToken);
+            }
+            reset(loSchema, loObject);
+            readObject(toParser, loSchema, loObject);
+            toVisitor.visit(loObject);
+            lnRead++;
+        }
+        return lnRead;
+    }
+
+    /**
+     * Clears the fields of the object so values from the previous record are not carried over
+     * @param toSchema the schema of the object
+     * @param toObject the object
+     */
+    private static void reset(DataSchema<?> toSchema, DataObject toObject)
+    {
+        for (int i = 0, lnFields = toSchema.getFieldCount(); i < lnFields; i++)
+        {
+            toSchema.setValue(toObject, i, null);
+        }
+    }
+
+    /**
+     * Reads the properties of a JSON object in to the data object, the parser is on the start of the object
+     * @param toParser the parser
+     * @param toSchema the schema of the data object
+     * @param toObject the object to read in to
+     * @throws IOException if the object could not be read
+     */
+    private static void readObject(JsonParser toParser, DataSchema<?> toSchema, DataObject toObject)
+            throws IOException
+    {
+        JsonToken loToken;
+        while ((loToken = toParser.nextToken()) == JsonToken.FIELD_NAME)
+        {
+            int lnField = toSchema.indexOf(toParser.getCurrentName());
+            loToken = toParser.nextToken();
+            if (lnField < 0 || loToken == JsonToken.START_ARRAY || loToken == JsonToken.START_OBJECT)
+            {
+                toParser.skipChildren();
+                continue;
+            }
+            toSchema.setValue(toObject, lnField, readValue(toParser, toSchema, lnField, loToken));
+        }
+        if (loToken != JsonToken.END_OBJECT)
+        {
+            throw new IOException("Expected the end of a record but found " + loToken);
+        }
+    }
+
+    /**
+     * Reads the value the parser is on, converted to suit the field
+     * @param toParser the parser
+     * @param toSchema the schema of the data object
+     * @param tnField the field the value is for
+     * @param toToken the token the parser is on
+     * @return the value
+     * @throws IOException if the value could not be read or can not be stored in the field
+     */
+    private static Object readValue(JsonParser toParser, DataSchema<?> toSchema, int tnField, JsonToken toToken)
+            throws IOException
+    {
+        Class<?> loType = toSchema.getField(tnField).getType();
+        switch (toToken)
+        {
+            case VALUE_NULL:
+                return null;
+            case VALUE_TRUE:
+            case VALUE_FALSE:
+                return toToken == JsonToken.VALUE_TRUE;
+            case VALUE_NUMBER_INT:
+                if (Date.class.isAssignableFrom(loType))
+                {
+                    try
+                    {
+                        Date loDate = (Date)loType.newInstance();
+                        loDate.setTime(toParser.getLongValue());
+                        return loDate;
+                    }
+                    catch (InstantiationException | IllegalAccessException ex)
+                    {
+                        throw new IOException("Unable to create " + loType.getName(), ex);
+                    }
+                }
+                return toNumber(loType, toParser.getNumberValue());
+            case VALUE_NUMBER_FLOAT:
+                return toNumber(loType, loType == BigDecimal.class ? toParser.getDecimalValue() : toParser.getNumberValue());
+            default:
+                if (loType == byte[].class)
+                {
+                    return toParser.getBinaryValue();
+                }
+                String lcValue = toParser.getText();
+                if (loType == char.class || loType == Character.class)
+                {
+                    return lcValue.isEmpty() ? null : lcValue.charAt(0);
+                }
+                if (loType.isEnum())
+                {
+                    for (Object loConstant : loType.getEnumConstants())
+                    {
+                        if (((Enum<?>)loConstant).name().equals(lcValue))
+                        {
+                            return loConstant;
+                        }
+                    }
+                    throw new IOException(lcValue + " is not a value of " + loType.getName());
+                }
+                return lcValue;
+        }
+    }
+
+    /**
+     * Converts the number to the boxed type of an object field, primitive fields are
+     * converted when the value is set
+     * @param toType the type of the field
+     * @param toValue the number read
+     * @return the value to store
+     */
+    private static Object toNumber(Class<?> toType, Number toValue)
+    {
+        if (toType.isPrimitive() || toType.isInstance(toValue))
+        {
+            return toValue;
+        }
+        if (toType == Long.class)
+        {
+            return toValue.longValue();
+        }
+        if (toType == Integer.class)
+        {
+            return toValue.intValue();
+        }
+        if (toType == Double.class)
+        {
+            return toValue.doubleValue();
+        }
+        if (toType == Float.class)
+        {
+            return toValue.floatValue();
+        }
+        if (toType == Short.class)
+        {
+            return toValue.shortValue();
+        }
+        if (toType == Byte.class)
+        {
+            return toValue.byteValue();
+        }
+        if (toType == BigDecimal.class)
+        {
+            return new BigDecimal(toValue.toString());
+        }
+        if (toType == String.class)
+        {
+            return toValue.toString();
+        }
+        return toValue;
+    }
+}
@@ -1,8 +1,22 @@
 package karyon.data;
 
-import karyon.collections.HashMap;
 import karyon.collections.List;
 import karyon.Utilities;
+import karyon.exceptions.DataAccessException;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * The DataManager controls all access to data and data operations
@@ -10,7 +24,13 @@ import karyon.Utilities;
 public class DataManager
     extends karyon.Object
 {
-    private static DataManager g_oDataManager;
+    /**
+     * Holds the data manager, created when first used
+     */
+    private static final class InstanceHolder
+    {
+        private static final DataManager g_oDataManager = new DataManager();
+    }
 
     /**
      * Gets the data manager for this Application
@@ -18,22 +38,75 @@ public class DataManager
      */
     public static DataManager getInstance()
     {
-        if (g_oDataManager == null)
+        return InstanceHolder.g_oDataManager;
+    }
+
+    /**
+     * Holds the default executor of the asynchronous operations, created when first used.
+     * This is a virtual thread per task executor when the runtime supports virtual threads
+     * and otherwise a cached pool of daemon threads
+     */
+    private static final class ExecutorHolder
+    {
+        private static final ExecutorService g_oExecutor = createExecutor();
+
+        private static ExecutorService createExecutor()
         {
-            g_oDataManager = new DataManager();
+            try
+            {
+                return (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            }
+            catch (ReflectiveOperationException ex)
+            {
+                return Executors.newCachedThreadPool(new ThreadFactory()
+                {
+                    @Override
+                    public Thread newThread(Runnable toRunnable)
+                    {
+                        Thread loThread = new Thread(toRunnable, "DataManager.async");
+                        loThread.setDaemon(true);
+                        return loThread;
+                    }
+                });
+            }
         }
-        return g_oDataManager;
     }
 
-    private HashMap<String, IDataConnector> m_oConnectors;
-    private IDataConnector m_oDefault;
-    private HashMap<IDataConnector, List<Class<? extends DataObject>>> m_oEntityMap;
+    /**
+     * The connector a data object class has been mapped to and the cache of its objects,
+     * there is one route for each class which is created when the class is first looked up
+     */
+    private static final class Route
+    {
+        private final AtomicReference<IDataConnector> m_oConnector = new AtomicReference<IDataConnector>();
+        private volatile DataEntityCache<?> m_oCache;
+        private volatile DataQueryCache<?> m_oQueryCache;
+    }
+
+    // Lookups never lock, registrations are serialised so the indexes stay consistent with each other
+    private final ConcurrentHashMap<String, IDataConnector> m_oConnectors;
+    private final ConcurrentHashMap<IDataConnector, String> m_oKeys;
+    private final ConcurrentHashMap<IDataConnector, Set<Class<? extends DataObject>>> m_oEntityMap;
+    private final ClassValue<Route> m_oRoutes;
+    private volatile IDataConnector m_oDefault;
+    private volatile ExecutorService m_oExecutor;
 
     /**
      * Not publicly creatable
      */
     private DataManager()
     {
+        m_oConnectors = new ConcurrentHashMap<String, IDataConnector>();
+        m_oKeys = new ConcurrentHashMap<IDataConnector, String>();
+        m_oEntityMap = new ConcurrentHashMap<IDataConnector, Set<Class<? extends DataObject>>>();
+        m_oRoutes = new ClassValue<Route>()
+        {
+            @Override
+            protected Route computeValue(Class<?> toClass)
+            {
+                return new Route();
+            }
+        };
     }
 
     /**
@@ -41,13 +114,15 @@ public class DataManager
      * @param tcKey the key for this connector
      * @param toConnector the connector to add
      */
-    public final void registerConnector(String tcKey, IDataConnector toConnector)
+    public final synchronized void registerConnector(String tcKey, IDataConnector toConnector)
     {
-        if (m_oConnectors == null)
+        String lcKey = tcKey.toLowerCase();
+        IDataConnector loReplaced = m_oConnectors.put(lcKey, toConnector);
+        if (loReplaced != null && loReplaced != toConnector)
         {
-            m_oConnectors = new HashMap<String, IDataConnector>();
+            m_oKeys.remove(loReplaced, lcKey);
         }
-        m_oConnectors.put(tcKey.toLowerCase(), toConnector);
+        m_oKeys.put(toConnector, lcKey);
 
         // If there is no default connector, make this the default
         if (m_oDefault == null)
@@ -63,7 +138,7 @@ public class DataManager
      */
     protected final IDataConnector getConnector(String tcKey)
     {
-        return m_oConnectors != null ? m_oConnectors.get(tcKey.toLowerCase()) : null;
+        return m_oConnectors.get(tcKey.toLowerCase());
     }
 
     /**
@@ -71,15 +146,28 @@ public class DataManager
      * @param tcKey the key of the connector to remove
      * @return true if the connector has been removed, false if nothing has been removed
      */
-    public final boolean unregisterConnector(String tcKey)
+    public final synchronized boolean unregisterConnector(String tcKey)
     {
-        IDataConnector loConnector = m_oConnectors != null ? m_oConnectors.remove(tcKey.toLowerCase()) : null;
-        // Also need to remove from entity mapping
-        if (loConnector != null && m_oEntityMap != null)
+        String lcKey = tcKey.toLowerCase();
+        IDataConnector loConnector = m_oConnectors.remove(lcKey);
+        if (loConnector == null)
         {
-            m_oEntityMap.remove(loConnector);
+            return false;
         }
-        return loConnector != null;
+        m_oKeys.remove(loConnector, lcKey);
+        if (!m_oKeys.containsKey(loConnector))
+        {
+            // Also need to remove from entity mapping
+            Set<Class<? extends DataObject>> loClasses = m_oEntityMap.remove(loConnector);
+            if (loClasses != null)
+            {
+                for (Class<? extends DataObject> loClass : loClasses)
+                {
+                    m_oRoutes.get(loClass).m_oConnector.compareAndSet(loConnector, null);
+                }
+            }
+        }
+        return true;
     }
 
     /**
@@ -90,17 +178,7 @@ public class DataManager
      */
     public final String isRegistered(IDataConnector toConnector)
     {
-        if (m_oConnectors != null)
-        {
-            for (String lcKey : m_oConnectors.keySet())
-            {
-                if (m_oConnectors.get(lcKey) == toConnector)
-                {
-                    return lcKey;
-                }
-            }
-        }
-        return null;
+        return toConnector == null ? null : m_oKeys.get(toConnector);
     }
 
     /**
@@ -112,7 +190,7 @@ public class DataManager
      */
     public final boolean markDefault(String tcKey)
     {
-        return m_oConnectors != null && markDefault(m_oConnectors.get(tcKey.toLowerCase()));
+        return markDefault(m_oConnectors.get(tcKey.toLowerCase()));
     }
 
     /**
@@ -121,9 +199,9 @@ public class DataManager
      * @param toDefault the default connector
      * @return true if the default connector changed, false otherwise
      */
-    public final boolean markDefault(IDataConnector toDefault)
+    public final synchronized boolean markDefault(IDataConnector toDefault)
     {
-        if (toDefault != null && m_oConnectors != null && m_oConnectors.values().contains(toDefault))
+        if (toDefault != null && m_oKeys.containsKey(toDefault))
         {
             m_oDefault = toDefault;
             return true;
@@ -142,38 +220,105 @@ public class DataManager
     }
 
 
-    // TODO: Implement registration for sharded objects and multi source classes
     /**
      * Directly maps the specified data object to the data connector.  This will forward any data manipulation
-     * actions to the data connector
+     * actions to the data connector.  A data object type is mapped to a single connector, mapping
+     * the type again moves it to the new connector
      * @param toConnector the connector that will handle data operations for the data object type
      * @param toDataObjectClass the type of data object being registered
      * @return true if the map is changed as a result of this call
      */
-    public final boolean map(IDataConnector toConnector, Class<? extends DataObject> toDataObjectClass)
+    public final synchronized boolean map(IDataConnector toConnector, Class<? extends DataObject> toDataObjectClass)
     {
         // Make sure the connector is registered
-        if (m_oConnectors == null || !m_oConnectors.values().contains(toConnector))
+        if (!m_oKeys.containsKey(toConnector))
         {
             registerConnector(Utilities.generateGUID(), toConnector);
         }
 
-        if (m_oEntityMap == null)
+        IDataConnector loPrevious = m_oRoutes.get(toDataObjectClass).m_oConnector.getAndSet(toConnector);
+        if (loPrevious == toConnector)
         {
-            m_oEntityMap = new HashMap<IDataConnector, List<Class<? extends DataObject>>>();
+            return false;
         }
-
-        if (!m_oEntityMap.containsKey(toConnector))
+        if (loPrevious != null)
         {
-            m_oEntityMap.put(toConnector, new List<Class<? extends DataObject>>());
+            Set<Class<? extends DataObject>> loClasses = m_oEntityMap.get(loPrevious);
+            if (loClasses != null)
+            {
+                loClasses.remove(toDataObjectClass);
+            }
+        }
+        Set<Class<? extends DataObject>> loClasses = m_oEntityMap.get(toConnector);
+        if (loClasses == null)
+        {
+            loClasses = Collections.newSetFromMap(new ConcurrentHashMap<Class<? extends DataObject>, Boolean>());
+            m_oEntityMap.put(toConnector, loClasses);
         }
+        loClasses.add(toDataObjectClass);
+        return true;
+    }
 
-        if (!m_oEntityMap.get(toConnector).contains(toDataObjectClass))
+    /**
+     * Maps the specified data object to a set of shards.  Each object is stored in the shard
+     * chosen by a consistent hash of its shard key
+     * @param toDataObjectClass the type of data object being registered
+     * @param toShardKey the shard key of the data object
+     * @param taShards the connectors holding the shards, the order of the shards must not
+     * change once data has been written
+     * @param <K> the type of data object
+     * @return the connector the data object is mapped to
+     */
+    public final <K extends DataObject> ShardedDataConnector mapSharded(Class<K> toDataObjectClass, IDataShardKey<? super K> toShardKey, IDataConnector... taShards)
+    {
+        ShardedDataConnector loConnector = new ShardedDataConnector(toShardKey, taShards);
+        map(loConnector, toDataObjectClass);
+        return loConnector;
+    }
+
+    /**
+     * Maps the specified data object to a primary connector and a set of read replicas.
+     * Writes are sent to the primary and reads are balanced across the replicas
+     * @param toDataObjectClass the type of data object being registered
+     * @param toPrimary the connector writes are sent to
+     * @param taReplicas the connectors reads are balanced across
+     * @return the connector the data object is mapped to
+     */
+    public final ReplicatedDataConnector mapReplicated(Class<? extends DataObject> toDataObjectClass, IDataConnector toPrimary, IDataConnector... taReplicas)
+    {
+        ReplicatedDataConnector loConnector = new ReplicatedDataConnector(toPrimary, taReplicas);
+        map(loConnector, toDataObjectClass);
+        return loConnector;
+    }
+
+    /**
+     * Maps the specified data object to a connector through a write behind buffer.  Saves
+     * are acknowledged once buffered and repeated saves of the same key are coalesced, the
+     * buffer is written to the connector in the background.  Classes mapped through a buffer
+     * to the same connector share the buffer
+     * @param toDataObjectClass the type of data object being registered
+     * @param tcKeyField the property that identifies each object
+     * @param toConnector the connector the objects are written to
+     * @return the connector the data object is mapped to
+     */
+    public final synchronized WriteBehindDataConnector mapWriteBehind(Class<? extends DataObject> toDataObjectClass, String tcKeyField, IDataConnector toConnector)
+    {
+        WriteBehindDataConnector loConnector = null;
+        for (IDataConnector loRegistered : m_oConnectors.values())
         {
-            m_oEntityMap.get(toConnector).add(toDataObjectClass);
-            return true;
+            if (loRegistered instanceof WriteBehindDataConnector && ((WriteBehindDataConnector)loRegistered).getConnector() == toConnector)
+            {
+                loConnector = (WriteBehindDataConnector)loRegistered;
+                break;
+            }
         }
-        return false;
+        if (loConnector == null)
+        {
+            loConnector = new WriteBehindDataConnector(toConnector);
+        }
+        loConnector.setKey(toDataObjectClass, tcKeyField);
+        map(loConnector, toDataObjectClass);
+        return loConnector;
     }
 
     /**
@@ -181,10 +326,512 @@ public class DataManager
      * @param toClass the class to get the objects from
      * @param <K> the type of Data Object to retrieve
      * @return a cursor with the data objects, if no data objects were found, the cursor will be empty
+     * @throws DataAccessException if the objects could not be retrieved
      */
     public final <K extends DataObject> DataCursor<K> get(Class<K> toClass)
+            throws DataAccessException
+    {
+        return get(toClass, null);
+    }
+
+    /**
+     * Gets the objects of type K that match the filter from the data source.  The filter is
+     * applied by the data store
+     * @param toClass the class to get the objects from
+     * @param toFilter the filter the objects must match, or null for all objects
+     * @param <K> the type of Data Object to retrieve
+     * @return a cursor with the data objects, if no data objects were found, the cursor will be empty
+     * @throws DataAccessException if the objects could not be retrieved
+     */
+    public final <K extends DataObject> DataCursor<K> get(Class<K> toClass, DataFilter toFilter)
+            throws DataAccessException
+    {
+        IDataConnector loConnector = getConnector(toClass);
+        if (loConnector == null)
+        {
+            throw new DataAccessException(toClass, new IllegalStateException("No connector is mapped for " + toClass.getName() + " and there is no default connector"));
+        }
+
+        // Reads of a single object by key are answered from the cache when the class is cached
+        Route loRoute = m_oRoutes.get(toClass);
+        DataEntityCache<?> loCache = loRoute.m_oCache;
+        Object[] laKey = loCache == null ? null : loCache.getKey(toFilter);
+        if (laKey != null)
+        {
+            Object[] laValues = loCache.get(laKey[0]);
+            if (laValues != null)
+            {
+                return new DataCursor<K>(toClass, new Object[]{laValues});
+            }
+            long lnWriteStamp = loCache.getWriteStamp();
+            DataCursor<K> loCursor = loConnector.get(toClass, toFilter);
+            if (loCursor.getLength() == 1)
+            {
+                laValues = loCursor.getValue(0);
+                if (laValues != null)
+                {
+                    loCache.put(laValues, lnWriteStamp);
+                }
+            }
+            return loCursor;
+        }
+
+        @SuppressWarnings("unchecked")
+        DataQueryCache<K> loQueryCache = (DataQueryCache<K>)loRoute.m_oQueryCache;
+        if (loQueryCache == null)
+        {
+            return loConnector.get(toClass, toFilter);
+        }
+        DataCursor<K> loCursor = loQueryCache.get(toFilter);
+        if (loCursor == null)
+        {
+            long lnVersion = loQueryCache.getVersion();
+            loCursor = loConnector.get(toClass, toFilter);
+            loQueryCache.put(toFilter, loCursor, lnVersion);
+        }
+        return loCursor;
+    }
+
+    /**
+     * Caches the results of the queries made for the type specified through get.  Any
+     * object of the type saved through the DataManager discards the cached results
+     * @param toClass the type of data object
+     * @param tnMaximumSize the maximum number of query results to cache
+     * @param tnMaximumRecords the maximum number of records in a result that will be cached
+     * @param tnTimeToLive the number of milliseconds a result is cached, 0 for no limit
+     * @param <K> the type of data object
+     * @return the cache
+     */
+    public final <K extends DataObject> DataQueryCache<K> setQueryCache(Class<K> toClass, int tnMaximumSize, int tnMaximumRecords, long tnTimeToLive)
+    {
+        DataQueryCache<K> loCache = new DataQueryCache<K>(toClass, tnMaximumSize, tnMaximumRecords, tnTimeToLive);
+        m_oRoutes.get(toClass).m_oQueryCache = loCache;
+        return loCache;
+    }
+
+    /**
+     * Gets the query cache of the type specified
+     * @param toClass the type of data object
+     * @param <K> the type of data object
+     * @return the cache or null if the queries of the type are not cached
+     */
+    @SuppressWarnings("unchecked")
+    public final <K extends DataObject> DataQueryCache<K> getQueryCache(Class<K> toClass)
+    {
+        return (DataQueryCache<K>)m_oRoutes.get(toClass).m_oQueryCache;
+    }
+
+    /**
+     * Stops caching the queries of the type specified
+     * @param toClass the type of data object
+     * @return true if the queries of the type were cached
+     */
+    public final boolean removeQueryCache(Class<? extends DataObject> toClass)
+    {
+        Route loRoute = m_oRoutes.get(toClass);
+        DataQueryCache<?> loCache = loRoute.m_oQueryCache;
+        loRoute.m_oQueryCache = null;
+        if (loCache != null)
+        {
+            loCache.invalidate();
+        }
+        return loCache != null;
+    }
+
+    /**
+     * Caches the objects of the type specified.  Reads of a single object using an equal
+     * filter on the key property are answered from the cache, and objects saved through
+     * the DataManager update the cache.  Objects written to the data store by other means
+     * are only seen once they expire from the cache
+     * @param toClass the type of data object to cache
+     * @param tcKeyField the property that identifies each object
+     * @param tnMaximumSize the maximum number of objects to cache
+     * @param tnTimeToLive the number of milliseconds an object is cached after it is loaded or saved, 0 for no limit
+     * @param <K> the type of data object
+     * @return the cache
+     */
+    public final <K extends DataObject> DataEntityCache<K> setCache(Class<K> toClass, String tcKeyField, int tnMaximumSize, long tnTimeToLive)
+    {
+        DataEntityCache<K> loCache = new DataEntityCache<K>(toClass, tcKeyField, tnMaximumSize, tnTimeToLive);
+        m_oRoutes.get(toClass).m_oCache = loCache;
+        return loCache;
+    }
+
+    /**
+     * Gets the cache of the objects of the type specified
+     * @param toClass the type of data object
+     * @param <K> the type of data object
+     * @return the cache or null if the type is not cached
+     */
+    @SuppressWarnings("unchecked")
+    public final <K extends DataObject> DataEntityCache<K> getCache(Class<K> toClass)
+    {
+        return (DataEntityCache<K>)m_oRoutes.get(toClass).m_oCache;
+    }
+
+    /**
+     * Stops caching the objects of the type specified
+     * @param toClass the type of data object
+     * @return true if the type was cached
+     */
+    public final boolean removeCache(Class<? extends DataObject> toClass)
+    {
+        Route loRoute = m_oRoutes.get(toClass);
+        DataEntityCache<?> loCache = loRoute.m_oCache;
+        loRoute.m_oCache = null;
+        if (loCache != null)
+        {
+            loCache.invalidateAll();
+        }
+        return loCache != null;
+    }
+
+    /**
+     * Sets the executor the asynchronous operations are run on
+     * @param toExecutor the executor, or null to use the default executor
+     */
+    public final void setExecutor(ExecutorService toExecutor)
+    {
+        m_oExecutor = toExecutor;
+    }
+
+    /**
+     * Gets the executor the asynchronous operations are run on
+     * @return the executor
+     */
+    public final ExecutorService getExecutor()
+    {
+        ExecutorService loExecutor = m_oExecutor;
+        return loExecutor != null ? loExecutor : ExecutorHolder.g_oExecutor;
+    }
+
+    /**
+     * Gets the objects of type K that match the filter on the executor, see get(Class, DataFilter).
+     * Several reads can be started and then waited for so they overlap
+     * @param toClass the class to get the objects from
+     * @param toFilter the filter the objects must match, or null for all objects
+     * @param <K> the type of Data Object to retrieve
+     * @return the future result, a failure is reported as a DataAccessException cause of the ExecutionException
+     */
+    public final <K extends DataObject> Future<DataCursor<K>> getAsync(final Class<K> toClass, final DataFilter toFilter)
+    {
+        return getExecutor().submit(new Callable<DataCursor<K>>()
+        {
+            @Override
+            public DataCursor<K> call() throws DataAccessException
+            {
+                return get(toClass, toFilter);
+            }
+        });
+    }
+
+    /**
+     * Gets the connector that handles data operations for the data object type.  This is
+     * the connector the type was mapped to, or the default connector if the type has not been mapped
+     * @param toClass the type of data object
+     * @return the connector or null if there is no connector for the type
+     */
+    public final IDataConnector getConnector(Class<? extends DataObject> toClass)
+    {
+        IDataConnector loConnector = m_oRoutes.get(toClass).m_oConnector.get();
+        return loConnector != null ? loConnector : m_oDefault;
+    }
+
+    /**
+     * Saves the objects specified, see saveAll(Collection, boolean)
+     * @param toObjects the objects to save
+     * @return the number of objects saved
+     * @throws DataAccessException if the objects could not be saved
+     */
+    public final long saveAll(Collection<? extends DataObject> toObjects)
+            throws DataAccessException
+    {
+        return saveAll(toObjects, false);
+    }
+
+    /**
+     * Saves the objects specified.  The objects are grouped by connector and class and each
+     * stage of the save is run for every object in a group before the next stage starts,
+     * onValidate and beforeSave for all of the objects, then a single call to the connector
+     * to write the objects, then afterSave.  Objects failing onValidate or beforeSave are not saved
+     * @param toObjects the objects to save
+     * @param tlTransaction true if each connector should write all of its objects in a single
+     * transaction, false to allow each connector to commit the objects in chunks
+     * @return the number of objects saved
+     * @throws DataAccessException if the objects could not be saved
+     */
+    public final long saveAll(Collection<? extends DataObject> toObjects, boolean tlTransaction)
+            throws DataAccessException
+    {
+        return save(toObjects, tlTransaction, null);
+    }
+
+    /**
+     * Saves the objects specified on the executor, see saveAll(Collection, boolean).  The
+     * objects must not be changed until the save is complete
+     * @param toObjects the objects to save
+     * @param tlTransaction true if each connector should write all of its objects in a single transaction
+     * @return the future number of objects saved, a failure is reported as a DataAccessException
+     * cause of the ExecutionException
+     */
+    public final Future<Long> saveAllAsync(Collection<? extends DataObject> toObjects, final boolean tlTransaction)
+    {
+        // Copied so the caller can reuse the collection
+        final List<DataObject> loObjects = new List<DataObject>();
+        loObjects.addAll(toObjects);
+        return getExecutor().submit(new Callable<Long>()
+        {
+            @Override
+            public Long call() throws DataAccessException
+            {
+                return saveAll(loObjects, tlTransaction);
+            }
+        });
+    }
+
+    /**
+     * Removes the objects specified from the data store.  The objects are grouped by connector
+     * and class and each connector is called once to remove its objects
+     * @param toObjects the objects to remove
+     * @param tlTransaction true if each connector should remove all of its objects in a single
+     * transaction, false to allow each connector to commit the removals in chunks
+     * @return the number of objects removed
+     * @throws DataAccessException if the objects could not be removed
+     */
+    public final long deleteAll(Collection<? extends DataObject> toObjects, boolean tlTransaction)
+            throws DataAccessException
+    {
+        return delete(toObjects, tlTransaction, null);
+    }
+
+    /**
+     * Saves the records in the cursor that have been modified and removes the records that
+     * have been deleted, see saveAll(Collection, boolean) and deleteAll.  Records that are
+     * saved are no longer marked as modified, records that are removed are cleared from the cursor
+     * @param toCursor the cursor holding the records
+     * @param tlTransaction true if the records of each connector should be written in a single
+     * transaction, the saves and the removals are separate transactions
+     * @param <K> the type of data object in the cursor
+     * @return the number of records saved or removed
+     * @throws DataAccessException if the records could not be saved or removed
+     */
+    public final <K extends DataObject> long saveAll(DataCursor<K> toCursor, boolean tlTransaction)
+            throws DataAccessException
+    {
+        if (!toCursor.hasChanges())
+        {
+            return 0;
+        }
+        List<DataObject> loObjects = new List<DataObject>();
+        List<DataObject> loDeletes = new List<DataObject>();
+        IdentityHashMap<DataObject, Long> loPositions = new IdentityHashMap<DataObject, Long>();
+        long lnPageSize = toCursor.getPageSize();
+        for (int lnPage = 0, lnPages = toCursor.getPageCount(); lnPage < lnPages; lnPage++)
+        {
+            // Only the pages the cursor holds can have changes, so the rest are not fetched
+            if (!toCursor.hasChanges(lnPage))
+            {
+                continue;
+            }
+            for (long i = lnPage * lnPageSize, lnEnd = Math.min(i + lnPageSize, toCursor.getLength()); i < lnEnd; i++)
+            {
+                boolean llDeleted = toCursor.isDeleted(i);
+                if (llDeleted || toCursor.isModified(i))
+                {
+                    K loObject = toCursor.newObject(i);
+                    if (loObject != null)
+                    {
+                        (llDeleted ? loDeletes : loObjects).add(loObject);
+                        loPositions.put(loObject, i);
+                    }
+                }
+            }
+        }
+
+        List<DataObject> loSaved = new List<DataObject>();
+        long lnSaved = save(loObjects, tlTransaction, loSaved);
+        for (DataObject loObject : loSaved)
+        {
+            toCursor.markSaved(loPositions.get(loObject));
+        }
+        List<DataObject> loDeleted = new List<DataObject>();
+        lnSaved += delete(loDeletes, tlTransaction, loDeleted);
+        for (DataObject loObject : loDeleted)
+        {
+            toCursor.markSaved(loPositions.get(loObject));
+        }
+        return lnSaved;
+    }
+
+    /**
+     * Groups the objects by connector then by class, keeping the order they were given in
+     * @param toObjects the objects to group
+     * @return the objects grouped
+     * @throws DataAccessException if there is no connector for the class of an object
+     */
+    private LinkedHashMap<IDataConnector, Map<Class<? extends DataObject>, java.util.List<DataObject>>> group(Collection<? extends DataObject> toObjects)
+            throws DataAccessException
+    {
+        LinkedHashMap<IDataConnector, Map<Class<? extends DataObject>, java.util.List<DataObject>>> loGroups =
+                new LinkedHashMap<IDataConnector, Map<Class<? extends DataObject>, java.util.List<DataObject>>>();
+        for (DataObject loObject : toObjects)
+        {
+            Class<? extends DataObject> loClass = loObject.getClass();
+            IDataConnector loConnector = getConnector(loClass);
+            if (loConnector == null)
+            {
+                throw new DataAccessException(loClass, new IllegalStateException("No connector is mapped for " + loClass.getName() + " and there is no default connector"));
+            }
+            Map<Class<? extends DataObject>, java.util.List<DataObject>> loClasses = loGroups.get(loConnector);
+            if (loClasses == null)
+            {
+                loClasses = new LinkedHashMap<Class<? extends DataObject>, java.util.List<DataObject>>();
+                loGroups.put(loConnector, loClasses);
+            }
+            java.util.List<DataObject> loObjects = loClasses.get(loClass);
+            if (loObjects == null)
+            {
+                loObjects = new List<DataObject>();
+                loClasses.put(loClass, loObjects);
+            }
+            loObjects.add(loObject);
+        }
+        return loGroups;
+    }
+
+    /**
+     * Removes the objects from the data store, the cached copies of the objects are discarded
+     * @param toObjects the objects to remove
+     * @param tlTransaction true if each connector should remove its objects in a single transaction
+     * @param toDeleted a list to add the objects that were removed to, can be null
+     * @return the number of objects removed
+     * @throws DataAccessException if the objects could not be removed
+     */
+    private long delete(Collection<? extends DataObject> toObjects, boolean tlTransaction, List<DataObject> toDeleted)
+            throws DataAccessException
+    {
+        long lnDeleted = 0;
+        for (Map.Entry<IDataConnector, Map<Class<? extends DataObject>, java.util.List<DataObject>>> loGroup : group(toObjects).entrySet())
+        {
+            Map<Class<? extends DataObject>, java.util.List<DataObject>> loClasses = loGroup.getValue();
+            try
+            {
+                lnDeleted += loGroup.getKey().delete(loClasses, tlTransaction);
+            }
+            finally
+            {
+                // Removed or not, the cached copies can no longer be trusted
+                updateCaches(loClasses, false);
+            }
+            if (toDeleted != null)
+            {
+                for (java.util.List<DataObject> loObjects : loClasses.values())
+                {
+                    toDeleted.addAll(loObjects);
+                }
+            }
+        }
+        return lnDeleted;
+    }
+
+    /**
+     * Runs the save lifecycle for the objects
+     * @param toObjects the objects to save
+     * @param tlTransaction true if each connector should write its objects in a single transaction
+     * @param toSaved a list to add the objects that were saved to, can be null
+     * @return the number of objects saved
+     * @throws DataAccessException if the objects could not be saved
+     */
+    private long save(Collection<? extends DataObject> toObjects, boolean tlTransaction, List<DataObject> toSaved)
+            throws DataAccessException
     {
-        return null;
+        LinkedHashMap<IDataConnector, Map<Class<? extends DataObject>, java.util.List<DataObject>>> loGroups = group(toObjects);
+
+        long lnSaved = 0;
+        for (Map.Entry<IDataConnector, Map<Class<? extends DataObject>, java.util.List<DataObject>>> loGroup : loGroups.entrySet())
+        {
+            Map<Class<? extends DataObject>, java.util.List<DataObject>> loClasses = loGroup.getValue();
+            for (Map.Entry<Class<? extends DataObject>, java.util.List<DataObject>> loEntry : loClasses.entrySet())
+            {
+                List<DataObject> loValid = new List<DataObject>();
+                for (DataObject loObject : loEntry.getValue())
+                {
+                    if (loObject.onValidate())
+                    {
+                        loValid.add(loObject);
+                    }
+                }
+                List<DataObject> loReady = new List<DataObject>();
+                for (DataObject loObject : loValid)
+                {
+                    if (loObject.beforeSave())
+                    {
+                        loReady.add(loObject);
+                    }
+                }
+                loEntry.setValue(loReady);
+            }
+
+            try
+            {
+                lnSaved += loGroup.getKey().save(loClasses, tlTransaction);
+            }
+            catch (DataAccessException | RuntimeException ex)
+            {
+                // Part of the group may have been written, so none of it can be trusted in the cache
+                updateCaches(loClasses, false);
+                throw ex;
+            }
+            updateCaches(loClasses, true);
+
+            for (java.util.List<DataObject> loObjects : loClasses.values())
+            {
+                for (DataObject loObject : loObjects)
+                {
+                    loObject.afterSave();
+                }
+                if (toSaved != null)
+                {
+                    toSaved.addAll(loObjects);
+                }
+            }
+        }
+        return lnSaved;
+    }
+
+    /**
+     * Updates the cached copies of the objects after a save and discards the cached
+     * query results of their classes
+     * @param toClasses the objects keyed by class
+     * @param tlSaved true if the objects were saved and the cache should hold the new
+     * values, false to remove the objects from the cache
+     */
+    private void updateCaches(Map<Class<? extends DataObject>, java.util.List<DataObject>> toClasses, boolean tlSaved)
+    {
+        for (Map.Entry<Class<? extends DataObject>, java.util.List<DataObject>> loEntry : toClasses.entrySet())
+        {
+            Route loRoute = m_oRoutes.get(loEntry.getKey());
+            DataQueryCache<?> loQueryCache = loRoute.m_oQueryCache;
+            if (loQueryCache != null && !loEntry.getValue().isEmpty())
+            {
+                loQueryCache.invalidate();
+            }
+            DataEntityCache<?> loCache = loRoute.m_oCache;
+            if (loCache != null)
+            {
+                for (DataObject loObject : loEntry.getValue())
+                {
+                    if (tlSaved)
+                    {
+                        loCache.put(loObject);
+                    }
+                    else
+                    {
+                        loCache.invalidate(loCache.getKey(loObject));
+                    }
+                }
+            }
+        }
     }
 
 
@@ -1,6 +1,5 @@
 package karyon.data;
 
-import karyon.dynamicCode.Java;
 import karyon.exceptions.PropertyNotSetException;
 
 import java.util.Map;
@@ -14,17 +13,43 @@ public abstract class DataObject
     extends karyon.Object
 {
     /**
-     * Creates a data object from the data provided in the map specified
+     * Creates a data object from the data provided in the map specified.  The fields are
+     * set through the accessors of the DataSchema, properties that are not fields are ignored
      */
     protected DataObject(Map<String, java.lang.Object> toPropertyMap)
         throws PropertyNotSetException
     {
-        Java.setValues(this, toPropertyMap);
+        DataSchema.getSchema(getClass()).setValues(this, toPropertyMap);
     }
 
     protected DataObject()
     {
     }
 
+    /**
+     * Checks that this object can be saved, this is called before beforeSave
+     * @return true if the object is valid, false to prevent the object being saved
+     */
+    protected boolean onValidate()
+    {
+        return true;
+    }
+
+    /**
+     * Called before this object is written to the data store
+     * @return true to save the object, false to prevent the object being saved
+     */
+    protected boolean beforeSave()
+    {
+        return true;
+    }
+
+    /**
+     * Called after this object has been written to the data store
+     */
+    protected void afterSave()
+    {
+    }
+
     // TODO: Specify the type of data cursor that should be used with this object
 }
@@ -0,0 +1,576 @@
+package karyon.data;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+
+/**
+ * A DataPage is a fixed size block of records inside a DataCursor.  Pages are addressed
+ * by an int offset, the cursor is responsible for mapping the long record index onto
+ * the page and the offset within the page.
+ *
+ * Records are stored column by column, each field of the schema is held in an array of
+ * its storage type so primitive fields are never boxed.
+ */
+class DataPage
+    extends karyon.Object
+{
+    private final DataSchema<?> m_oSchema;
+    private final Object[] m_aColumns;
+    private final BitSet m_oPresent;
+    private final BitSet m_oModified;
+    private final BitSet m_oDeleted;
+    private final int m_nCapacity;
+    private int m_nCount;
+
+    /**
+     * Creates a new empty page
+     * @param toSchema the schema of the records held in this page
+     * @param tnSize the number of records this page can hold
+     */
+    DataPage(DataSchema<?> toSchema, int tnSize)
+    {
+        this(toSchema, tnSize, new BitSet(tnSize), new BitSet(), new BitSet(), new Object[toSchema.getFieldCount()]);
+        for (int i = 0; i < m_aColumns.length; i++)
+        {
+            m_aColumns[i] = toSchema.getType(i).newArray(tnSize);
+        }
+    }
+
+    private DataPage(DataSchema<?> toSchema, int tnSize, BitSet toPresent, BitSet toModified, BitSet toDeleted, Object[] taColumns)
+    {
+        m_oSchema = toSchema;
+        m_nCapacity = tnSize;
+        m_oPresent = toPresent;
+        m_oModified = toModified;
+        m_oDeleted = toDeleted;
+        m_aColumns = taColumns;
+        m_nCount = toPresent.cardinality();
+    }
+
+    /**
+     * Gets the schema of the records in this page
+     * @return the schema
+     */
+    public DataSchema<?> getSchema()
+    {
+        return m_oSchema;
+    }
+
+    /**
+     * Gets the number of records this page can hold
+     * @return the capacity of the page
+     */
+    public int getCapacity()
+    {
+        return m_nCapacity;
+    }
+
+    /**
+     * Gets the number of records that have been written to this page
+     * @return the number of records populated
+     */
+    public int getCount()
+    {
+        return m_nCount;
+    }
+
+    /**
+     * Checks if a record has been written at the offset specified
+     * @param tnOffset the offset within the page
+     * @return true if there is a record at the offset
+     */
+    public boolean isSet(int tnOffset)
+    {
+        return m_oPresent.get(tnOffset);
+    }
+
+    /**
+     * Checks if the record at the offset has been modified since it was loaded
+     * @param tnOffset the offset within the page
+     * @return true if the record has been modified
+     */
+    public boolean isModified(int tnOffset)
+    {
+        return m_oModified.get(tnOffset);
+    }
+
+    /**
+     * Marks the record at the offset as modified
+     * @param tnOffset the offset within the page
+     * @param tlModified true if the record is modified
+     */
+    public void setModified(int tnOffset, boolean tlModified)
+    {
+        m_oModified.set(tnOffset, tlModified);
+    }
+
+    /**
+     * Checks if the record at the offset has been marked for deletion
+     * @param tnOffset the offset within the page
+     * @return true if the record has been deleted
+     */
+    public boolean isDeleted(int tnOffset)
+    {
+        return m_oDeleted.get(tnOffset);
+    }
+
+    /**
+     * Marks the record at the offset for deletion
+     * @param tnOffset the offset within the page
+     * @param tlDeleted true if the record is deleted
+     */
+    public void setDeleted(int tnOffset, boolean tlDeleted)
+    {
+        m_oDeleted.set(tnOffset, tlDeleted);
+    }
+
+    /**
+     * Checks if any record in this page has been modified or deleted
+     * @return true if the page has changes
+     */
+    public boolean hasChanges()
+    {
+        return !m_oModified.isEmpty() || !m_oDeleted.isEmpty();
+    }
+
+    /**
+     * Gets the backing array for the column specified, the type of the array
+     * is determined by the storage type of the field
+     * @param tnField the field index
+     * @return the column array
+     */
+    public Object getColumn(int tnField)
+    {
+        return m_aColumns[tnField];
+    }
+
+    /**
+     * Gets the record at the specified offset in the page as an array of values in schema order.
+     * This boxes primitive values so should be avoided in favour of the typed getters when scanning
+     * @param tnOffset the offset within the page
+     * @return the record values, or null if the record has not been set
+     */
+    public Object[] get(int tnOffset)
+    {
+        if (!m_oPresent.get(tnOffset))
+        {
+            return null;
+        }
+        Object[] laValues = new Object[m_aColumns.length];
+        for (int i = 0; i < laValues.length; i++)
+        {
+            laValues[i] = getValue(i, tnOffset);
+        }
+        return laValues;
+    }
+
+    /**
+     * Sets the record at the specified offset in the page
+     * @param tnOffset the offset within the page
+     * @param toRecord the record to store, see DataSchema.toValues for the accepted record types.
+     *                 If this is null the record is cleared.
+     */
+    public void set(int tnOffset, Object toRecord)
+    {
+        if (toRecord == null)
+        {
+            if (m_oPresent.get(tnOffset))
+            {
+                for (int i = 0; i < m_aColumns.length; i++)
+                {
+                    setValue(i, tnOffset, null);
+                }
+                m_oPresent.clear(tnOffset);
+                m_oModified.clear(tnOffset);
+                m_oDeleted.clear(tnOffset);
+                m_nCount--;
+            }
+            return;
+        }
+
+        if (m_oSchema.getDataClass().isInstance(toRecord))
+        {
+            write(tnOffset, (DataObject)toRecord);
+        }
+        else
+        {
+            Object[] laValues = m_oSchema.toValues(toRecord);
+            for (int i = 0; i < laValues.length; i++)
+            {
+                setValue(i, tnOffset, laValues[i]);
+            }
+        }
+        if (!m_oPresent.get(tnOffset))
+        {
+            m_oPresent.set(tnOffset);
+            m_nCount++;
+        }
+    }
+
+    /**
+     * Gets the value of a single field, primitive values will be boxed
+     * @param tnField the field index
+     * @param tnOffset the offset within the page
+     * @return the value
+     */
+    public Object getValue(int tnField, int tnOffset)
+    {
+        Object loColumn = m_aColumns[tnField];
+        switch (m_oSchema.getType(tnField))
+        {
+            case BOOLEAN:
+                return ((boolean[])loColumn)[tnOffset];
+            case BYTE:
+                return ((byte[])loColumn)[tnOffset];
+            case CHAR:
+                return ((char[])loColumn)[tnOffset];
+            case SHORT:
+                return ((short[])loColumn)[tnOffset];
+            case INT:
+                return ((int[])loColumn)[tnOffset];
+            case LONG:
+                return ((long[])loColumn)[tnOffset];
+            case FLOAT:
+                return ((float[])loColumn)[tnOffset];
+            case DOUBLE:
+                return ((double[])loColumn)[tnOffset];
+            default:
+                return ((Object[])loColumn)[tnOffset];
+        }
+    }
+
+    /**
+     * Sets the value of a single field.  Numeric values are converted to the storage
+     * type of the field and null primitives are stored as the default value for the type
+     * @param tnField the field index
+     * @param tnOffset the offset within the page
+     * @param toValue the value to store
+     */
+    public void setValue(int tnField, int tnOffset, Object toValue)
+    {
+        Object loColumn = m_aColumns[tnField];
+        switch (m_oSchema.getType(tnField))
+        {
+            case BOOLEAN:
+                ((boolean[])loColumn)[tnOffset] = toValue != null && (Boolean)toValue;
+                break;
+            case BYTE:
+                ((byte[])loColumn)[tnOffset] = toValue == null ? 0 : ((Number)toValue).byteValue();
+                break;
+            case CHAR:
+                ((char[])loColumn)[tnOffset] = toValue == null ? 0 : (Character)toValue;
+                break;
+            case SHORT:
+                ((short[])loColumn)[tnOffset] = toValue == null ? 0 : ((Number)toValue).shortValue();
+                break;
+            case INT:
+                ((int[])loColumn)[tnOffset] = toValue == null ? 0 : ((Number)toValue).intValue();
+                break;
+            case LONG:
+                ((long[])loColumn)[tnOffset] = toValue == null ? 0 : ((Number)toValue).longValue();
+                break;
+            case FLOAT:
+                ((float[])loColumn)[tnOffset] = toValue == null ? 0 : ((Number)toValue).floatValue();
+                break;
+            case DOUBLE:
+                ((double[])loColumn)[tnOffset] = toValue == null ? 0 : ((Number)toValue).doubleValue();
+                break;
+            default:
+                ((Object[])loColumn)[tnOffset] = toValue;
+        }
+    }
+
+    // Typed access to the columns, these never box the value
+
+    /**
+     * Gets the boolean value of a field, the field must be of this type
+     * @param tnField the index of the field in the schema
+     * @param tnOffset the offset of the record within the page
+     * @return the value
+     */
+    public boolean getBoolean(int tnField, int tnOffset)
+    {
+        return ((boolean[])m_aColumns[tnField])[tnOffset];
+    }
+
+    /**
+     * Gets the byte value of a field, the field must be of this type
+     * @param tnField the index of the field in the schema
+     * @param tnOffset the offset of the record within the page
+     * @return the value
+     */
+    public byte getByte(int tnField, int tnOffset)
+    {
+        return ((byte[])m_aColumns[tnField])[tnOffset];
+    }
+
+    /**
+     * Gets the char value of a field, the field must be of this type
+     * @param tnField the index of the field in the schema
+     * @param tnOffset the offset of the record within the page
+     * @return the value
+     */
+    public char getChar(int tnField, int tnOffset)
+    {
+        return ((char[])m_aColumns[tnField])[tnOffset];
+    }
+
+    /**
+     * Gets the short value of a field, the field must be of this type
+     * @param tnField the index of the field in the schema
+     * @param tnOffset the offset of the record within the page
+     * @return the value
+     */
+    public short getShort(int tnField, int tnOffset)
+    {
+        return ((short[])m_aColumns[tnField])[tnOffset];
+    }
+
+    /**
+     * Gets the int value of a field, the field must be of this type
+     * @param tnField the index of the field in the schema
+     * @param tnOffset the offset of the record within the page
+     * @return the value
+     */
+    public int getInt(int tnField, int tnOffset)
+    {
+        return ((int[])m_aColumns[tnField])[tnOffset];
+    }
+
+    /**
+     * Gets the long value of a field, the field must be of this type
+     * @param tnField the index of the field in the schema
+     * @param tnOffset the offset of the record within the page
+     * @return the value
+     */
+    public long getLong(int tnField, int tnOffset)
+    {
+        return ((long[])m_aColumns[tnField])[tnOffset];
+    }
+
+    /**
+     * Gets the float value of a field, the field must be of this type
+     * @param tnField the index of the field in the schema
+     * @param tnOffset the offset of the record within the page
+     * @return the value
+     */
+    public float getFloat(int tnField, int tnOffset)
+    {
+        return ((float[])m_aColumns[tnField])[tnOffset];
+    }
+
+    /**
+     * Gets the double value of a field, the field must be of this type
+     * @param tnField the index of the field in the schema
+     * @param tnOffset the offset of the record within the page
+     * @return the value
+     */
+    public double getDouble(int tnField, int tnOffset)
+    {
+        return ((double[])m_aColumns[tnField])[tnOffset];
+    }
+
+    /**
+     * Gets the object value of a field, the field must be of this type
+     * @param tnField the index of the field in the schema
+     * @param tnOffset the offset of the record within the page
+     * @return the value
+     */
+    public Object getObject(int tnField, int tnOffset)
+    {
+        return ((Object[])m_aColumns[tnField])[tnOffset];
+    }
+
+    /**
+     * Copies the record at the offset into the fields of the target object.  Primitive
+     * fields are copied directly from the columns so no values are boxed
+     * @param tnOffset the offset within the page
+     * @param toTarget the object to populate
+     */
+    public void read(int tnOffset, DataObject toTarget)
+    {
+        try
+        {
+            for (int i = 0; i < m_aColumns.length; i++)
+            {
+                MethodHandle loSetter = m_oSchema.getSetter(i);
+                Object loColumn = m_aColumns[i];
+                switch (m_oSchema.getType(i))
+                {
+                    case BOOLEAN:
+                        loSetter.invokeExact(toTarget, ((boolean[])loColumn)[tnOffset]);
+                        break;
+                    case BYTE:
+                        loSetter.invokeExact(toTarget, ((byte[])loColumn)[tnOffset]);
+                        break;
+                    case CHAR:
+                        loSetter.invokeExact(toTarget, ((char[])loColumn)[tnOffset]);
+                        break;
+                    case SHORT:
+                        loSetter.invokeExact(toTarget, ((short[])loColumn)[tnOffset]);
+                        break;
+                    case INT:
+                        loSetter.invokeExact(toTarget, ((int[])loColumn)[tnOffset]);
+                        break;
+                    case LONG:
+                        loSetter.invokeExact(toTarget, ((long[])loColumn)[tnOffset]);
+                        break;
+                    case FLOAT:
+                        loSetter.invokeExact(toTarget, ((float[])loColumn)[tnOffset]);
+                        break;
+                    case DOUBLE:
+                        loSetter.invokeExact(toTarget, ((double[])loColumn)[tnOffset]);
+                        break;
+                    default:
+                        loSetter.invokeExact(toTarget, ((Object[])loColumn)[tnOffset]);
+                }
+            }
+        }
+        catch (RuntimeException | Error ex)
+        {
+            throw ex;
+        }
+        catch (Throwable ex)
+        {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Writes the fields of the object in to the record at the offset, primitive fields
+     * are copied without boxing
+     * @param tnOffset the offset within the page
+     * @param toSource the object to copy the fields of
+     */
+    private void write(int tnOffset, DataObject toSource)
+    {
+        try
+        {
+            for (int i = 0; i < m_aColumns.length; i++)
+            {
+                MethodHandle loGetter = m_oSchema.getGetter(i);
+                Object loColumn = m_aColumns[i];
+                switch (m_oSchema.getType(i))
+                {
+                    case BOOLEAN:
+                        ((boolean[])loColumn)[tnOffset] = (boolean)loGetter.invokeExact(toSource);
+                        break;
+                    case BYTE:
+                        ((byte[])loColumn)[tnOffset] = (byte)loGetter.invokeExact(toSource);
+                        break;
+                    case CHAR:
+                        ((char[])loColumn)[tnOffset] = (char)loGetter.invokeExact(toSource);
+                        break;
+                    case SHORT:
+                        ((short[])loColumn)[tnOffset] = (short)loGetter.invokeExact(toSource);
+                        break;
+                    case INT:
+                        ((int[])loColumn)[tnOffset] = (int)loGetter.invokeExact(toSource);
+                        break;
+                    case LONG:
+                        ((long[])loColumn)[tnOffset] = (long)loGetter.invokeExact(toSource);
+                        break;
+                    case FLOAT:
+                        ((float[])loColumn)[tnOffset] = (float)loGetter.invokeExact(toSource);
+                        break;
+                    case DOUBLE:
+                        ((double[])loColumn)[tnOffset] = (double)loGetter.invokeExact(toSource);
+                        break;
+                    default:
+                        ((Object[])loColumn)[tnOffset] = (Object)loGetter.invokeExact(toSource);
+                }
+            }
+        }
+        catch (RuntimeException | Error ex)
+        {
+            throw ex;
+        }
+        catch (Throwable ex)
+        {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+
+    /**
+     * Writes this page with the codec of its class.  Only the offsets up to the last record
+     * present are written, so a partly filled page is written in proportion to its records
+     * @param toWriter the writer to encode in to
+     */
+    void encode(DataCodec.Writer toWriter)
+    {
+        DataCodec<?> loCodec = DataCodec.getCodec(m_oSchema.getDataClass());
+        int lnLength = m_oPresent.length();
+        toWriter.putVarInt(m_nCapacity);
+        toWriter.putVarInt(m_aColumns.length);
+        toWriter.putVarInt(lnLength);
+        encode(toWriter, m_oPresent);
+        encode(toWriter, m_oModified);
+        encode(toWriter, m_oDeleted);
+        for (int i = 0; i < m_aColumns.length; i++)
+        {
+            loCodec.writeColumn(toWriter, i, m_aColumns[i], lnLength);
+        }
+    }
+
+    private static void encode(DataCodec.Writer toWriter, BitSet toBits)
+    {
+        long[] laBits = toBits.toLongArray();
+        toWriter.putVarInt(laBits.length);
+        ByteBuffer loBuffer = toWriter.reserve(8 * laBits.length);
+        for (long lnBits : laBits)
+        {
+            loBuffer.putLong(lnBits);
+        }
+    }
+
+    /**
+     * Reads a page that was written with encode
+     * @param toSchema the schema of the records in the page
+     * @param toBuffer the buffer to read from
+     * @return the page
+     * @throws IOException if the page was not written for the schema or could not be decoded
+     */
+    static DataPage decode(DataSchema<?> toSchema, ByteBuffer toBuffer) throws IOException
+    {
+        DataCodec.Reader loReader = new DataCodec.Reader(toBuffer);
+        DataCodec<?> loCodec = DataCodec.getCodec(toSchema.getDataClass());
+        try
+        {
+            int lnCapacity = loReader.getVarInt();
+            int lnColumns = loReader.getVarInt();
+            if (lnColumns != toSchema.getFieldCount())
+            {
+                throw new IOException("Page has " + lnColumns + " columns but " + toSchema.getDataClass().getName() + " has " + toSchema.getFieldCount());
+            }
+            int lnLength = loReader.getVarInt();
+            BitSet loPresent = decodeBits(loReader);
+            BitSet loModified = decodeBits(loReader);
+            BitSet loDeleted = decodeBits(loReader);
+
+            Object[] laColumns = new Object[lnColumns];
+            for (int i = 0; i < lnColumns; i++)
+            {
+                laColumns[i] = loCodec.readColumn(loReader, i, lnLength, lnCapacity);
+            }
+            return new DataPage(toSchema, lnCapacity, loPresent, loModified, loDeleted, laColumns);
+        }
+        catch (RuntimeException ex)
+        {
+            throw new IOException("Unable to decode a page of " + toSchema.getDataClass().getName(), ex);
+        }
+    }
+
+    private static BitSet decodeBits(DataCodec.Reader toReader)
+    {
+        long[] laBits = new long[toReader.getVarInt()];
+        ByteBuffer loBuffer = toReader.getBuffer();
+        for (int i = 0; i < laBits.length; i++)
+        {
+            laBits[i] = loBuffer.getLong();
+        }
+        return BitSet.valueOf(laBits);
+    }
+}
@@ -0,0 +1,246 @@
+package karyon.data;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A cache of the results of the queries made for a data object class, keyed by the
+ * filter itself so values of different types or precision never share a result.  Every write to the class through the DataManager moves
+ * the version stamp of the class on, and results stamped with an earlier version are
+ * not used again.  Results are held least recently used first and only results up to a
+ * maximum number of records are cached.
+ * @param <T> the type of data object
+ */
+public class DataQueryCache<T extends DataObject>
+    extends karyon.Object
+{
+    /**
+     * The records of a query and the version of the class they were read at
+     */
+    private static final class Result
+    {
+        private final long m_nVersion;
+        private final long m_nExpires;
+        /**
+         * The records, or the records encoded by the codec if the cache is compact
+         */
+        private final Object m_oRecords;
+
+        private Result(long tnVersion, long tnExpires, Object toRecords)
+        {
+            m_nVersion = tnVersion;
+            m_nExpires = tnExpires;
+            m_oRecords = toRecords;
+        }
+    }
+
+    private final Class<T> m_oClass;
+    private final DataCodec<T> m_oCodec;
+    private final int m_nMaximumRecords;
+    private final long m_nTimeToLive;
+    private final LinkedHashMap<DataFilter, Result> m_oResults;
+    private final AtomicLong m_nVersion;
+    private final AtomicLong m_nHits;
+    private final AtomicLong m_nMisses;
+
+    /**
+     * Creates a new query cache
+     * @param toClass the type of data object the queries are for
+     * @param tnMaximumSize the maximum number of query results to hold
+     * @param tnMaximumRecords the maximum number of records in a result that will be cached
+     * @param tnTimeToLive the number of milliseconds a result is held, 0 to hold results
+     *                     until they are invalidated or evicted
+     */
+    public DataQueryCache(Class<T> toClass, int tnMaximumSize, int tnMaximumRecords, long tnTimeToLive)
+    {
+        this(toClass, tnMaximumSize, tnMaximumRecords, tnTimeToLive, false);
+    }
+
+    /**
+     * Creates a new query cache
+     * @param toClass the type of data object the queries are for
+     * @param tnMaximumSize the maximum number of query results to hold
+     * @param tnMaximumRecords the maximum number of records in a result that will be cached
+     * @param tnTimeToLive the number of milliseconds a result is held, 0 to hold results
+     *                     until they are invalidated or evicted
+     * @param tlCompact true to hold each result encoded with the DataCodec of the class, the
+     *                  records of a result share a string dictionary so results with repeated
+     *                  values take a fraction of the memory, but the result is decoded on each hit
+     */
+    public DataQueryCache(Class<T> toClass, final int tnMaximumSize, int tnMaximumRecords, long tnTimeToLive, boolean tlCompact)
+    {
+        if (tnMaximumSize < 1)
+        {
+            throw new IllegalArgumentException("tnMaximumSize must be greater than 0");
+        }
+        m_oClass = toClass;
+        m_oCodec = tlCompact ? DataCodec.getCodec(toClass) : null;
+        m_nMaximumRecords = tnMaximumRecords;
+        m_nTimeToLive = Math.max(0, tnTimeToLive);
+        m_oResults = new LinkedHashMap<DataFilter, Result>(16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<DataFilter, Result> toEldest)
+            {
+                return size() > tnMaximumSize;
+            }
+        };
+        m_nVersion = new AtomicLong();
+        m_nHits = new AtomicLong();
+        m_nMisses = new AtomicLong();
+    }
+
+    /**
+     * Gets the maximum number of records in a result that will be cached
+     * @return the maximum number of records
+     */
+    public int getMaximumRecords()
+    {
+        return m_nMaximumRecords;
+    }
+
+    /**
+     * Gets the number of query results held
+     * @return the number of results
+     */
+    public synchronized int getSize()
+    {
+        return m_oResults.size();
+    }
+
+    /**
+     * Gets the number of queries answered from the cache
+     * @return the number of hits
+     */
+    public long getHits()
+    {
+        return m_nHits.get();
+    }
+
+    /**
+     * Gets the number of queries that were not in the cache
+     * @return the number of misses
+     */
+    public long getMisses()
+    {
+        return m_nMisses.get();
+    }
+
+    /**
+     * Gets the version stamp of the class, this changes each time the class is written
+     * @return the version
+     */
+    public long getVersion()
+    {
+        return m_nVersion.get();
+    }
+
+    /**
+     * Gets the cached result of the query
+     * @param toFilter the filter of the query, null for all objects
+     * @return a new cursor over the cached records, or null if the result is not cached
+     */
+    public DataCursor<T> get(DataFilter toFilter)
+    {
+        Result loResult;
+        synchronized (this)
+        {
+            loResult = m_oResults.get(toFilter);
+            if (loResult != null && (loResult.m_nVersion != m_nVersion.get() || loResult.m_nExpires < System.currentTimeMillis()))
+            {
+                m_oResults.remove(toFilter);
+                loResult = null;
+            }
+        }
+        if (loResult == null)
+        {
+            m_nMisses.incrementAndGet();
+            return null;
+        }
+        m_nHits.incrementAndGet();
+        if (m_oCodec == null)
+        {
+            return new DataCursor<T>(m_oClass, (Object[])loResult.m_oRecords);
+        }
+        DataCodec.Reader loReader = new DataCodec.Reader((byte[])loResult.m_oRecords);
+        Object[] laRecords = new Object[loReader.getVarInt()];
+        for (int i = 0; i < laRecords.length; i++)
+        {
+            laRecords[i] = m_oCodec.read(loReader);
+        }
+        return new DataCursor<T>(m_oClass, laRecords);
+    }
+
+    /**
+     * Caches the result of the query.  The records of the cursor are loaded, so this
+     * should only be called with a cursor that has not been read from yet
+     * @param toFilter the filter of the query
+     * @param toCursor the result of the query
+     * @param tnVersion the version stamp taken before the query was made, the result is
+     *                  not cached if the class has been written since
+     * @return true if the result was cached
+     */
+    public boolean put(DataFilter toFilter, DataCursor<T> toCursor, long tnVersion)
+    {
+        long lnLength = toCursor.getLength();
+        if (lnLength > m_nMaximumRecords || tnVersion != m_nVersion.get())
+        {
+            return false;
+        }
+        Object[] laRecords = new Object[(int)lnLength];
+        for (int i = 0; i < laRecords.length; i++)
+        {
+            laRecords[i] = toCursor.getValue(i);
+            if (laRecords[i] == null)
+            {
+                return false;
+            }
+        }
+        Result loResult = new Result(tnVersion, m_nTimeToLive > 0 ? System.currentTimeMillis() + m_nTimeToLive : Long.MAX_VALUE,
+                m_oCodec == null ? laRecords : encode(laRecords));
+        synchronized (this)
+        {
+            // Checked again under the lock as invalidate clears the results under the same lock
+            if (tnVersion != m_nVersion.get())
+            {
+                return false;
+            }
+            m_oResults.put(toFilter, loResult);
+        }
+        return true;
+    }
+
+    /**
+     * Encodes the records of a result with a single writer, so they share a dictionary
+     * @param taRecords the values of the records
+     * @return the count of records followed by the records
+     */
+    private byte[] encode(Object[] taRecords)
+    {
+        DataCodec.Writer loWriter = new DataCodec.Writer();
+        try
+        {
+            loWriter.putVarInt(taRecords.length);
+            for (Object loRecord : taRecords)
+            {
+                m_oCodec.write(loWriter, (Object[])loRecord);
+            }
+            return loWriter.toByteArray();
+        }
+        finally
+        {
+            loWriter.close();
+        }
+    }
+
+    /**
+     * Moves the version stamp on, discarding every cached result.  This is called each
+     * time the class is written
+     */
+    public synchronized void invalidate()
+    {
+        m_nVersion.incrementAndGet();
+        m_oResults.clear();
+    }
+}
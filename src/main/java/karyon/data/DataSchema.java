@@ -0,0 +1,454 @@
+package karyon.data;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Map;
+
+/**
+ * The DataSchema describes the field layout of a DataObject class.  The layout
+ * is derived once for each class and determines the order and storage type of the
+ * values held for the class.
+ *
+ * The schema also holds the accessors used to read and write the fields.  These are
+ * method handles created once per class and typed to the storage type of each field,
+ * so an object is populated with a sequence of exactly typed calls without reflection,
+ * boxing or a map of property values.
+ * @param <T> the type of DataObject described
+ */
+public final class DataSchema<T extends DataObject>
+    extends karyon.Object
+{
+    private static final ClassValue<DataSchema<?>> g_oSchemas = new ClassValue<DataSchema<?>>()
+    {
+        @Override
+        protected DataSchema<?> computeValue(Class<?> toClass)
+        {
+            return create(toClass.asSubclass(DataObject.class));
+        }
+    };
+
+    /**
+     * Creates the schema for the class, this captures the type of the class for the constructor
+     * @param toClass the class to create the schema for
+     * @param <K> the type of data object
+     * @return the new schema
+     */
+    private static <K extends DataObject> DataSchema<K> create(Class<K> toClass)
+    {
+        return new DataSchema<K>(toClass);
+    }
+
+    /**
+     * Gets the schema for the class specified
+     * @param toClass the class to get the schema for
+     * @param <K> the type of data object
+     * @return the schema for the class
+     */
+    @SuppressWarnings("unchecked")
+    public static <K extends DataObject> DataSchema<K> getSchema(Class<K> toClass)
+    {
+        return (DataSchema<K>)g_oSchemas.get(toClass);
+    }
+
+    private final Class<T> m_oClass;
+    private final Field[] m_aFields;
+    private final String[] m_aNames;
+    private final DataType[] m_aTypes;
+    private final MethodHandle[] m_aGetters;
+    private final MethodHandle[] m_aSetters;
+    private final MethodHandle[] m_aValueGetters;
+    private final MethodHandle m_oConstructor;
+
+    /**
+     * Not publicly creatable, use getSchema
+     * @param toClass the class to describe
+     */
+    private DataSchema(Class<T> toClass)
+    {
+        m_oClass = toClass;
+
+        // Parent fields are laid out before child fields
+        ArrayList<Field> loFields = new ArrayList<Field>();
+        for (Class<?> loClass = toClass; loClass != null && DataObject.class.isAssignableFrom(loClass) && loClass != DataObject.class; loClass = loClass.getSuperclass())
+        {
+            int lnInsert = 0;
+            for (Field loField : loClass.getDeclaredFields())
+            {
+                int lnModifiers = loField.getModifiers();
+                if (!Modifier.isStatic(lnModifiers) && !Modifier.isTransient(lnModifiers) && !loField.isSynthetic())
+                {
+                    loField.setAccessible(true);
+                    loFields.add(lnInsert++, loField);
+                }
+            }
+        }
+
+        m_aFields = loFields.toArray(new Field[loFields.size()]);
+        m_aNames = new String[m_aFields.length];
+        m_aTypes = new DataType[m_aFields.length];
+        for (int i = 0; i < m_aFields.length; i++)
+        {
+            m_aNames[i] = getPropertyName(m_aFields[i].getName());
+            m_aTypes[i] = DataType.fromClass(m_aFields[i].getType());
+        }
+
+        MethodHandles.Lookup loLookup = MethodHandles.lookup();
+        m_aGetters = new MethodHandle[m_aFields.length];
+        m_aSetters = new MethodHandle[m_aFields.length];
+        m_aValueGetters = new MethodHandle[m_aFields.length];
+        for (int i = 0; i < m_aFields.length; i++)
+        {
+            Class<?> loStorage = m_aTypes[i].getStorageClass();
+            MethodHandle loGetter = createGetter(loLookup, m_aFields[i]);
+            m_aGetters[i] = loGetter.asType(MethodType.methodType(loStorage, DataObject.class));
+            m_aValueGetters[i] = loGetter.asType(MethodType.methodType(Object.class, DataObject.class));
+            m_aSetters[i] = createSetter(loLookup, m_aFields[i]).asType(MethodType.methodType(void.class, DataObject.class, loStorage));
+        }
+        m_oConstructor = createConstructor(loLookup, toClass);
+    }
+
+    private static MethodHandle createGetter(MethodHandles.Lookup toLookup, Field toField)
+    {
+        try
+        {
+            return toLookup.unreflectGetter(toField);
+        }
+        catch (IllegalAccessException ex)
+        {
+            throw new IllegalStateException("Unable to access " + toField, ex);
+        }
+    }
+
+    private static MethodHandle createSetter(MethodHandles.Lookup toLookup, Field toField)
+    {
+        try
+        {
+            return toLookup.unreflectSetter(toField);
+        }
+        catch (IllegalAccessException ex)
+        {
+            // Final fields can not be set through a method handle but can be set through the field
+            try
+            {
+                return toLookup.findVirtual(Field.class, "set", MethodType.methodType(void.class, Object.class, Object.class)).bindTo(toField)
+                        .asType(MethodType.methodType(void.class, toField.getDeclaringClass(), toField.getType()));
+            }
+            catch (ReflectiveOperationException e)
+            {
+                throw new IllegalStateException("Unable to access " + toField, e);
+            }
+        }
+    }
+
+    /**
+     * Creates the handle for the default constructor of the class
+     * @return the handle, or null if the class can not be created with a default constructor
+     */
+    private static MethodHandle createConstructor(MethodHandles.Lookup toLookup, Class<?> toClass)
+    {
+        if (Modifier.isAbstract(toClass.getModifiers()))
+        {
+            return null;
+        }
+        try
+        {
+            Constructor<?> loConstructor = toClass.getDeclaredConstructor();
+            loConstructor.setAccessible(true);
+            return toLookup.unreflectConstructor(loConstructor).asType(MethodType.methodType(DataObject.class));
+        }
+        catch (ReflectiveOperationException ex)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Gets the property name from a member name, m_nVersion becomes version
+     * @param tcFieldName the name of the member
+     * @return the property name
+     */
+    private static String getPropertyName(String tcFieldName)
+    {
+        String lcName = tcFieldName.startsWith("m_") ? tcFieldName.substring(2) : tcFieldName;
+        int lnStart = 0;
+        while (lnStart < lcName.length() && Character.isLowerCase(lcName.charAt(lnStart)))
+        {
+            lnStart++;
+        }
+        if (lnStart == lcName.length() || lnStart == 0)
+        {
+            return lcName;
+        }
+        return Character.toLowerCase(lcName.charAt(lnStart)) + lcName.substring(lnStart + 1);
+    }
+
+    /**
+     * Gets the class described by this schema
+     * @return the data object class
+     */
+    public Class<T> getDataClass()
+    {
+        return m_oClass;
+    }
+
+    /**
+     * Gets the number of fields in the schema
+     * @return the number of fields
+     */
+    public int getFieldCount()
+    {
+        return m_aFields.length;
+    }
+
+    /**
+     * Gets the property name of the field at the index specified
+     * @param tnField the index of the field
+     * @return the property name
+     */
+    public String getName(int tnField)
+    {
+        return m_aNames[tnField];
+    }
+
+    /**
+     * Gets the storage type of the field at the index specified
+     * @param tnField the index of the field
+     * @return the storage type
+     */
+    public DataType getType(int tnField)
+    {
+        return m_aTypes[tnField];
+    }
+
+    /**
+     * Gets the java field at the index specified
+     * @param tnField the index of the field
+     * @return the field
+     */
+    public Field getField(int tnField)
+    {
+        return m_aFields[tnField];
+    }
+
+    /**
+     * Gets the index of the field with the property name specified
+     * @param tcName the property name, case insensitive
+     * @return the index of the field or -1 if there is no such field
+     */
+    public int indexOf(String tcName)
+    {
+        for (int i = 0; i < m_aNames.length; i++)
+        {
+            if (m_aNames[i].equalsIgnoreCase(tcName))
+            {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Gets the approximate number of bytes used to store one record of this schema
+     * @return the record size in bytes
+     */
+    public int getRecordSize()
+    {
+        int lnSize = 0;
+        for (DataType loType : m_aTypes)
+        {
+            lnSize += loType.getSize();
+        }
+        return lnSize;
+    }
+
+    /**
+     * Creates a new, empty, instance of the data object
+     * @return the new instance
+     */
+    @SuppressWarnings("unchecked")
+    public T newInstance()
+    {
+        if (m_oConstructor == null)
+        {
+            throw new IllegalStateException(m_oClass.getName() + " requires a default constructor");
+        }
+        try
+        {
+            return (T)(DataObject)m_oConstructor.invokeExact();
+        }
+        catch (RuntimeException | Error ex)
+        {
+            throw ex;
+        }
+        catch (Throwable ex)
+        {
+            throw new IllegalStateException("Unable to create " + m_oClass.getName(), ex);
+        }
+    }
+
+    /**
+     * Converts the record into an array of values in schema order.  Records can be an
+     * instance of the schema class, an Object[] already in schema order, or a map of
+     * property names to values
+     * @param toRecord the record to convert
+     * @return the values of the record in schema order
+     */
+    public Object[] toValues(Object toRecord)
+    {
+        if (toRecord instanceof Object[])
+        {
+            Object[] laValues = (Object[])toRecord;
+            if (laValues.length != m_aFields.length)
+            {
+                throw new IllegalArgumentException("Expected " + m_aFields.length + " values for " + m_oClass.getName() + " but found " + laValues.length);
+            }
+            return laValues;
+        }
+
+        Object[] laValues = new Object[m_aFields.length];
+        if (m_oClass.isInstance(toRecord))
+        {
+            for (int i = 0; i < m_aFields.length; i++)
+            {
+                laValues[i] = getValue(toRecord, i);
+            }
+        }
+        else if (toRecord instanceof Map)
+        {
+            Map<?, ?> loMap = (Map<?, ?>)toRecord;
+            for (Map.Entry<?, ?> loEntry : loMap.entrySet())
+            {
+                int lnField = indexOf(String.valueOf(loEntry.getKey()));
+                if (lnField >= 0)
+                {
+                    laValues[lnField] = loEntry.getValue();
+                }
+            }
+        }
+        else
+        {
+            throw new IllegalArgumentException((toRecord == null ? "null" : toRecord.getClass().getName()) + " is not a record of " + m_oClass.getName());
+        }
+        return laValues;
+    }
+
+    /**
+     * Gets the value of the field from the object specified
+     * @param toObject the object to read from
+     * @param tnField the field to read
+     * @return the value of the field
+     */
+    public Object getValue(Object toObject, int tnField)
+    {
+        try
+        {
+            return (Object)m_aValueGetters[tnField].invokeExact((DataObject)toObject);
+        }
+        catch (RuntimeException | Error ex)
+        {
+            throw ex;
+        }
+        catch (Throwable ex)
+        {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Sets the value of the field on the object specified.  Numbers are converted to the
+     * type of the field and null sets primitive fields to their default value
+     * @param toObject the object to write to
+     * @param tnField the field to write
+     * @param toValue the value of the field
+     */
+    public void setValue(Object toObject, int tnField, Object toValue)
+    {
+        DataObject loObject = (DataObject)toObject;
+        MethodHandle loSetter = m_aSetters[tnField];
+        try
+        {
+            switch (m_aTypes[tnField])
+            {
+                case BOOLEAN:
+                    loSetter.invokeExact(loObject, toValue != null && (Boolean)toValue);
+                    break;
+                case BYTE:
+                    loSetter.invokeExact(loObject, toValue == null ? 0 : ((Number)toValue).byteValue());
+                    break;
+                case CHAR:
+                    loSetter.invokeExact(loObject, toValue == null ? 0 : (char)(Character)toValue);
+                    break;
+                case SHORT:
+                    loSetter.invokeExact(loObject, toValue == null ? 0 : ((Number)toValue).shortValue());
+                    break;
+                case INT:
+                    loSetter.invokeExact(loObject, toValue == null ? 0 : ((Number)toValue).intValue());
+                    break;
+                case LONG:
+                    loSetter.invokeExact(loObject, toValue == null ? 0L : ((Number)toValue).longValue());
+                    break;
+                case FLOAT:
+                    loSetter.invokeExact(loObject, toValue == null ? 0f : ((Number)toValue).floatValue());
+                    break;
+                case DOUBLE:
+                    loSetter.invokeExact(loObject, toValue == null ? 0d : ((Number)toValue).doubleValue());
+                    break;
+                default:
+                    loSetter.invokeExact(loObject, toValue);
+            }
+        }
+        catch (RuntimeException | Error ex)
+        {
+            throw ex;
+        }
+        catch (Throwable ex)
+        {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Sets the fields of the object from a map of property names to values, properties
+     * that are not part of the schema are ignored
+     * @param toObject the object to write to
+     * @param toValues the property values
+     */
+    public void setValues(Object toObject, Map<String, ?> toValues)
+    {
+        for (Map.Entry<String, ?> loEntry : toValues.entrySet())
+        {
+            int lnField = indexOf(loEntry.getKey());
+            if (lnField >= 0)
+            {
+                setValue(toObject, lnField, loEntry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Gets the accessor that reads the field with the exact type (DataObject)storage type,
+     * where the storage type is the primitive type of the field or Object
+     * @param tnField the field
+     * @return the getter
+     */
+    MethodHandle getGetter(int tnField)
+    {
+        return m_aGetters[tnField];
+    }
+
+    /**
+     * Gets the accessor that writes the field with the exact type (DataObject, storage type)void,
+     * where the storage type is the primitive type of the field or Object
+     * @param tnField the field
+     * @return the setter
+     */
+    MethodHandle getSetter(int tnField)
+    {
+        return m_aSetters[tnField];
+    }
+}
@@ -0,0 +1,147 @@
+package karyon.data;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * A consistent hash ring mapping keys onto shards.  Each shard is placed on the ring at
+ * a number of virtual nodes so keys are spread evenly, and adding a shard only moves the
+ * keys that fall between its nodes and the nodes before them.  The ring is immutable so
+ * lookups need no locking.
+ * @param <S> the type of shard
+ */
+class DataShardRing<S>
+    extends karyon.Object
+{
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * A virtual node, used while building the ring
+     */
+    private static final class Node
+    {
+        private final long m_nPoint;
+        private final int m_nOwner;
+
+        private Node(long tnPoint, int tnOwner)
+        {
+            m_nPoint = tnPoint;
+            m_nOwner = tnOwner;
+        }
+    }
+
+    private final S[] m_aShards;
+    private final long[] m_aPoints;
+    private final int[] m_aOwners;
+
+    /**
+     * Creates the ring
+     * @param taShards the shards, the position of each shard is part of the node names so
+     * the same shards in the same order always produce the same ring
+     * @param tnVirtualNodes the number of nodes each shard is placed at
+     */
+    DataShardRing(S[] taShards, int tnVirtualNodes)
+    {
+        if (taShards.length == 0)
+        {
+            throw new IllegalArgumentException("At least one shard must be specified");
+        }
+        if (tnVirtualNodes < 1)
+        {
+            throw new IllegalArgumentException("tnVirtualNodes must be greater than 0");
+        }
+        m_aShards = taShards.clone();
+
+        Node[] laNodes = new Node[taShards.length * tnVirtualNodes];
+        for (int i = 0, n = 0; i < taShards.length; i++)
+        {
+            for (int j = 0; j < tnVirtualNodes; j++)
+            {
+                laNodes[n++] = new Node(hash("shard-" + i + "#" + j), i);
+            }
+        }
+        Arrays.sort(laNodes, new Comparator<Node>()
+        {
+            @Override
+            public int compare(Node toFirst, Node toSecond)
+            {
+                return toFirst.m_nPoint < toSecond.m_nPoint ? -1 : (toFirst.m_nPoint == toSecond.m_nPoint ? 0 : 1);
+            }
+        });
+
+        m_aPoints = new long[laNodes.length];
+        m_aOwners = new int[laNodes.length];
+        for (int i = 0; i < laNodes.length; i++)
+        {
+            m_aPoints[i] = laNodes[i].m_nPoint;
+            m_aOwners[i] = laNodes[i].m_nOwner;
+        }
+    }
+
+    /**
+     * Gets the number of shards on the ring
+     * @return the number of shards
+     */
+    public int getShardCount()
+    {
+        return m_aShards.length;
+    }
+
+    /**
+     * Gets the shard at the index specified
+     * @param tnShard the index of the shard
+     * @return the shard
+     */
+    public S getShard(int tnShard)
+    {
+        return m_aShards[tnShard];
+    }
+
+    /**
+     * Gets the index of the shard that owns the key
+     * @param toKey the key
+     * @return the index of the shard
+     */
+    public int indexOf(Object toKey)
+    {
+        long lnHash = hash(String.valueOf(toKey));
+        int lnIndex = Arrays.binarySearch(m_aPoints, lnHash);
+        if (lnIndex < 0)
+        {
+            lnIndex = -lnIndex - 1;
+        }
+        // The first node at or after the hash owns the key, wrapping round the ring
+        return m_aOwners[lnIndex == m_aPoints.length ? 0 : lnIndex];
+    }
+
+    /**
+     * Gets the shard that owns the key
+     * @param toKey the key
+     * @return the shard
+     */
+    public S get(Object toKey)
+    {
+        return m_aShards[indexOf(toKey)];
+    }
+
+    /**
+     * Hashes the text to a point on the ring using 64 bit FNV-1a with a final mix
+     * so similar keys are spread across the ring
+     * @param tcValue the text to hash
+     * @return the point on the ring
+     */
+    static long hash(String tcValue)
+    {
+        long lnHash = 0xcbf29ce484222325L;
+        for (byte lnByte : tcValue.getBytes(UTF8))
+        {
+            lnHash ^= lnByte & 0xff;
+            lnHash *= 0x100000001b3L;
+        }
+        lnHash ^= lnHash >>> 33;
+        lnHash *= 0xff51afd7ed558ccdL;
+        lnHash ^= lnHash >>> 33;
+        return lnHash;
+    }
+}
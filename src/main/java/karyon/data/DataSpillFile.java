@@ -0,0 +1,209 @@
+package karyon.data;
+
+import karyon.applications.Application;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A temporary file that DataCursor pages are written to when the cursor exceeds its heap
+ * budget.  Pages are written to and read from the file with positional reads and writes
+ * through buffers from the DataCodec pool, so no mapping is created per page.  Each page is
+ * written to a slot, a slot is freed when the page in it changes or is released and is reused
+ * by a later page of the same size or a little smaller, so a cursor that spills the same pages
+ * repeatedly does not grow the file.  The file is deleted when closed.
+ */
+class DataSpillFile
+    extends karyon.Object
+{
+    private final File m_oFile;
+    private final RandomAccessFile m_oAccess;
+    private final FileChannel m_oChannel;
+    // The size of each slot by its position, and the free slots by their size
+    private final HashMap<Long, Integer> m_oSlots;
+    private final TreeMap<Integer, ArrayDeque<Long>> m_oFree;
+    private int m_nUsedSlots;
+    private long m_nLength;
+
+    /**
+     * Creates a new spill file
+     * @param toDirectory the directory to create the file in, or null for the default temporary directory
+     * @throws IOException if the file could not be created
+     */
+    DataSpillFile(File toDirectory) throws IOException
+    {
+        m_oFile = File.createTempFile("karyon.data.", ".spill", toDirectory);
+        m_oFile.deleteOnExit();
+        m_oAccess = new RandomAccessFile(m_oFile, "rw");
+        m_oChannel = m_oAccess.getChannel();
+        m_oSlots = new HashMap<Long, Integer>();
+        m_oFree = new TreeMap<Integer, ArrayDeque<Long>>();
+    }
+
+    /**
+     * Gets the number of bytes written to the file
+     * @return the length of the file
+     */
+    public long getLength()
+    {
+        return m_nLength;
+    }
+
+    /**
+     * Writes the page to a free slot, or to the end of the file if no free slot is large enough
+     * @param toPage the page to write
+     * @return the position the page was written to, used to read the page back
+     * @throws IOException if the page could not be written
+     */
+    public long write(DataPage toPage) throws IOException
+    {
+        DataCodec.Writer loWriter = new DataCodec.Writer();
+        ByteBuffer loBuffer = null;
+        try
+        {
+            toPage.encode(loWriter);
+            ByteBuffer loEncoded = loWriter.getBuffer();
+            loEncoded.flip();
+            int lnSize = 4 + loEncoded.remaining();
+            loBuffer = DataCodec.acquireBuffer(lnSize);
+            loBuffer.putInt(lnSize - 4);
+            loBuffer.put(loEncoded);
+            loBuffer.flip();
+
+            long lnPosition = allocate(lnSize);
+            while (loBuffer.hasRemaining())
+            {
+                m_oChannel.write(loBuffer, lnPosition + loBuffer.position());
+            }
+            return lnPosition;
+        }
+        finally
+        {
+            DataCodec.releaseBuffer(loBuffer);
+            loWriter.close();
+        }
+    }
+
+    /**
+     * Reads the page written at the position specified
+     * @param toSchema the schema of the records in the page
+     * @param tnPosition the position returned when the page was written
+     * @return the page
+     * @throws IOException if the page could not be read
+     */
+    public DataPage read(DataSchema<?> toSchema, long tnPosition) throws IOException
+    {
+        Integer lnSlot = m_oSlots.get(tnPosition);
+        if (lnSlot == null)
+        {
+            throw new IOException("No page has been written to " + tnPosition);
+        }
+        ByteBuffer loBuffer = DataCodec.acquireBuffer(lnSlot);
+        try
+        {
+            // The slot is read in one call, it is at least as large as the page in it
+            loBuffer.limit(lnSlot);
+            while (loBuffer.hasRemaining())
+            {
+                if (m_oChannel.read(loBuffer, tnPosition + loBuffer.position()) < 0)
+                {
+                    throw new EOFException("The spill file ends before the page at " + tnPosition);
+                }
+            }
+            loBuffer.flip();
+            int lnSize = loBuffer.getInt();
+            loBuffer.limit(4 + lnSize);
+            return DataPage.decode(toSchema, loBuffer);
+        }
+        finally
+        {
+            DataCodec.releaseBuffer(loBuffer);
+        }
+    }
+
+    /**
+     * Frees the slot of the page written at the position, the page can not be read again
+     * @param tnPosition the position returned when the page was written
+     */
+    public void free(long tnPosition)
+    {
+        Integer lnSlot = m_oSlots.get(tnPosition);
+        if (lnSlot == null)
+        {
+            return;
+        }
+        if (--m_nUsedSlots == 0)
+        {
+            // Nothing is held, so the file starts again from the beginning
+            m_oSlots.clear();
+            m_oFree.clear();
+            m_nLength = 0;
+            try
+            {
+                m_oChannel.truncate(0);
+            }
+            catch (IOException ex)
+            {
+                Application.log(ex);
+            }
+            return;
+        }
+        ArrayDeque<Long> loFree = m_oFree.get(lnSlot);
+        if (loFree == null)
+        {
+            loFree = new ArrayDeque<Long>();
+            m_oFree.put(lnSlot, loFree);
+        }
+        loFree.add(tnPosition);
+    }
+
+    /**
+     * Finds a slot for the number of bytes specified, a free slot is only used if it is
+     * less than twice the size needed so small pages do not take the slots of large ones
+     * @param tnSize the number of bytes to write
+     * @return the position of the slot
+     */
+    private long allocate(int tnSize)
+    {
+        m_nUsedSlots++;
+        Map.Entry<Integer, ArrayDeque<Long>> loFree = m_oFree.ceilingEntry(tnSize);
+        if (loFree != null && loFree.getKey() / 2 < tnSize)
+        {
+            long lnPosition = loFree.getValue().poll();
+            if (loFree.getValue().isEmpty())
+            {
+                m_oFree.remove(loFree.getKey());
+            }
+            return lnPosition;
+        }
+        long lnPosition = m_nLength;
+        m_oSlots.put(lnPosition, tnSize);
+        m_nLength += tnSize;
+        return lnPosition;
+    }
+
+    /**
+     * Closes and deletes the file
+     */
+    public void close()
+    {
+        try
+        {
+            m_oChannel.close();
+            m_oAccess.close();
+        }
+        catch (IOException ex)
+        {
+            Application.log(ex);
+        }
+        m_oFile.delete();
+    }
+}
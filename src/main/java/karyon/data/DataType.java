@@ -0,0 +1,86 @@
+package karyon.data;
+
+import java.lang.reflect.Array;
+
+/**
+ * The storage types used for the fields of a DataObject.  Each primitive type is held
+ * in its own primitive array so values can be stored without boxing
+ */
+public enum DataType
+{
+    BOOLEAN(boolean.class, 1),
+    BYTE(byte.class, 1),
+    CHAR(char.class, 2),
+    SHORT(short.class, 2),
+    INT(int.class, 4),
+    LONG(long.class, 8),
+    FLOAT(float.class, 4),
+    DOUBLE(double.class, 8),
+    OBJECT(Object.class, 16);
+
+    private final Class<?> m_oComponentClass;
+    private final int m_nSize;
+
+    DataType(Class<?> toComponentClass, int tnSize)
+    {
+        m_oComponentClass = toComponentClass;
+        m_nSize = tnSize;
+    }
+
+    /**
+     * Gets the approximate number of bytes used to store a single value of this type
+     * @return the size in bytes, for objects this is an estimate of the reference and a small object
+     */
+    public int getSize()
+    {
+        return m_nSize;
+    }
+
+    /**
+     * Gets the class values of this type are stored as, the primitive class or Object
+     * @return the storage class
+     */
+    Class<?> getStorageClass()
+    {
+        return m_oComponentClass;
+    }
+
+    /**
+     * Checks if this type is stored in a primitive array
+     * @return true if this is a primitive type
+     */
+    public boolean isPrimitive()
+    {
+        return this != OBJECT;
+    }
+
+    /**
+     * Creates an array that can hold tnLength values of this type
+     * @param tnLength the length of the array
+     * @return the new array
+     */
+    public Object newArray(int tnLength)
+    {
+        return Array.newInstance(m_oComponentClass, tnLength);
+    }
+
+    /**
+     * Gets the data type used to store values of the specified class
+     * @param toClass the class of the value
+     * @return the data type
+     */
+    public static DataType fromClass(Class<?> toClass)
+    {
+        if (toClass.isPrimitive())
+        {
+            for (DataType loType : values())
+            {
+                if (loType.m_oComponentClass == toClass)
+                {
+                    return loType;
+                }
+            }
+        }
+        return OBJECT;
+    }
+}
@@ -0,0 +1,366 @@
+package karyon.data;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A DataView is a lazy chain of operators over a DataCursor.  Nothing is evaluated until
+ * the view is iterated, at which point all of the operators are applied in a single pass
+ * over the pages of the cursor without building intermediate cursors.
+ *
+ * DataFilters at the start of the chain are passed to the IDataConnector the cursor was
+ * retrieved from so the data store can do the filtering, any operators the connector can
+ * not handle are applied as the records are read.
+ * @param <T> the type of data object in the view
+ */
+public class DataView<T extends DataObject>
+    extends karyon.Object
+    implements Iterable<T>
+{
+    /**
+     * A single operator in the chain
+     */
+    private static final class Stage<T extends DataObject>
+    {
+        private final DataFilter m_oFilter;
+        private final IDataFilter<? super T> m_oPredicate;
+
+        private Stage(DataFilter toFilter, IDataFilter<? super T> toPredicate)
+        {
+            m_oFilter = toFilter;
+            m_oPredicate = toPredicate;
+        }
+
+        /**
+         * Checks if this stage is the modified() operator
+         * @return true if only modified records pass this stage
+         */
+        private boolean isModified()
+        {
+            return m_oFilter == null && m_oPredicate == null;
+        }
+    }
+
+    private final DataCursor<T> m_oCursor;
+    private final Stage<T>[] m_aStages;
+    private final boolean m_lDeleted;
+
+    /**
+     * Creates a view of all of the records in the cursor which have not been deleted
+     * @param toCursor the cursor to view
+     */
+    @SuppressWarnings("unchecked")
+    DataView(DataCursor<T> toCursor)
+    {
+        this(toCursor, (Stage<T>[])new Stage<?>[0], false);
+    }
+
+    private DataView(DataCursor<T> toCursor, Stage<T>[] taStages, boolean tlDeleted)
+    {
+        m_oCursor = toCursor;
+        m_aStages = taStages;
+        m_lDeleted = tlDeleted;
+    }
+
+    /**
+     * Creates a new view with the stage added to the end of the chain
+     * @param toStage the stage to add
+     * @return the new view
+     */
+    private DataView<T> append(Stage<T> toStage)
+    {
+        Stage<T>[] laStages = Arrays.copyOf(m_aStages, m_aStages.length + 1);
+        laStages[m_aStages.length] = toStage;
+        return new DataView<T>(m_oCursor, laStages, m_lDeleted);
+    }
+
+    /**
+     * Only includes the records accepted by the filter.  DataFilters are evaluated against
+     * the cursor columns and can be handled by the data store
+     * @param toFilter the filter to apply
+     * @return a view including only the records accepted
+     */
+    public DataView<T> filter(DataFilter toFilter)
+    {
+        return append(new Stage<T>(toFilter, null));
+    }
+
+    /**
+     * Only includes the records accepted by the filter
+     * @param toFilter the filter to apply
+     * @return a view including only the records accepted
+     */
+    public DataView<T> filter(IDataFilter<? super T> toFilter)
+    {
+        if (toFilter instanceof DataFilter)
+        {
+            return filter((DataFilter)toFilter);
+        }
+        return append(new Stage<T>(null, toFilter));
+    }
+
+    /**
+     * Only includes the records that have been modified since they were loaded
+     * @return a view including only modified records
+     */
+    public DataView<T> modified()
+    {
+        return append(new Stage<T>(null, null));
+    }
+
+    /**
+     * Includes the records that have been marked for deletion rather than the records that have not
+     * @return a view including only deleted records
+     */
+    public DataView<T> deleted()
+    {
+        return new DataView<T>(m_oCursor, m_aStages, true);
+    }
+
+    /**
+     * Converts the records in the view using the mapper.  The conversion happens as the
+     * result is iterated
+     * @param toMapper the mapper used to convert each record
+     * @param <R> the type of the result
+     * @return the converted records
+     */
+    public <R> Iterable<R> map(final IDataMapper<? super T, R> toMapper)
+    {
+        return new Iterable<R>()
+        {
+            @Override
+            public Iterator<R> iterator()
+            {
+                final Iterator<T> loSource = DataView.this.iterator();
+                return new Iterator<R>()
+                {
+                    @Override
+                    public boolean hasNext()
+                    {
+                        return loSource.hasNext();
+                    }
+
+                    @Override
+                    public R next()
+                    {
+                        return toMapper.map(loSource.next());
+                    }
+
+                    @Override
+                    public void remove()
+                    {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * Iterates the records in the view.  The object returned for each record is a flyweight
+     * so should not be retained
+     * @return the iterator
+     */
+    @Override
+    public Iterator<T> iterator()
+    {
+        return new Scan(true);
+    }
+
+    /**
+     * Calls the visitor for each record in the view
+     * @param toVisitor the visitor
+     */
+    public void forEach(IDataVisitor<? super T> toVisitor)
+    {
+        Scan loScan = new Scan(true);
+        while (loScan.hasNext())
+        {
+            toVisitor.visit(loScan.next());
+        }
+    }
+
+    /**
+     * Counts the records in the view
+     * @return the number of records
+     */
+    public long count()
+    {
+        long lnCount = 0;
+        Scan loScan = new Scan(true);
+        while (loScan.advance())
+        {
+            lnCount++;
+        }
+        return lnCount;
+    }
+
+    /**
+     * Marks each record in the view for deletion in the cursor
+     * @return the number of records marked
+     */
+    public long delete()
+    {
+        long lnCount = 0;
+        // Positions are needed in the original cursor so nothing is pushed to the data store
+        Scan loScan = new Scan(false);
+        while (loScan.advance())
+        {
+            m_oCursor.delete(loScan.m_nIndex);
+            lnCount++;
+        }
+        return lnCount;
+    }
+
+    /**
+     * Scans the cursor applying every stage to each record in turn
+     */
+    private class Scan
+        implements Iterator<T>
+    {
+        private final DataCursor<T> m_oSource;
+        private final int m_nFirstStage;
+        private long m_nIndex;
+        private boolean m_lReady;
+        private boolean m_lBound;
+
+        /**
+         * Creates the scan, pushing any leading DataFilters to the data store if possible
+         * @param tlPushDown true to allow the filters to be handled by the data store
+         */
+        private Scan(boolean tlPushDown)
+        {
+            DataCursor<T> loSource = m_oCursor;
+            int lnFirstStage = 0;
+
+            int lnFilters = 0;
+            while (lnFilters < m_aStages.length && m_aStages[lnFilters].m_oFilter != null)
+            {
+                lnFilters++;
+            }
+            // Local changes are not visible to the data store, so they prevent push down
+            if (tlPushDown && lnFilters > 0 && !m_lDeleted && loSource.getSource() != null && !loSource.hasChanges())
+            {
+                DataFilter[] laFilters = new DataFilter[lnFilters];
+                for (int i = 0; i < lnFilters; i++)
+                {
+                    laFilters[i] = m_aStages[i].m_oFilter;
+                }
+                DataCursor<T> loFiltered = loSource.getSource().filter(loSource, DataFilter.and(laFilters));
+                if (loFiltered != null)
+                {
+                    loSource = loFiltered;
+                    lnFirstStage = lnFilters;
+                }
+            }
+            m_oSource = loSource;
+            m_nFirstStage = lnFirstStage;
+            m_nIndex = -1;
+        }
+
+        /**
+         * Moves to the next record that passes every stage
+         * @return true if there is a record, false if the cursor has been exhausted
+         */
+        private boolean advance()
+        {
+            long lnLength = m_oSource.getLength();
+            int lnPageSize = m_oSource.getPageSize();
+            T loFlyweight = m_oSource.getFlyweight();
+
+            for (long lnIndex = m_nIndex + 1; lnIndex < lnLength; lnIndex++)
+            {
+                DataPage loPage = m_oSource.getPage(lnIndex);
+                if (loPage == null)
+                {
+                    // Nothing loaded for the page so skip to the start of the next page
+                    lnIndex = (lnIndex / lnPageSize + 1) * lnPageSize - 1;
+                    continue;
+                }
+                int lnOffset = (int)(lnIndex % lnPageSize);
+                if (!loPage.isSet(lnOffset) || loPage.isDeleted(lnOffset) != m_lDeleted)
+                {
+                    continue;
+                }
+
+                m_lBound = false;
+                boolean llAccept = true;
+                for (int i = m_nFirstStage; llAccept && i < m_aStages.length; i++)
+                {
+                    Stage<T> loStage = m_aStages[i];
+                    if (loStage.m_oFilter != null)
+                    {
+                        llAccept = loStage.m_oFilter.accept(loPage, lnOffset);
+                    }
+                    else if (loStage.isModified())
+                    {
+                        llAccept = loPage.isModified(lnOffset);
+                    }
+                    else
+                    {
+                        bind(loPage, lnOffset, loFlyweight);
+                        llAccept = loStage.m_oPredicate.accept(loFlyweight);
+                    }
+                }
+
+                if (llAccept)
+                {
+                    m_nIndex = lnIndex;
+                    return true;
+                }
+            }
+            m_nIndex = lnLength;
+            return false;
+        }
+
+        /**
+         * Binds the flyweight to the record if it has not already been bound
+         */
+        private void bind(DataPage toPage, int tnOffset, T toFlyweight)
+        {
+            if (!m_lBound)
+            {
+                toPage.read(tnOffset, toFlyweight);
+                m_lBound = true;
+            }
+        }
+
+        @Override
+        public boolean hasNext()
+        {
+            if (!m_lReady)
+            {
+                m_lReady = advance();
+            }
+            return m_lReady;
+        }
+
+        @Override
+        public T next()
+        {
+            if (!hasNext())
+            {
+                throw new NoSuchElementException();
+            }
+            m_lReady = false;
+            T loFlyweight = m_oSource.getFlyweight();
+            if (!m_lBound)
+            {
+                DataPage loPage = m_oSource.getPage(m_nIndex);
+                bind(loPage, (int)(m_nIndex % m_oSource.getPageSize()), loFlyweight);
+            }
+            return loFlyweight;
+        }
+
+        @Override
+        public void remove()
+        {
+            if (m_oSource != m_oCursor)
+            {
+                throw new UnsupportedOperationException("Records filtered by the data store can not be removed");
+            }
+            m_oCursor.delete(m_nIndex);
+        }
+    }
+}
@@ -1,5 +1,10 @@
 package karyon.data;
 
+import karyon.exceptions.DataAccessException;
+
+import java.util.List;
+import java.util.Map;
+
 /**
  * IDataConnectors control the flow of data as well as the algorithms for distributing data
  */
@@ -14,5 +19,48 @@ public interface IDataConnector
      */
     void registerDataObject(Class<? extends DataObject> toDataObjectClass);
 
-    // TODO: Implement registration for sharded objects and multi source classes
+    /**
+     * Gets the objects of the type specified from the data store
+     * @param toClass the type of data object to retrieve
+     * @param toFilter the filter the objects must match, or null for all objects
+     * @param <K> the type of data object
+     * @return a cursor of the objects, if there are no objects the cursor will be empty
+     * @throws DataAccessException if the objects could not be retrieved
+     */
+    <K extends DataObject> DataCursor<K> get(Class<K> toClass, DataFilter toFilter) throws DataAccessException;
+
+    /**
+     * Filters the records of a cursor retrieved from this connector in the data store.
+     * This allows the data store to do the filtering rather than loading every record
+     * @param toCursor the cursor that was retrieved from this connector
+     * @param toFilter the filter to apply
+     * @param <K> the type of data object in the cursor
+     * @return a cursor containing only the records accepted by the filter, or null if this
+     * connector can not apply the filter
+     */
+    <K extends DataObject> DataCursor<K> filter(DataCursor<K> toCursor, DataFilter toFilter);
+
+    /**
+     * Writes the objects to the data store.  The lifecycle hooks of the objects are called
+     * by the DataManager before and after this is called
+     * @param toObjects the objects to write keyed by class, each list only holds objects of that class
+     * @param tlTransaction true if every object must be written in a single transaction, false
+     * to allow the objects to be committed in chunks
+     * @return the number of objects written
+     * @throws DataAccessException if the objects could not be written, if tlTransaction is true
+     * none of the objects will have been written
+     */
+    long save(Map<Class<? extends DataObject>, List<DataObject>> toObjects, boolean tlTransaction) throws DataAccessException;
+
+    /**
+     * Removes the objects from the data store.  Objects are matched to the stored objects by
+     * their key, removing an object that is not stored is not an error
+     * @param toObjects the objects to remove keyed by class, each list only holds objects of that class
+     * @param tlTransaction true if every object must be removed in a single transaction, false
+     * to allow the removals to be committed in chunks
+     * @return the number of objects removed
+     * @throws DataAccessException if the objects could not be removed, if tlTransaction is true
+     * none of the objects will have been removed
+     */
+    long delete(Map<Class<? extends DataObject>, List<DataObject>> toObjects, boolean tlTransaction) throws DataAccessException;
 }
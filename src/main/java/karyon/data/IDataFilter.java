@@ -0,0 +1,15 @@
+package karyon.data;
+
+/**
+ * IDataFilters decide which records should be included when operating on a DataCursor
+ * @param <T> the type of data object being filtered
+ */
+public interface IDataFilter<T extends DataObject>
+{
+    /**
+     * Checks if the object should be included
+     * @param toObject the object to check
+     * @return true to include the object
+     */
+    boolean accept(T toObject);
+}
@@ -0,0 +1,21 @@
+package karyon.data;
+
+/**
+ * An IDataKeysetSource supplies the records for a DataCursor using keyset paging.  Rather than
+ * skipping to an offset, each page is requested as the records following the last key of the
+ * previous page, so reading deep into a dataset costs the same as reading the first page.
+ * Keyset sources used for prefetching will be called from background threads so must allow
+ * concurrent calls to fetchAfter.
+ */
+public interface IDataKeysetSource
+{
+    /**
+     * Fetches the records which have a key greater than the key specified, in key order
+     * @param toAfterKey the key of the last record of the previous page, or null to fetch the first page
+     * @param tnCount the maximum number of records to fetch
+     * @return the records, see DataSchema.toValues for the accepted record types.  This can contain
+     * fewer than tnCount records if there are no more records
+     * @throws Exception if the records could not be fetched
+     */
+    Object[] fetchAfter(Object toAfterKey, int tnCount) throws Exception;
+}
@@ -0,0 +1,17 @@
+package karyon.data;
+
+/**
+ * IDataMappers convert the records of a DataCursor into another value
+ * @param <T> the type of data object being mapped
+ * @param <R> the type of the result
+ */
+public interface IDataMapper<T extends DataObject, R>
+{
+    /**
+     * Converts the object to the result type.  The object may be a flyweight
+     * so the result should not hold a reference to it
+     * @param toObject the object to convert
+     * @return the result
+     */
+    R map(T toObject);
+}
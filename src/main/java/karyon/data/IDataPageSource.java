@@ -0,0 +1,27 @@
+package karyon.data;
+
+/**
+ * An IDataPageSource supplies the records for a DataCursor as the cursor pages them in.
+ * Page sources used for prefetching will be called from background threads so must allow
+ * concurrent calls to fetch.
+ */
+public interface IDataPageSource
+{
+    /**
+     * Fetches the records in the range specified
+     * @param tnOffset the position of the first record to fetch
+     * @param tnCount the maximum number of records to fetch
+     * @return the records in the range, see DataSchema.toValues for the accepted record types.
+     * This can contain fewer than tnCount records if the range passes the end of the data
+     * @throws Exception if the records could not be fetched
+     */
+    Object[] fetch(long tnOffset, int tnCount) throws Exception;
+
+    /**
+     * Checks if a range can be fetched more than once with the same records in the same
+     * order.  A cursor only releases pages that can be fetched again, the pages of a source
+     * that is not repeatable are kept or spilled
+     * @return true if ranges can be fetched again
+     */
+    boolean isRepeatable();
+}
@@ -0,0 +1,16 @@
+package karyon.data;
+
+/**
+ * Sends records to subscribers as they ask for them, so a slow subscriber controls how
+ * quickly the records are read rather than the records building up in memory.  This
+ * follows the Reactive Streams contract
+ * @param <T> the type of data object published
+ */
+public interface IDataPublisher<T extends DataObject>
+{
+    /**
+     * Subscribes to the records, onSubscribe is called on the subscriber before any records are sent
+     * @param toSubscriber the subscriber
+     */
+    void subscribe(IDataSubscriber<? super T> toSubscriber);
+}
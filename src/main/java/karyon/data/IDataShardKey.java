@@ -0,0 +1,23 @@
+package karyon.data;
+
+/**
+ * Extracts the shard key from a data object.  The key decides which shard of a
+ * ShardedDataConnector the object is stored in
+ * @param <T> the type of data object
+ */
+public interface IDataShardKey<T extends DataObject>
+{
+    /**
+     * Gets the shard key of the object
+     * @param toObject the object
+     * @return the key, objects with equal keys are always stored in the same shard
+     */
+    Object getKey(T toObject);
+
+    /**
+     * Gets the property name the key is read from.  When set, reads filtered to a single
+     * value of the property are sent to the one shard holding that value
+     * @return the property name, or null if the key is not a single property
+     */
+    String getField();
+}
@@ -0,0 +1,33 @@
+package karyon.data;
+
+/**
+ * Receives the records of an IDataPublisher.  The methods are called one at a time, but
+ * not always from the same thread.  Records are only sent once they have been asked for
+ * through the subscription
+ * @param <T> the type of data object received
+ */
+public interface IDataSubscriber<T extends DataObject>
+{
+    /**
+     * Called once when the subscriber is subscribed, before any other method
+     * @param toSubscription the subscription used to ask for records
+     */
+    void onSubscribe(IDataSubscription toSubscription);
+
+    /**
+     * Called for each record.  The object is not shared so a reference to it can be retained
+     * @param toObject the record
+     */
+    void onNext(T toObject);
+
+    /**
+     * Called if the records could not be read, no more methods are called after this
+     * @param toError the error
+     */
+    void onError(Throwable toError);
+
+    /**
+     * Called once every record has been sent, no more methods are called after this
+     */
+    void onComplete();
+}
@@ -0,0 +1,20 @@
+package karyon.data;
+
+/**
+ * The link between an IDataPublisher and one of its subscribers.  The subscriber uses
+ * it to ask for records and to stop the records being sent
+ */
+public interface IDataSubscription
+{
+    /**
+     * Asks for up to tnCount more records to be sent to the subscriber, requests add up.
+     * The publisher reads no further ahead of the records asked for than a page
+     * @param tnCount the number of records, must be greater than 0
+     */
+    void request(long tnCount);
+
+    /**
+     * Stops sending records to the subscriber, records already being sent may still arrive
+     */
+    void cancel();
+}
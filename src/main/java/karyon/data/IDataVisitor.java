@@ -0,0 +1,15 @@
+package karyon.data;
+
+/**
+ * IDataVisitors are called for each record when operating on a DataCursor
+ * @param <T> the type of data object being visited
+ */
+public interface IDataVisitor<T extends DataObject>
+{
+    /**
+     * Called for each record.  The object may be a flyweight so a reference
+     * to it should not be retained
+     * @param toObject the record
+     */
+    void visit(T toObject);
+}
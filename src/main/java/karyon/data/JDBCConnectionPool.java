@@ -0,0 +1,753 @@
+package karyon.data;
+
+import karyon.applications.Application;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A pool of connections for a JDBCConnector.  Connections handed out by the pool are
+ * returned to the pool rather than closed when close() is called on them.
+ *
+ * The number of connections is bounded by a fair semaphore, so threads waiting for a
+ * connection are served in order, while idle connections are held in a lock free deque.
+ * The most recently returned connection is handed out first.  Idle connections above the
+ * minimum size are closed once they have been idle for the idle timeout, and connections
+ * held for longer than the leak threshold are logged with the stack trace of the borrower.
+ *
+ * Each connection keeps a cache of the statements prepared on it, so the statements
+ * generated by the connector are only prepared once per connection.  Statements the
+ * borrower leaves open are checked in or closed when the connection is returned.
+ */
+public class JDBCConnectionPool
+    extends karyon.Object
+{
+    /**
+     * Holds the executor used to maintain the pools, created when first used
+     */
+    private static final class MaintenanceHolder
+    {
+        private static final ScheduledExecutorService g_oExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable toRunnable)
+            {
+                Thread loThread = new Thread(toRunnable, "JDBCConnectionPool.maintenance");
+                loThread.setDaemon(true);
+                return loThread;
+            }
+        });
+    }
+
+    /**
+     * A physical connection owned by the pool.  This is also the handler of the proxy
+     * given to the borrower, the proxy is replaced each time the connection is borrowed
+     * so a borrower can not use the connection after returning it
+     */
+    private final class PooledConnection
+        implements InvocationHandler
+    {
+        private final Connection m_oConnection;
+        private final JDBCStatementCache m_oStatements;
+        // Statements created outside of the cache, closed when the connection is returned
+        private final ArrayList<Statement> m_oOpened;
+        private volatile long m_nLastUsed;
+        private volatile long m_nBorrowed;
+        private volatile Throwable m_oBorrower;
+        private volatile boolean m_lLeakReported;
+        private volatile Connection m_oProxy;
+        private volatile Semaphore m_oPermits;
+
+        private PooledConnection(Connection toConnection, int tnStatementCacheSize)
+        {
+            m_oConnection = toConnection;
+            m_oStatements = tnStatementCacheSize > 0 ? new JDBCStatementCache(tnStatementCacheSize, m_nStatementHits, m_nStatementMisses) : null;
+            m_oOpened = new ArrayList<Statement>();
+            m_nLastUsed = System.currentTimeMillis();
+        }
+
+        /**
+         * Creates the proxy handed to the borrower
+         * @param toPermits the semaphore the borrower acquired a permit from
+         * @return the proxy
+         */
+        private Connection borrow(Semaphore toPermits)
+        {
+            m_oPermits = toPermits;
+            m_nBorrowed = System.currentTimeMillis();
+            m_oBorrower = m_nLeakThreshold > 0 ? new Throwable("Connection borrowed by " + Thread.currentThread().getName()) : null;
+            m_lLeakReported = false;
+            m_oProxy = (Connection)Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[]{Connection.class}, this);
+            return m_oProxy;
+        }
+
+        @Override
+        public Object invoke(Object toProxy, Method toMethod, Object[] taArgs) throws Throwable
+        {
+            String lcName = toMethod.getName();
+            if (toProxy != m_oProxy)
+            {
+                // A proxy from an earlier borrow
+                if (lcName.equals("close"))
+                {
+                    return null;
+                }
+                if (lcName.equals("isClosed"))
+                {
+                    return true;
+                }
+                if (toMethod.getDeclaringClass() == Object.class)
+                {
+                    return invokeObject(toProxy, toMethod, taArgs);
+                }
+                throw new SQLException("The connection has been returned to the pool");
+            }
+            if (lcName.equals("close"))
+            {
+                m_oProxy = null;
+                release(this);
+                return null;
+            }
+            if (toMethod.getDeclaringClass() == Object.class)
+            {
+                return invokeObject(toProxy, toMethod, taArgs);
+            }
+            if (m_oStatements != null && lcName.equals("prepareStatement"))
+            {
+                Class<?>[] laTypes = toMethod.getParameterTypes();
+                if (laTypes.length == 1)
+                {
+                    return m_oStatements.prepare(m_oConnection, (Connection)toProxy, (String)taArgs[0], ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+                }
+                if (laTypes.length == 3 && laTypes[1] == int.class && laTypes[2] == int.class)
+                {
+                    return m_oStatements.prepare(m_oConnection, (Connection)toProxy, (String)taArgs[0], (Integer)taArgs[1], (Integer)taArgs[2]);
+                }
+            }
+            try
+            {
+                Object loResult = toMethod.invoke(m_oConnection, taArgs);
+                if (loResult instanceof Statement)
+                {
+                    opened((Statement)loResult);
+                }
+                return loResult;
+            }
+            catch (InvocationTargetException ex)
+            {
+                throw ex.getCause();
+            }
+        }
+
+        /**
+         * Tracks a statement created outside of the cache so it can be closed when the
+         * connection is returned, dropping the statements the borrower has already closed
+         * @param toStatement the statement
+         */
+        private void opened(Statement toStatement) throws SQLException
+        {
+            synchronized (m_oOpened)
+            {
+                if (m_oOpened.size() >= 16)
+                {
+                    Iterator<Statement> loIterator = m_oOpened.iterator();
+                    while (loIterator.hasNext())
+                    {
+                        if (loIterator.next().isClosed())
+                        {
+                            loIterator.remove();
+                        }
+                    }
+                }
+                m_oOpened.add(toStatement);
+            }
+        }
+
+        /**
+         * Checks in or closes every statement the borrower left open
+         * @throws SQLException if a statement could not be closed
+         */
+        private void closeStatements() throws SQLException
+        {
+            if (m_oStatements != null)
+            {
+                m_oStatements.checkInAll();
+            }
+            synchronized (m_oOpened)
+            {
+                for (Statement loStatement : m_oOpened)
+                {
+                    loStatement.close();
+                }
+                m_oOpened.clear();
+            }
+        }
+
+        private Object invokeObject(Object toProxy, Method toMethod, Object[] taArgs)
+        {
+            switch (toMethod.getName())
+            {
+                case "equals":
+                    return toProxy == taArgs[0];
+                case "hashCode":
+                    return System.identityHashCode(toProxy);
+                default:
+                    return "Pooled " + m_oConnection.toString();
+            }
+        }
+    }
+
+    private final JDBCConnector m_oConnector;
+    private final ConcurrentLinkedDeque<PooledConnection> m_oIdle;
+    private final Set<PooledConnection> m_oConnections;
+    private final AtomicInteger m_nSize;
+    private final AtomicLong m_nStatementHits;
+    private final AtomicLong m_nStatementMisses;
+    // A lock rather than a monitor so threads waiting on it, or opening connections while holding it, can unmount
+    private final ReentrantLock m_oLock;
+
+    private volatile Semaphore m_oPermits;
+    private volatile int m_nMinSize;
+    private volatile int m_nMaxSize;
+    private volatile String m_cValidationQuery;
+    private volatile long m_nValidationInterval;
+    private volatile long m_nIdleTimeout;
+    private volatile long m_nLeakThreshold;
+    private volatile long m_nBorrowTimeout;
+    private volatile int m_nStatementCacheSize;
+    private volatile boolean m_lClosed;
+    private volatile ScheduledFuture<?> m_oMaintenance;
+
+    /**
+     * Creates a new pool for the connector
+     * @param toConnector the connector that opens the physical connections
+     */
+    JDBCConnectionPool(JDBCConnector toConnector)
+    {
+        m_oConnector = toConnector;
+        m_oIdle = new ConcurrentLinkedDeque<PooledConnection>();
+        m_oConnections = Collections.newSetFromMap(new ConcurrentHashMap<PooledConnection, Boolean>());
+        m_nSize = new AtomicInteger();
+        m_nStatementHits = new AtomicLong();
+        m_nStatementMisses = new AtomicLong();
+        m_oLock = new ReentrantLock();
+        m_nMinSize = 0;
+        m_nMaxSize = 10;
+        m_oPermits = new Semaphore(m_nMaxSize, true);
+        m_nValidationInterval = 1000;
+        m_nIdleTimeout = 10 * 60 * 1000;
+        m_nLeakThreshold = 0;
+        m_nBorrowTimeout = 30 * 1000;
+        m_nStatementCacheSize = 64;
+    }
+
+    /**
+     * Gets the number of connections the pool keeps open even when they are idle
+     * @return the minimum size
+     */
+    public int getMinSize()
+    {
+        return m_nMinSize;
+    }
+
+    /**
+     * Gets the maximum number of connections the pool will open
+     * @return the maximum size
+     */
+    public int getMaxSize()
+    {
+        return m_nMaxSize;
+    }
+
+    /**
+     * Sets the size of the pool.  This should be set before the pool is used, connections
+     * borrowed before the size changes are not counted against the new size
+     * @param tnMinSize the number of connections to keep open when idle
+     * @param tnMaxSize the maximum number of connections to open
+     */
+    public void setSize(int tnMinSize, int tnMaxSize)
+    {
+        m_oLock.lock();
+        try
+        {
+            if (tnMinSize < 0 || tnMaxSize < 1 || tnMinSize > tnMaxSize)
+            {
+                throw new IllegalArgumentException("tnMinSize must not be negative and must not be greater than tnMaxSize");
+            }
+            m_nMinSize = tnMinSize;
+            if (tnMaxSize != m_nMaxSize)
+            {
+                m_nMaxSize = tnMaxSize;
+                m_oPermits = new Semaphore(tnMaxSize, true);
+            }
+            schedule();
+        }
+        finally
+        {
+            m_oLock.unlock();
+        }
+    }
+
+    /**
+     * Gets the query used to check a connection is still usable
+     * @return the validation query, or null if Connection.isValid is used
+     */
+    public String getValidationQuery()
+    {
+        return m_cValidationQuery;
+    }
+
+    /**
+     * Sets the query used to check a connection is still usable.  Connections are
+     * validated when borrowed if they have been idle longer than the validation interval
+     * @param tcQuery the query, or null to use Connection.isValid
+     */
+    public void setValidationQuery(String tcQuery)
+    {
+        m_cValidationQuery = tcQuery;
+    }
+
+    /**
+     * Sets how long a connection can be idle before it is validated when borrowed
+     * @param tnMillis the interval in milliseconds, 0 to validate on every borrow
+     */
+    public void setValidationInterval(long tnMillis)
+    {
+        m_nValidationInterval = tnMillis;
+    }
+
+    /**
+     * Gets how long a connection can be idle before it is closed
+     * @return the idle timeout in milliseconds
+     */
+    public long getIdleTimeout()
+    {
+        return m_nIdleTimeout;
+    }
+
+    /**
+     * Sets how long a connection can be idle before it is closed, connections are
+     * not closed if it would take the pool below the minimum size
+     * @param tnMillis the idle timeout in milliseconds, 0 to never close idle connections
+     */
+    public void setIdleTimeout(long tnMillis)
+    {
+        m_oLock.lock();
+        try
+        {
+            m_nIdleTimeout = tnMillis;
+            schedule();
+        }
+        finally
+        {
+            m_oLock.unlock();
+        }
+    }
+
+    /**
+     * Gets how long a connection can be borrowed before it is reported as leaked
+     * @return the leak threshold in milliseconds, 0 if leaks are not detected
+     */
+    public long getLeakThreshold()
+    {
+        return m_nLeakThreshold;
+    }
+
+    /**
+     * Sets how long a connection can be borrowed before it is reported as leaked.  When
+     * set the stack of each borrower is captured so the leak can be traced
+     * @param tnMillis the leak threshold in milliseconds, 0 to not detect leaks
+     */
+    public void setLeakThreshold(long tnMillis)
+    {
+        m_oLock.lock();
+        try
+        {
+            m_nLeakThreshold = tnMillis;
+            schedule();
+        }
+        finally
+        {
+            m_oLock.unlock();
+        }
+    }
+
+    /**
+     * Sets how long a thread will wait for a connection when the pool is at its maximum size
+     * @param tnMillis the timeout in milliseconds
+     */
+    public void setBorrowTimeout(long tnMillis)
+    {
+        m_nBorrowTimeout = tnMillis;
+    }
+
+    /**
+     * Gets the maximum number of prepared statements cached for each connection
+     * @return the statement cache size
+     */
+    public int getStatementCacheSize()
+    {
+        return m_nStatementCacheSize;
+    }
+
+    /**
+     * Sets the maximum number of prepared statements cached for each connection, this
+     * applies to connections opened after it is set
+     * @param tnSize the statement cache size, 0 to not cache statements
+     */
+    public void setStatementCacheSize(int tnSize)
+    {
+        if (tnSize < 0)
+        {
+            throw new IllegalArgumentException("tnSize must not be negative");
+        }
+        m_nStatementCacheSize = tnSize;
+    }
+
+    /**
+     * Gets the number of times a prepared statement was taken from a statement cache
+     * @return the number of hits
+     */
+    public long getStatementHits()
+    {
+        return m_nStatementHits.get();
+    }
+
+    /**
+     * Gets the number of times a statement had to be prepared because it was not cached
+     * @return the number of misses
+     */
+    public long getStatementMisses()
+    {
+        return m_nStatementMisses.get();
+    }
+
+    /**
+     * Gets the number of connections currently open
+     * @return the number of connections
+     */
+    public int getSize()
+    {
+        return m_nSize.get();
+    }
+
+    /**
+     * Gets the number of open connections that are not borrowed
+     * @return the number of idle connections
+     */
+    public int getIdleCount()
+    {
+        return m_oIdle.size();
+    }
+
+    /**
+     * Borrows a connection from the pool, opening a new connection if none are idle.
+     * Closing the connection returns it to the pool
+     * @return the connection
+     * @throws SQLException if no connection became available within the borrow timeout
+     * or a connection could not be opened
+     */
+    public Connection getConnection()
+            throws SQLException
+    {
+        if (m_lClosed)
+        {
+            throw new SQLException("The connection pool has been closed");
+        }
+        Semaphore loPermits = m_oPermits;
+        try
+        {
+            if (!loPermits.tryAcquire(m_nBorrowTimeout, TimeUnit.MILLISECONDS))
+            {
+                throw new SQLException("Timed out waiting for a connection, all " + m_nMaxSize + " connections are in use");
+            }
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted waiting for a connection", ex);
+        }
+
+        try
+        {
+            PooledConnection loPooled;
+            while ((loPooled = m_oIdle.pollFirst()) != null)
+            {
+                if (System.currentTimeMillis() - loPooled.m_nLastUsed < m_nValidationInterval || validate(loPooled))
+                {
+                    return loPooled.borrow(loPermits);
+                }
+                destroy(loPooled);
+            }
+            return open().borrow(loPermits);
+        }
+        catch (SQLException ex)
+        {
+            loPermits.release();
+            throw ex;
+        }
+        catch (RuntimeException ex)
+        {
+            loPermits.release();
+            throw ex;
+        }
+    }
+
+    /**
+     * Opens a new physical connection
+     * @return the pooled connection
+     * @throws SQLException if the connection could not be opened
+     */
+    private PooledConnection open()
+            throws SQLException
+    {
+        if (m_oMaintenance == null)
+        {
+            schedule();
+        }
+        PooledConnection loPooled = new PooledConnection(m_oConnector.openConnection(), m_nStatementCacheSize);
+        m_oConnections.add(loPooled);
+        m_nSize.incrementAndGet();
+        return loPooled;
+    }
+
+    /**
+     * Returns the connection to the pool
+     * @param toPooled the connection being returned
+     */
+    private void release(PooledConnection toPooled)
+    {
+        // The permit goes back to the semaphore it came from in case the pool was resized
+        Semaphore loPermits = toPooled.m_oPermits;
+        try
+        {
+            if (m_lClosed || toPooled.m_oConnection.isClosed())
+            {
+                destroy(toPooled);
+            }
+            else
+            {
+                // The next borrower gets the connection in its default state
+                toPooled.closeStatements();
+                if (!toPooled.m_oConnection.getAutoCommit())
+                {
+                    toPooled.m_oConnection.rollback();
+                    toPooled.m_oConnection.setAutoCommit(true);
+                }
+                if (toPooled.m_oConnection.isReadOnly())
+                {
+                    toPooled.m_oConnection.setReadOnly(false);
+                }
+                toPooled.m_oBorrower = null;
+                toPooled.m_nLastUsed = System.currentTimeMillis();
+                m_oIdle.offerFirst(toPooled);
+            }
+        }
+        catch (SQLException ex)
+        {
+            Application.log(ex);
+            destroy(toPooled);
+        }
+        finally
+        {
+            loPermits.release();
+        }
+    }
+
+    /**
+     * Checks the connection can still be used
+     * @param toPooled the connection to check
+     * @return true if the connection is usable
+     */
+    private boolean validate(PooledConnection toPooled)
+    {
+        try
+        {
+            String lcQuery = m_cValidationQuery;
+            if (lcQuery == null)
+            {
+                return toPooled.m_oConnection.isValid(5);
+            }
+            Statement loStatement = toPooled.m_oConnection.createStatement();
+            try
+            {
+                loStatement.execute(lcQuery);
+                return true;
+            }
+            finally
+            {
+                loStatement.close();
+            }
+        }
+        catch (SQLException ex)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * Closes the physical connection and removes it from the pool
+     * @param toPooled the connection to close
+     */
+    private void destroy(PooledConnection toPooled)
+    {
+        if (m_oConnections.remove(toPooled))
+        {
+            m_nSize.decrementAndGet();
+            if (toPooled.m_oStatements != null)
+            {
+                toPooled.m_oStatements.clear();
+            }
+            try
+            {
+                toPooled.m_oConnection.close();
+            }
+            catch (SQLException ex)
+            {
+                Application.log(ex);
+            }
+        }
+    }
+
+    /**
+     * Starts or reschedules the maintenance task to suit the current settings
+     */
+    private void schedule()
+    {
+        m_oLock.lock();
+        try
+        {
+            if (m_oMaintenance != null)
+            {
+                m_oMaintenance.cancel(false);
+                m_oMaintenance = null;
+            }
+            long lnPeriod = Long.MAX_VALUE;
+            for (long lnInterval : new long[]{m_nIdleTimeout, m_nLeakThreshold})
+            {
+                if (lnInterval > 0)
+                {
+                    lnPeriod = Math.min(lnPeriod, Math.max(lnInterval / 2, 10));
+                }
+            }
+            if (m_nMinSize > 0)
+            {
+                lnPeriod = Math.min(lnPeriod, 30 * 1000);
+            }
+            if (!m_lClosed && lnPeriod != Long.MAX_VALUE)
+            {
+                m_oMaintenance = MaintenanceHolder.g_oExecutor.scheduleWithFixedDelay(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        maintain();
+                    }
+                }, 0, lnPeriod, TimeUnit.MILLISECONDS);
+            }
+        }
+        finally
+        {
+            m_oLock.unlock();
+        }
+    }
+
+    /**
+     * Closes idle connections, reports leaks and opens connections up to the minimum size
+     */
+    void maintain()
+    {
+        m_oLock.lock();
+        try
+        {
+            long lnNow = System.currentTimeMillis();
+            if (m_nIdleTimeout > 0)
+            {
+                for (PooledConnection loPooled : m_oIdle)
+                {
+                    // Removing from the deque claims the connection so it is not handed out while closing
+                    if (m_nSize.get() > m_nMinSize && lnNow - loPooled.m_nLastUsed > m_nIdleTimeout && m_oIdle.remove(loPooled))
+                    {
+                        destroy(loPooled);
+                    }
+                }
+            }
+
+            if (m_nLeakThreshold > 0)
+            {
+                for (PooledConnection loPooled : m_oConnections)
+                {
+                    Throwable loBorrower = loPooled.m_oBorrower;
+                    if (loBorrower != null && !loPooled.m_lLeakReported && lnNow - loPooled.m_nBorrowed > m_nLeakThreshold)
+                    {
+                        loPooled.m_lLeakReported = true;
+                        Application.log(new IllegalStateException("Connection to " + m_oConnector.getURL() + " has been borrowed for " +
+                                (lnNow - loPooled.m_nBorrowed) + "ms and may have leaked", loBorrower));
+                    }
+                }
+            }
+
+            while (!m_lClosed && m_nSize.get() < m_nMinSize)
+            {
+                try
+                {
+                    PooledConnection loPooled = open();
+                    loPooled.m_nLastUsed = System.currentTimeMillis();
+                    m_oIdle.offerLast(loPooled);
+                }
+                catch (SQLException ex)
+                {
+                    Application.log(ex);
+                    break;
+                }
+            }
+        }
+        finally
+        {
+            m_oLock.unlock();
+        }
+    }
+
+    /**
+     * Closes the pool and every idle connection, borrowed connections are closed when returned
+     */
+    public void close()
+    {
+        m_oLock.lock();
+        try
+        {
+            m_lClosed = true;
+            schedule();
+            PooledConnection loPooled;
+            while ((loPooled = m_oIdle.pollFirst()) != null)
+            {
+                destroy(loPooled);
+            }
+        }
+        finally
+        {
+            m_oLock.unlock();
+        }
+    }
+}
@@ -1,20 +1,965 @@
 package karyon.data;
 
 import karyon.applications.Application;
+import karyon.exceptions.DataAccessException;
 
+import java.sql.Connection;
 import java.sql.Driver;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * JDBC is at the heart of Java data.  Because of this, the JDBCConnector is build in to the Data package.
+ *
+ * Objects are read with forward only, read only, queries and are streamed in to the DataCursor
+ * page by page as the cursor is read rather than being loaded all at once.  Each data object
+ * class maps to a table of the same name with a column for each property in the DataSchema.
+ * Queries for a class with a key set are ordered by the key, so pages released from the cursor
+ * can be read again by running the query again.  Cursors over classes without a key spill
+ * pages to disk rather than release them.
  */
 public abstract class JDBCConnector
     extends DataConnector
 {
+    /**
+     * The default heap budget for cursors returned by this connector
+     */
+    public static final long DEFAULT_CURSOR_BUDGET = 64L * 1024 * 1024;
+
+    /**
+     * The default number of rows written in each JDBC batch
+     */
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+
     private Class<? extends Driver> m_oDriverClass;
+    private Driver m_oDriver;
+    private String m_cURL;
+    private Properties m_oProperties;
+    private int m_nFetchSize;
+    private long m_nCursorBudget;
+    private int m_nBatchSize;
+    private boolean m_lCountRows;
+    private final Map<Class<? extends DataObject>, Integer> m_oKeys;
+    private final JDBCConnectionPool m_oPool;
 
     protected JDBCConnector(String tcDriverClass)
             throws ClassNotFoundException
+    {
+        this(tcDriverClass, null, null);
+    }
+
+    /**
+     * Creates a new JDBCConnector
+     * @param tcDriverClass the class name of the JDBC driver
+     * @param tcURL the JDBC url of the database
+     * @param toProperties the connection properties such as user and password, can be null
+     * @throws ClassNotFoundException if the driver class could not be loaded
+     */
+    protected JDBCConnector(String tcDriverClass, String tcURL, Properties toProperties)
+            throws ClassNotFoundException
     {
         m_oDriverClass = (Class<? extends Driver>)Class.forName(tcDriverClass, true, Application.class.getClassLoader());
+        m_cURL = tcURL;
+        m_oProperties = toProperties == null ? new Properties() : toProperties;
+        m_nFetchSize = DataCursor.DEFAULT_PAGE_SIZE;
+        m_nCursorBudget = DEFAULT_CURSOR_BUDGET;
+        m_nBatchSize = DEFAULT_BATCH_SIZE;
+        m_lCountRows = true;
+        m_oKeys = new ConcurrentHashMap<Class<? extends DataObject>, Integer>();
+        m_oPool = new JDBCConnectionPool(this);
+    }
+
+    /**
+     * Gets the JDBC url of the database
+     * @return the url
+     */
+    public String getURL()
+    {
+        return m_cURL;
+    }
+
+    /**
+     * Gets the number of rows fetched from the database in each round trip, this is also
+     * the page size of the cursors returned
+     * @return the fetch size
+     */
+    public int getFetchSize()
+    {
+        return m_nFetchSize;
+    }
+
+    /**
+     * Sets the number of rows fetched from the database in each round trip
+     * @param tnFetchSize the fetch size
+     */
+    public void setFetchSize(int tnFetchSize)
+    {
+        if (tnFetchSize < 1)
+        {
+            throw new IllegalArgumentException("tnFetchSize must be greater than 0");
+        }
+        m_nFetchSize = tnFetchSize;
+    }
+
+    /**
+     * Gets the maximum number of bytes of records each cursor returned will hold in memory
+     * @return the cursor budget
+     */
+    public long getCursorBudget()
+    {
+        return m_nCursorBudget;
+    }
+
+    /**
+     * Sets the maximum number of bytes of records each cursor returned will hold in memory.
+     * Pages outside of the budget are released and fetched again if they are read, or
+     * spilled to disk if the class has no key to order the query by
+     * @param tnCursorBudget the budget in bytes, 0 for no limit
+     */
+    public void setCursorBudget(long tnCursorBudget)
+    {
+        m_nCursorBudget = tnCursorBudget;
+    }
+
+    /**
+     * Checks if the rows of a query are counted when the result is larger than a page
+     * @return true if the rows are counted
+     */
+    public boolean isCountRows()
+    {
+        return m_lCountRows;
+    }
+
+    /**
+     * Sets if the rows of a query are counted when the result is larger than a page.  The first
+     * page is read with the query and a result that fits in it is never counted.  Larger results
+     * are counted in the same transaction as the query so the cursor can be streamed, otherwise
+     * the whole result is read in to the cursor in one pass, which avoids the extra round trip.
+     * The cursor grows a page at a time as the result is read, so the cursor budget still applies
+     * @param tlCountRows true to count the rows, false to read the result in one pass
+     */
+    public void setCountRows(boolean tlCountRows)
+    {
+        m_lCountRows = tlCountRows;
+    }
+
+    /**
+     * Sets the key of the data object class.  Queries for the class are ordered by the key so
+     * the rows come back in the same order each time the query is run, and saving an object
+     * updates the row with the same key, only inserting a row if there is none
+     * @param toClass the data object class
+     * @param tcKeyField the property name of the key field, the key must be unique and not null
+     * @param <K> the type of data object
+     */
+    public <K extends DataObject> void setKey(Class<K> toClass, String tcKeyField)
+    {
+        DataSchema<K> loSchema = DataSchema.getSchema(toClass);
+        int lnKeyField = loSchema.indexOf(tcKeyField);
+        if (lnKeyField < 0)
+        {
+            throw new IllegalArgumentException(tcKeyField + " is not a field of " + toClass.getName());
+        }
+        m_oKeys.put(toClass, lnKeyField);
+    }
+
+    /**
+     * Gets the index of the key field of the data object class
+     * @param toClass the data object class
+     * @return the index of the key field in the schema, or -1 if the class has no key
+     */
+    protected int getKeyField(Class<? extends DataObject> toClass)
+    {
+        Integer lnKeyField = m_oKeys.get(toClass);
+        return lnKeyField == null ? -1 : lnKeyField;
+    }
+
+    /**
+     * Gets the number of rows written to the database in each batch when saving
+     * @return the batch size
+     */
+    public int getBatchSize()
+    {
+        return m_nBatchSize;
+    }
+
+    /**
+     * Sets the number of rows written to the database in each batch when saving.  When
+     * saving outside of a transaction each batch is committed as it is written
+     * @param tnBatchSize the batch size
+     */
+    public void setBatchSize(int tnBatchSize)
+    {
+        if (tnBatchSize < 1)
+        {
+            throw new IllegalArgumentException("tnBatchSize must be greater than 0");
+        }
+        m_nBatchSize = tnBatchSize;
+    }
+
+    /**
+     * Gets the pool the connections of this connector are borrowed from, the pool
+     * can be configured through this
+     * @return the connection pool
+     */
+    public JDBCConnectionPool getPool()
+    {
+        return m_oPool;
+    }
+
+    /**
+     * Borrows a connection from the pool, closing the connection returns it to the pool
+     * @return the connection
+     * @throws SQLException if a connection could not be borrowed
+     */
+    protected Connection getConnection()
+            throws SQLException
+    {
+        return m_oPool.getConnection();
+    }
+
+    /**
+     * Opens a new physical connection to the database, this is called by the pool
+     * @return the connection
+     * @throws SQLException if the connection could not be opened
+     */
+    Connection openConnection()
+            throws SQLException
+    {
+        if (m_cURL == null)
+        {
+            throw new SQLException("No URL has been set for " + getClass().getName());
+        }
+        if (m_oDriver == null)
+        {
+            try
+            {
+                m_oDriver = m_oDriverClass.newInstance();
+            }
+            catch (Exception ex)
+            {
+                throw new SQLException("Unable to create driver " + m_oDriverClass.getName(), ex);
+            }
+        }
+        Connection loConnection = m_oDriver.connect(m_cURL, m_oProperties);
+        if (loConnection == null)
+        {
+            throw new SQLException(m_oDriverClass.getName() + " does not accept " + m_cURL);
+        }
+        return loConnection;
+    }
+
+    /**
+     * Gets the name of the table that holds the data object class
+     * @param toClass the data object class
+     * @return the table name
+     */
+    protected String getTableName(Class<? extends DataObject> toClass)
+    {
+        return toClass.getSimpleName();
+    }
+
+    /**
+     * Gets the name of the column that holds the field
+     * @param toSchema the schema of the data object
+     * @param tnField the index of the field in the schema
+     * @return the column name
+     */
+    protected String getColumnName(DataSchema<?> toSchema, int tnField)
+    {
+        return toSchema.getName(tnField);
+    }
+
+    @Override
+    public <K extends DataObject> DataCursor<K> get(Class<K> toClass, DataFilter toFilter)
+            throws DataAccessException
+    {
+        DataSchema<K> loSchema = DataSchema.getSchema(toClass);
+        List<Object> loParameters = new ArrayList<Object>();
+        String lcWhere = toFilter == null ? "" : " WHERE " + createWhere(loSchema, toFilter, loParameters);
+
+        StringBuilder loSelect = new StringBuilder("SELECT ");
+        for (int i = 0; i < loSchema.getFieldCount(); i++)
+        {
+            loSelect.append(i == 0 ? "" : ", ").append(getColumnName(loSchema, i));
+        }
+        loSelect.append(" FROM ").append(getTableName(toClass)).append(lcWhere);
+        int lnKeyField = getKeyField(toClass);
+        if (lnKeyField >= 0)
+        {
+            loSelect.append(" ORDER BY ").append(getColumnName(loSchema, lnKeyField));
+        }
+
+        JDBCPageSource loSource = new JDBCPageSource(this, loSchema, loSelect.toString(), loParameters.toArray(), toFilter, lnKeyField >= 0);
+        // The cursor rounds the page size up to a power of 2
+        int lnPageSize = 1 << (32 - Integer.numberOfLeadingZeros(m_nFetchSize - 1));
+        Object[] laFirst;
+        long lnCount;
+        boolean llCounted = true;
+        try
+        {
+            // The first page is read with the query, so a result that fits in it is never counted
+            laFirst = loSource.fetch(0, lnPageSize);
+            lnCount = laFirst.length;
+            if (laFirst.length == lnPageSize)
+            {
+                if (m_lCountRows)
+                {
+                    lnCount = Math.max(lnCount, loSource.count("SELECT COUNT(*) FROM " + getTableName(toClass) + lcWhere));
+                    loSource.setCount(lnCount);
+                }
+                else
+                {
+                    llCounted = false;
+                }
+            }
+        }
+        catch (Exception ex)
+        {
+            loSource.close();
+            throw new DataAccessException(toClass, ex);
+        }
+
+        DataCursor<K> loCursor = new DataCursor<K>(toClass, lnCount, m_nFetchSize);
+        loCursor.setSource(this);
+        if (lnCount > 0)
+        {
+            loCursor.setPageSource(loSource);
+            // The next page is fetched while the current page is read
+            loCursor.setPrefetch(1, m_nCursorBudget);
+            if (lnKeyField < 0 && m_nCursorBudget > 0)
+            {
+                // The query can not be run again to read a released page
+                loCursor.setSpillToDisk(m_nCursorBudget);
+            }
+        }
+        for (int i = 0; i < laFirst.length; i++)
+        {
+            loCursor.setValue(i, laFirst[i]);
+        }
+        if (!llCounted)
+        {
+            // Without a count the rest of the result is read in one pass, each page is added to
+            // the cursor as it is read so pages over the budget are released or spilled as it grows
+            try
+            {
+                Object[] laPage;
+                do
+                {
+                    laPage = loSource.fetch(lnCount, lnPageSize);
+                    loCursor.append(laPage);
+                    lnCount += laPage.length;
+                }
+                while (laPage.length == lnPageSize);
+                loSource.setCount(lnCount);
+            }
+            catch (Exception ex)
+            {
+                loCursor.close();
+                loSource.close();
+                throw new DataAccessException(toClass, ex);
+            }
+        }
+        return loCursor;
+    }
+
+    @Override
+    public <K extends DataObject> DataCursor<K> filter(DataCursor<K> toCursor, DataFilter toFilter)
+    {
+        if (!(toCursor.getPageSource() instanceof JDBCPageSource))
+        {
+            return null;
+        }
+        DataFilter loFilter = ((JDBCPageSource)toCursor.getPageSource()).getFilter();
+        try
+        {
+            return get(toCursor.getSchema().getDataClass(), loFilter == null ? toFilter : DataFilter.and(loFilter, toFilter));
+        }
+        catch (IllegalArgumentException ex)
+        {
+            // The filter can not be written as SQL so is applied as the cursor is read
+            return null;
+        }
+        catch (DataAccessException ex)
+        {
+            Application.log(ex);
+            return null;
+        }
+    }
+
+    @Override
+    public long save(Map<Class<? extends DataObject>, List<DataObject>> toObjects, boolean tlTransaction)
+            throws DataAccessException
+    {
+        long lnSaved = 0;
+        Class<? extends DataObject> loClass = null;
+        try
+        {
+            Connection loConnection = getConnection();
+            try
+            {
+                loConnection.setAutoCommit(false);
+                try
+                {
+                    for (Map.Entry<Class<? extends DataObject>, List<DataObject>> loEntry : toObjects.entrySet())
+                    {
+                        loClass = loEntry.getKey();
+                        lnSaved += save(loConnection, DataSchema.getSchema(loClass), loEntry.getValue(), tlTransaction);
+                    }
+                    loConnection.commit();
+                }
+                catch (SQLException ex)
+                {
+                    loConnection.rollback();
+                    throw ex;
+                }
+            }
+            finally
+            {
+                loConnection.close();
+            }
+        }
+        catch (SQLException ex)
+        {
+            throw loClass == null ? new DataAccessException("Unable to save objects", ex) : new DataAccessException(loClass, ex);
+        }
+        return lnSaved;
+    }
+
+    /**
+     * Removes the objects by their key, only objects of classes given a key with setKey can be removed
+     * @param toObjects the objects to remove keyed by class, each list only holds objects of that class
+     * @param tlTransaction true if every object must be removed in a single transaction
+     * @return the number of rows removed
+     * @throws DataAccessException if a class has no key or the rows could not be removed
+     */
+    @Override
+    public long delete(Map<Class<? extends DataObject>, List<DataObject>> toObjects, boolean tlTransaction)
+            throws DataAccessException
+    {
+        for (Class<? extends DataObject> loClass : toObjects.keySet())
+        {
+            if (getKeyField(loClass) < 0)
+            {
+                throw new DataAccessException(loClass, new IllegalStateException("No key has been set for " + loClass.getName() + ", see setKey"));
+            }
+        }
+        long lnDeleted = 0;
+        Class<? extends DataObject> loClass = null;
+        try
+        {
+            Connection loConnection = getConnection();
+            try
+            {
+                loConnection.setAutoCommit(false);
+                try
+                {
+                    for (Map.Entry<Class<? extends DataObject>, List<DataObject>> loEntry : toObjects.entrySet())
+                    {
+                        loClass = loEntry.getKey();
+                        lnDeleted += delete(loConnection, DataSchema.getSchema(loClass), loEntry.getValue(), tlTransaction);
+                    }
+                    loConnection.commit();
+                }
+                catch (SQLException ex)
+                {
+                    loConnection.rollback();
+                    throw ex;
+                }
+            }
+            finally
+            {
+                loConnection.close();
+            }
+        }
+        catch (SQLException ex)
+        {
+            throw loClass == null ? new DataAccessException("Unable to delete objects", ex) : new DataAccessException(loClass, ex);
+        }
+        return lnDeleted;
+    }
+
+    /**
+     * Removes the rows of the objects of a single class by their key with JDBC batches
+     * @param toConnection the connection to write with, auto commit is off
+     * @param toSchema the schema of the objects
+     * @param toObjects the objects to remove
+     * @param tlTransaction true if the caller commits, false to commit each batch as it is written
+     * @return the number of rows removed
+     * @throws SQLException if the rows could not be removed
+     */
+    private long delete(Connection toConnection, DataSchema<?> toSchema, List<DataObject> toObjects, boolean tlTransaction)
+            throws SQLException
+    {
+        if (toObjects.isEmpty())
+        {
+            return 0;
+        }
+        int lnKeyField = getKeyField(toSchema.getDataClass());
+        PreparedStatement loStatement = toConnection.prepareStatement(createDelete(toSchema, lnKeyField));
+        try
+        {
+            int[] laTypes = new int[]{getSqlType(toSchema, lnKeyField)};
+            long lnDeleted = 0;
+            int lnPending = 0;
+            for (int i = 0; i < toObjects.size(); i++)
+            {
+                setParameters(loStatement, new Object[]{toSchema.toValues(toObjects.get(i))[lnKeyField]}, laTypes);
+                loStatement.addBatch();
+                if (++lnPending == m_nBatchSize || i == toObjects.size() - 1)
+                {
+                    for (int lnCount : loStatement.executeBatch())
+                    {
+                        // A driver that does not report the count is taken to have removed the row
+                        lnDeleted += lnCount == Statement.SUCCESS_NO_INFO ? 1 : Math.max(0, lnCount);
+                    }
+                    if (!tlTransaction)
+                    {
+                        toConnection.commit();
+                    }
+                    lnPending = 0;
+                }
+            }
+            return lnDeleted;
+        }
+        finally
+        {
+            loStatement.close();
+        }
+    }
+
+    /**
+     * Writes the objects of a single class with JDBC batches
+     * @param toConnection the connection to write with, auto commit is off
+     * @param toSchema the schema of the objects
+     * @param toObjects the objects to write
+     * @param tlTransaction true if the caller commits, false to commit each batch as it is written
+     * @return the number of objects written
+     * @throws SQLException if the objects could not be written
+     */
+    private long save(Connection toConnection, DataSchema<?> toSchema, List<DataObject> toObjects, boolean tlTransaction)
+            throws SQLException
+    {
+        if (toObjects.isEmpty())
+        {
+            return 0;
+        }
+        int lnKeyField = getKeyField(toSchema.getDataClass());
+        // A class holding only its key has nothing to update
+        if (lnKeyField >= 0 && toSchema.getFieldCount() > 1)
+        {
+            return upsert(toConnection, toSchema, lnKeyField, toObjects, tlTransaction);
+        }
+        PreparedStatement loStatement = toConnection.prepareStatement(createSave(toSchema));
+        try
+        {
+            int[] laTypes = getSqlTypes(toSchema);
+            int lnPending = 0;
+            for (DataObject loObject : toObjects)
+            {
+                setParameters(loStatement, toSchema.toValues(loObject), laTypes);
+                loStatement.addBatch();
+                if (++lnPending == m_nBatchSize)
+                {
+                    loStatement.executeBatch();
+                    if (!tlTransaction)
+                    {
+                        toConnection.commit();
+                    }
+                    lnPending = 0;
+                }
+            }
+            if (lnPending > 0)
+            {
+                loStatement.executeBatch();
+            }
+            return toObjects.size();
+        }
+        finally
+        {
+            loStatement.close();
+        }
+    }
+
+    /**
+     * Writes the objects of a keyed class with JDBC batches.  Each batch updates the rows with
+     * the keys of the objects, then inserts the objects that no row was updated for
+     * @param toConnection the connection to write with, auto commit is off
+     * @param toSchema the schema of the objects
+     * @param tnKeyField the index of the key field in the schema
+     * @param toObjects the objects to write
+     * @param tlTransaction true if the caller commits, false to commit each batch as it is written
+     * @return the number of objects written
+     * @throws SQLException if the objects could not be written
+     */
+    private long upsert(Connection toConnection, DataSchema<?> toSchema, int tnKeyField, List<DataObject> toObjects, boolean tlTransaction)
+            throws SQLException
+    {
+        PreparedStatement loUpdate = toConnection.prepareStatement(createUpdate(toSchema, tnKeyField));
+        try
+        {
+            PreparedStatement loInsert = toConnection.prepareStatement(createSave(toSchema));
+            try
+            {
+                int[] laTypes = getSqlTypes(toSchema);
+                int[] laUpdateTypes = new int[laTypes.length];
+                // The key is the last parameter of the update, after the fields that are set
+                for (int j = 0, k = 0; j < laTypes.length; j++)
+                {
+                    laUpdateTypes[j == tnKeyField ? laTypes.length - 1 : k++] = laTypes[j];
+                }
+                Object[][] laBatch = new Object[Math.min(m_nBatchSize, toObjects.size())][];
+                for (int lnStart = 0; lnStart < toObjects.size(); lnStart += m_nBatchSize)
+                {
+                    int lnCount = Math.min(m_nBatchSize, toObjects.size() - lnStart);
+                    for (int i = 0; i < lnCount; i++)
+                    {
+                        laBatch[i] = toSchema.toValues(toObjects.get(lnStart + i));
+                        Object[] laParameters = new Object[laBatch[i].length];
+                        for (int j = 0, k = 0; j < laParameters.length; j++)
+                        {
+                            laParameters[j == tnKeyField ? laParameters.length - 1 : k++] = laBatch[i][j];
+                        }
+                        setParameters(loUpdate, laParameters, laUpdateTypes);
+                        loUpdate.addBatch();
+                    }
+                    int[] laUpdated = loUpdate.executeBatch();
+                    int lnInserts = 0;
+                    for (int i = 0; i < lnCount; i++)
+                    {
+                        // A driver that does not report the count is taken to have updated the row
+                        if (i < laUpdated.length && laUpdated[i] == 0)
+                        {
+                            setParameters(loInsert, laBatch[i], laTypes);
+                            loInsert.addBatch();
+                            lnInserts++;
+                        }
+                    }
+                    if (lnInserts > 0)
+                    {
+                        loInsert.executeBatch();
+                    }
+                    if (!tlTransaction)
+                    {
+                        toConnection.commit();
+                    }
+                }
+                return toObjects.size();
+            }
+            finally
+            {
+                loInsert.close();
+            }
+        }
+        finally
+        {
+            loUpdate.close();
+        }
+    }
+
+    /**
+     * Creates the SQL used to update the row of an object by its key, the parameters are the
+     * fields of the object other than the key in schema order followed by the key
+     * @param toSchema the schema of the object
+     * @param tnKeyField the index of the key field in the schema
+     * @return the SQL
+     */
+    protected String createUpdate(DataSchema<?> toSchema, int tnKeyField)
+    {
+        StringBuilder loColumns = new StringBuilder();
+        for (int i = 0; i < toSchema.getFieldCount(); i++)
+        {
+            if (i != tnKeyField)
+            {
+                loColumns.append(loColumns.length() == 0 ? "" : ", ").append(getColumnName(toSchema, i)).append(" = ?");
+            }
+        }
+        return "UPDATE " + getTableName(toSchema.getDataClass()) + " SET " + loColumns + " WHERE " + getColumnName(toSchema, tnKeyField) + " = ?";
+    }
+
+    /**
+     * Creates the SQL used to remove the row of an object by its key, the only parameter is the key
+     * @param toSchema the schema of the object
+     * @param tnKeyField the index of the key field in the schema
+     * @return the SQL
+     */
+    protected String createDelete(DataSchema<?> toSchema, int tnKeyField)
+    {
+        return "DELETE FROM " + getTableName(toSchema.getDataClass()) + " WHERE " + getColumnName(toSchema, tnKeyField) + " = ?";
+    }
+
+    /**
+     * Creates the SQL used to insert an object, the parameters are the fields of the object
+     * in schema order.  Objects of a class with a key are updated by the key and only
+     * inserted if there is no row to update
+     * @param toSchema the schema of the object
+     * @return the SQL
+     */
+    protected String createSave(DataSchema<?> toSchema)
+    {
+        StringBuilder loColumns = new StringBuilder();
+        StringBuilder loValues = new StringBuilder();
+        for (int i = 0; i < toSchema.getFieldCount(); i++)
+        {
+            loColumns.append(i == 0 ? "" : ", ").append(getColumnName(toSchema, i));
+            loValues.append(i == 0 ? "?" : ", ?");
+        }
+        return "INSERT INTO " + getTableName(toSchema.getDataClass()) + " (" + loColumns + ") VALUES (" + loValues + ")";
+    }
+
+    /**
+     * Creates the SQL condition for the filter, values are added to the parameters rather than
+     * written in to the SQL
+     * @param toSchema the schema of the data object
+     * @param toFilter the filter
+     * @param toParameters the list to add parameter values to
+     * @return the SQL condition
+     */
+    protected String createWhere(DataSchema<?> toSchema, DataFilter toFilter, List<Object> toParameters)
+    {
+        if (toFilter.isComposite())
+        {
+            StringBuilder loBuilder = new StringBuilder("(");
+            DataFilter[] laFilters = toFilter.getFilters();
+            for (int i = 0; i < laFilters.length; i++)
+            {
+                loBuilder.append(i == 0 ? "" : " " + toFilter.getOperator().getSymbol() + " ").append(createWhere(toSchema, laFilters[i], toParameters));
+            }
+            return loBuilder.append(')').toString();
+        }
+
+        // Only columns from the schema are written to the SQL
+        int lnField = toSchema.indexOf(toFilter.getField());
+        if (lnField < 0)
+        {
+            throw new IllegalArgumentException(toFilter.getField() + " is not a field of " + toSchema.getDataClass().getName());
+        }
+        String lcColumn = getColumnName(toSchema, lnField);
+        if (toFilter.getValue() == null)
+        {
+            switch (toFilter.getOperator())
+            {
+                case EQUAL:
+                    return lcColumn + " IS NULL";
+                case NOT_EQUAL:
+                    return lcColumn + " IS NOT NULL";
+                default:
+                    throw new IllegalArgumentException("null can only be compared for equality in SQL");
+            }
+        }
+        toParameters.add(toFilter.getValue());
+        return lcColumn + " " + toFilter.getOperator().getSymbol() + " ?";
+    }
+
+    /**
+     * Sets the parameters of the statement
+     * @param toStatement the statement
+     * @param taParameters the parameter values
+     * @throws SQLException if a parameter could not be set
+     */
+    protected void setParameters(PreparedStatement toStatement, Object[] taParameters)
+            throws SQLException
+    {
+        setParameters(toStatement, taParameters, null);
+    }
+
+    /**
+     * Sets the parameters of the statement
+     * @param toStatement the statement
+     * @param taParameters the parameter values
+     * @param taTypes the java.sql.Types of the parameters, used to set nulls, or null if they
+     * are not known.  Nulls of a type that is not known are set with the type the driver
+     * reports for the parameter
+     * @throws SQLException if a parameter could not be set
+     */
+    protected void setParameters(PreparedStatement toStatement, Object[] taParameters, int[] taTypes)
+            throws SQLException
+    {
+        for (int i = 0; i < taParameters.length; i++)
+        {
+            Object loValue = taParameters[i];
+            if (loValue == null)
+            {
+                int lnType = taTypes == null ? Types.OTHER : taTypes[i];
+                toStatement.setNull(i + 1, lnType == Types.OTHER ? toStatement.getParameterMetaData().getParameterType(i + 1) : lnType);
+                continue;
+            }
+            if (loValue instanceof Date && !(loValue instanceof java.sql.Timestamp))
+            {
+                loValue = new java.sql.Timestamp(((Date)loValue).getTime());
+            }
+            toStatement.setObject(i + 1, loValue);
+        }
+    }
+
+    /**
+     * Gets the java.sql.Types of the fields of the schema, in schema order
+     * @param toSchema the schema of the data object
+     * @return the types
+     */
+    private int[] getSqlTypes(DataSchema<?> toSchema)
+    {
+        int[] laTypes = new int[toSchema.getFieldCount()];
+        for (int i = 0; i < laTypes.length; i++)
+        {
+            laTypes[i] = getSqlType(toSchema, i);
+        }
+        return laTypes;
+    }
+
+    /**
+     * Gets the java.sql.Types used to write a null to the column of the field
+     * @param toSchema the schema of the data object
+     * @param tnField the index of the field
+     * @return the type, or Types.OTHER if the type should be read from the statement
+     */
+    protected int getSqlType(DataSchema<?> toSchema, int tnField)
+    {
+        switch (toSchema.getType(tnField))
+        {
+            case BOOLEAN:
+                return Types.BOOLEAN;
+            case BYTE:
+                return Types.TINYINT;
+            case CHAR:
+                return Types.CHAR;
+            case SHORT:
+                return Types.SMALLINT;
+            case INT:
+                return Types.INTEGER;
+            case LONG:
+                return Types.BIGINT;
+            case FLOAT:
+                return Types.REAL;
+            case DOUBLE:
+                return Types.DOUBLE;
+            default:
+                break;
+        }
+        Class<?> loType = toSchema.getField(tnField).getType();
+        if (loType == String.class)
+        {
+            return Types.VARCHAR;
+        }
+        if (Date.class.isAssignableFrom(loType))
+        {
+            return Types.TIMESTAMP;
+        }
+        if (loType == Integer.class)
+        {
+            return Types.INTEGER;
+        }
+        if (loType == Long.class)
+        {
+            return Types.BIGINT;
+        }
+        if (loType == Double.class)
+        {
+            return Types.DOUBLE;
+        }
+        if (loType == Float.class)
+        {
+            return Types.REAL;
+        }
+        if (loType == Short.class)
+        {
+            return Types.SMALLINT;
+        }
+        if (loType == Byte.class)
+        {
+            return Types.TINYINT;
+        }
+        if (loType == Boolean.class)
+        {
+            return Types.BOOLEAN;
+        }
+        if (loType == Character.class)
+        {
+            return Types.CHAR;
+        }
+        if (loType == java.math.BigDecimal.class)
+        {
+            return Types.DECIMAL;
+        }
+        if (loType == byte[].class)
+        {
+            return Types.VARBINARY;
+        }
+        return Types.OTHER;
+    }
+
+    /**
+     * Reads the current row of the result set in to an array of values in schema order
+     * @param toSchema the schema of the data object
+     * @param toResults the results positioned on the row, the columns are in schema order
+     * @return the values of the row
+     * @throws SQLException if the row could not be read
+     */
+    protected Object[] readRow(DataSchema<?> toSchema, ResultSet toResults)
+            throws SQLException
+    {
+        Object[] laValues = new Object[toSchema.getFieldCount()];
+        for (int i = 0; i < laValues.length; i++)
+        {
+            laValues[i] = toFieldValue(toSchema, i, toResults.getObject(i + 1));
+        }
+        return laValues;
+    }
+
+    /**
+     * Converts a value read from the database to the type of the field.  Numeric values
+     * are converted by the cursor, this converts dates to the date type of the field, CHAR(1)
+     * strings to chars and numbers to booleans for databases without a boolean type
+     * @param toSchema the schema of the data object
+     * @param tnField the index of the field
+     * @param toValue the value from the database
+     * @return the value to store in the field
+     */
+    protected Object toFieldValue(DataSchema<?> toSchema, int tnField, Object toValue)
+    {
+        Class<?> loType = toSchema.getField(tnField).getType();
+        if (toValue == null || loType.isInstance(toValue))
+        {
+            return toValue;
+        }
+        if (toValue instanceof String && (loType == char.class || loType == Character.class))
+        {
+            String lcValue = (String)toValue;
+            return lcValue.isEmpty() ? null : lcValue.charAt(0);
+        }
+        if (toValue instanceof Number && (loType == boolean.class || loType == Boolean.class))
+        {
+            return ((Number)toValue).intValue() != 0;
+        }
+        if (toSchema.getType(tnField).isPrimitive())
+        {
+            return toValue;
+        }
+        if (toValue instanceof Date && Date.class.isAssignableFrom(loType))
+        {
+            try
+            {
+                Date loDate = (Date)loType.newInstance();
+                loDate.setTime(((Date)toValue).getTime());
+                return loDate;
+            }
+            catch (Exception ex)
+            {
+                throw new IllegalStateException("Unable to create " + loType.getName(), ex);
+            }
+        }
+        if (loType == String.class)
+        {
+            return toValue.toString();
+        }
+        return toValue;
     }
 }
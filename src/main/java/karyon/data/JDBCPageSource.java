@@ -0,0 +1,390 @@
+package karyon.data;
+
+import karyon.applications.Application;
+
+import java.io.Closeable;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Streams the rows of a query in to a DataCursor.  The query is run once with a forward only,
+ * read only, result set and pages are read from the result set as the cursor asks for them.
+ * Rows between the result set position and a page requested ahead of it are read past and
+ * dropped.  Pages requested behind the position run the query again, which is only allowed
+ * if the query is ordered by a unique key, otherwise the rows could come back in a different order.
+ *
+ * The connection is held while the query is open.  It is released once the last row is
+ * read, when the source is closed, or once the source has been garbage collected, so a
+ * cursor that is abandoned part way through does not keep its connection from the pool.
+ */
+class JDBCPageSource
+    extends karyon.Object
+    implements IDataPageSource, Closeable
+{
+    /**
+     * The open query of a page source, held apart from the source so the query can be
+     * closed after the source has been collected
+     */
+    private static final class Query
+    {
+        private Connection m_oConnection;
+        private PreparedStatement m_oStatement;
+        private ResultSet m_oResults;
+
+        /**
+         * Closes the query and releases the connection
+         */
+        private void close()
+        {
+            try
+            {
+                if (m_oResults != null)
+                {
+                    m_oResults.close();
+                }
+                if (m_oStatement != null)
+                {
+                    m_oStatement.close();
+                }
+                if (m_oConnection != null)
+                {
+                    m_oConnection.close();
+                }
+            }
+            catch (SQLException ex)
+            {
+                Application.log(ex);
+            }
+            finally
+            {
+                m_oResults = null;
+                m_oStatement = null;
+                m_oConnection = null;
+            }
+        }
+    }
+
+    /**
+     * Enqueued once the page source can no longer be reached, the query is then released
+     */
+    private static final class Abandoned
+        extends PhantomReference<JDBCPageSource>
+    {
+        private final Query m_oQuery;
+
+        private Abandoned(JDBCPageSource toSource, Query toQuery)
+        {
+            super(toSource, g_oAbandoned);
+            m_oQuery = toQuery;
+        }
+    }
+
+    private static final ReferenceQueue<JDBCPageSource> g_oAbandoned = new ReferenceQueue<JDBCPageSource>();
+    // The references of the sources with an open query, a reference must be reachable to be enqueued
+    private static final Set<Abandoned> g_oOpen = Collections.newSetFromMap(new ConcurrentHashMap<Abandoned, Boolean>());
+
+    private final JDBCConnector m_oConnector;
+    private final DataSchema<?> m_oSchema;
+    private final String m_cSQL;
+    private final Object[] m_aParameters;
+    private final DataFilter m_oFilter;
+    private final boolean m_lOrdered;
+    private final ReentrantLock m_oLock;
+    private final Query m_oQuery;
+    private final Abandoned m_oReference;
+
+    private long m_nCount;
+    private long m_nPosition;
+    private boolean m_lRun;
+    private boolean m_lExhausted;
+    private boolean m_lClosed;
+
+    /**
+     * Creates a new page source for the query
+     * @param toConnector the connector to get connections from
+     * @param toSchema the schema of the rows
+     * @param tcSQL the query, the columns must be in schema order
+     * @param taParameters the parameters of the query
+     * @param toFilter the filter the query represents, can be null
+     * @param tlOrdered true if the query is ordered by a unique key so it can be run again
+     */
+    JDBCPageSource(JDBCConnector toConnector, DataSchema<?> toSchema, String tcSQL, Object[] taParameters, DataFilter toFilter, boolean tlOrdered)
+    {
+        m_oConnector = toConnector;
+        m_oSchema = toSchema;
+        m_cSQL = tcSQL;
+        m_aParameters = taParameters;
+        m_oFilter = toFilter;
+        m_lOrdered = tlOrdered;
+        m_oLock = new ReentrantLock();
+        m_oQuery = new Query();
+        m_oReference = new Abandoned(this, m_oQuery);
+        m_nCount = Long.MAX_VALUE;
+    }
+
+    /**
+     * Gets the filter applied by the query
+     * @return the filter or null if the query is not filtered
+     */
+    public DataFilter getFilter()
+    {
+        return m_oFilter;
+    }
+
+    /**
+     * Checks if the query can be run again to fetch pages behind the result set position
+     * @return true if the query is ordered by a unique key
+     */
+    public boolean isOrdered()
+    {
+        return m_lOrdered;
+    }
+
+    /**
+     * Checks if a range can be fetched again, which needs the query to be run again
+     * @return true if the query is ordered by a unique key
+     */
+    @Override
+    public boolean isRepeatable()
+    {
+        return m_lOrdered;
+    }
+
+    /**
+     * Sets the number of rows the cursor holds, rows past the count are not read and the
+     * connection is released once the count is reached
+     * @param tnCount the number of rows
+     */
+    void setCount(long tnCount)
+    {
+        m_oLock.lock();
+        try
+        {
+            m_nCount = tnCount;
+        }
+        finally
+        {
+            m_oLock.unlock();
+        }
+    }
+
+    /**
+     * Counts the rows with the connection of the open query.  The count runs in the same
+     * read only transaction as the query, so the two agree on databases that give a
+     * transaction a consistent view of the data
+     * @param tcSQL the count query, this takes the same parameters as the query
+     * @return the number of rows, or -1 if the query is not open
+     * @throws SQLException if the rows could not be counted
+     */
+    long count(String tcSQL)
+            throws SQLException
+    {
+        m_oLock.lock();
+        try
+        {
+            if (m_oQuery.m_oConnection == null)
+            {
+                return -1;
+            }
+            PreparedStatement loStatement = m_oQuery.m_oConnection.prepareStatement(tcSQL);
+            try
+            {
+                m_oConnector.setParameters(loStatement, m_aParameters);
+                ResultSet loResults = loStatement.executeQuery();
+                try
+                {
+                    return loResults.next() ? loResults.getLong(1) : 0;
+                }
+                finally
+                {
+                    loResults.close();
+                }
+            }
+            finally
+            {
+                loStatement.close();
+            }
+        }
+        finally
+        {
+            m_oLock.unlock();
+        }
+    }
+
+    @Override
+    public Object[] fetch(long tnOffset, int tnCount)
+            throws Exception
+    {
+        m_oLock.lock();
+        try
+        {
+            if (m_lClosed)
+            {
+                throw new IllegalStateException("The page source has been closed");
+            }
+            if (m_oQuery.m_oResults == null || tnOffset < m_nPosition)
+            {
+                if (tnOffset >= m_nCount || (m_lExhausted && tnOffset >= m_nPosition))
+                {
+                    return new Object[0];
+                }
+                if (m_lRun && !m_lOrdered)
+                {
+                    throw new IllegalStateException("Records from " + tnOffset + " of " + m_oSchema.getDataClass().getName() +
+                            " can not be read again as the query is not ordered by a key, see JDBCConnector.setKey");
+                }
+                open();
+            }
+            // Rows before the offset are dropped, they are read again if they are asked for
+            while (m_nPosition < tnOffset && m_oQuery.m_oResults != null)
+            {
+                skip(tnOffset - m_nPosition);
+            }
+            return read((int)Math.min(tnCount, Math.max(0, m_nCount - m_nPosition)));
+        }
+        finally
+        {
+            m_oLock.unlock();
+        }
+    }
+
+    /**
+     * Runs the query from the start
+     * @throws SQLException if the query could not be run
+     */
+    private void open() throws SQLException
+    {
+        releaseAbandoned();
+        release();
+        m_oQuery.m_oConnection = m_oConnector.getConnection();
+        g_oOpen.add(m_oReference);
+        try
+        {
+            // Some drivers only stream results inside a transaction, the pool rolls it back on release
+            m_oQuery.m_oConnection.setAutoCommit(false);
+            m_oQuery.m_oConnection.setReadOnly(true);
+            m_oQuery.m_oStatement = m_oQuery.m_oConnection.prepareStatement(m_cSQL, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            m_oQuery.m_oStatement.setFetchSize(m_oConnector.getFetchSize());
+            m_oConnector.setParameters(m_oQuery.m_oStatement, m_aParameters);
+            m_oQuery.m_oResults = m_oQuery.m_oStatement.executeQuery();
+            m_nPosition = 0;
+            m_lRun = true;
+            m_lExhausted = false;
+        }
+        catch (SQLException ex)
+        {
+            release();
+            throw ex;
+        }
+    }
+
+    /**
+     * Reads past up to tnCount rows without keeping them
+     * @param tnCount the number of rows to read past
+     * @throws SQLException if the rows could not be read
+     */
+    private void skip(long tnCount) throws SQLException
+    {
+        long lnRead = 0;
+        while (lnRead < tnCount && m_oQuery.m_oResults.next())
+        {
+            lnRead++;
+        }
+        m_nPosition += lnRead;
+        m_lExhausted = lnRead < tnCount;
+        if (m_lExhausted || m_nPosition >= m_nCount)
+        {
+            release();
+        }
+    }
+
+    /**
+     * Reads up to tnCount rows from the result set, closing the query once all rows are read
+     * @param tnCount the maximum number of rows to read
+     * @return the rows read
+     * @throws SQLException if the rows could not be read
+     */
+    private Object[] read(int tnCount) throws SQLException
+    {
+        if (m_oQuery.m_oResults == null)
+        {
+            return new Object[0];
+        }
+        Object[] laRows = new Object[tnCount];
+        int lnRead = 0;
+        while (lnRead < tnCount && m_oQuery.m_oResults.next())
+        {
+            laRows[lnRead++] = m_oConnector.readRow(m_oSchema, m_oQuery.m_oResults);
+        }
+        m_nPosition += lnRead;
+        m_lExhausted = lnRead < tnCount;
+        // The connection is released as soon as the last row is read rather than waiting for the end of the results
+        if (m_lExhausted || m_nPosition >= m_nCount)
+        {
+            release();
+        }
+        if (lnRead < tnCount)
+        {
+            Object[] laRead = new Object[lnRead];
+            System.arraycopy(laRows, 0, laRead, 0, lnRead);
+            return laRead;
+        }
+        return laRows;
+    }
+
+    /**
+     * Closes the query and releases the connection, no more pages can be fetched
+     */
+    @Override
+    public void close()
+    {
+        m_oLock.lock();
+        try
+        {
+            m_lClosed = true;
+            release();
+        }
+        finally
+        {
+            m_oLock.unlock();
+        }
+    }
+
+    /**
+     * Closes the query and releases the connection, the query is run again if another page is fetched
+     */
+    private void release()
+    {
+        g_oOpen.remove(m_oReference);
+        m_oQuery.close();
+    }
+
+    /**
+     * Releases the queries of the page sources that have been garbage collected without
+     * being closed.  This is called each time a query is run
+     * @return the number of queries released
+     */
+    static int releaseAbandoned()
+    {
+        int lnReleased = 0;
+        Reference<? extends JDBCPageSource> loReference;
+        while ((loReference = g_oAbandoned.poll()) != null)
+        {
+            if (g_oOpen.remove(loReference))
+            {
+                ((Abandoned)loReference).m_oQuery.close();
+                lnReleased++;
+            }
+        }
+        return lnReleased;
+    }
+}
@@ -0,0 +1,388 @@
+package karyon.data;
+
+import karyon.applications.Application;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A least recently used cache of the PreparedStatements of a single pooled connection,
+ * keyed by the SQL text and result set type.  Statements handed out by the cache are
+ * returned to the cache rather than closed when close() is called on them.  A statement
+ * is only handed to one caller at a time, if the statement is already in use a new
+ * statement is prepared which is closed when the caller closes it.  Every statement handed
+ * out is a proxy, so none can be used once it has been checked in, and statements still
+ * checked out when the connection goes back to the pool are checked in by checkInAll.
+ */
+class JDBCStatementCache
+    extends karyon.Object
+{
+    /**
+     * A prepared statement held in the cache, this is also the handler of the proxy
+     * given to the caller
+     */
+    private final class CachedStatement
+        implements InvocationHandler
+    {
+        private final String m_cKey;
+        private final PreparedStatement m_oStatement;
+        private final ArrayList<ResultSet> m_oResults;
+        // The settings the statement was prepared with, restored when it is checked in
+        private final int m_nFetchSize;
+        private final int m_nMaxRows;
+        private final int m_nQueryTimeout;
+        private Connection m_oConnection;
+        private PreparedStatement m_oProxy;
+        private boolean m_lEvicted;
+
+        private CachedStatement(String tcKey, PreparedStatement toStatement)
+                throws SQLException
+        {
+            m_cKey = tcKey;
+            m_oStatement = toStatement;
+            m_oResults = new ArrayList<ResultSet>(1);
+            m_nFetchSize = toStatement.getFetchSize();
+            m_nMaxRows = toStatement.getMaxRows();
+            m_nQueryTimeout = toStatement.getQueryTimeout();
+        }
+
+        /**
+         * Creates the proxy handed to the caller
+         * @param toConnection the connection the caller prepared the statement on
+         * @return the proxy
+         */
+        private PreparedStatement checkOut(Connection toConnection)
+        {
+            m_oConnection = toConnection;
+            m_oProxy = (PreparedStatement)Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(), new Class<?>[]{PreparedStatement.class}, this);
+            return m_oProxy;
+        }
+
+        @Override
+        public Object invoke(Object toProxy, Method toMethod, Object[] taArgs) throws Throwable
+        {
+            String lcName = toMethod.getName();
+            if (toMethod.getDeclaringClass() == Object.class)
+            {
+                return lcName.equals("equals") ? toProxy == taArgs[0] :
+                        lcName.equals("hashCode") ? (Object)System.identityHashCode(toProxy) : "Cached " + m_oStatement.toString();
+            }
+            m_oLock.lock();
+            try
+            {
+                if (toProxy != m_oProxy)
+                {
+                    if (lcName.equals("close"))
+                    {
+                        return null;
+                    }
+                    if (lcName.equals("isClosed"))
+                    {
+                        return true;
+                    }
+                    throw new SQLException("The statement has been closed");
+                }
+                if (lcName.equals("close"))
+                {
+                    checkIn(this);
+                    return null;
+                }
+            }
+            finally
+            {
+                m_oLock.unlock();
+            }
+            if (lcName.equals("getConnection"))
+            {
+                return m_oConnection;
+            }
+            try
+            {
+                Object loResult = toMethod.invoke(m_oStatement, taArgs);
+                if (loResult instanceof ResultSet)
+                {
+                    // Closing a statement closes its results, so the cache has to do the same
+                    m_oLock.lock();
+                    try
+                    {
+                        m_oResults.add((ResultSet)loResult);
+                    }
+                    finally
+                    {
+                        m_oLock.unlock();
+                    }
+                }
+                return loResult;
+            }
+            catch (InvocationTargetException ex)
+            {
+                throw ex.getCause();
+            }
+        }
+    }
+
+    private final LinkedHashMap<String, CachedStatement> m_oStatements;
+    // Statements prepared because the cached statement was in use, closed when they are checked in
+    private final ArrayList<CachedStatement> m_oUncached;
+    private final int m_nMaxSize;
+    private final AtomicLong m_nHits;
+    private final AtomicLong m_nMisses;
+    // Statements are reset and closed while the lock is held, so this is not a monitor
+    private final ReentrantLock m_oLock;
+
+    /**
+     * Creates a new statement cache
+     * @param tnMaxSize the maximum number of statements to hold
+     * @param toHits the counter to increment when a statement is found in the cache
+     * @param toMisses the counter to increment when a statement has to be prepared
+     */
+    JDBCStatementCache(int tnMaxSize, AtomicLong toHits, AtomicLong toMisses)
+    {
+        m_nMaxSize = tnMaxSize;
+        m_nHits = toHits;
+        m_nMisses = toMisses;
+        m_oLock = new ReentrantLock();
+        m_oUncached = new ArrayList<CachedStatement>();
+        m_oStatements = new LinkedHashMap<String, CachedStatement>(16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedStatement> toEldest)
+            {
+                if (size() > m_nMaxSize)
+                {
+                    evict(toEldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Gets the number of statements held in the cache
+     * @return the number of statements
+     */
+    public int getSize()
+    {
+        m_oLock.lock();
+        try
+        {
+            return m_oStatements.size();
+        }
+        finally
+        {
+            m_oLock.unlock();
+        }
+    }
+
+    /**
+     * Gets the prepared statement for the SQL, preparing the statement if it is not cached
+     * @param toConnection the physical connection the statements are prepared on
+     * @param toProxy the connection the caller is using, this is returned from getConnection()
+     * @param tcSQL the SQL of the statement
+     * @param tnType the result set type
+     * @param tnConcurrency the result set concurrency
+     * @return the statement
+     * @throws SQLException if the statement could not be prepared
+     */
+    public PreparedStatement prepare(Connection toConnection, Connection toProxy, String tcSQL, int tnType, int tnConcurrency)
+            throws SQLException
+    {
+        String lcKey = tnType + ":" + tnConcurrency + ":" + tcSQL;
+        m_oLock.lock();
+        try
+        {
+            CachedStatement loCached = m_oStatements.get(lcKey);
+            if (loCached != null)
+            {
+                if (loCached.m_oProxy == null)
+                {
+                    m_nHits.incrementAndGet();
+                    return loCached.checkOut(toProxy);
+                }
+                // Already in use, so this caller gets a statement of its own
+                m_nMisses.incrementAndGet();
+                return checkOutUncached(new CachedStatement(lcKey, toConnection.prepareStatement(tcSQL, tnType, tnConcurrency)), toProxy);
+            }
+        }
+        finally
+        {
+            m_oLock.unlock();
+        }
+
+        m_nMisses.incrementAndGet();
+        CachedStatement loCached = new CachedStatement(lcKey, toConnection.prepareStatement(tcSQL, tnType, tnConcurrency));
+        m_oLock.lock();
+        try
+        {
+            if (m_oStatements.containsKey(lcKey))
+            {
+                // Only possible if the connection is shared between threads
+                return checkOutUncached(loCached, toProxy);
+            }
+            m_oStatements.put(lcKey, loCached);
+            return loCached.checkOut(toProxy);
+        }
+        finally
+        {
+            m_oLock.unlock();
+        }
+    }
+
+    /**
+     * Hands out a statement that is not held in the cache, the statement is closed when it is checked in
+     * @param toCached the statement
+     * @param toProxy the connection the caller is using
+     * @return the proxy of the statement
+     */
+    private PreparedStatement checkOutUncached(CachedStatement toCached, Connection toProxy)
+    {
+        toCached.m_lEvicted = true;
+        m_oUncached.add(toCached);
+        return toCached.checkOut(toProxy);
+    }
+
+    /**
+     * Returns the statement to the cache, clearing the parameters and batch and restoring the
+     * settings it was prepared with so it is ready to be used again
+     * @param toCached the statement
+     */
+    private void checkIn(CachedStatement toCached)
+    {
+        toCached.m_oProxy = null;
+        toCached.m_oConnection = null;
+        try
+        {
+            for (ResultSet loResults : toCached.m_oResults)
+            {
+                loResults.close();
+            }
+            toCached.m_oResults.clear();
+            if (toCached.m_lEvicted)
+            {
+                m_oUncached.remove(toCached);
+                toCached.m_oStatement.close();
+            }
+            else
+            {
+                toCached.m_oStatement.clearParameters();
+                toCached.m_oStatement.clearBatch();
+                if (toCached.m_oStatement.getFetchSize() != toCached.m_nFetchSize)
+                {
+                    toCached.m_oStatement.setFetchSize(toCached.m_nFetchSize);
+                }
+                if (toCached.m_oStatement.getMaxRows() != toCached.m_nMaxRows)
+                {
+                    toCached.m_oStatement.setMaxRows(toCached.m_nMaxRows);
+                }
+                if (toCached.m_oStatement.getQueryTimeout() != toCached.m_nQueryTimeout)
+                {
+                    toCached.m_oStatement.setQueryTimeout(toCached.m_nQueryTimeout);
+                }
+            }
+        }
+        catch (SQLException ex)
+        {
+            // The statement can not be reset so it is not used again
+            toCached.m_oResults.clear();
+            if (m_oStatements.get(toCached.m_cKey) == toCached)
+            {
+                m_oStatements.remove(toCached.m_cKey);
+            }
+            evict(toCached);
+        }
+    }
+
+    /**
+     * Closes the statement once it is no longer in use, a statement that is checked out is
+     * held with the uncached statements so checkInAll still closes it
+     * @param toCached the statement removed from the cache
+     */
+    private void evict(CachedStatement toCached)
+    {
+        toCached.m_lEvicted = true;
+        if (toCached.m_oProxy != null)
+        {
+            m_oUncached.add(toCached);
+        }
+        else
+        {
+            try
+            {
+                toCached.m_oStatement.close();
+            }
+            catch (SQLException ex)
+            {
+                Application.log(ex);
+            }
+        }
+    }
+
+    /**
+     * Checks in every statement that is still checked out, this is called when the connection
+     * is returned to the pool so the next borrower starts with every statement reset
+     */
+    public void checkInAll()
+    {
+        m_oLock.lock();
+        try
+        {
+            for (CachedStatement loCached : new ArrayList<CachedStatement>(m_oUncached))
+            {
+                checkIn(loCached);
+            }
+            for (CachedStatement loCached : new ArrayList<CachedStatement>(m_oStatements.values()))
+            {
+                if (loCached.m_oProxy != null)
+                {
+                    checkIn(loCached);
+                }
+            }
+        }
+        finally
+        {
+            m_oLock.unlock();
+        }
+    }
+
+    /**
+     * Closes every statement in the cache, this is called when the connection is closed
+     */
+    public void clear()
+    {
+        m_oLock.lock();
+        try
+        {
+            Iterator<CachedStatement> loIterator = m_oStatements.values().iterator();
+            while (loIterator.hasNext())
+            {
+                CachedStatement loCached = loIterator.next();
+                loIterator.remove();
+                loCached.m_oProxy = null;
+                evict(loCached);
+            }
+            for (CachedStatement loCached : m_oUncached)
+            {
+                loCached.m_oProxy = null;
+                evict(loCached);
+            }
+            m_oUncached.clear();
+        }
+        finally
+        {
+            m_oLock.unlock();
+        }
+    }
+}
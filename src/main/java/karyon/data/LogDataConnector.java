@@ -0,0 +1,993 @@
+package karyon.data;
+
+import karyon.applications.Application;
+import karyon.exceptions.DataAccessException;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * An embedded data store that appends objects to a log of memory mapped segment files,
+ * one log for each data object class in a directory of its own.  An in memory hash index
+ * maps the key of each object to the position of its latest record, so a read by key is a
+ * hash lookup and a decode of the record straight from the mapping.  Writes append the
+ * record, encoded with the DataCodec of the class, to the active segment, so they are a
+ * copy in to memory that the operating system writes back to the file.
+ *
+ * Each record carries a checksum and a commit flag, and the index is rebuilt when the class
+ * is opened by replaying the segments in order.  Replay stops at a torn or corrupt record and
+ * discards the records of a save that was not committed, so the objects of each class in a
+ * save are written all or nothing.
+ *
+ * Saving an object again leaves its earlier record dead in the log, and removing an object
+ * appends a removal record that takes its key out of the index on replay.  When a segment
+ * fills a new one is started, and in the background the sealed segments with too few live
+ * records are compacted by copying their live records to the active segment and deleting the file.
+ *
+ * Objects are not written to disk when the save returns unless sync is turned on, so a crash
+ * of the process loses nothing but a crash of the machine can lose the latest saves.
+ */
+public class LogDataConnector
+    extends DataConnector
+    implements Closeable
+{
+    /**
+     * The default size of each segment file
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * The default fraction of a sealed segment that must be live for it to be kept as it is
+     */
+    public static final double DEFAULT_COMPACTION_THRESHOLD = 0.5;
+
+    /**
+     * The length, checksum and flags written before each record
+     */
+    private static final int HEADER_SIZE = 9;
+
+    /**
+     * Marks the last record of a save, the records before it are only replayed once it is read
+     */
+    private static final byte COMMIT = 1;
+
+    /**
+     * Marks a record that removes the object with its key rather than saving it
+     */
+    private static final byte DELETE = 2;
+
+    /**
+     * Holds the executor compaction runs on, created when first used
+     */
+    private static final class CompactionHolder
+    {
+        private static final ExecutorService g_oExecutor = Executors.newSingleThreadExecutor(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable toRunnable)
+            {
+                Thread loThread = new Thread(toRunnable, "LogDataConnector.compaction");
+                loThread.setDaemon(true);
+                return loThread;
+            }
+        });
+    }
+
+    /**
+     * A segment file of a log, mapped in full.  The file is not held open once it is mapped,
+     * the mapping stays valid until it is no longer referenced, so readers can finish with a
+     * segment that compaction has deleted
+     */
+    private static final class Segment
+    {
+        private final int m_nId;
+        private final File m_oFile;
+        private final MappedByteBuffer m_oBuffer;
+        private final AtomicLong m_nLive;
+        private volatile int m_nLength;
+        // Set once a removal is written, these are not live but may need to outlive the segment
+        private volatile boolean m_lRemovals;
+
+        private Segment(File toDirectory, int tnId, int tnSize) throws IOException
+        {
+            m_nId = tnId;
+            m_oFile = new File(toDirectory, String.format("%08d.log", tnId));
+            RandomAccessFile loAccess = new RandomAccessFile(m_oFile, "rw");
+            try
+            {
+                m_oBuffer = loAccess.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, Math.max(tnSize, loAccess.length()));
+            }
+            finally
+            {
+                loAccess.close();
+            }
+            m_nLive = new AtomicLong();
+        }
+
+        /**
+         * Gets the size of the record at the offset including its header
+         * @param tnOffset the offset of the record
+         * @return the size in bytes
+         */
+        private int getSize(int tnOffset)
+        {
+            return HEADER_SIZE + m_oBuffer.getInt(tnOffset);
+        }
+
+        /**
+         * Gets the encoded object of the record at the offset
+         * @param tnOffset the offset of the record
+         * @return a buffer holding only the encoded object
+         */
+        private ByteBuffer getPayload(int tnOffset)
+        {
+            ByteBuffer loBuffer = m_oBuffer.duplicate();
+            loBuffer.limit(tnOffset + getSize(tnOffset)).position(tnOffset + HEADER_SIZE);
+            return loBuffer.slice();
+        }
+    }
+
+    /**
+     * The log of a data object class
+     */
+    private final class Log
+    {
+        private final DataCodec<? extends DataObject> m_oCodec;
+        private final int m_nKeyField;
+        private final File m_oDirectory;
+        private final ConcurrentHashMap<Object, Long> m_oIndex;
+        private final ConcurrentSkipListMap<Integer, Segment> m_oSegments;
+        private final ReentrantLock m_oLock;
+        private final ReentrantLock m_oCompaction;
+        private volatile Segment m_oActive;
+
+        private Log(Class<? extends DataObject> toClass, int tnKeyField) throws IOException
+        {
+            m_oCodec = DataCodec.getCodec(toClass);
+            m_nKeyField = tnKeyField;
+            m_oDirectory = new File(m_oRoot, toClass.getName());
+            if (!m_oDirectory.isDirectory() && !m_oDirectory.mkdirs())
+            {
+                throw new IOException("Unable to create " + m_oDirectory);
+            }
+            m_oIndex = new ConcurrentHashMap<Object, Long>();
+            m_oSegments = new ConcurrentSkipListMap<Integer, Segment>();
+            m_oLock = new ReentrantLock();
+            m_oCompaction = new ReentrantLock();
+            replay();
+        }
+
+        /**
+         * Rebuilds the index from the segments in the directory.  A transactional save may
+         * continue into the next segment, so records wait for their commit across segments
+         * @throws IOException if a segment could not be read
+         */
+        private void replay() throws IOException
+        {
+            String[] laFiles = m_oDirectory.list(new FilenameFilter()
+            {
+                @Override
+                public boolean accept(File toDirectory, String tcName)
+                {
+                    return tcName.matches("\\d{8}\\.log");
+                }
+            });
+            Arrays.sort(laFiles);
+            List<Long> loPending = new ArrayList<Long>();
+            List<Object> loKeys = new ArrayList<Object>();
+            for (String lcFile : laFiles)
+            {
+                Segment loSegment = new Segment(m_oDirectory, Integer.parseInt(lcFile.substring(0, 8)), 0);
+                m_oSegments.put(loSegment.m_nId, loSegment);
+                replay(loSegment, loPending, loKeys);
+            }
+
+            // The records of a save that was not committed are cleared so they are never replayed
+            if (!loPending.isEmpty())
+            {
+                discard(loPending.get(0));
+            }
+            m_oActive = m_oSegments.isEmpty() ? null : m_oSegments.lastEntry().getValue();
+        }
+
+        /**
+         * Clears the records from the location to the end of the log, so the records of a save
+         * that was not committed are never replayed and the next save is written over them.
+         * This must be called with the lock held, or before the log is in use
+         * @param tnFrom the location of the first record to clear
+         */
+        private void discard(long tnFrom)
+        {
+            int lnFirst = (int)(tnFrom >>> 32);
+            for (Segment loSegment : m_oSegments.tailMap(lnFirst).values())
+            {
+                int lnStart = loSegment.m_nId == lnFirst ? (int)tnFrom : 0;
+                if (lnStart < loSegment.m_nLength)
+                {
+                    for (int j = lnStart; j < loSegment.m_nLength; j++)
+                    {
+                        loSegment.m_oBuffer.put(j, (byte)0);
+                    }
+                    loSegment.m_nLength = lnStart;
+                }
+            }
+        }
+
+        /**
+         * Adds the records of the segment to the pending records, indexing the pending
+         * records each time a commit is reached
+         * @param toSegment the segment
+         * @param toPending the locations of the records waiting for a commit
+         * @param toKeys the keys of the records waiting for a commit
+         */
+        private void replay(Segment toSegment, List<Long> toPending, List<Object> toKeys)
+        {
+            MappedByteBuffer loBuffer = toSegment.m_oBuffer;
+            int lnOffset = 0;
+            while (lnOffset + HEADER_SIZE <= loBuffer.capacity())
+            {
+                int lnLength = loBuffer.getInt(lnOffset);
+                if (lnLength <= 0 || lnOffset + HEADER_SIZE + lnLength > loBuffer.capacity() ||
+                        checksum(loBuffer.get(lnOffset + 8), toSegment.getPayload(lnOffset)) != loBuffer.getInt(lnOffset + 4))
+                {
+                    break;
+                }
+                Object[] laValues;
+                try
+                {
+                    laValues = m_oCodec.read(new DataCodec.Reader(toSegment.getPayload(lnOffset)));
+                }
+                catch (RuntimeException ex)
+                {
+                    Application.log(ex);
+                    break;
+                }
+                toPending.add(((long)toSegment.m_nId << 32) | lnOffset);
+                toKeys.add(laValues[m_nKeyField]);
+                byte lnFlags = loBuffer.get(lnOffset + 8);
+                toSegment.m_lRemovals |= (lnFlags & DELETE) != 0;
+                lnOffset += HEADER_SIZE + lnLength;
+                toSegment.m_nLength = lnOffset;
+                if ((lnFlags & COMMIT) != 0)
+                {
+                    for (int i = 0; i < toPending.size(); i++)
+                    {
+                        long lnLocation = toPending.get(i);
+                        Segment loSegment = m_oSegments.get((int)(lnLocation >>> 32));
+                        if ((loSegment.m_oBuffer.get((int)lnLocation + 8) & DELETE) != 0)
+                        {
+                            unindex(toKeys.get(i));
+                        }
+                        else
+                        {
+                            index(toKeys.get(i), lnLocation);
+                        }
+                    }
+                    toPending.clear();
+                    toKeys.clear();
+                }
+            }
+        }
+
+        /**
+         * Points the key at the record, marking the record it pointed at dead
+         * @param toKey the key of the object
+         * @param tnLocation the location of the record
+         */
+        private void index(Object toKey, long tnLocation)
+        {
+            Segment loSegment = m_oSegments.get((int)(tnLocation >>> 32));
+            loSegment.m_nLive.addAndGet(loSegment.getSize((int)tnLocation));
+            Long lnPrevious = m_oIndex.put(toKey, tnLocation);
+            if (lnPrevious != null)
+            {
+                Segment loPrevious = m_oSegments.get((int)(lnPrevious >>> 32));
+                if (loPrevious != null)
+                {
+                    loPrevious.m_nLive.addAndGet(-loPrevious.getSize((int)(long)lnPrevious));
+                }
+            }
+        }
+
+        /**
+         * Removes the key from the index, marking the record it pointed at dead
+         * @param toKey the key of the object
+         * @return true if the key was in the index
+         */
+        private boolean unindex(Object toKey)
+        {
+            Long lnPrevious = m_oIndex.remove(toKey);
+            if (lnPrevious == null)
+            {
+                return false;
+            }
+            Segment loPrevious = m_oSegments.get((int)(lnPrevious >>> 32));
+            if (loPrevious != null)
+            {
+                loPrevious.m_nLive.addAndGet(-loPrevious.getSize((int)(long)lnPrevious));
+            }
+            return true;
+        }
+
+        /**
+         * Appends a record to the active segment, starting a new segment if it is full.  This
+         * must be called with the lock held
+         * @param taRecord the encoded object
+         * @param tlCommit true if this is the last record of a save
+         * @return the location of the record
+         * @throws IOException if a new segment could not be created
+         */
+        private long append(byte[] taRecord, boolean tlCommit) throws IOException
+        {
+            return append(taRecord, tlCommit ? COMMIT : 0);
+        }
+
+        /**
+         * Appends a record to the active segment, starting a new segment if it is full.  This
+         * must be called with the lock held
+         * @param taRecord the encoded object
+         * @param tnFlags the COMMIT and DELETE flags of the record
+         * @return the location of the record
+         * @throws IOException if a new segment could not be created
+         */
+        private long append(byte[] taRecord, byte tnFlags) throws IOException
+        {
+            int lnSize = HEADER_SIZE + taRecord.length;
+            Segment loSegment = m_oActive;
+            if (loSegment == null || loSegment.m_nLength + lnSize > loSegment.m_oBuffer.capacity())
+            {
+                if (loSegment != null && m_lSync)
+                {
+                    loSegment.m_oBuffer.force();
+                }
+                loSegment = new Segment(m_oDirectory, loSegment == null ? 1 : loSegment.m_nId + 1, Math.max(m_nSegmentSize, lnSize));
+                m_oSegments.put(loSegment.m_nId, loSegment);
+                boolean llSealed = m_oActive != null;
+                m_oActive = loSegment;
+                if (llSealed)
+                {
+                    scheduleCompaction(this);
+                }
+            }
+            int lnOffset = loSegment.m_nLength;
+            byte lnFlags = tnFlags;
+            loSegment.m_lRemovals |= (tnFlags & DELETE) != 0;
+            MappedByteBuffer loBuffer = loSegment.m_oBuffer;
+            ByteBuffer loPayload = loBuffer.duplicate();
+            loPayload.position(lnOffset + HEADER_SIZE);
+            loPayload.put(taRecord);
+            loBuffer.putInt(lnOffset + 4, checksum(lnFlags, ByteBuffer.wrap(taRecord)));
+            loBuffer.put(lnOffset + 8, lnFlags);
+            // The length is written last, so a record is not seen by replay until it is complete
+            loBuffer.putInt(lnOffset, taRecord.length);
+            loSegment.m_nLength = lnOffset + lnSize;
+            return ((long)loSegment.m_nId << 32) | lnOffset;
+        }
+
+        /**
+         * Reads the latest values of the object with the key
+         * @param toKey the key
+         * @return the values in schema order, or null if there is no object with the key
+         */
+        private Object[] read(Object toKey)
+        {
+            while (true)
+            {
+                Long lnLocation = m_oIndex.get(toKey);
+                if (lnLocation == null)
+                {
+                    return null;
+                }
+                // The segment is missing if compaction moved the record after the lookup
+                Segment loSegment = m_oSegments.get((int)(lnLocation >>> 32));
+                if (loSegment != null)
+                {
+                    return m_oCodec.read(new DataCodec.Reader(loSegment.getPayload((int)(long)lnLocation)));
+                }
+            }
+        }
+
+        /**
+         * Copies the live records of the sealed segments that are mostly dead to the active
+         * segment and deletes the segments
+         * @param tlWait true to wait for a compaction that is already running, false to return
+         * @return the number of segments removed
+         * @throws IOException if a record could not be copied
+         */
+        private int compact(boolean tlWait) throws IOException
+        {
+            if (tlWait)
+            {
+                m_oCompaction.lock();
+            }
+            else if (!m_oCompaction.tryLock())
+            {
+                return 0;
+            }
+            try
+            {
+                int lnRemoved = 0;
+                for (Segment loSegment : m_oSegments.values())
+                {
+                    m_oLock.lock();
+                    boolean llSealed;
+                    try
+                    {
+                        llSealed = loSegment != m_oActive;
+                    }
+                    finally
+                    {
+                        m_oLock.unlock();
+                    }
+                    long lnLive = loSegment.m_nLive.get();
+                    if (llSealed && (lnLive == 0 || lnLive < loSegment.m_nLength * m_nCompactionThreshold))
+                    {
+                        compact(loSegment);
+                        lnRemoved++;
+                    }
+                }
+                return lnRemoved;
+            }
+            finally
+            {
+                m_oCompaction.unlock();
+            }
+        }
+
+        private void compact(Segment toSegment) throws IOException
+        {
+            for (int lnOffset = 0; lnOffset < toSegment.m_nLength && (toSegment.m_nLive.get() > 0 || toSegment.m_lRemovals); lnOffset += toSegment.getSize(lnOffset))
+            {
+                ByteBuffer loPayload = toSegment.getPayload(lnOffset);
+                Object loKey = m_oCodec.read(new DataCodec.Reader(loPayload.duplicate()))[m_nKeyField];
+                long lnLocation = ((long)toSegment.m_nId << 32) | lnOffset;
+                boolean llRemoval = (toSegment.m_oBuffer.get(lnOffset + 8) & DELETE) != 0;
+                m_oLock.lock();
+                try
+                {
+                    if (llRemoval)
+                    {
+                        // A removal is kept while an older segment may hold a record of the
+                        // object, otherwise replay would bring the object back
+                        if (!m_oIndex.containsKey(loKey) && m_oSegments.firstKey() < toSegment.m_nId)
+                        {
+                            byte[] laRecord = new byte[loPayload.remaining()];
+                            loPayload.get(laRecord);
+                            append(laRecord, (byte)(COMMIT | DELETE));
+                        }
+                        continue;
+                    }
+                    // Only records the index still points at are live, a newer save may have
+                    // replaced the object since the segment was chosen
+                    Long lnCurrent = m_oIndex.get(loKey);
+                    if (lnCurrent != null && lnCurrent == lnLocation)
+                    {
+                        byte[] laRecord = new byte[loPayload.remaining()];
+                        loPayload.get(laRecord);
+                        index(loKey, append(laRecord, true));
+                    }
+                }
+                finally
+                {
+                    m_oLock.unlock();
+                }
+            }
+            if (m_lSync && m_oActive != null)
+            {
+                m_oActive.m_oBuffer.force();
+            }
+            m_oSegments.remove(toSegment.m_nId);
+            if (!toSegment.m_oFile.delete())
+            {
+                toSegment.m_oFile.deleteOnExit();
+            }
+        }
+    }
+
+    private final File m_oRoot;
+    private final int m_nSegmentSize;
+    private final ConcurrentHashMap<Class<? extends DataObject>, Log> m_oLogs;
+    private volatile double m_nCompactionThreshold;
+    private volatile boolean m_lSync;
+    private volatile boolean m_lClosed;
+
+    /**
+     * Creates a new log connector with segments of the default size
+     * @param toDirectory the directory the logs are kept in, this is created if it does not exist
+     */
+    public LogDataConnector(File toDirectory)
+    {
+        this(toDirectory, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Creates a new log connector
+     * @param toDirectory the directory the logs are kept in, this is created if it does not exist
+     * @param tnSegmentSize the size of each segment file, a segment is mapped in full
+     */
+    public LogDataConnector(File toDirectory, int tnSegmentSize)
+    {
+        if (toDirectory == null)
+        {
+            throw new IllegalArgumentException("toDirectory must be specified");
+        }
+        if (tnSegmentSize < 1024)
+        {
+            throw new IllegalArgumentException("tnSegmentSize must be at least 1024");
+        }
+        m_oRoot = toDirectory;
+        m_nSegmentSize = tnSegmentSize;
+        m_oLogs = new ConcurrentHashMap<Class<? extends DataObject>, Log>();
+        m_nCompactionThreshold = DEFAULT_COMPACTION_THRESHOLD;
+    }
+
+    /**
+     * Opens the log of the class, replaying it to rebuild the index.  This must be called
+     * for each class before it is read or saved
+     * @param toClass the type of data object
+     * @param tcKeyField the property that identifies each object
+     * @param <K> the type of data object
+     * @throws DataAccessException if the log could not be opened
+     */
+    public <K extends DataObject> void setKey(Class<K> toClass, String tcKeyField)
+            throws DataAccessException
+    {
+        int lnKeyField = DataSchema.getSchema(toClass).indexOf(tcKeyField);
+        if (lnKeyField < 0)
+        {
+            throw new IllegalArgumentException(tcKeyField + " is not a field of " + toClass.getName());
+        }
+        synchronized (m_oLogs)
+        {
+            if (m_lClosed)
+            {
+                throw new IllegalStateException("The connector has been closed");
+            }
+            Log loLog = m_oLogs.get(toClass);
+            if (loLog != null)
+            {
+                if (loLog.m_nKeyField != lnKeyField)
+                {
+                    throw new IllegalStateException(toClass.getName() + " is already keyed by " + DataSchema.getSchema(toClass).getName(loLog.m_nKeyField));
+                }
+                return;
+            }
+            try
+            {
+                m_oLogs.put(toClass, new Log(toClass, lnKeyField));
+            }
+            catch (IOException ex)
+            {
+                throw new DataAccessException(toClass, ex);
+            }
+        }
+    }
+
+    /**
+     * Sets the fraction of a sealed segment that must be live for it to be kept, segments
+     * with less are compacted
+     * @param tnThreshold the fraction, between 0 and 1
+     */
+    public void setCompactionThreshold(double tnThreshold)
+    {
+        if (tnThreshold < 0 || tnThreshold > 1)
+        {
+            throw new IllegalArgumentException("tnThreshold must be between 0 and 1");
+        }
+        m_nCompactionThreshold = tnThreshold;
+    }
+
+    /**
+     * Gets the fraction of a sealed segment that must be live for it to be kept
+     * @return the fraction
+     */
+    public double getCompactionThreshold()
+    {
+        return m_nCompactionThreshold;
+    }
+
+    /**
+     * Sets if each save is forced to disk before it returns, this makes saves durable
+     * against a crash of the machine but much slower
+     * @param tlSync true to force saves to disk
+     */
+    public void setSync(boolean tlSync)
+    {
+        m_lSync = tlSync;
+    }
+
+    /**
+     * Checks if each save is forced to disk before it returns
+     * @return true if saves are forced to disk
+     */
+    public boolean isSync()
+    {
+        return m_lSync;
+    }
+
+    /**
+     * Gets the number of objects of the class in the log
+     * @param toClass the type of data object
+     * @return the number of objects
+     */
+    public long getSize(Class<? extends DataObject> toClass)
+    {
+        Log loLog = m_oLogs.get(toClass);
+        return loLog == null ? 0 : loLog.m_oIndex.size();
+    }
+
+    /**
+     * Gets the number of segment files in the log of the class
+     * @param toClass the type of data object
+     * @return the number of segments
+     */
+    public int getSegmentCount(Class<? extends DataObject> toClass)
+    {
+        Log loLog = m_oLogs.get(toClass);
+        return loLog == null ? 0 : loLog.m_oSegments.size();
+    }
+
+    /**
+     * Compacts the sealed segments of every log that have fallen below the compaction
+     * threshold.  This runs in the background each time a segment fills, so only needs to
+     * be called to reclaim space sooner
+     * @return the number of segments removed
+     * @throws DataAccessException if a segment could not be compacted
+     */
+    public int compact()
+            throws DataAccessException
+    {
+        int lnRemoved = 0;
+        for (Map.Entry<Class<? extends DataObject>, Log> loEntry : m_oLogs.entrySet())
+        {
+            try
+            {
+                lnRemoved += loEntry.getValue().compact(true);
+            }
+            catch (IOException ex)
+            {
+                throw new DataAccessException(loEntry.getKey(), ex);
+            }
+        }
+        return lnRemoved;
+    }
+
+    private void scheduleCompaction(final Log toLog)
+    {
+        try
+        {
+            CompactionHolder.g_oExecutor.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    if (m_lClosed)
+                    {
+                        return;
+                    }
+                    try
+                    {
+                        toLog.compact(false);
+                    }
+                    catch (IOException | RuntimeException ex)
+                    {
+                        Application.log(ex);
+                    }
+                }
+            });
+        }
+        catch (RejectedExecutionException ex)
+        {
+            Application.log(ex);
+        }
+    }
+
+    /**
+     * Gets the log of the class
+     * @param toClass the type of data object
+     * @return the log
+     * @throws DataAccessException if the class has not been given a key
+     */
+    private Log getLog(Class<? extends DataObject> toClass)
+            throws DataAccessException
+    {
+        if (m_lClosed)
+        {
+            throw new DataAccessException(toClass, new IllegalStateException("The connector has been closed"));
+        }
+        Log loLog = m_oLogs.get(toClass);
+        if (loLog == null)
+        {
+            throw new DataAccessException(toClass, new IllegalStateException("No key has been set for " + toClass.getName()));
+        }
+        return loLog;
+    }
+
+    @Override
+    public <K extends DataObject> DataCursor<K> get(Class<K> toClass, DataFilter toFilter)
+            throws DataAccessException
+    {
+        Log loLog = getLog(toClass);
+        DataSchema<K> loSchema = DataSchema.getSchema(toClass);
+        if (toFilter != null && !toFilter.isComposite() && toFilter.getOperator() == DataFilter.Operator.EQUAL &&
+                toFilter.getValue() != null && loSchema.getName(loLog.m_nKeyField).equalsIgnoreCase(toFilter.getField()))
+        {
+            Object loKey = toFilter.getValue();
+            if (loSchema.getType(loLog.m_nKeyField).isPrimitive())
+            {
+                // Numbers are converted to the type of the key so an int key is found by a long
+                K loObject = loSchema.newInstance();
+                loSchema.setValue(loObject, loLog.m_nKeyField, loKey);
+                loKey = loSchema.getValue(loObject, loLog.m_nKeyField);
+            }
+            Object[] laValues = loLog.read(loKey);
+            return new DataCursor<K>(toClass, laValues == null ? new Object[0] : new Object[]{laValues});
+        }
+
+        // Anything else scans the latest record of every object
+        K loObject = loSchema.newInstance();
+        List<Object> loRecords = new ArrayList<Object>();
+        for (Object loKey : loLog.m_oIndex.keySet())
+        {
+            Object[] laValues = loLog.read(loKey);
+            if (laValues == null)
+            {
+                continue;
+            }
+            if (toFilter != null)
+            {
+                for (int i = 0; i < laValues.length; i++)
+                {
+                    loSchema.setValue(loObject, i, laValues[i]);
+                }
+                if (!toFilter.accept(loObject))
+                {
+                    continue;
+                }
+            }
+            loRecords.add(laValues);
+        }
+        return new DataCursor<K>(toClass, loRecords.toArray());
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public long save(Map<Class<? extends DataObject>, List<DataObject>> toObjects, boolean tlTransaction)
+            throws DataAccessException
+    {
+        // Every object is encoded before anything is written, so a bad object writes nothing
+        Map<Class<? extends DataObject>, byte[][]> loRecords = new LinkedHashMap<Class<? extends DataObject>, byte[][]>();
+        Map<Class<? extends DataObject>, Object[]> loKeys = new LinkedHashMap<Class<? extends DataObject>, Object[]>();
+        for (Map.Entry<Class<? extends DataObject>, List<DataObject>> loEntry : toObjects.entrySet())
+        {
+            Log loLog = getLog(loEntry.getKey());
+            DataSchema<DataObject> loSchema = (DataSchema<DataObject>)loLog.m_oCodec.getSchema();
+            List<DataObject> loObjects = loEntry.getValue();
+            byte[][] laRecords = new byte[loObjects.size()][];
+            Object[] laKeys = new Object[loObjects.size()];
+            for (int i = 0; i < laRecords.length; i++)
+            {
+                Object[] laValues = loSchema.toValues(loObjects.get(i));
+                laKeys[i] = laValues[loLog.m_nKeyField];
+                if (laKeys[i] == null)
+                {
+                    throw new DataAccessException(loEntry.getKey(), new IllegalArgumentException("The key of a " + loEntry.getKey().getName() + " must not be null"));
+                }
+                laRecords[i] = loLog.m_oCodec.encode(laValues);
+            }
+            loRecords.put(loEntry.getKey(), laRecords);
+            loKeys.put(loEntry.getKey(), laKeys);
+        }
+
+        long lnSaved = 0;
+        for (Map.Entry<Class<? extends DataObject>, byte[][]> loEntry : loRecords.entrySet())
+        {
+            Log loLog = getLog(loEntry.getKey());
+            byte[][] laRecords = loEntry.getValue();
+            Object[] laKeys = loKeys.get(loEntry.getKey());
+            long[] laLocations = new long[laRecords.length];
+            int lnWritten = 0;
+            loLog.m_oLock.lock();
+            try
+            {
+                for (int i = 0; i < laRecords.length; i++)
+                {
+                    laLocations[i] = loLog.append(laRecords[i], !tlTransaction || i == laRecords.length - 1);
+                    lnWritten++;
+                }
+                if (m_lSync && loLog.m_oActive != null)
+                {
+                    loLog.m_oActive.m_oBuffer.force();
+                }
+                // The index is only updated once the whole save is in the log
+                for (int i = 0; i < laRecords.length; i++)
+                {
+                    loLog.index(laKeys[i], laLocations[i]);
+                }
+            }
+            catch (IOException ex)
+            {
+                if (tlTransaction && lnWritten > 0)
+                {
+                    // The records written are not committed, a later commit would replay them
+                    loLog.discard(laLocations[0]);
+                }
+                else
+                {
+                    // Each record written is committed, so it is indexed as replay would
+                    for (int i = 0; i < lnWritten; i++)
+                    {
+                        loLog.index(laKeys[i], laLocations[i]);
+                    }
+                }
+                throw new DataAccessException(loEntry.getKey(), ex);
+            }
+            finally
+            {
+                loLog.m_oLock.unlock();
+            }
+            lnSaved += laRecords.length;
+        }
+        return lnSaved;
+    }
+
+    /**
+     * Removes the objects by appending a removal record for each, the objects are removed
+     * from the index once every record is in the log
+     * @param toObjects the objects to remove keyed by class, each list only holds objects of that class
+     * @param tlTransaction true if the objects of each class must be removed all or nothing
+     * @return the number of objects removed
+     * @throws DataAccessException if a class has not been given a key or the log could not be written
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public long delete(Map<Class<? extends DataObject>, List<DataObject>> toObjects, boolean tlTransaction)
+            throws DataAccessException
+    {
+        Map<Class<? extends DataObject>, byte[][]> loRecords = new LinkedHashMap<Class<? extends DataObject>, byte[][]>();
+        Map<Class<? extends DataObject>, Object[]> loKeys = new LinkedHashMap<Class<? extends DataObject>, Object[]>();
+        for (Map.Entry<Class<? extends DataObject>, List<DataObject>> loEntry : toObjects.entrySet())
+        {
+            Log loLog = getLog(loEntry.getKey());
+            DataSchema<DataObject> loSchema = (DataSchema<DataObject>)loLog.m_oCodec.getSchema();
+            List<DataObject> loObjects = loEntry.getValue();
+            byte[][] laRecords = new byte[loObjects.size()][];
+            Object[] laKeys = new Object[loObjects.size()];
+            for (int i = 0; i < laRecords.length; i++)
+            {
+                Object[] laValues = loSchema.toValues(loObjects.get(i));
+                laKeys[i] = laValues[loLog.m_nKeyField];
+                if (laKeys[i] == null)
+                {
+                    throw new DataAccessException(loEntry.getKey(), new IllegalArgumentException("The key of a " + loEntry.getKey().getName() + " must not be null"));
+                }
+                laRecords[i] = loLog.m_oCodec.encode(laValues);
+            }
+            loRecords.put(loEntry.getKey(), laRecords);
+            loKeys.put(loEntry.getKey(), laKeys);
+        }
+
+        long lnDeleted = 0;
+        for (Map.Entry<Class<? extends DataObject>, byte[][]> loEntry : loRecords.entrySet())
+        {
+            Log loLog = getLog(loEntry.getKey());
+            byte[][] laRecords = loEntry.getValue();
+            Object[] laKeys = loKeys.get(loEntry.getKey());
+            long lnFirst = 0;
+            int lnWritten = 0;
+            loLog.m_oLock.lock();
+            try
+            {
+                for (int i = 0; i < laRecords.length; i++)
+                {
+                    long lnLocation = loLog.append(laRecords[i], !tlTransaction || i == laRecords.length - 1 ? COMMIT | DELETE : DELETE);
+                    lnFirst = i == 0 ? lnLocation : lnFirst;
+                    lnWritten++;
+                }
+                if (m_lSync && loLog.m_oActive != null)
+                {
+                    loLog.m_oActive.m_oBuffer.force();
+                }
+                for (Object loKey : laKeys)
+                {
+                    if (loLog.unindex(loKey))
+                    {
+                        lnDeleted++;
+                    }
+                }
+            }
+            catch (IOException ex)
+            {
+                if (tlTransaction && lnWritten > 0)
+                {
+                    loLog.discard(lnFirst);
+                }
+                else
+                {
+                    for (int i = 0; i < lnWritten; i++)
+                    {
+                        loLog.unindex(laKeys[i]);
+                    }
+                }
+                throw new DataAccessException(loEntry.getKey(), ex);
+            }
+            finally
+            {
+                loLog.m_oLock.unlock();
+            }
+        }
+        return lnDeleted;
+    }
+
+    /**
+     * Forces every log to disk and closes the connector.  The segments stay mapped until
+     * they are no longer referenced
+     */
+    @Override
+    public void close()
+    {
+        synchronized (m_oLogs)
+        {
+            m_lClosed = true;
+            for (Log loLog : m_oLogs.values())
+            {
+                loLog.m_oLock.lock();
+                try
+                {
+                    if (loLog.m_oActive != null)
+                    {
+                        loLog.m_oActive.m_oBuffer.force();
+                    }
+                }
+                finally
+                {
+                    loLog.m_oLock.unlock();
+                }
+            }
+            m_oLogs.clear();
+        }
+    }
+
+    /**
+     * Calculates the checksum of a record
+     * @param tnFlags the flags of the record
+     * @param toPayload the encoded object, from its position to its limit
+     * @return the checksum
+     */
+    private static int checksum(byte tnFlags, ByteBuffer toPayload)
+    {
+        CRC32 loChecksum = new CRC32();
+        loChecksum.update(tnFlags);
+        if (toPayload.hasArray())
+        {
+            loChecksum.update(toPayload.array(), toPayload.arrayOffset() + toPayload.position(), toPayload.remaining());
+        }
+        else
+        {
+            byte[] laBytes = new byte[toPayload.remaining()];
+            toPayload.duplicate().get(laBytes);
+            loChecksum.update(laBytes);
+        }
+        return (int)loChecksum.getValue();
+    }
+}
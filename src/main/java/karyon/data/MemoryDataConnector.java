@@ -0,0 +1,699 @@
+package karyon.data;
+
+import karyon.applications.Application;
+import karyon.exceptions.DataAccessException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Holds data objects in memory, in a concurrent hash map for each class keyed by a key
+ * property.  Secondary indexes can be declared on other properties, a HASH index answers
+ * equality and a RANGE index, held in a skip list, answers equality and the ordered
+ * comparisons.
+ *
+ * Reads use the indexes to find the records a filter could match.  An AND uses the most
+ * selective of its parts that has an index and an OR the union of its parts if every part
+ * has one, only filters that no index can answer scan every record.  The records found are
+ * always checked against the whole filter, so a read never returns a record that does not
+ * match even when it overlaps a write.
+ *
+ * Cursors from this connector push DataCursor filters back to the connector, so filtering a
+ * cursor is answered from the indexes too.  Writes to a class are serialised, reads do not lock.
+ */
+public class MemoryDataConnector
+    extends DataConnector
+{
+    /**
+     * The kinds of secondary index
+     */
+    public static enum IndexType
+    {
+        /**
+         * A hash of the values, answers equality
+         */
+        HASH,
+        /**
+         * A skip list ordered by the values, answers equality and ordered comparisons
+         */
+        RANGE
+    }
+
+    /**
+     * Stands in for null values in the indexes, which can not hold null keys.  It is
+     * ordered before every other value as filters order nulls first
+     */
+    private static final Object NULL = new Object();
+
+    /**
+     * Orders the values of a range index in the same way DataFilter compares them
+     */
+    private static final Comparator<Object> g_oComparator = new Comparator<Object>()
+    {
+        @Override
+        @SuppressWarnings("unchecked")
+        public int compare(Object toLeft, Object toRight)
+        {
+            if (toLeft == toRight)
+            {
+                return 0;
+            }
+            if (toLeft == NULL || toRight == NULL)
+            {
+                return toLeft == NULL ? -1 : 1;
+            }
+            if (toLeft instanceof Number && toRight instanceof Number)
+            {
+                if (isIntegral(toLeft) && isIntegral(toRight))
+                {
+                    long lnLeft = ((Number)toLeft).longValue();
+                    long lnRight = ((Number)toRight).longValue();
+                    return lnLeft < lnRight ? -1 : (lnLeft == lnRight ? 0 : 1);
+                }
+                return Double.compare(((Number)toLeft).doubleValue(), ((Number)toRight).doubleValue());
+            }
+            if (toLeft instanceof Comparable && toLeft.getClass().isInstance(toRight))
+            {
+                return ((Comparable<Object>)toLeft).compareTo(toRight);
+            }
+            if (toRight instanceof Comparable && toRight.getClass().isInstance(toLeft))
+            {
+                return -((Comparable<Object>)toRight).compareTo(toLeft);
+            }
+            return toLeft.getClass().getName().compareTo(toRight.getClass().getName());
+        }
+    };
+
+    /**
+     * Supplies the records found by a read to the cursor and remembers the filter of the
+     * read, so filtering the cursor can be answered by a new read
+     */
+    private static final class MemoryPageSource
+        extends karyon.Object
+        implements IDataPageSource
+    {
+        private final Object[] m_aRecords;
+        private final DataFilter m_oFilter;
+
+        private MemoryPageSource(Object[] taRecords, DataFilter toFilter)
+        {
+            m_aRecords = taRecords;
+            m_oFilter = toFilter;
+        }
+
+        public DataFilter getFilter()
+        {
+            return m_oFilter;
+        }
+
+        @Override
+        public Object[] fetch(long tnOffset, int tnCount)
+        {
+            return Arrays.copyOfRange(m_aRecords, (int)tnOffset, (int)Math.min(m_aRecords.length, tnOffset + tnCount));
+        }
+
+        @Override
+        public boolean isRepeatable()
+        {
+            return true;
+        }
+    }
+
+    /**
+     * A secondary index, mapping each value of a property to the keys of the records holding it
+     */
+    private static final class Index
+    {
+        private final int m_nField;
+        private final IndexType m_eType;
+        private final ConcurrentMap<Object, Set<Object>> m_oEntries;
+
+        private Index(int tnField, IndexType teType)
+        {
+            m_nField = tnField;
+            m_eType = teType;
+            m_oEntries = teType == IndexType.RANGE ?
+                    new ConcurrentSkipListMap<Object, Set<Object>>(g_oComparator) :
+                    new ConcurrentHashMap<Object, Set<Object>>();
+        }
+
+        private void add(Object toValue, Object toKey)
+        {
+            Object loValue = toValue == null ? NULL : toValue;
+            Set<Object> loKeys = m_oEntries.get(loValue);
+            if (loKeys == null)
+            {
+                loKeys = Collections.newSetFromMap(new ConcurrentHashMap<Object, Boolean>());
+                m_oEntries.put(loValue, loKeys);
+            }
+            loKeys.add(toKey);
+        }
+
+        private void remove(Object toValue, Object toKey)
+        {
+            Object loValue = toValue == null ? NULL : toValue;
+            Set<Object> loKeys = m_oEntries.get(loValue);
+            if (loKeys != null && loKeys.remove(toKey) && loKeys.isEmpty())
+            {
+                m_oEntries.remove(loValue, loKeys);
+            }
+        }
+
+        /**
+         * Gets the keys of the records the comparison could match
+         * @param teOperator the operator of the comparison
+         * @param toValue the value compared to
+         * @return the keys, or null if this index can not answer the comparison
+         */
+        private Collection<Object> find(DataFilter.Operator teOperator, Object toValue)
+        {
+            Object loValue = toValue == null ? NULL : toValue;
+            if (teOperator == DataFilter.Operator.EQUAL)
+            {
+                Set<Object> loKeys = m_oEntries.get(loValue);
+                return loKeys == null ? Collections.emptySet() : loKeys;
+            }
+            if (m_eType != IndexType.RANGE)
+            {
+                return null;
+            }
+            ConcurrentNavigableMap<Object, Set<Object>> loEntries = (ConcurrentNavigableMap<Object, Set<Object>>)m_oEntries;
+            ConcurrentNavigableMap<Object, Set<Object>> loRange;
+            switch (teOperator)
+            {
+                case LESS:
+                    loRange = loEntries.headMap(loValue, false);
+                    break;
+                case LESS_OR_EQUAL:
+                    loRange = loEntries.headMap(loValue, true);
+                    break;
+                case GREATER:
+                    loRange = loEntries.tailMap(loValue, false);
+                    break;
+                case GREATER_OR_EQUAL:
+                    loRange = loEntries.tailMap(loValue, true);
+                    break;
+                default:
+                    return null;
+            }
+            // Kept in the order of the index so range reads are returned sorted
+            Set<Object> loKeys = new LinkedHashSet<Object>();
+            for (Set<Object> loValueKeys : loRange.values())
+            {
+                loKeys.addAll(loValueKeys);
+            }
+            return loKeys;
+        }
+    }
+
+    /**
+     * The records and indexes of a data object class
+     */
+    private static final class Table
+    {
+        private final DataSchema<? extends DataObject> m_oSchema;
+        private final int m_nKeyField;
+        private final Class<?>[] m_aTypes;
+        private final ConcurrentHashMap<Object, Object[]> m_oRecords;
+        private final ReentrantLock m_oLock;
+        private volatile Index[] m_aIndexes;
+
+        private Table(DataSchema<? extends DataObject> toSchema, int tnKeyField)
+        {
+            m_oSchema = toSchema;
+            m_nKeyField = tnKeyField;
+            m_aTypes = new Class<?>[toSchema.getFieldCount()];
+            for (int i = 0; i < m_aTypes.length; i++)
+            {
+                m_aTypes[i] = toSchema.getField(i).getType();
+            }
+            m_oRecords = new ConcurrentHashMap<Object, Object[]>();
+            m_oLock = new ReentrantLock();
+            m_aIndexes = new Index[toSchema.getFieldCount()];
+        }
+
+        /**
+         * Adds or replaces a record, this must be called with the lock held.  The record is
+         * added to its new index entries before it is replaced and removed from the old ones
+         * after, so a concurrent read always finds it under one of the values
+         * @param taValues the values of the record
+         */
+        private void put(Object[] taValues)
+        {
+            Object loKey = taValues[m_nKeyField];
+            Object[] laPrevious = m_oRecords.get(loKey);
+            Index[] laIndexes = m_aIndexes;
+            for (Index loIndex : laIndexes)
+            {
+                if (loIndex != null)
+                {
+                    loIndex.add(taValues[loIndex.m_nField], loKey);
+                }
+            }
+            m_oRecords.put(loKey, taValues);
+            if (laPrevious != null)
+            {
+                for (Index loIndex : laIndexes)
+                {
+                    if (loIndex != null && !equal(laPrevious[loIndex.m_nField], taValues[loIndex.m_nField], loIndex.m_eType))
+                    {
+                        loIndex.remove(laPrevious[loIndex.m_nField], loKey);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Removes the record with the key, this must be called with the lock held
+         * @param toKey the key of the record
+         * @return true if there was a record with the key
+         */
+        private boolean remove(Object toKey)
+        {
+            Object[] laPrevious = m_oRecords.remove(toKey);
+            if (laPrevious == null)
+            {
+                return false;
+            }
+            for (Index loIndex : m_aIndexes)
+            {
+                if (loIndex != null)
+                {
+                    loIndex.remove(laPrevious[loIndex.m_nField], toKey);
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Converts a number to the type of the field, so a hash lookup of a long finds an int
+         * @param tnField the field
+         * @param toValue the value
+         * @return the value as the type of the field where it is a number
+         */
+        private Object normalize(int tnField, Object toValue)
+        {
+            Class<?> loType = m_aTypes[tnField];
+            if (!(toValue instanceof Number) || loType.isInstance(toValue))
+            {
+                return toValue;
+            }
+            Number loNumber = (Number)toValue;
+            if (loType == int.class || loType == Integer.class)
+            {
+                return loNumber.intValue() == loNumber.doubleValue() ? loNumber.intValue() : toValue;
+            }
+            if (loType == long.class || loType == Long.class)
+            {
+                return loNumber.longValue() == loNumber.doubleValue() ? loNumber.longValue() : toValue;
+            }
+            if (loType == short.class || loType == Short.class)
+            {
+                return loNumber.shortValue() == loNumber.doubleValue() ? loNumber.shortValue() : toValue;
+            }
+            if (loType == byte.class || loType == Byte.class)
+            {
+                return loNumber.byteValue() == loNumber.doubleValue() ? loNumber.byteValue() : toValue;
+            }
+            if (loType == double.class || loType == Double.class)
+            {
+                return loNumber.doubleValue();
+            }
+            if (loType == float.class || loType == Float.class)
+            {
+                return loNumber.floatValue();
+            }
+            return toValue;
+        }
+
+        /**
+         * Checks if a filter value can be ordered against the values of the field, values
+         * that can not are only compared for equality by DataFilter so can not use a range
+         * @param tnField the field
+         * @param toValue the filter value
+         * @return true if the value is ordered in the same way as the field values
+         */
+        private boolean isOrdered(int tnField, Object toValue)
+        {
+            Class<?> loType = m_aTypes[tnField];
+            if (toValue == null)
+            {
+                return true;
+            }
+            if (toValue instanceof Number)
+            {
+                return loType.isPrimitive() ? loType != boolean.class && loType != char.class : Number.class.isAssignableFrom(loType);
+            }
+            return !loType.isPrimitive() && (loType.isInstance(toValue) || toValue.getClass().isAssignableFrom(loType));
+        }
+    }
+
+    private final ConcurrentHashMap<Class<? extends DataObject>, Table> m_oTables;
+    private final AtomicLong m_nScans;
+
+    /**
+     * Creates a new, empty, memory connector
+     */
+    public MemoryDataConnector()
+    {
+        m_oTables = new ConcurrentHashMap<Class<? extends DataObject>, Table>();
+        m_nScans = new AtomicLong();
+    }
+
+    /**
+     * Sets the property that identifies each object of the class.  This must be called for
+     * each class before it is read or saved, saving an object with the key of an existing
+     * object replaces it
+     * @param toClass the type of data object
+     * @param tcKeyField the property that identifies each object
+     * @param <K> the type of data object
+     */
+    public <K extends DataObject> void setKey(Class<K> toClass, String tcKeyField)
+    {
+        DataSchema<K> loSchema = DataSchema.getSchema(toClass);
+        int lnKeyField = loSchema.indexOf(tcKeyField);
+        if (lnKeyField < 0)
+        {
+            throw new IllegalArgumentException(tcKeyField + " is not a field of " + toClass.getName());
+        }
+        synchronized (m_oTables)
+        {
+            Table loTable = m_oTables.get(toClass);
+            if (loTable != null && loTable.m_nKeyField != lnKeyField)
+            {
+                throw new IllegalStateException(toClass.getName() + " is already keyed by " + loSchema.getName(loTable.m_nKeyField));
+            }
+            if (loTable == null)
+            {
+                m_oTables.put(toClass, new Table(loSchema, lnKeyField));
+            }
+        }
+    }
+
+    /**
+     * Declares a secondary index on a property of the class, the index is built from the
+     * objects already held
+     * @param toClass the type of data object
+     * @param tcField the property to index
+     * @param teType the type of index
+     * @throws DataAccessException if the class has not been given a key
+     */
+    public void addIndex(Class<? extends DataObject> toClass, String tcField, IndexType teType)
+            throws DataAccessException
+    {
+        Table loTable = getTable(toClass);
+        int lnField = loTable.m_oSchema.indexOf(tcField);
+        if (lnField < 0)
+        {
+            throw new IllegalArgumentException(tcField + " is not a field of " + toClass.getName());
+        }
+        loTable.m_oLock.lock();
+        try
+        {
+            Index loIndex = new Index(lnField, teType == null ? IndexType.HASH : teType);
+            for (Object[] laValues : loTable.m_oRecords.values())
+            {
+                loIndex.add(laValues[lnField], laValues[loTable.m_nKeyField]);
+            }
+            Index[] laIndexes = loTable.m_aIndexes.clone();
+            laIndexes[lnField] = loIndex;
+            loTable.m_aIndexes = laIndexes;
+        }
+        finally
+        {
+            loTable.m_oLock.unlock();
+        }
+    }
+
+    /**
+     * Gets the number of objects of the class held
+     * @param toClass the type of data object
+     * @return the number of objects
+     */
+    public long getSize(Class<? extends DataObject> toClass)
+    {
+        Table loTable = m_oTables.get(toClass);
+        return loTable == null ? 0 : loTable.m_oRecords.size();
+    }
+
+    /**
+     * Gets the number of reads that could not use a key or index so checked every object
+     * @return the number of scans
+     */
+    public long getScans()
+    {
+        return m_nScans.get();
+    }
+
+    private Table getTable(Class<? extends DataObject> toClass)
+            throws DataAccessException
+    {
+        Table loTable = m_oTables.get(toClass);
+        if (loTable == null)
+        {
+            throw new DataAccessException(toClass, new IllegalStateException("No key has been set for " + toClass.getName()));
+        }
+        return loTable;
+    }
+
+    @Override
+    public <K extends DataObject> DataCursor<K> get(Class<K> toClass, DataFilter toFilter)
+            throws DataAccessException
+    {
+        Table loTable = getTable(toClass);
+        Collection<Object> loKeys = toFilter == null ? null : find(loTable, toFilter);
+        if (loKeys == null)
+        {
+            if (toFilter != null)
+            {
+                m_nScans.incrementAndGet();
+            }
+            loKeys = loTable.m_oRecords.keySet();
+        }
+
+        DataSchema<K> loSchema = DataSchema.getSchema(toClass);
+        K loObject = toFilter == null ? null : loSchema.newInstance();
+        List<Object> loRecords = new ArrayList<Object>();
+        for (Object loKey : loKeys)
+        {
+            Object[] laValues = loTable.m_oRecords.get(loKey);
+            if (laValues == null)
+            {
+                continue;
+            }
+            if (loObject != null)
+            {
+                for (int i = 0; i < laValues.length; i++)
+                {
+                    loSchema.setValue(loObject, i, laValues[i]);
+                }
+                if (!toFilter.accept(loObject))
+                {
+                    continue;
+                }
+            }
+            loRecords.add(laValues);
+        }
+
+        DataCursor<K> loCursor = new DataCursor<K>(toClass, loRecords.size(), DataCursor.DEFAULT_PAGE_SIZE);
+        loCursor.setSource(this);
+        if (!loRecords.isEmpty())
+        {
+            loCursor.setPageSource(new MemoryPageSource(loRecords.toArray(), toFilter));
+        }
+        return loCursor;
+    }
+
+    /**
+     * Gets the keys of the records the filter could match from the key and the indexes
+     * @param toTable the table
+     * @param toFilter the filter
+     * @return the keys, or null if the filter can not be answered without a scan
+     */
+    private Collection<Object> find(Table toTable, DataFilter toFilter)
+    {
+        if (toFilter.isComposite())
+        {
+            boolean llAnd = toFilter.getOperator() == DataFilter.Operator.AND;
+            Collection<Object> loBest = null;
+            Set<Object> loUnion = llAnd ? null : new LinkedHashSet<Object>();
+            for (DataFilter loFilter : toFilter.getFilters())
+            {
+                Collection<Object> loKeys = find(toTable, loFilter);
+                if (llAnd)
+                {
+                    if (loKeys != null && (loBest == null || loKeys.size() < loBest.size()))
+                    {
+                        loBest = loKeys;
+                    }
+                }
+                else if (loKeys == null)
+                {
+                    return null;
+                }
+                else
+                {
+                    loUnion.addAll(loKeys);
+                }
+            }
+            return llAnd ? loBest : loUnion;
+        }
+
+        int lnField = toTable.m_oSchema.indexOf(toFilter.getField());
+        if (lnField < 0)
+        {
+            return null;
+        }
+        Object loValue = toTable.normalize(lnField, toFilter.getValue());
+        if (lnField == toTable.m_nKeyField && toFilter.getOperator() == DataFilter.Operator.EQUAL)
+        {
+            return loValue != null && toTable.m_oRecords.containsKey(loValue) ?
+                    Collections.singleton(loValue) : Collections.emptySet();
+        }
+        Index loIndex = toTable.m_aIndexes[lnField];
+        if (loIndex == null || (toFilter.getOperator() != DataFilter.Operator.EQUAL && !toTable.isOrdered(lnField, loValue)))
+        {
+            return null;
+        }
+        return loIndex.find(toFilter.getOperator(), loValue);
+    }
+
+    @Override
+    public <K extends DataObject> DataCursor<K> filter(DataCursor<K> toCursor, DataFilter toFilter)
+    {
+        if (!(toCursor.getPageSource() instanceof MemoryPageSource))
+        {
+            return null;
+        }
+        DataFilter loFilter = ((MemoryPageSource)toCursor.getPageSource()).getFilter();
+        try
+        {
+            return get(toCursor.getSchema().getDataClass(), loFilter == null ? toFilter : DataFilter.and(loFilter, toFilter));
+        }
+        catch (DataAccessException ex)
+        {
+            Application.log(ex);
+            return null;
+        }
+    }
+
+    @Override
+    public long save(Map<Class<? extends DataObject>, List<DataObject>> toObjects, boolean tlTransaction)
+            throws DataAccessException
+    {
+        // The values are copied and checked before anything is written
+        Map<Table, Object[][]> loRecords = new LinkedHashMap<Table, Object[][]>();
+        for (Map.Entry<Class<? extends DataObject>, List<DataObject>> loEntry : toObjects.entrySet())
+        {
+            Table loTable = getTable(loEntry.getKey());
+            List<DataObject> loObjects = loEntry.getValue();
+            Object[][] laRecords = new Object[loObjects.size()][];
+            for (int i = 0; i < laRecords.length; i++)
+            {
+                laRecords[i] = loTable.m_oSchema.toValues(loObjects.get(i));
+                if (laRecords[i][loTable.m_nKeyField] == null)
+                {
+                    throw new DataAccessException(loEntry.getKey(), new IllegalArgumentException("The key of a " + loEntry.getKey().getName() + " must not be null"));
+                }
+            }
+            loRecords.put(loTable, laRecords);
+        }
+
+        long lnSaved = 0;
+        for (Map.Entry<Table, Object[][]> loEntry : loRecords.entrySet())
+        {
+            Table loTable = loEntry.getKey();
+            loTable.m_oLock.lock();
+            try
+            {
+                for (Object[] laValues : loEntry.getValue())
+                {
+                    loTable.put(laValues);
+                }
+            }
+            finally
+            {
+                loTable.m_oLock.unlock();
+            }
+            lnSaved += loEntry.getValue().length;
+        }
+        return lnSaved;
+    }
+
+    @Override
+    public long delete(Map<Class<? extends DataObject>, List<DataObject>> toObjects, boolean tlTransaction)
+            throws DataAccessException
+    {
+        // The keys are read and checked before anything is removed
+        Map<Table, Object[]> loKeys = new LinkedHashMap<Table, Object[]>();
+        for (Map.Entry<Class<? extends DataObject>, List<DataObject>> loEntry : toObjects.entrySet())
+        {
+            Table loTable = getTable(loEntry.getKey());
+            List<DataObject> loObjects = loEntry.getValue();
+            Object[] laKeys = new Object[loObjects.size()];
+            for (int i = 0; i < laKeys.length; i++)
+            {
+                laKeys[i] = loTable.m_oSchema.toValues(loObjects.get(i))[loTable.m_nKeyField];
+                if (laKeys[i] == null)
+                {
+                    throw new DataAccessException(loEntry.getKey(), new IllegalArgumentException("The key of a " + loEntry.getKey().getName() + " must not be null"));
+                }
+            }
+            loKeys.put(loTable, laKeys);
+        }
+
+        long lnDeleted = 0;
+        for (Map.Entry<Table, Object[]> loEntry : loKeys.entrySet())
+        {
+            Table loTable = loEntry.getKey();
+            loTable.m_oLock.lock();
+            try
+            {
+                for (Object loKey : loEntry.getValue())
+                {
+                    if (loTable.remove(loKey))
+                    {
+                        lnDeleted++;
+                    }
+                }
+            }
+            finally
+            {
+                loTable.m_oLock.unlock();
+            }
+        }
+        return lnDeleted;
+    }
+
+    private static boolean isIntegral(Object toValue)
+    {
+        return toValue instanceof Long || toValue instanceof Integer || toValue instanceof Short || toValue instanceof Byte;
+    }
+
+    /**
+     * Checks if two values are held under the same entry of an index of the type specified
+     */
+    private static boolean equal(Object toLeft, Object toRight, IndexType teType)
+    {
+        if (toLeft == null || toRight == null)
+        {
+            return toLeft == toRight;
+        }
+        return teType == IndexType.RANGE ? g_oComparator.compare(toLeft, toRight) == 0 : toLeft.equals(toRight);
+    }
+}
@@ -0,0 +1,474 @@
+package karyon.data;
+
+import karyon.applications.Application;
+import karyon.exceptions.DataAccessException;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Routes a data object class to a primary connector and a number of read replicas.  Writes
+ * always go to the primary, reads are balanced across the replicas by the selected
+ * ReadPolicy.  A read fails over to the primary if the replica fails.
+ *
+ * A replica that fails is not read from until a back off period has passed, the period
+ * doubling with each failure in a row.  A replica that has not been read from for the probe
+ * interval is sent the next read, so a replica that was slow has its response time measured
+ * again rather than being avoided for good.
+ *
+ * Replicas may lag behind the primary, so after a write the reads of the same thread, or
+ * of the same Session if one is open, are sent to the primary until the stickiness period
+ * has passed.  This means a caller always reads its own writes.  The write is marked on the
+ * thread that made it, so a save made on another thread, such as DataManager.saveAllAsync,
+ * does not make the caller sticky.  The caller should call markWrite once the save completes.
+ */
+public class ReplicatedDataConnector
+    extends DataConnector
+{
+    /**
+     * The default period after a write that reads are sent to the primary
+     */
+    public static final long DEFAULT_STICKINESS = 1000;
+
+    /**
+     * The default period after which a replica that has not been read from is sent a read
+     */
+    public static final long DEFAULT_PROBE_INTERVAL = 1000;
+
+    /**
+     * The longest period a failed replica is avoided for
+     */
+    public static final long MAXIMUM_BACK_OFF = 60 * 1000;
+
+    /**
+     * How reads are balanced across the replicas
+     */
+    public static enum ReadPolicy
+    {
+        /**
+         * The replica with the lowest moving average response time, weighted by the
+         * requests it is already handling, is chosen
+         */
+        LATENCY,
+        /**
+         * The replica handling the fewest requests is chosen
+         */
+        LEAST_OUTSTANDING
+    }
+
+    /**
+     * Groups the reads and writes of a unit of work, such as a user session, which may be
+     * handled by more than one thread.  While the session is attached to a thread that
+     * thread reads the writes made by any thread in the session
+     */
+    public final class Session
+        extends karyon.Object
+        implements Closeable
+    {
+        private volatile long m_nLastWrite;
+
+        private Session()
+        {
+        }
+
+        /**
+         * Attaches the session to the current thread, replacing any session already attached
+         * @return this session
+         */
+        public Session attach()
+        {
+            m_oSession.set(this);
+            return this;
+        }
+
+        /**
+         * Detaches the session from the current thread
+         */
+        @Override
+        public void close()
+        {
+            if (m_oSession.get() == this)
+            {
+                m_oSession.remove();
+            }
+        }
+    }
+
+    /**
+     * A replica and the statistics used to balance reads
+     */
+    private static final class Replica
+    {
+        private final IDataConnector m_oConnector;
+        private final AtomicInteger m_nOutstanding;
+        private final AtomicLong m_nRequests;
+        // The time the replica was last chosen, claimed with a compare and set so only one read probes
+        private final AtomicLong m_nLastChosen;
+        private volatile double m_nLatency;
+        private volatile int m_nFailures;
+        private volatile long m_nRetryAt;
+
+        private Replica(IDataConnector toConnector)
+        {
+            m_oConnector = toConnector;
+            m_nOutstanding = new AtomicInteger();
+            m_nRequests = new AtomicLong();
+            m_nLastChosen = new AtomicLong();
+        }
+
+        /**
+         * Adds a response time to the moving average, the update is not atomic which
+         * only loses a sample when two responses complete at the same time
+         * @param tnNanos the response time
+         * @param tnWeight the weight of the new sample
+         */
+        private void record(long tnNanos, double tnWeight)
+        {
+            double lnLatency = m_nLatency;
+            m_nLatency = lnLatency == 0 ? tnNanos : lnLatency + tnWeight * (tnNanos - lnLatency);
+            m_nFailures = 0;
+            m_nRetryAt = 0;
+        }
+
+        /**
+         * Avoids the replica for a period which doubles with each failure in a row
+         * @param tnBackOff the period after the first failure in milliseconds
+         */
+        private void fail(long tnBackOff)
+        {
+            int lnFailures = Math.min(m_nFailures + 1, 30);
+            m_nFailures = lnFailures;
+            m_nRetryAt = System.currentTimeMillis() + Math.min(MAXIMUM_BACK_OFF, tnBackOff << (lnFailures - 1));
+        }
+    }
+
+    private final IDataConnector m_oPrimary;
+    private final Replica[] m_aReplicas;
+    private final ThreadLocal<Session> m_oSession;
+    private final ThreadLocal<long[]> m_oLastWrite;
+    private final AtomicInteger m_nNext;
+    private volatile ReadPolicy m_eReadPolicy;
+    private volatile long m_nStickiness;
+    private volatile long m_nProbeInterval;
+    private volatile double m_nWeight;
+
+    /**
+     * Creates a new replicated connector
+     * @param toPrimary the connector all writes are sent to
+     * @param taReplicas the connectors reads are balanced across, if there are no replicas
+     * all reads go to the primary
+     */
+    public ReplicatedDataConnector(IDataConnector toPrimary, IDataConnector... taReplicas)
+    {
+        if (toPrimary == null)
+        {
+            throw new IllegalArgumentException("toPrimary must be specified");
+        }
+        m_oPrimary = toPrimary;
+        m_aReplicas = new Replica[taReplicas.length];
+        for (int i = 0; i < taReplicas.length; i++)
+        {
+            m_aReplicas[i] = new Replica(taReplicas[i]);
+        }
+        m_oSession = new ThreadLocal<Session>();
+        m_oLastWrite = new ThreadLocal<long[]>()
+        {
+            @Override
+            protected long[] initialValue()
+            {
+                return new long[1];
+            }
+        };
+        m_nNext = new AtomicInteger();
+        m_eReadPolicy = ReadPolicy.LATENCY;
+        m_nStickiness = DEFAULT_STICKINESS;
+        m_nProbeInterval = DEFAULT_PROBE_INTERVAL;
+        m_nWeight = 0.2;
+    }
+
+    /**
+     * Gets the connector writes are sent to
+     * @return the primary connector
+     */
+    public IDataConnector getPrimary()
+    {
+        return m_oPrimary;
+    }
+
+    /**
+     * Gets the number of replicas
+     * @return the number of replicas
+     */
+    public int getReplicaCount()
+    {
+        return m_aReplicas.length;
+    }
+
+    /**
+     * Gets the replica at the index specified
+     * @param tnIndex the index of the replica
+     * @return the replica connector
+     */
+    public IDataConnector getReplica(int tnIndex)
+    {
+        return m_aReplicas[tnIndex].m_oConnector;
+    }
+
+    /**
+     * Gets the number of reads that have been sent to the replica
+     * @param tnIndex the index of the replica
+     * @return the number of reads
+     */
+    public long getReplicaRequests(int tnIndex)
+    {
+        return m_aReplicas[tnIndex].m_nRequests.get();
+    }
+
+    /**
+     * Gets the moving average response time of the replica
+     * @param tnIndex the index of the replica
+     * @return the response time in nanoseconds
+     */
+    public double getReplicaLatency(int tnIndex)
+    {
+        return m_aReplicas[tnIndex].m_nLatency;
+    }
+
+    /**
+     * Sets how reads are balanced across the replicas
+     * @param teReadPolicy the policy
+     */
+    public void setReadPolicy(ReadPolicy teReadPolicy)
+    {
+        m_eReadPolicy = teReadPolicy == null ? ReadPolicy.LATENCY : teReadPolicy;
+    }
+
+    /**
+     * Gets how reads are balanced across the replicas
+     * @return the policy
+     */
+    public ReadPolicy getReadPolicy()
+    {
+        return m_eReadPolicy;
+    }
+
+    /**
+     * Sets the period after a write that reads from the same thread or session are sent
+     * to the primary, this should be longer than the replication lag
+     * @param tnMillis the period in milliseconds, 0 turns off read your writes
+     */
+    public void setStickiness(long tnMillis)
+    {
+        m_nStickiness = Math.max(0, tnMillis);
+    }
+
+    /**
+     * Gets the period after a write that reads from the same thread or session are sent to the primary
+     * @return the period in milliseconds
+     */
+    public long getStickiness()
+    {
+        return m_nStickiness;
+    }
+
+    /**
+     * Sets the period after which a replica that has not been read from is sent the next read
+     * so its response time is measured again.  This is also the period a failed replica is
+     * avoided for after its first failure
+     * @param tnMillis the period in milliseconds, greater than 0
+     */
+    public void setProbeInterval(long tnMillis)
+    {
+        if (tnMillis <= 0)
+        {
+            throw new IllegalArgumentException("tnMillis must be greater than 0");
+        }
+        m_nProbeInterval = tnMillis;
+    }
+
+    /**
+     * Gets the period after which a replica that has not been read from is sent the next read
+     * @return the period in milliseconds
+     */
+    public long getProbeInterval()
+    {
+        return m_nProbeInterval;
+    }
+
+    /**
+     * Checks if the replica is being avoided because it failed
+     * @param tnIndex the index of the replica
+     * @return true if reads are not being sent to the replica
+     */
+    public boolean isReplicaFailed(int tnIndex)
+    {
+        return m_aReplicas[tnIndex].m_nRetryAt > System.currentTimeMillis();
+    }
+
+    /**
+     * Sets the weight given to each new response time in the moving average
+     * @param tnWeight the weight, greater than 0 and at most 1, higher values react faster
+     */
+    public void setLatencyWeight(double tnWeight)
+    {
+        if (tnWeight <= 0 || tnWeight > 1)
+        {
+            throw new IllegalArgumentException("tnWeight must be greater than 0 and at most 1");
+        }
+        m_nWeight = tnWeight;
+    }
+
+    /**
+     * Creates a session and attaches it to the current thread.  The session should be
+     * closed when the unit of work on the thread is complete
+     * @return the session
+     */
+    public Session openSession()
+    {
+        return new Session().attach();
+    }
+
+    @Override
+    public <K extends DataObject> DataCursor<K> get(Class<K> toClass, DataFilter toFilter)
+            throws DataAccessException
+    {
+        Replica loReplica = isSticky() ? null : choose();
+        if (loReplica == null)
+        {
+            return m_oPrimary.get(toClass, toFilter);
+        }
+
+        loReplica.m_nOutstanding.incrementAndGet();
+        loReplica.m_nRequests.incrementAndGet();
+        long lnStart = System.nanoTime();
+        try
+        {
+            DataCursor<K> loCursor = loReplica.m_oConnector.get(toClass, toFilter);
+            loReplica.record(System.nanoTime() - lnStart, m_nWeight);
+            return loCursor;
+        }
+        catch (DataAccessException | RuntimeException ex)
+        {
+            // The response time of a failure says nothing about the replica, so it is avoided for a while instead
+            loReplica.fail(m_nProbeInterval);
+            Application.log(ex);
+            return m_oPrimary.get(toClass, toFilter);
+        }
+        finally
+        {
+            loReplica.m_nOutstanding.decrementAndGet();
+        }
+    }
+
+    @Override
+    public long save(Map<Class<? extends DataObject>, List<DataObject>> toObjects, boolean tlTransaction)
+            throws DataAccessException
+    {
+        try
+        {
+            return m_oPrimary.save(toObjects, tlTransaction);
+        }
+        finally
+        {
+            // Marked even on failure as part of the write may have been committed
+            markWrite();
+        }
+    }
+
+    @Override
+    public long delete(Map<Class<? extends DataObject>, List<DataObject>> toObjects, boolean tlTransaction)
+            throws DataAccessException
+    {
+        try
+        {
+            return m_oPrimary.delete(toObjects, tlTransaction);
+        }
+        finally
+        {
+            markWrite();
+        }
+    }
+
+    /**
+     * Marks the current thread, and the session attached to it, as having just written so
+     * its reads go to the primary for the stickiness period.  Saves mark the thread they
+     * run on, so this should be called by a caller that waits for a save made on another
+     * thread, such as DataManager.saveAllAsync, and then reads the objects saved
+     */
+    public void markWrite()
+    {
+        long lnNow = System.currentTimeMillis();
+        Session loSession = m_oSession.get();
+        if (loSession != null)
+        {
+            loSession.m_nLastWrite = lnNow;
+        }
+        m_oLastWrite.get()[0] = lnNow;
+    }
+
+    /**
+     * Checks if reads from the current thread must go to the primary to see an earlier write
+     * @return true if the read must go to the primary
+     */
+    private boolean isSticky()
+    {
+        long lnStickiness = m_nStickiness;
+        if (lnStickiness == 0)
+        {
+            return false;
+        }
+        Session loSession = m_oSession.get();
+        long lnLastWrite = Math.max(m_oLastWrite.get()[0], loSession == null ? 0 : loSession.m_nLastWrite);
+        return lnLastWrite > 0 && System.currentTimeMillis() - lnLastWrite < lnStickiness;
+    }
+
+    /**
+     * Chooses the replica to send a read to using the read policy.  The search starts
+     * at a different replica each time so ties are spread across the replicas.  Failed
+     * replicas are skipped until their back off has passed, and a replica that has not
+     * been chosen for the probe interval is chosen by the next read
+     * @return the replica or null if there are no replicas or every replica has failed
+     */
+    private Replica choose()
+    {
+        int lnCount = m_aReplicas.length;
+        if (lnCount == 0)
+        {
+            return null;
+        }
+        long lnNow = System.currentTimeMillis();
+        int lnStart = (m_nNext.getAndIncrement() & Integer.MAX_VALUE) % lnCount;
+        boolean llLatency = m_eReadPolicy == ReadPolicy.LATENCY;
+        Replica loBest = null;
+        double lnBest = Double.MAX_VALUE;
+        for (int i = 0; i < lnCount; i++)
+        {
+            Replica loReplica = m_aReplicas[(lnStart + i) % lnCount];
+            if (loReplica.m_nRetryAt > lnNow)
+            {
+                continue;
+            }
+            long lnLastChosen = loReplica.m_nLastChosen.get();
+            if (lnCount > 1 && lnNow - lnLastChosen > m_nProbeInterval && loReplica.m_nLastChosen.compareAndSet(lnLastChosen, lnNow))
+            {
+                return loReplica;
+            }
+            int lnOutstanding = loReplica.m_nOutstanding.get();
+            // Replicas without a response time yet are tried first so every replica is measured
+            double lnCost = llLatency ? loReplica.m_nLatency * (lnOutstanding + 1) : lnOutstanding;
+            if (lnCost < lnBest)
+            {
+                loBest = loReplica;
+                lnBest = lnCost;
+            }
+        }
+        if (loBest != null)
+        {
+            loBest.m_nLastChosen.set(lnNow);
+        }
+        return loBest;
+    }
+}
@@ -0,0 +1,475 @@
+package karyon.data;
+
+import karyon.applications.Application;
+import karyon.exceptions.DataAccessException;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Spreads the objects of a data object class across a number of connectors.  Each object
+ * is stored in the shard chosen by a consistent hash of its shard key, so adding a shard
+ * only moves a small part of the data.
+ *
+ * Writes, and reads filtered to a single value of the shard key, go to exactly one shard.
+ * Other reads are sent to every shard in parallel and the results are merged into one
+ * DataCursor which reads through the shard cursors in shard order.
+ */
+public class ShardedDataConnector
+    extends DataConnector
+{
+    /**
+     * The default number of points each shard is placed at on the hash ring
+     */
+    public static final int DEFAULT_VIRTUAL_NODES = 160;
+
+    /**
+     * Holds the executor used to send requests to the shards, created when first used
+     */
+    private static final class FanOutHolder
+    {
+        private static final ExecutorService g_oExecutor = Executors.newCachedThreadPool(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable toRunnable)
+            {
+                Thread loThread = new Thread(toRunnable, "ShardedDataConnector.fanout");
+                loThread.setDaemon(true);
+                return loThread;
+            }
+        });
+    }
+
+    /**
+     * Creates a shard key that reads the key from a property of the object
+     * @param tcField the property name
+     * @param <K> the type of data object
+     * @return the shard key
+     */
+    public static <K extends DataObject> IDataShardKey<K> field(final String tcField)
+    {
+        return new IDataShardKey<K>()
+        {
+            @Override
+            public Object getKey(K toObject)
+            {
+                DataSchema<?> loSchema = DataSchema.getSchema(toObject.getClass());
+                int lnField = loSchema.indexOf(tcField);
+                if (lnField < 0)
+                {
+                    throw new IllegalArgumentException(tcField + " is not a field of " + toObject.getClass().getName());
+                }
+                return loSchema.getValue(toObject, lnField);
+            }
+
+            @Override
+            public String getField()
+            {
+                return tcField;
+            }
+        };
+    }
+
+    private final DataShardRing<IDataConnector> m_oRing;
+    private final IDataShardKey<DataObject> m_oShardKey;
+    private ExecutorService m_oExecutor;
+
+    /**
+     * Creates a new sharded connector
+     * @param toShardKey the shard key of the objects
+     * @param taShards the connectors holding the shards, the order of the shards must not
+     * change once data has been written
+     */
+    public ShardedDataConnector(IDataShardKey<? extends DataObject> toShardKey, IDataConnector... taShards)
+    {
+        this(toShardKey, DEFAULT_VIRTUAL_NODES, taShards);
+    }
+
+    /**
+     * Creates a new sharded connector
+     * @param toShardKey the shard key of the objects
+     * @param tnVirtualNodes the number of points each shard is placed at on the hash ring
+     * @param taShards the connectors holding the shards, the order of the shards must not
+     * change once data has been written
+     */
+    @SuppressWarnings("unchecked")
+    public ShardedDataConnector(IDataShardKey<? extends DataObject> toShardKey, int tnVirtualNodes, IDataConnector... taShards)
+    {
+        if (toShardKey == null)
+        {
+            throw new IllegalArgumentException("toShardKey must be specified");
+        }
+        m_oShardKey = (IDataShardKey<DataObject>)toShardKey;
+        m_oRing = new DataShardRing<IDataConnector>(taShards, tnVirtualNodes);
+        m_oExecutor = FanOutHolder.g_oExecutor;
+    }
+
+    /**
+     * Sets the executor used to send requests to the shards in parallel
+     * @param toExecutor the executor
+     */
+    public void setExecutor(ExecutorService toExecutor)
+    {
+        m_oExecutor = toExecutor;
+    }
+
+    /**
+     * Gets the number of shards
+     * @return the number of shards
+     */
+    public int getShardCount()
+    {
+        return m_oRing.getShardCount();
+    }
+
+    /**
+     * Gets the connector holding the objects with the shard key specified
+     * @param toKey the shard key
+     * @return the connector
+     */
+    public IDataConnector getShard(Object toKey)
+    {
+        return m_oRing.get(toKey);
+    }
+
+    /**
+     * Gets the connector holding the object specified
+     * @param toObject the object
+     * @return the connector
+     */
+    public IDataConnector getShard(DataObject toObject)
+    {
+        return m_oRing.get(m_oShardKey.getKey(toObject));
+    }
+
+    @Override
+    public <K extends DataObject> DataCursor<K> get(final Class<K> toClass, final DataFilter toFilter)
+            throws DataAccessException
+    {
+        Object[] laKey = getKey(toFilter);
+        if (laKey != null)
+        {
+            return m_oRing.get(laKey[0]).get(toClass, toFilter);
+        }
+
+        List<Callable<DataCursor<K>>> loRequests = new ArrayList<Callable<DataCursor<K>>>(m_oRing.getShardCount());
+        for (int i = 0; i < m_oRing.getShardCount(); i++)
+        {
+            final IDataConnector loShard = m_oRing.getShard(i);
+            loRequests.add(new Callable<DataCursor<K>>()
+            {
+                @Override
+                public DataCursor<K> call() throws Exception
+                {
+                    return loShard.get(toClass, toFilter);
+                }
+            });
+        }
+        List<DataCursor<K>> loCursors = invokeAll(toClass, loRequests);
+
+        ShardPageSource<K> loSource = new ShardPageSource<K>(loCursors, toFilter);
+        DataCursor<K> loCursor = new DataCursor<K>(toClass, loSource.getLength(),
+                loCursors.isEmpty() ? DataCursor.DEFAULT_PAGE_SIZE : loCursors.get(0).getPageSize());
+        loCursor.setSource(this);
+        if (loSource.getLength() > 0)
+        {
+            loCursor.setPageSource(loSource);
+        }
+        else
+        {
+            loSource.close();
+        }
+        return loCursor;
+    }
+
+    @Override
+    public <K extends DataObject> DataCursor<K> filter(DataCursor<K> toCursor, DataFilter toFilter)
+    {
+        // Empty results have no page source to hold their filter, so they are filtered locally
+        if (!(toCursor.getPageSource() instanceof ShardPageSource))
+        {
+            return null;
+        }
+        DataFilter loFilter = ((ShardPageSource<?>)toCursor.getPageSource()).getFilter();
+        try
+        {
+            return get(toCursor.getSchema().getDataClass(), loFilter == null ? toFilter : DataFilter.and(loFilter, toFilter));
+        }
+        catch (DataAccessException ex)
+        {
+            Application.log(ex);
+            return null;
+        }
+    }
+
+    @Override
+    public long save(Map<Class<? extends DataObject>, List<DataObject>> toObjects, boolean tlTransaction)
+            throws DataAccessException
+    {
+        return write(toObjects, tlTransaction, false);
+    }
+
+    @Override
+    public long delete(Map<Class<? extends DataObject>, List<DataObject>> toObjects, boolean tlTransaction)
+            throws DataAccessException
+    {
+        return write(toObjects, tlTransaction, true);
+    }
+
+    /**
+     * Sends each object to the shard its key maps to, the shards are written in parallel
+     * @param toObjects the objects keyed by class
+     * @param tlTransaction true if each shard should write its objects in a single transaction
+     * @param tlDelete true to remove the objects, false to save them
+     * @return the number of objects written
+     * @throws DataAccessException if a shard could not write its objects
+     */
+    private long write(Map<Class<? extends DataObject>, List<DataObject>> toObjects, final boolean tlTransaction, final boolean tlDelete)
+            throws DataAccessException
+    {
+        // Split each class across the shards, keeping the order the objects were given in
+        List<Map<Class<? extends DataObject>, List<DataObject>>> loShards = new ArrayList<Map<Class<? extends DataObject>, List<DataObject>>>();
+        for (int i = 0; i < m_oRing.getShardCount(); i++)
+        {
+            loShards.add(new LinkedHashMap<Class<? extends DataObject>, List<DataObject>>());
+        }
+        for (Map.Entry<Class<? extends DataObject>, List<DataObject>> loEntry : toObjects.entrySet())
+        {
+            for (DataObject loObject : loEntry.getValue())
+            {
+                Map<Class<? extends DataObject>, List<DataObject>> loShard = loShards.get(m_oRing.indexOf(m_oShardKey.getKey(loObject)));
+                List<DataObject> loList = loShard.get(loEntry.getKey());
+                if (loList == null)
+                {
+                    loList = new ArrayList<DataObject>();
+                    loShard.put(loEntry.getKey(), loList);
+                }
+                loList.add(loObject);
+            }
+        }
+
+        List<Callable<Long>> loRequests = new ArrayList<Callable<Long>>();
+        for (int i = 0; i < loShards.size(); i++)
+        {
+            final IDataConnector loShard = m_oRing.getShard(i);
+            final Map<Class<? extends DataObject>, List<DataObject>> loObjects = loShards.get(i);
+            if (!loObjects.isEmpty())
+            {
+                loRequests.add(new Callable<Long>()
+                {
+                    @Override
+                    public Long call() throws Exception
+                    {
+                        return tlDelete ? loShard.delete(loObjects, tlTransaction) : loShard.save(loObjects, tlTransaction);
+                    }
+                });
+            }
+        }
+        long lnSaved = 0;
+        for (Long lnShardSaved : invokeAll(null, loRequests))
+        {
+            lnSaved += lnShardSaved;
+        }
+        return lnSaved;
+    }
+
+    /**
+     * Gets the shard key value the filter restricts the records to
+     * @param toFilter the filter
+     * @return an array holding the key value, or null if the filter does not restrict the
+     * records to a single key value
+     */
+    private Object[] getKey(DataFilter toFilter)
+    {
+        String lcField = m_oShardKey.getField();
+        if (toFilter == null || lcField == null)
+        {
+            return null;
+        }
+        if (!toFilter.isComposite())
+        {
+            return toFilter.getOperator() == DataFilter.Operator.EQUAL && lcField.equalsIgnoreCase(toFilter.getField()) ?
+                    new Object[]{toFilter.getValue()} : null;
+        }
+        if (toFilter.getOperator() == DataFilter.Operator.AND)
+        {
+            for (DataFilter loFilter : toFilter.getFilters())
+            {
+                Object[] laKey = getKey(loFilter);
+                if (laKey != null)
+                {
+                    return laKey;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Runs the requests in parallel, waiting for all of them to complete
+     * @param toClass the class the requests are for, used when reporting errors, can be null
+     * @param toRequests the requests
+     * @param <R> the type of result
+     * @return the results in the order of the requests
+     * @throws DataAccessException if any of the requests failed
+     */
+    private <R> List<R> invokeAll(Class<? extends DataObject> toClass, List<Callable<R>> toRequests)
+            throws DataAccessException
+    {
+        List<R> loResults = new ArrayList<R>(toRequests.size());
+        if (toRequests.size() == 1)
+        {
+            try
+            {
+                loResults.add(toRequests.get(0).call());
+                return loResults;
+            }
+            catch (DataAccessException ex)
+            {
+                throw ex;
+            }
+            catch (Exception ex)
+            {
+                throw toClass == null ? new DataAccessException("A shard request failed", ex) : new DataAccessException(toClass, ex);
+            }
+        }
+
+        try
+        {
+            List<Future<R>> loFutures = m_oExecutor.invokeAll(toRequests);
+            DataAccessException loError = null;
+            for (Future<R> loFuture : loFutures)
+            {
+                try
+                {
+                    loResults.add(loFuture.get());
+                }
+                catch (ExecutionException ex)
+                {
+                    Throwable loCause = ex.getCause();
+                    if (loError == null)
+                    {
+                        loError = loCause instanceof DataAccessException ? (DataAccessException)loCause :
+                                (toClass == null ? new DataAccessException("A shard request failed", loCause) : new DataAccessException(toClass, loCause));
+                    }
+                }
+            }
+            if (loError != null)
+            {
+                for (R loResult : loResults)
+                {
+                    if (loResult instanceof DataCursor)
+                    {
+                        ((DataCursor<?>)loResult).close();
+                    }
+                }
+                throw loError;
+            }
+            return loResults;
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            throw toClass == null ? new DataAccessException("Interrupted waiting for the shards", ex) : new DataAccessException(toClass, ex);
+        }
+    }
+
+    /**
+     * Pages the records of the shard cursors in to the merged cursor, the records of
+     * each shard follow the records of the shard before it.  The shard cursors are forward
+     * only so each shard page is released once it has been copied in to the merged cursor,
+     * a page read again is fetched again from the shard
+     */
+    private static final class ShardPageSource<K extends DataObject>
+        extends karyon.Object
+        implements IDataPageSource, Closeable
+    {
+        private final List<DataCursor<K>> m_oCursors;
+        private final DataFilter m_oFilter;
+        private final long[] m_aStarts;
+        private final long[] m_aPositions;
+        private final long m_nLength;
+
+        private ShardPageSource(List<DataCursor<K>> toCursors, DataFilter toFilter)
+        {
+            m_oCursors = toCursors;
+            m_oFilter = toFilter;
+            m_aStarts = new long[toCursors.size()];
+            m_aPositions = new long[toCursors.size()];
+            long lnLength = 0;
+            for (int i = 0; i < m_aStarts.length; i++)
+            {
+                m_aStarts[i] = lnLength;
+                lnLength += toCursors.get(i).getLength();
+                toCursors.get(i).setForwardOnly(true);
+            }
+            m_nLength = lnLength;
+        }
+
+        public long getLength()
+        {
+            return m_nLength;
+        }
+
+        public DataFilter getFilter()
+        {
+            return m_oFilter;
+        }
+
+        @Override
+        public synchronized Object[] fetch(long tnOffset, int tnCount)
+        {
+            Object[] laRecords = new Object[(int)Math.min(tnCount, Math.max(0, m_nLength - tnOffset))];
+            int lnShard = 0;
+            for (int i = 0; i < laRecords.length; i++)
+            {
+                long lnIndex = tnOffset + i;
+                while (lnShard + 1 < m_aStarts.length && m_aStarts[lnShard + 1] <= lnIndex)
+                {
+                    lnShard++;
+                }
+                DataCursor<K> loCursor = m_oCursors.get(lnShard);
+                long lnPosition = lnIndex - m_aStarts[lnShard];
+                int lnShift = Integer.numberOfTrailingZeros(loCursor.getPageSize());
+                if ((lnPosition >>> lnShift) < (m_aPositions[lnShard] >>> lnShift))
+                {
+                    // Reading an earlier page again, starting the scan again lets the shard fetch it
+                    loCursor.setForwardOnly(false);
+                    loCursor.setForwardOnly(true);
+                }
+                m_aPositions[lnShard] = lnPosition;
+                laRecords[i] = loCursor.getValue(lnPosition);
+            }
+            return laRecords;
+        }
+
+        /**
+         * Checks if a range can be fetched again, a shard cursor keeps the pages it can not
+         * fetch again so every range can be read again through the shard cursors
+         * @return true
+         */
+        @Override
+        public boolean isRepeatable()
+        {
+            return true;
+        }
+
+        @Override
+        public void close()
+        {
+            for (DataCursor<K> loCursor : m_oCursors)
+            {
+                loCursor.close();
+            }
+        }
+    }
+}
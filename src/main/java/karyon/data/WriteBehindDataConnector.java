@@ -0,0 +1,692 @@
+package karyon.data;
+
+import karyon.applications.Application;
+import karyon.exceptions.DataAccessException;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Buffers the writes to another connector and writes them in the background.  A save is
+ * acknowledged once the values have been copied into the buffer, a later save of an object
+ * with the same key replaces the buffered values so only the last value is written.  This
+ * suits objects such as counters and statuses which are updated many times a second.
+ *
+ * A flusher thread writes the buffer to the connector in batches, once a batch is full or
+ * the flush interval has passed since the oldest write was buffered.  The buffer holds a
+ * limited number of objects, when it is full saves of new keys wait for the flusher, which
+ * slows writers to the speed of the connector.  Replacing an object already buffered never waits.
+ *
+ * Reads of a class first write its buffered objects so they are always seen.  Only classes
+ * given a key with setKey are buffered, other classes and transactional saves are written
+ * straight to the connector once the buffer has been written.  A failed background write
+ * is kept in the buffer and retried, unless a later save has replaced it, and is reported
+ * by the next call to flush.
+ */
+public class WriteBehindDataConnector
+    extends DataConnector
+    implements Closeable
+{
+    /**
+     * The default maximum number of objects buffered
+     */
+    public static final int DEFAULT_CAPACITY = 10000;
+
+    /**
+     * The default number of objects written to the connector in each batch
+     */
+    public static final int DEFAULT_BATCH_SIZE = 500;
+
+    /**
+     * The default longest time in milliseconds a write is buffered before it is flushed
+     */
+    public static final long DEFAULT_FLUSH_INTERVAL = 100;
+
+    /**
+     * Identifies a buffered object by its class and key
+     */
+    private static final class Key
+    {
+        private final Class<? extends DataObject> m_oClass;
+        private final Object m_oValue;
+
+        private Key(Class<? extends DataObject> toClass, Object toValue)
+        {
+            m_oClass = toClass;
+            m_oValue = toValue;
+        }
+
+        @Override
+        public boolean equals(Object toObject)
+        {
+            if (!(toObject instanceof Key))
+            {
+                return false;
+            }
+            Key loKey = (Key)toObject;
+            return m_oClass == loKey.m_oClass && m_oValue.equals(loKey.m_oValue);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return m_oClass.hashCode() * 31 + m_oValue.hashCode();
+        }
+    }
+
+    private final IDataConnector m_oConnector;
+    private final int m_nCapacity;
+    private final ConcurrentHashMap<Class<? extends DataObject>, Integer> m_oKeys;
+    private final LinkedHashMap<Key, Object[]> m_oBuffer;
+    private final HashMap<Class<? extends DataObject>, int[]> m_oCounts;
+    private final ReentrantLock m_oLock;
+    private final Condition m_oNotFull;
+    private final Condition m_oReady;
+    private final ReentrantLock m_oFlushLock;
+    private final AtomicLong m_nCoalesced;
+    private final AtomicLong m_nWritten;
+    private volatile int m_nBatchSize;
+    private volatile long m_nFlushInterval;
+    private volatile DataAccessException m_oFailure;
+    private Thread m_oFlusher;
+    private long m_nOldest;
+    private boolean m_lClosed;
+
+    /**
+     * Creates a new write behind connector with the default capacity
+     * @param toConnector the connector the objects are written to
+     */
+    public WriteBehindDataConnector(IDataConnector toConnector)
+    {
+        this(toConnector, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates a new write behind connector
+     * @param toConnector the connector the objects are written to
+     * @param tnCapacity the maximum number of objects buffered
+     */
+    public WriteBehindDataConnector(IDataConnector toConnector, int tnCapacity)
+    {
+        if (toConnector == null)
+        {
+            throw new IllegalArgumentException("toConnector must be specified");
+        }
+        if (tnCapacity <= 0)
+        {
+            throw new IllegalArgumentException("tnCapacity must be greater than 0");
+        }
+        m_oConnector = toConnector;
+        m_nCapacity = tnCapacity;
+        m_oKeys = new ConcurrentHashMap<Class<? extends DataObject>, Integer>();
+        m_oBuffer = new LinkedHashMap<Key, Object[]>();
+        m_oCounts = new HashMap<Class<? extends DataObject>, int[]>();
+        m_oLock = new ReentrantLock();
+        m_oNotFull = m_oLock.newCondition();
+        m_oReady = m_oLock.newCondition();
+        m_oFlushLock = new ReentrantLock();
+        m_nCoalesced = new AtomicLong();
+        m_nWritten = new AtomicLong();
+        m_nBatchSize = Math.min(DEFAULT_BATCH_SIZE, tnCapacity);
+        m_nFlushInterval = DEFAULT_FLUSH_INTERVAL;
+    }
+
+    /**
+     * Gets the connector the objects are written to
+     * @return the connector
+     */
+    public IDataConnector getConnector()
+    {
+        return m_oConnector;
+    }
+
+    /**
+     * Sets the property that identifies each object of the class, saves of the class are
+     * buffered and coalesced by this property from then on
+     * @param toClass the type of data object
+     * @param tcKeyField the property that identifies each object
+     */
+    public void setKey(Class<? extends DataObject> toClass, String tcKeyField)
+    {
+        int lnKeyField = DataSchema.getSchema(toClass).indexOf(tcKeyField);
+        if (lnKeyField < 0)
+        {
+            throw new IllegalArgumentException(tcKeyField + " is not a field of " + toClass.getName());
+        }
+        Integer lnPrevious = m_oKeys.putIfAbsent(toClass, lnKeyField);
+        if (lnPrevious != null && lnPrevious != lnKeyField)
+        {
+            throw new IllegalStateException(toClass.getName() + " is already keyed by " + DataSchema.getSchema(toClass).getName(lnPrevious));
+        }
+    }
+
+    /**
+     * Gets the maximum number of objects buffered
+     * @return the capacity
+     */
+    public int getCapacity()
+    {
+        return m_nCapacity;
+    }
+
+    /**
+     * Sets the number of objects that are written to the connector together, the flusher
+     * writes as soon as this many objects are buffered
+     * @param tnBatchSize the batch size, greater than 0
+     */
+    public void setBatchSize(int tnBatchSize)
+    {
+        if (tnBatchSize <= 0)
+        {
+            throw new IllegalArgumentException("tnBatchSize must be greater than 0");
+        }
+        m_nBatchSize = Math.min(tnBatchSize, m_nCapacity);
+    }
+
+    /**
+     * Gets the number of objects that are written to the connector together
+     * @return the batch size
+     */
+    public int getBatchSize()
+    {
+        return m_nBatchSize;
+    }
+
+    /**
+     * Sets the longest time a write is buffered before the flusher writes it, unless
+     * the connector is failing
+     * @param tnMillis the interval in milliseconds
+     */
+    public void setFlushInterval(long tnMillis)
+    {
+        m_nFlushInterval = Math.max(0, tnMillis);
+    }
+
+    /**
+     * Gets the longest time a write is buffered before the flusher writes it
+     * @return the interval in milliseconds
+     */
+    public long getFlushInterval()
+    {
+        return m_nFlushInterval;
+    }
+
+    /**
+     * Gets the number of objects buffered and not yet written
+     * @return the number of objects
+     */
+    public int getPendingCount()
+    {
+        m_oLock.lock();
+        try
+        {
+            return m_oBuffer.size();
+        }
+        finally
+        {
+            m_oLock.unlock();
+        }
+    }
+
+    /**
+     * Gets the number of saves that replaced an object already buffered
+     * @return the number of saves coalesced
+     */
+    public long getCoalescedCount()
+    {
+        return m_nCoalesced.get();
+    }
+
+    /**
+     * Gets the number of objects written to the connector from the buffer
+     * @return the number of objects written
+     */
+    public long getWrittenCount()
+    {
+        return m_nWritten.get();
+    }
+
+    /**
+     * Writes every buffered object to the connector and waits for the write to complete
+     * @throws DataAccessException if the objects could not be written, or the last
+     * background write failed
+     */
+    public void flush()
+            throws DataAccessException
+    {
+        DataAccessException loFailure = m_oFailure;
+        m_oFailure = null;
+        while (drain(null, m_nBatchSize) > 0)
+        {
+        }
+        if (loFailure != null)
+        {
+            throw loFailure;
+        }
+    }
+
+    /**
+     * Writes the objects buffered to the connector then stops the flusher.  Saves after
+     * the connector is closed are written straight to the connector
+     */
+    @Override
+    public void close()
+    {
+        Thread loFlusher;
+        m_oLock.lock();
+        try
+        {
+            m_lClosed = true;
+            loFlusher = m_oFlusher;
+            m_oReady.signalAll();
+            m_oNotFull.signalAll();
+        }
+        finally
+        {
+            m_oLock.unlock();
+        }
+        try
+        {
+            if (loFlusher != null)
+            {
+                loFlusher.join();
+            }
+            flush();
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+        }
+        catch (DataAccessException ex)
+        {
+            Application.log(ex);
+        }
+    }
+
+    @Override
+    public <K extends DataObject> DataCursor<K> get(Class<K> toClass, DataFilter toFilter)
+            throws DataAccessException
+    {
+        // Waits for a batch being written and writes the class, so the read sees every save
+        m_oFlushLock.lock();
+        try
+        {
+            while (drain(toClass, m_nBatchSize) > 0)
+            {
+            }
+        }
+        finally
+        {
+            m_oFlushLock.unlock();
+        }
+        return m_oConnector.get(toClass, toFilter);
+    }
+
+    @Override
+    public long save(Map<Class<? extends DataObject>, List<DataObject>> toObjects, boolean tlTransaction)
+            throws DataAccessException
+    {
+        Map<Class<? extends DataObject>, List<DataObject>> loDirect = new LinkedHashMap<Class<? extends DataObject>, List<DataObject>>();
+        Map<Class<? extends DataObject>, Object[][]> loBuffered = new LinkedHashMap<Class<? extends DataObject>, Object[][]>();
+        for (Map.Entry<Class<? extends DataObject>, List<DataObject>> loEntry : toObjects.entrySet())
+        {
+            Integer lnKeyField = m_oKeys.get(loEntry.getKey());
+            if (tlTransaction || lnKeyField == null)
+            {
+                loDirect.put(loEntry.getKey(), loEntry.getValue());
+                continue;
+            }
+            // The values are copied so the caller can change the objects once acknowledged
+            DataSchema<? extends DataObject> loSchema = DataSchema.getSchema(loEntry.getKey());
+            List<DataObject> loObjects = loEntry.getValue();
+            Object[][] laRecords = new Object[loObjects.size()][];
+            for (int i = 0; i < laRecords.length; i++)
+            {
+                laRecords[i] = loSchema.toValues(loObjects.get(i));
+                if (laRecords[i][lnKeyField] == null)
+                {
+                    throw new DataAccessException(loEntry.getKey(), new IllegalArgumentException("The key of a " + loEntry.getKey().getName() + " must not be null"));
+                }
+            }
+            loBuffered.put(loEntry.getKey(), laRecords);
+        }
+
+        long lnSaved = 0;
+        for (Map.Entry<Class<? extends DataObject>, Object[][]> loEntry : loBuffered.entrySet())
+        {
+            lnSaved += buffer(loEntry.getKey(), m_oKeys.get(loEntry.getKey()), loEntry.getValue());
+        }
+        if (!loDirect.isEmpty())
+        {
+            // Earlier buffered writes must reach the connector before a transaction that may depend on them
+            if (tlTransaction)
+            {
+                flush();
+            }
+            lnSaved += m_oConnector.save(loDirect, tlTransaction);
+        }
+        return lnSaved;
+    }
+
+    /**
+     * Writes the buffered objects of the classes then removes the objects from the connector,
+     * so a buffered save can not bring a removed object back
+     * @param toObjects the objects to remove keyed by class, each list only holds objects of that class
+     * @param tlTransaction true if every object must be removed in a single transaction
+     * @return the number of objects removed
+     * @throws DataAccessException if the buffer could not be written or the objects could not be removed
+     */
+    @Override
+    public long delete(Map<Class<? extends DataObject>, List<DataObject>> toObjects, boolean tlTransaction)
+            throws DataAccessException
+    {
+        m_oFlushLock.lock();
+        try
+        {
+            for (Class<? extends DataObject> loClass : toObjects.keySet())
+            {
+                while (drain(loClass, m_nBatchSize) > 0)
+                {
+                }
+            }
+            return m_oConnector.delete(toObjects, tlTransaction);
+        }
+        finally
+        {
+            m_oFlushLock.unlock();
+        }
+    }
+
+    /**
+     * Adds records to the buffer, waiting for space for records with new keys
+     * @param toClass the type of data object
+     * @param tnKeyField the key field of the class
+     * @param taRecords the values of the records
+     * @return the number of records buffered, records written because the connector was
+     * closed are included
+     * @throws DataAccessException if the thread was interrupted while waiting
+     */
+    private long buffer(Class<? extends DataObject> toClass, int tnKeyField, Object[][] taRecords)
+            throws DataAccessException
+    {
+        List<Object[]> loRemaining = null;
+        m_oLock.lock();
+        try
+        {
+            // Started before buffering as a full buffer waits for it
+            if (m_oFlusher == null && !m_lClosed)
+            {
+                m_oFlusher = new Thread(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        flushLoop();
+                    }
+                }, "WriteBehindDataConnector.flusher");
+                m_oFlusher.setDaemon(true);
+                m_oFlusher.start();
+            }
+            for (int i = 0; i < taRecords.length; i++)
+            {
+                Key loKey = new Key(toClass, taRecords[i][tnKeyField]);
+                while (!m_lClosed && m_oBuffer.size() >= m_nCapacity && !m_oBuffer.containsKey(loKey))
+                {
+                    try
+                    {
+                        m_oNotFull.await();
+                    }
+                    catch (InterruptedException ex)
+                    {
+                        Thread.currentThread().interrupt();
+                        throw new DataAccessException(toClass, ex);
+                    }
+                }
+                if (m_lClosed)
+                {
+                    loRemaining = new ArrayList<Object[]>();
+                    for (int j = i; j < taRecords.length; j++)
+                    {
+                        loRemaining.add(taRecords[j]);
+                    }
+                    break;
+                }
+                if (m_oBuffer.put(loKey, taRecords[i]) != null)
+                {
+                    m_nCoalesced.incrementAndGet();
+                    continue;
+                }
+                int[] laCount = m_oCounts.get(toClass);
+                if (laCount == null)
+                {
+                    laCount = new int[1];
+                    m_oCounts.put(toClass, laCount);
+                }
+                laCount[0]++;
+                if (m_oBuffer.size() == 1)
+                {
+                    m_nOldest = System.nanoTime();
+                    m_oReady.signal();
+                }
+                else if (m_oBuffer.size() == m_nBatchSize)
+                {
+                    m_oReady.signal();
+                }
+            }
+        }
+        finally
+        {
+            m_oLock.unlock();
+        }
+
+        if (loRemaining != null)
+        {
+            Map<Class<? extends DataObject>, List<DataObject>> loObjects = new HashMap<Class<? extends DataObject>, List<DataObject>>();
+            loObjects.put(toClass, toObjects(toClass, loRemaining));
+            m_oConnector.save(loObjects, false);
+        }
+        return taRecords.length;
+    }
+
+    /**
+     * Removes up to a batch of records from the buffer and writes them to the connector.
+     * Batches are written one at a time, so a later value of an object is never overtaken
+     * by an earlier one
+     * @param toClass the class to write, or null for any class
+     * @param tnCount the most records to write
+     * @return the number of records written
+     * @throws DataAccessException if the records could not be written, they are returned
+     * to the buffer unless a later save has replaced them
+     */
+    private int drain(Class<? extends DataObject> toClass, int tnCount)
+            throws DataAccessException
+    {
+        m_oFlushLock.lock();
+        try
+        {
+            LinkedHashMap<Key, Object[]> loBatch = new LinkedHashMap<Key, Object[]>();
+            m_oLock.lock();
+            try
+            {
+                int[] laCount = toClass == null ? null : m_oCounts.get(toClass);
+                if (m_oBuffer.isEmpty() || (toClass != null && (laCount == null || laCount[0] == 0)))
+                {
+                    return 0;
+                }
+                Iterator<Map.Entry<Key, Object[]>> loIterator = m_oBuffer.entrySet().iterator();
+                while (loIterator.hasNext() && loBatch.size() < tnCount)
+                {
+                    Map.Entry<Key, Object[]> loEntry = loIterator.next();
+                    if (toClass == null || loEntry.getKey().m_oClass == toClass)
+                    {
+                        loBatch.put(loEntry.getKey(), loEntry.getValue());
+                        m_oCounts.get(loEntry.getKey().m_oClass)[0]--;
+                        loIterator.remove();
+                    }
+                }
+                m_oNotFull.signalAll();
+            }
+            finally
+            {
+                m_oLock.unlock();
+            }
+
+            Map<Class<? extends DataObject>, List<Object[]>> loRecords = new LinkedHashMap<Class<? extends DataObject>, List<Object[]>>();
+            for (Map.Entry<Key, Object[]> loEntry : loBatch.entrySet())
+            {
+                List<Object[]> loClassRecords = loRecords.get(loEntry.getKey().m_oClass);
+                if (loClassRecords == null)
+                {
+                    loClassRecords = new ArrayList<Object[]>();
+                    loRecords.put(loEntry.getKey().m_oClass, loClassRecords);
+                }
+                loClassRecords.add(loEntry.getValue());
+            }
+            Map<Class<? extends DataObject>, List<DataObject>> loObjects = new LinkedHashMap<Class<? extends DataObject>, List<DataObject>>();
+            for (Map.Entry<Class<? extends DataObject>, List<Object[]>> loEntry : loRecords.entrySet())
+            {
+                loObjects.put(loEntry.getKey(), toObjects(loEntry.getKey(), loEntry.getValue()));
+            }
+
+            try
+            {
+                m_oConnector.save(loObjects, false);
+            }
+            catch (DataAccessException | RuntimeException ex)
+            {
+                restore(loBatch);
+                throw ex instanceof DataAccessException ? (DataAccessException)ex : new DataAccessException("Unable to write the buffered objects", ex);
+            }
+            m_nWritten.addAndGet(loBatch.size());
+            return loBatch.size();
+        }
+        finally
+        {
+            m_oFlushLock.unlock();
+        }
+    }
+
+    /**
+     * Returns a batch that could not be written to the buffer, records that have been
+     * saved again since are left with their later values
+     * @param toBatch the records of the batch
+     */
+    private void restore(Map<Key, Object[]> toBatch)
+    {
+        m_oLock.lock();
+        try
+        {
+            boolean llEmpty = m_oBuffer.isEmpty();
+            for (Map.Entry<Key, Object[]> loEntry : toBatch.entrySet())
+            {
+                if (!m_oBuffer.containsKey(loEntry.getKey()))
+                {
+                    m_oBuffer.put(loEntry.getKey(), loEntry.getValue());
+                    m_oCounts.get(loEntry.getKey().m_oClass)[0]++;
+                }
+            }
+            if (llEmpty && !m_oBuffer.isEmpty())
+            {
+                m_nOldest = System.nanoTime();
+            }
+        }
+        finally
+        {
+            m_oLock.unlock();
+        }
+    }
+
+    /**
+     * Creates data objects from buffered records
+     * @param toClass the type of data object
+     * @param toRecords the values of the records
+     * @return the data objects
+     */
+    private static List<DataObject> toObjects(Class<? extends DataObject> toClass, List<Object[]> toRecords)
+    {
+        DataSchema<? extends DataObject> loSchema = DataSchema.getSchema(toClass);
+        List<DataObject> loObjects = new ArrayList<DataObject>(toRecords.size());
+        for (Object[] laValues : toRecords)
+        {
+            DataObject loObject = loSchema.newInstance();
+            for (int i = 0; i < laValues.length; i++)
+            {
+                loSchema.setValue(loObject, i, laValues[i]);
+            }
+            loObjects.add(loObject);
+        }
+        return loObjects;
+    }
+
+    /**
+     * Run by the flusher thread, writes a batch once it is full or the oldest record has
+     * waited for the flush interval.  A failed write is retried after the flush interval
+     */
+    private void flushLoop()
+    {
+        while (true)
+        {
+            m_oLock.lock();
+            try
+            {
+                while (!m_lClosed)
+                {
+                    if (m_oBuffer.isEmpty())
+                    {
+                        m_oReady.await();
+                        continue;
+                    }
+                    long lnWait = m_nOldest + TimeUnit.MILLISECONDS.toNanos(m_nFlushInterval) - System.nanoTime();
+                    if (m_oBuffer.size() >= m_nBatchSize || lnWait <= 0)
+                    {
+                        break;
+                    }
+                    m_oReady.awaitNanos(lnWait);
+                }
+                if (m_lClosed)
+                {
+                    // The buffer is written by close
+                    return;
+                }
+            }
+            catch (InterruptedException ex)
+            {
+                return;
+            }
+            finally
+            {
+                m_oLock.unlock();
+            }
+
+            try
+            {
+                drain(null, m_nBatchSize);
+            }
+            catch (DataAccessException ex)
+            {
+                m_oFailure = ex;
+                Application.log(ex);
+                m_oLock.lock();
+                try
+                {
+                    // Retried once the interval has passed rather than straight away
+                    m_nOldest = System.nanoTime();
+                }
+                finally
+                {
+                    m_oLock.unlock();
+                }
+            }
+        }
+    }
+}
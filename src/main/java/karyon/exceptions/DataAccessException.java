@@ -0,0 +1,31 @@
+package karyon.exceptions;
+
+import karyon.data.DataObject;
+
+/**
+ * Data Access Exceptions occur when data could not be read from or written to a data store
+ */
+public class DataAccessException
+        extends karyon.exceptions.Exception
+{
+    /**
+     * Creates a new instance of DataAccessException
+     * @param tcMessage the description of the operation that failed
+     * @param toReason the error that occurred
+     */
+    public DataAccessException(String tcMessage, Throwable toReason)
+    {
+        super(tcMessage, toReason);
+    }
+
+    /**
+     * Creates a new instance of DataAccessException
+     * @param toDataObjectClass the type of data object being accessed
+     * @param toReason the error that occurred
+     * @param <K> the type of the data object
+     */
+    public <K extends DataObject> DataAccessException(Class<K> toDataObjectClass, Throwable toReason)
+    {
+        super("Unable to access " + toDataObjectClass.getName() + " data.", toReason);
+    }
+}
@@ -1,7 +1,28 @@
 package karyon.data;
 
+import karyon.Date;
+import karyon.exceptions.PropertyNotSetException;
 import karyon.testing.KaryonTest;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import static org.junit.Assert.*;
 
 /**
@@ -14,6 +35,92 @@ import static org.junit.Assert.*;
 public class DataCursorTest
         extends KaryonTest
 {
+    public static class TypedRecord
+        extends DataObject
+    {
+        private boolean m_lFlag;
+        private byte m_nByte;
+        private char m_cChar;
+        private short m_nShort;
+        private int m_nInt;
+        private long m_nLong;
+        private float m_nFloat;
+        private double m_nDouble;
+        private String m_cName;
+
+        public TypedRecord()
+        {
+        }
+
+        public TypedRecord(Map<String, Object> toValues)
+                throws PropertyNotSetException
+        {
+            super(toValues);
+        }
+    }
+
+    public static class BinaryRecord
+        extends DataObject
+    {
+        private byte[] m_aData;
+        private DataType m_eType;
+    }
+
+    /**
+     * Creates a page source returning the records specified
+     */
+    private static IDataPageSource createPageSource(final Object[] taRecords)
+    {
+        return new IDataPageSource()
+        {
+            @Override
+            public Object[] fetch(long tnOffset, int tnCount)
+            {
+                Object[] laPage = new Object[(int)Math.min(tnCount, taRecords.length - tnOffset)];
+                System.arraycopy(taRecords, (int)tnOffset, laPage, 0, laPage.length);
+                return laPage;
+            }
+
+            @Override
+            public boolean isRepeatable()
+            {
+                return true;
+            }
+        };
+    }
+
+    private static Object[] createRecords(int tnCount)
+    {
+        Object[] laRecords = new Object[tnCount];
+        for (int i = 0; i < tnCount; i++)
+        {
+            laRecords[i] = new Object[]{null, "Version " + i, (float)i};
+        }
+        return laRecords;
+    }
+
+    /**
+     * Creates a memory connector holding versions 0 to tnCount - 1, cursors from the
+     * connector are paged so their records are only loaded as they are read
+     */
+    private static MemoryDataConnector createConnector(int tnCount) throws Exception
+    {
+        MemoryDataConnector loConnector = new MemoryDataConnector();
+        loConnector.setKey(DataSourceVersion.class, "name");
+        List<DataObject> loVersions = new ArrayList<DataObject>();
+        for (int i = 0; i < tnCount; i++)
+        {
+            DataSourceVersion loVersion = new DataSourceVersion();
+            loVersion.setName("Version " + i);
+            loVersion.setVersion(i);
+            loVersions.add(loVersion);
+        }
+        Map<Class<? extends DataObject>, List<DataObject>> loObjects = new HashMap<Class<? extends DataObject>, List<DataObject>>();
+        loObjects.put(DataSourceVersion.class, loVersions);
+        loConnector.save(loObjects, false);
+        return loConnector;
+    }
+
     @Test
     public void testIsEmpty() throws Exception
     {
@@ -21,8 +128,852 @@ public class DataCursorTest
         DataCursor<DataSourceVersion> loCursor = new DataCursor<DataSourceVersion>(DataSourceVersion.class, new Object[0]);
         assertTrue(loCursor.isEmpty());
 
-        loCursor = new DataCursor<DataSourceVersion>(DataSourceVersion.class, new Object[]{1,2,3,4,5,6,7,8,9,10});
+        loCursor = new DataCursor<DataSourceVersion>(DataSourceVersion.class, createRecords(10));
+        assertFalse(loCursor.isEmpty());
+    }
+
+    @Test
+    public void testPaging() throws Exception
+    {
+        startMarker();
+        DataCursor<DataSourceVersion> loCursor = new DataCursor<DataSourceVersion>(DataSourceVersion.class, 10000, 1000);
+        assertEquals(1024, loCursor.getPageSize());
+        assertEquals(10000, loCursor.getLength());
+        assertEquals(0, loCursor.getAllocatedPages());
+
+        loCursor.setValue(0, new Object[]{null, "first", 1f});
+        loCursor.setValue(9999, new Object[]{null, "last", 2f});
+        assertEquals(2, loCursor.getAllocatedPages());
+        assertEquals("first", loCursor.getValue(0)[1]);
+        assertEquals("last", loCursor.getValue(9999)[1]);
+        assertNull(loCursor.getValue(5000));
+
+        Object[] laRecords = createRecords(10000);
+        for (int i = 0; i < laRecords.length; i++)
+        {
+            loCursor.setValue(i, laRecords[i]);
+        }
+        assertEquals(10, loCursor.getAllocatedPages());
+
+        // Without a page source released pages could not be read again, so none are released
+        loCursor.setForwardOnly(true);
+        assertEquals(0f, loCursor.getFloat(0, 2), 0f);
+        assertEquals(3000f, loCursor.getFloat(3000, 2), 0f);
+        assertEquals(10, loCursor.getAllocatedPages());
+        assertEquals(0, loCursor.release(0, loCursor.getLength()));
+        assertEquals("Version 0", loCursor.getValue(0)[1]);
+
+        loCursor.setPageSource(createPageSource(laRecords));
+        loCursor.update(0, new Object[]{null, "changed", 0f});
+        assertEquals(5000f, loCursor.getFloat(5000, 2), 0f);
+        assertEquals(8, loCursor.getAllocatedPages());
+        assertNull(loCursor.getValue(3000));
+
+        // Pages with unsaved changes are kept
+        assertEquals(7, loCursor.release(0, loCursor.getLength()));
+        assertEquals(1, loCursor.getAllocatedPages());
+        assertEquals("changed", loCursor.getValue(0)[1]);
+        assertTrue(loCursor.isModified(0));
+        assertTrue(loCursor.hasChanges());
+
+        // A source that can only be read once keeps its pages even when forward only
+        final Object[] laOnce = createRecords(10000);
+        final AtomicLong loFetches = new AtomicLong();
+        loCursor = new DataCursor<DataSourceVersion>(DataSourceVersion.class, 10000, 1000);
+        loCursor.setPageSource(new IDataPageSource()
+        {
+            @Override
+            public Object[] fetch(long tnOffset, int tnCount)
+            {
+                loFetches.incrementAndGet();
+                return Arrays.copyOfRange(laOnce, (int)tnOffset, (int)Math.min(laOnce.length, tnOffset + tnCount));
+            }
+
+            @Override
+            public boolean isRepeatable()
+            {
+                return false;
+            }
+        });
+        assertFalse(loCursor.isRefetchable());
+        loCursor.setForwardOnly(true);
+        for (int i = 0; i < loCursor.getLength(); i += loCursor.getPageSize())
+        {
+            assertEquals((float)i, loCursor.getFloat(i, 2), 0f);
+        }
+        assertEquals(0, loCursor.release(0, loCursor.getLength()));
+        assertEquals("Version 0", loCursor.getValue(0)[1]);
+        assertEquals(10, loFetches.get());
+    }
+
+    @Test
+    public void testColumns() throws Exception
+    {
+        startMarker();
+        DataSchema<DataSourceVersion> loSchema = DataSchema.getSchema(DataSourceVersion.class);
+        assertEquals(3, loSchema.getFieldCount());
+        assertEquals(DataType.FLOAT, loSchema.getType(loSchema.indexOf("version")));
+        assertEquals(DataType.OBJECT, loSchema.getType(loSchema.indexOf("name")));
+
+        DataSourceVersion loVersion = new DataSourceVersion();
+        loVersion.setName("from object");
+        loVersion.setVersion(.5f);
+        loVersion.setInstallDate(new Date());
+
+        java.util.HashMap<String, Object> loMap = new java.util.HashMap<String, Object>();
+        loMap.put("name", "from map");
+        loMap.put("version", 2d);
+
+        DataCursor<DataSourceVersion> loCursor = new DataCursor<DataSourceVersion>(DataSourceVersion.class, new Object[]{loVersion, loMap});
+        DataSourceVersion loFlyweight = loCursor.get(0);
+        assertNotSame(loVersion, loFlyweight);
+        assertEquals("from object", loFlyweight.getName());
+        assertEquals(.5f, loFlyweight.getVersion(), 0f);
+        assertEquals(loVersion.getInstallDate(), loFlyweight.getInstallDate());
+
+        assertSame(loFlyweight, loCursor.get(1));
+        assertEquals("from map", loFlyweight.getName());
+        assertEquals(2f, loFlyweight.getVersion(), 0f);
+        assertNull(loFlyweight.getInstallDate());
+    }
+
+    @Test
+    public void testNavigation() throws Exception
+    {
+        startMarker();
+        DataCursor<DataSourceVersion> loCursor = new DataCursor<DataSourceVersion>(DataSourceVersion.class, createRecords(100));
+        assertEquals(-1, loCursor.getPosition());
+        assertNull(loCursor.current());
+
+        DataSourceVersion loFlyweight = null;
+        int lnCount = 0;
+        while (loCursor.next())
+        {
+            if (loFlyweight == null)
+            {
+                loFlyweight = loCursor.current();
+            }
+            assertSame(loFlyweight, loCursor.current());
+            assertEquals(lnCount, loFlyweight.getVersion(), 0f);
+            lnCount++;
+        }
+        assertEquals(100, lnCount);
+        assertEquals(100, loCursor.getPosition());
+
+        assertTrue(loCursor.previous());
+        assertEquals("Version 99", loCursor.current().getName());
+        assertTrue(loCursor.seek(-49));
+        assertEquals("Version 50", loCursor.current().getName());
+        assertTrue(loCursor.absolute(10));
+        assertEquals(10f, loCursor.current().getVersion(), 0f);
+        assertFalse(loCursor.absolute(-5));
+        assertEquals(-1, loCursor.getPosition());
+        assertFalse(loCursor.previous());
+
+        lnCount = 0;
+        DataSourceVersion loLast = null;
+        for (DataSourceVersion loVersion : loCursor.objects())
+        {
+            assertNotSame(loLast, loVersion);
+            assertEquals(lnCount++, loVersion.getVersion(), 0f);
+            loLast = loVersion;
+        }
+        assertEquals(100, lnCount);
+
+        // Deleted records are skipped and paged cursors fetch their pages as they are reached
+        loCursor.delete(5);
+        lnCount = 0;
+        for (DataSourceVersion loVersion : loCursor.objects())
+        {
+            assertNotEquals(5f, loVersion.getVersion(), 0f);
+            lnCount++;
+        }
+        assertEquals(99, lnCount);
+        DataCursor<DataSourceVersion> loPaged = createConnector(10000).get(DataSourceVersion.class, null);
+        Set<String> loNames = new HashSet<String>();
+        for (DataSourceVersion loVersion : loPaged.objects())
+        {
+            loNames.add(loVersion.getName());
+        }
+        assertEquals(10000, loNames.size());
+    }
+
+    @Test
+    public void testView() throws Exception
+    {
+        startMarker();
+        DataCursor<DataSourceVersion> loCursor = new DataCursor<DataSourceVersion>(DataSourceVersion.class, createRecords(100));
+        DataView<DataSourceVersion> loView = loCursor.filter(DataFilter.greaterThanOrEqual("version", 50))
+                .filter(new IDataFilter<DataSourceVersion>()
+                {
+                    @Override
+                    public boolean accept(DataSourceVersion toObject)
+                    {
+                        return ((int)toObject.getVersion()) % 2 == 0;
+                    }
+                });
+        assertEquals(25, loView.count());
+        assertEquals(0, loView.modified().count());
+
+        assertTrue(loCursor.absolute(60));
+        loCursor.current().setName("Changed");
+        loCursor.update();
+        loCursor.update(61, new Object[]{null, "Changed", 61f});
+        assertTrue(loCursor.isModified(60));
+
+        java.util.List<String> loNames = new java.util.ArrayList<String>();
+        for (String lcName : loView.modified().map(new IDataMapper<DataSourceVersion, String>()
+        {
+            @Override
+            public String map(DataSourceVersion toObject)
+            {
+                return toObject.getName() + ":" + (int)toObject.getVersion();
+            }
+        }))
+        {
+            loNames.add(lcName);
+        }
+        assertEquals(java.util.Arrays.asList("Changed:60"), loNames);
+
+        assertEquals(2, loCursor.filter(DataFilter.equal("name", "Changed")).count());
+        assertEquals(50, loCursor.filter(DataFilter.lessThan("version", 50)).delete());
+        assertTrue(loCursor.isDeleted(0));
+        assertEquals(50, loCursor.view().count());
+        assertEquals(50, loCursor.view().deleted().count());
+    }
+
+    @Test
+    public void testViewPushDown() throws Exception
+    {
+        startMarker();
+        final DataCursor<DataSourceVersion> loFiltered = new DataCursor<DataSourceVersion>(DataSourceVersion.class, createRecords(3));
+        final DataFilter[] laReceived = new DataFilter[1];
+        DataCursor<DataSourceVersion> loCursor = new DataCursor<DataSourceVersion>(DataSourceVersion.class, createRecords(100));
+        loCursor.setSource(new DataConnector()
+        {
+            @Override
+            public <K extends DataObject> DataCursor<K> get(Class<K> toClass, DataFilter toFilter)
+            {
+                return null;
+            }
+
+            @Override
+            public long save(Map<Class<? extends DataObject>, List<DataObject>> toObjects, boolean tlTransaction)
+            {
+                return 0;
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public <K extends DataObject> DataCursor<K> filter(DataCursor<K> toCursor, DataFilter toFilter)
+            {
+                laReceived[0] = toFilter;
+                return (DataCursor<K>)loFiltered;
+            }
+        });
+
+        DataFilter loFilter = DataFilter.or(DataFilter.lessThan("version", 2), DataFilter.equal("name", "Version 99"));
+        assertEquals(3, loCursor.filter(loFilter).count());
+        assertEquals(loFilter, laReceived[0]);
+        assertEquals("(version < 2 OR name = 'Version 99')", loFilter.toString());
+
+        // Filtered locally once there are changes the data store does not know about
+        loCursor.delete(0);
+        assertEquals(2, loCursor.filter(loFilter).count());
+    }
+
+    @Test
+    public void testParallelForEach() throws Exception
+    {
+        startMarker();
+        DataCursor<DataSourceVersion> loCursor = new DataCursor<DataSourceVersion>(DataSourceVersion.class, 50000, 256);
+        Object[] laRecords = createRecords(50000);
+        for (int i = 0; i < laRecords.length; i++)
+        {
+            loCursor.setValue(i, laRecords[i]);
+        }
+        loCursor.delete(10);
+
+        final AtomicLong loCount = new AtomicLong();
+        final AtomicLong loSum = new AtomicLong();
+        loCursor.parallelForEach(new IDataVisitor<DataSourceVersion>()
+        {
+            @Override
+            public void visit(DataSourceVersion toObject)
+            {
+                loCount.incrementAndGet();
+                loSum.addAndGet((long)toObject.getVersion());
+            }
+        });
+        assertEquals(49999, loCount.get());
+        assertEquals(49999L * 50000 / 2 - 10, loSum.get());
+    }
+
+    @Test
+    public void testParallelForEachPaged() throws Exception
+    {
+        startMarker();
+        DataCursor<DataSourceVersion> loCursor = createConnector(10000).get(DataSourceVersion.class, null);
+        assertTrue(loCursor.isPaged());
+        assertEquals(0, loCursor.getAllocatedPages());
+
+        final AtomicLong loCount = new AtomicLong();
+        final AtomicLong loSum = new AtomicLong();
+        loCursor.parallelForEach(new IDataVisitor<DataSourceVersion>()
+        {
+            @Override
+            public void visit(DataSourceVersion toObject)
+            {
+                loCount.incrementAndGet();
+                loSum.addAndGet((long)toObject.getVersion());
+            }
+        });
+        assertEquals(10000, loCount.get());
+        assertEquals(9999L * 10000 / 2, loSum.get());
+
+        // Pages are fetched outside the lock, so the threads of a scan fetch different pages at the same time
+        final AtomicInteger loFetching = new AtomicInteger();
+        final AtomicInteger loMaxFetching = new AtomicInteger();
+        final IDataPageSource loSlow = createPageSource(createRecords(1024));
+        DataCursor<DataSourceVersion> loSlowCursor = new DataCursor<DataSourceVersion>(DataSourceVersion.class, 1024, 64);
+        loSlowCursor.setPageSource(new IDataPageSource()
+        {
+            @Override
+            public Object[] fetch(long tnOffset, int tnCount) throws Exception
+            {
+                int lnFetching = loFetching.incrementAndGet();
+                loMaxFetching.set(Math.max(loMaxFetching.get(), lnFetching));
+                Thread.sleep(20);
+                loFetching.decrementAndGet();
+                return loSlow.fetch(tnOffset, tnCount);
+            }
+
+            @Override
+            public boolean isRepeatable()
+            {
+                return true;
+            }
+        });
+        loCount.set(0);
+        ForkJoinPool loPool = new ForkJoinPool(4);
+        loSlowCursor.parallelForEach(new IDataVisitor<DataSourceVersion>()
+        {
+            @Override
+            public void visit(DataSourceVersion toObject)
+            {
+                loCount.incrementAndGet();
+            }
+        }, loPool);
+        loPool.shutdown();
+        assertEquals(1024, loCount.get());
+        assertTrue(loMaxFetching.get() > 1);
+    }
+
+    @Test
+    public void testPrefetch() throws Exception
+    {
+        startMarker();
+        final Set<String> loThreads = Collections.synchronizedSet(new HashSet<String>());
+        final AtomicLong loFetches = new AtomicLong();
+        DataCursor<DataSourceVersion> loCursor = new DataCursor<DataSourceVersion>(DataSourceVersion.class, 10000, 100);
+        loCursor.setPageSource(new IDataPageSource()
+        {
+            @Override
+            public Object[] fetch(long tnOffset, int tnCount) throws Exception
+            {
+                loThreads.add(Thread.currentThread().getName());
+                loFetches.incrementAndGet();
+                Object[] laRecords = new Object[tnCount];
+                for (int i = 0; i < tnCount; i++)
+                {
+                    laRecords[i] = new Object[]{null, "Version " + (tnOffset + i), (float)(tnOffset + i)};
+                }
+                return laRecords;
+            }
+
+            @Override
+            public boolean isRepeatable()
+            {
+                return true;
+            }
+        });
+
+        // Budget allows 4 pages of 128 records
+        long lnBudget = 4L * 128 * DataSchema.getSchema(DataSourceVersion.class).getRecordSize();
+        loCursor.setPrefetch(2, lnBudget);
+
+        long lnCount = 0;
+        while (loCursor.next())
+        {
+            assertEquals(lnCount++, loCursor.current().getVersion(), 0f);
+            assertTrue(loCursor.getAllocatedPages() <= 4);
+        }
+        assertEquals(10000, lnCount);
+        assertEquals(loCursor.getPageCount(), loFetches.get());
+        assertTrue(loThreads.contains("DataCursor.prefetch"));
+
+        // Released pages are fetched again
+        assertTrue(loCursor.absolute(0));
+        assertEquals("Version 0", loCursor.current().getName());
+    }
+
+    @Test
+    public void testKeysetPaging() throws Exception
+    {
+        startMarker();
+        final java.util.List<Object> loKeys = Collections.synchronizedList(new java.util.ArrayList<Object>());
+        DataCursor<DataSourceVersion> loCursor = new DataCursor<DataSourceVersion>(DataSourceVersion.class, 1000, 100);
+        loCursor.setPageSource(new IDataKeysetSource()
+        {
+            @Override
+            public Object[] fetchAfter(Object toAfterKey, int tnCount) throws Exception
+            {
+                loKeys.add(toAfterKey);
+                int lnFirst = toAfterKey == null ? 0 : ((Float)toAfterKey).intValue() + 1;
+                int lnCount = Math.min(tnCount, 1000 - lnFirst);
+                Object[] laRecords = new Object[lnCount];
+                for (int i = 0; i < lnCount; i++)
+                {
+                    laRecords[i] = new Object[]{null, "Version " + (lnFirst + i), (float)(lnFirst + i)};
+                }
+                return laRecords;
+            }
+        }, "version");
+        assertTrue(loCursor.isPaged());
+
+        // Jumping ahead walks the keys from the first page
+        assertTrue(loCursor.absolute(300));
+        assertEquals(300f, loCursor.current().getVersion(), 0f);
+        assertEquals(java.util.Arrays.<Object>asList(null, 127f, 255f), loKeys);
+
+        loCursor.setPrefetch(3, 0);
+        loCursor.beforeFirst();
+        long lnCount = 0;
+        while (loCursor.next())
+        {
+            assertEquals(lnCount++, loCursor.current().getVersion(), 0f);
+        }
+        assertEquals(1000, lnCount);
+        // Page 2 is still loaded, every other page is requested by the key of the page before it
+        assertEquals(10, loKeys.size());
+        assertEquals(new HashSet<Object>(java.util.Arrays.<Object>asList(null, 127f, 383f, 511f, 639f, 767f, 895f)), new HashSet<Object>(loKeys.subList(3, 10)));
+    }
+
+    @Test
+    public void testSpillToDisk() throws Exception
+    {
+        startMarker();
+        DataCursor<DataSourceVersion> loCursor = new DataCursor<DataSourceVersion>(DataSourceVersion.class, 10000, 100);
+        long lnBudget = 3L * 128 * DataSchema.getSchema(DataSourceVersion.class).getRecordSize();
+        loCursor.setSpillToDisk(lnBudget);
+
+        Date ldInstalled = new Date();
+        for (int i = 0; i < 10000; i++)
+        {
+            loCursor.setValue(i, new Object[]{ldInstalled, "Version " + i, (float)i});
+            assertTrue(loCursor.getAllocatedPages() <= 3);
+        }
+        assertEquals(loCursor.getPageCount() - 3, loCursor.getSpilledPages());
+
+        loCursor.update(5, new Object[]{ldInstalled, "Changed", 5f});
+
+        long lnCount = 0;
+        while (loCursor.next())
+        {
+            DataSourceVersion loVersion = loCursor.current();
+            assertEquals(lnCount, loVersion.getVersion(), 0f);
+            assertEquals(lnCount == 5 ? "Changed" : "Version " + lnCount, loVersion.getName());
+            assertEquals(ldInstalled, loVersion.getInstallDate());
+            assertTrue(loCursor.getAllocatedPages() <= 3);
+            lnCount++;
+        }
+        assertEquals(10000, lnCount);
+        assertTrue(loCursor.isModified(5));
+
+        loCursor.close();
+        assertEquals(0, loCursor.getSpilledPages());
+        assertEquals(0, loCursor.getAllocatedPages());
+
+        // The slot of a page that changes is used again, so spilling the page again does not grow the file
+        DataSpillFile loFile = new DataSpillFile(null);
+        DataPage loPage = new DataPage(DataSchema.getSchema(DataSourceVersion.class), 128);
+        for (int i = 0; i < 128; i++)
+        {
+            loPage.set(i, new Object[]{ldInstalled, "Version " + i, (float)i});
+        }
+        long lnFirst = loFile.write(loPage);
+        long lnSecond = loFile.write(loPage);
+        long lnLength = loFile.getLength();
+        for (int i = 0; i < 100; i++)
+        {
+            loFile.free(lnFirst);
+            loPage.set(0, new Object[]{ldInstalled, "Version " + (i % 10), 0f});
+            assertEquals(lnFirst, loFile.write(loPage));
+        }
+        assertEquals(lnLength, loFile.getLength());
+        assertEquals("Version 9", loFile.read(DataSchema.getSchema(DataSourceVersion.class), lnFirst).get(0)[1]);
+        assertEquals("Version 127", loFile.read(DataSchema.getSchema(DataSourceVersion.class), lnSecond).get(127)[1]);
+        loFile.free(lnFirst);
+        loFile.free(lnSecond);
+        assertEquals(0, loFile.getLength());
+        loFile.close();
+    }
+
+    @Test
+    public void testAccessors() throws Exception
+    {
+        startMarker();
+        HashMap<String, Object> loValues = new HashMap<String, Object>();
+        loValues.put("flag", true);
+        loValues.put("byte", 1);
+        loValues.put("char", 'c');
+        loValues.put("short", 3);
+        loValues.put("int", 4L);
+        loValues.put("long", 5);
+        loValues.put("float", 6.5d);
+        loValues.put("double", 7.5f);
+        loValues.put("name", "Typed");
+        loValues.put("unknown", "Ignored");
+        TypedRecord loRecord = new TypedRecord(loValues);
+        assertTrue(loRecord.m_lFlag);
+        assertEquals(1, loRecord.m_nByte);
+        assertEquals('c', loRecord.m_cChar);
+        assertEquals(3, loRecord.m_nShort);
+        assertEquals(4, loRecord.m_nInt);
+        assertEquals(5L, loRecord.m_nLong);
+        assertEquals(6.5f, loRecord.m_nFloat, 0f);
+        assertEquals(7.5d, loRecord.m_nDouble, 0d);
+        assertEquals("Typed", loRecord.m_cName);
+
+        // Objects are copied in and out of the cursor columns through the accessors
+        DataCursor<TypedRecord> loCursor = new DataCursor<TypedRecord>(TypedRecord.class, new Object[]{loRecord});
+        assertTrue(loCursor.getBoolean(0, 0));
+        assertEquals(1, loCursor.getByte(0, 1));
+        assertEquals('c', loCursor.getChar(0, 2));
+        assertEquals(3, loCursor.getShort(0, 3));
+        assertEquals(4, loCursor.getInt(0, 4));
+        assertEquals(6.5f, loCursor.getFloat(0, 6), 0f);
+        TypedRecord loCopy = loCursor.get(0);
+        assertNotSame(loRecord, loCopy);
+        assertArrayEquals(loCursor.getSchema().toValues(loRecord), loCursor.getSchema().toValues(loCopy));
+
+        DataSchema<TypedRecord> loSchema = DataSchema.getSchema(TypedRecord.class);
+        loSchema.setValue(loCopy, loSchema.indexOf("long"), null);
+        assertEquals(0L, loSchema.getValue(loCopy, loSchema.indexOf("long")));
+        assertNotNull(loSchema.newInstance());
+    }
+
+    @Test
+    public void testPublish() throws Exception
+    {
+        startMarker();
+        final AtomicLong loFetches = new AtomicLong();
+        final DataCursor<DataSourceVersion> loCursor = new DataCursor<DataSourceVersion>(DataSourceVersion.class, 10000, 100);
+        loCursor.setPageSource(new IDataPageSource()
+        {
+            @Override
+            public Object[] fetch(long tnOffset, int tnCount) throws Exception
+            {
+                loFetches.incrementAndGet();
+                Object[] laRecords = new Object[tnCount];
+                for (int i = 0; i < tnCount; i++)
+                {
+                    laRecords[i] = new Object[]{null, "Version " + (tnOffset + i), (float)(tnOffset + i)};
+                }
+                return laRecords;
+            }
+
+            @Override
+            public boolean isRepeatable()
+            {
+                return true;
+            }
+        });
+
+        final List<DataSourceVersion> loReceived = Collections.synchronizedList(new ArrayList<DataSourceVersion>());
+        final IDataSubscription[] laSubscription = new IDataSubscription[1];
+        final CountDownLatch loFirst = new CountDownLatch(200);
+        final CountDownLatch loComplete = new CountDownLatch(1);
+        IDataPublisher<DataSourceVersion> loPublisher = loCursor.publish();
+        loPublisher.subscribe(new IDataSubscriber<DataSourceVersion>()
+        {
+            @Override
+            public void onSubscribe(IDataSubscription toSubscription)
+            {
+                laSubscription[0] = toSubscription;
+                toSubscription.request(200);
+            }
+
+            @Override
+            public void onNext(DataSourceVersion toObject)
+            {
+                loReceived.add(toObject);
+                loFirst.countDown();
+            }
+
+            @Override
+            public void onError(Throwable toError)
+            {
+            }
+
+            @Override
+            public void onComplete()
+            {
+                loComplete.countDown();
+            }
+        });
+
+        // Only the pages holding the records asked for are fetched
+        assertTrue(loFirst.await(10, TimeUnit.SECONDS));
+        Thread.sleep(50);
+        assertEquals(200, loReceived.size());
+        assertEquals(2, loFetches.get());
+        assertTrue(loCursor.isForwardOnly());
+
+        laSubscription[0].request(Long.MAX_VALUE);
+        assertTrue(loComplete.await(10, TimeUnit.SECONDS));
+        assertEquals(10000, loReceived.size());
+        assertEquals(loCursor.getPageCount(), loFetches.get());
+        for (int i = 0; i < loReceived.size(); i++)
+        {
+            assertEquals(i, loReceived.get(i).getVersion(), 0f);
+        }
+        assertEquals(0, loCursor.getAllocatedPages());
+
+        // The records can only be published once
+        final Throwable[] laError = new Throwable[1];
+        loPublisher.subscribe(new IDataSubscriber<DataSourceVersion>()
+        {
+            @Override
+            public void onSubscribe(IDataSubscription toSubscription)
+            {
+            }
+
+            @Override
+            public void onNext(DataSourceVersion toObject)
+            {
+            }
+
+            @Override
+            public void onError(Throwable toError)
+            {
+                laError[0] = toError;
+            }
+
+            @Override
+            public void onComplete()
+            {
+            }
+        });
+        assertTrue(laError[0] instanceof IllegalStateException);
+
+        // Cursors with unsaved changes are refused rather than closed
+        DataCursor<DataSourceVersion> loChanged = new DataCursor<DataSourceVersion>(DataSourceVersion.class, createRecords(10));
+        loChanged.delete(0);
+        laError[0] = null;
+        loChanged.publish().subscribe(new IDataSubscriber<DataSourceVersion>()
+        {
+            @Override
+            public void onSubscribe(IDataSubscription toSubscription)
+            {
+                toSubscription.request(Long.MAX_VALUE);
+            }
+
+            @Override
+            public void onNext(DataSourceVersion toObject)
+            {
+            }
+
+            @Override
+            public void onError(Throwable toError)
+            {
+                laError[0] = toError;
+            }
+
+            @Override
+            public void onComplete()
+            {
+            }
+        });
+        assertTrue(laError[0] instanceof IllegalStateException);
+        assertTrue(loChanged.isDeleted(0));
+        assertEquals("Version 1", loChanged.getValue(1)[1]);
+    }
+
+    @Test
+    public void testJson() throws Exception
+    {
+        startMarker();
+        final DataSchema<TypedRecord> loSchema = DataSchema.getSchema(TypedRecord.class);
+        Object[] laRecords = new Object[3];
+        for (int i = 0; i < laRecords.length; i++)
+        {
+            laRecords[i] = new Object[]{i % 2 == 0, (byte)i, (char)('a' + i), (short)(i * 2), i * 3, i * 10000000000L, i + 0.5f, i + 0.25d, i == 1 ? null : "Typed \"" + i + "\""};
+        }
+        DataCursor<TypedRecord> loCursor = new DataCursor<TypedRecord>(TypedRecord.class, laRecords);
+        loCursor.delete(2);
+
+        ByteArrayOutputStream loStream = new ByteArrayOutputStream();
+        assertEquals(2, DataJson.write(loCursor, loStream));
+        String lcJson = loStream.toString("UTF-8");
+        assertTrue(lcJson.startsWith("[{\"flag\":true,\"byte\":0,\"char\":\"a\""));
+        assertTrue(lcJson.contains("\"name\":null"));
+        assertEquals(lcJson, new ObjectMapper().registerModule(DataJson.createModule()).writeValueAsString(
+                new DataCursor<TypedRecord>(TypedRecord.class, new Object[]{laRecords[0], laRecords[1]})));
+
+        // Records are read back in to a single instance, unknown properties are skipped
+        final List<Object[]> loRead = new ArrayList<Object[]>();
+        String lcInput = lcJson.replace("\"flag\":true,", "\"flag\":true,\"unknown\":{\"nested\":[1,2]},");
+        assertEquals(2, DataJson.read(new ByteArrayInputStream(lcInput.getBytes("UTF-8")), TypedRecord.class, new IDataVisitor<TypedRecord>()
+        {
+            @Override
+            public void visit(TypedRecord toObject)
+            {
+                loRead.add(loSchema.toValues(toObject));
+            }
+        }));
+        assertArrayEquals((Object[])laRecords[0], loRead.get(0));
+        assertArrayEquals((Object[])laRecords[1], loRead.get(1));
+
+        // Dates are written as milliseconds
+        DataSourceVersion loVersion = new DataSourceVersion();
+        loVersion.setInstallDate(new Date(1000));
+        loStream.reset();
+        DataJson.write(new DataCursor<DataSourceVersion>(DataSourceVersion.class, new Object[]{loVersion}), loStream);
+        final DataSourceVersion[] laVersion = new DataSourceVersion[1];
+        DataJson.read(new ByteArrayInputStream(loStream.toByteArray()), DataSourceVersion.class, new IDataVisitor<DataSourceVersion>()
+        {
+            @Override
+            public void visit(DataSourceVersion toObject)
+            {
+                laVersion[0] = toObject;
+            }
+        });
+        assertEquals(1000, laVersion[0].getInstallDate().getTime());
+
+        // Byte arrays are written as base64 and enums by name
+        DataSchema<BinaryRecord> loBinarySchema = DataSchema.getSchema(BinaryRecord.class);
+        loStream.reset();
+        DataJson.write(new DataCursor<BinaryRecord>(BinaryRecord.class, new Object[]{new Object[]{new byte[]{1, 2, 3}, DataType.DOUBLE}}), loStream);
+        assertEquals("[{\"data\":\"AQID\",\"type\":\"DOUBLE\"}]", loStream.toString("UTF-8"));
+        final List<Object[]> loBinary = new ArrayList<Object[]>();
+        DataJson.read(new ByteArrayInputStream(loStream.toByteArray()), BinaryRecord.class, new IDataVisitor<BinaryRecord>()
+        {
+            @Override
+            public void visit(BinaryRecord toObject)
+            {
+                loBinary.add(DataSchema.getSchema(BinaryRecord.class).toValues(toObject));
+            }
+        });
+        assertArrayEquals(new byte[]{1, 2, 3}, (byte[])loBinary.get(0)[loBinarySchema.indexOf("data")]);
+        assertEquals(DataType.DOUBLE, loBinary.get(0)[loBinarySchema.indexOf("type")]);
+
+        // Writing a paged cursor leaves its mode and unsaved changes as they were
+        DataCursor<DataSourceVersion> loPaged = new DataCursor<DataSourceVersion>(DataSourceVersion.class, 12, 4);
+        loPaged.setPageSource(createPageSource(createRecords(12)));
+        assertEquals("Version 0", loPaged.getValue(0)[1]);
+        loPaged.update(0, new Object[]{null, "changed", 0f});
+        loStream.reset();
+        assertEquals(12, DataJson.write(loPaged, loStream));
+        assertFalse(loPaged.isForwardOnly());
+        assertEquals("changed", loPaged.getValue(0)[1]);
+        assertTrue(loPaged.isModified(0));
+        assertEquals("Version 5", loPaged.getValue(5)[1]);
+    }
+
+    @Test
+    public void testCodec() throws Exception
+    {
+        startMarker();
+        DataCodec<TypedRecord> loCodec = DataCodec.getCodec(TypedRecord.class);
+        assertSame(loCodec, DataCodec.getCodec(TypedRecord.class));
+        final DataSchema<TypedRecord> loSchema = loCodec.getSchema();
+
+        Object[] laRecords = new Object[1000];
+        for (int i = 0; i < laRecords.length; i++)
+        {
+            laRecords[i] = new Object[]{i % 2 == 0, (byte)i, (char)('a' + i % 26), (short)-i, -i * 3, i * 10000000000L, i + 0.5f, i + 0.25d, i % 7 == 0 ? null : "Typed " + i % 10};
+        }
+
+        // Values and objects round trip, repeated strings are written as dictionary indexes
+        DataCodec.Writer loWriter = new DataCodec.Writer();
+        TypedRecord loObject = loSchema.newInstance();
+        loSchema.setValues(loObject, Collections.<String, Object>singletonMap("name", "Typed 1"));
+        loCodec.write(loWriter, (Object[])laRecords[1]);
+        int lnFirst = loWriter.getLength();
+        loCodec.write(loWriter, (Object[])laRecords[1]);
+        assertTrue(loWriter.getLength() - lnFirst < lnFirst);
+        loCodec.write(loWriter, loObject);
+        DataCodec.Reader loReader = new DataCodec.Reader(loWriter.toByteArray());
+        loWriter.close();
+        assertArrayEquals((Object[])laRecords[1], loCodec.read(loReader));
+        assertArrayEquals((Object[])laRecords[1], loCodec.read(loReader));
+        TypedRecord loRead = loSchema.newInstance();
+        loCodec.read(loReader, loRead);
+        assertArrayEquals(loSchema.toValues(loObject), loSchema.toValues(loRead));
+        assertFalse(loReader.hasRemaining());
+        assertArrayEquals((Object[])laRecords[0], loCodec.decode(loCodec.encode((Object[])laRecords[0])));
+
+        // Cursors are transferred in blocks, deleted records are skipped
+        DataCursor<TypedRecord> loCursor = new DataCursor<TypedRecord>(TypedRecord.class, laRecords);
+        loCursor.delete(3);
+        ByteArrayOutputStream loStream = new ByteArrayOutputStream();
+        assertEquals(999, loCodec.write(loCursor, loStream));
+        final List<Object[]> loValues = new ArrayList<Object[]>();
+        assertEquals(999, loCodec.read(new ByteArrayInputStream(loStream.toByteArray()), new IDataVisitor<TypedRecord>()
+        {
+            @Override
+            public void visit(TypedRecord toObject)
+            {
+                loValues.add(loSchema.toValues(toObject));
+            }
+        }));
+        assertArrayEquals((Object[])laRecords[2], loValues.get(2));
+        assertArrayEquals((Object[])laRecords[4], loValues.get(3));
+        assertArrayEquals((Object[])laRecords[999], loValues.get(998));
+        assertFalse(loCursor.isForwardOnly());
+        assertArrayEquals((Object[])laRecords[0], loCursor.getValue(0));
+
+        // Writing a paged cursor leaves its mode and unsaved changes as they were
+        DataCursor<DataSourceVersion> loPaged = new DataCursor<DataSourceVersion>(DataSourceVersion.class, 12, 4);
+        loPaged.setPageSource(createPageSource(createRecords(12)));
+        assertEquals("Version 0", loPaged.getValue(0)[1]);
+        loPaged.update(0, new Object[]{null, "changed", 0f});
+        assertEquals(12, DataCodec.getCodec(DataSourceVersion.class).write(loPaged, new ByteArrayOutputStream()));
+        assertFalse(loPaged.isForwardOnly());
+        assertEquals("changed", loPaged.getValue(0)[1]);
+        assertTrue(loPaged.isModified(0));
+        assertEquals("Version 5", loPaged.getValue(5)[1]);
+
+        // Far smaller than Java serialization of the same values
+        ByteArrayOutputStream loSerialized = new ByteArrayOutputStream();
+        ObjectOutputStream loOutput = new ObjectOutputStream(loSerialized);
+        loOutput.writeObject(laRecords);
+        loOutput.close();
+        assertTrue(loStream.size() * 3 < loSerialized.size());
 
+        // A stream written for a different layout is refused
+        try
+        {
+            DataCodec.getCodec(DataSourceVersion.class).read(new ByteArrayInputStream(loStream.toByteArray()), new IDataVisitor<DataSourceVersion>()
+            {
+                @Override
+                public void visit(DataSourceVersion toObject)
+                {
+                }
+            });
+            fail("Expected the layout to be refused");
+        }
+        catch (IOException ex)
+        {
+            assertTrue(ex.getMessage().contains("different layout"));
+        }
 
+        // Dates keep their class
+        DataSourceVersion loVersion = new DataSourceVersion();
+        loVersion.setInstallDate(new Date(1000));
+        Object[] laVersion = DataCodec.getCodec(DataSourceVersion.class).decode(
+                DataCodec.getCodec(DataSourceVersion.class).encode(DataSchema.getSchema(DataSourceVersion.class).toValues(loVersion)));
+        assertEquals(loVersion.getInstallDate(), laVersion[DataSchema.getSchema(DataSourceVersion.class).indexOf("installDate")]);
     }
 }
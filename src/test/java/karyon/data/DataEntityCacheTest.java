@@ -0,0 +1,128 @@
+package karyon.data;
+
+import karyon.testing.KaryonTest;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class DataEntityCacheTest
+        extends KaryonTest
+{
+    private static DataManagerTest.SaveRecord createRecord(int tnValue)
+    {
+        return new DataManagerTest.SaveRecord("Cached " + tnValue, tnValue);
+    }
+
+    @Test
+    public void testGet() throws Exception
+    {
+        startMarker();
+        DataEntityCache<DataManagerTest.SaveRecord> loCache = new DataEntityCache<DataManagerTest.SaveRecord>(DataManagerTest.SaveRecord.class, "name", 10, 0);
+        assertNull(loCache.get("Cached 1"));
+        assertEquals(1, loCache.getMisses());
+
+        DataManagerTest.SaveRecord loRecord = createRecord(1);
+        loCache.put(loRecord);
+        assertEquals("Cached 1", loCache.getKey(loRecord));
+        DataManagerTest.SaveRecord loCached = loCache.getObject("Cached 1");
+        assertNotSame(loRecord, loCached);
+        DataSchema<DataManagerTest.SaveRecord> loSchema = DataSchema.getSchema(DataManagerTest.SaveRecord.class);
+        assertEquals(1, loSchema.getValue(loCached, loSchema.indexOf("value")));
+        assertEquals(1, loCache.getHits());
+
+        loCache.invalidate("Cached 1");
+        assertNull(loCache.get("Cached 1"));
+        assertEquals(0, loCache.getSize());
+    }
+
+    @Test
+    public void testFilterKey() throws Exception
+    {
+        startMarker();
+        DataEntityCache<DataManagerTest.SaveRecord> loCache = new DataEntityCache<DataManagerTest.SaveRecord>(DataManagerTest.SaveRecord.class, "value", 10, 0);
+        loCache.put(createRecord(5));
+
+        // Numbers are converted to the type of the key, so a long filter value finds an int key
+        Object[] laKey = loCache.getKey(DataFilter.equal("value", 5L));
+        assertEquals(Integer.valueOf(5), laKey[0]);
+        assertNotNull(loCache.get(laKey[0]));
+        assertEquals(Integer.valueOf(5), loCache.getKey(DataFilter.equal("VALUE", 5d))[0]);
+        assertNull(loCache.getKey(DataFilter.equal("value", 5.5d)));
+        assertNull(loCache.getKey(DataFilter.lessThan("value", 5)));
+        assertNull(loCache.getKey(DataFilter.equal("name", "Cached 5")));
+    }
+
+    @Test
+    public void testFrequencyEviction() throws Exception
+    {
+        startMarker();
+        DataEntityCache<DataManagerTest.SaveRecord> loCache = new DataEntityCache<DataManagerTest.SaveRecord>(DataManagerTest.SaveRecord.class, "name", 100, 0);
+        for (int i = 0; i < 50; i++)
+        {
+            loCache.put(createRecord(i));
+            for (int j = 0; j < 5; j++)
+            {
+                loCache.get("Cached " + i);
+            }
+        }
+
+        // A scan of records used once does not push out the records in regular use
+        for (int i = 1000; i < 2000; i++)
+        {
+            loCache.put(createRecord(i));
+        }
+        assertEquals(100, loCache.getSize());
+        assertEquals(950, loCache.getEvictions());
+        for (int i = 0; i < 50; i++)
+        {
+            assertNotNull(loCache.get("Cached " + i));
+        }
+    }
+
+    @Test
+    public void testExpiry() throws Exception
+    {
+        startMarker();
+        DataEntityCache<DataManagerTest.SaveRecord> loCache = new DataEntityCache<DataManagerTest.SaveRecord>(DataManagerTest.SaveRecord.class, "name", 10, 20);
+        loCache.put(createRecord(1));
+        assertNotNull(loCache.get("Cached 1"));
+        Thread.sleep(40);
+        assertNull(loCache.get("Cached 1"));
+        assertEquals(0, loCache.getSize());
+    }
+
+    @Test
+    public void testWriteStamp() throws Exception
+    {
+        startMarker();
+        DataEntityCache<DataManagerTest.SaveRecord> loCache = new DataEntityCache<DataManagerTest.SaveRecord>(DataManagerTest.SaveRecord.class, "name", 10, 0);
+        DataSchema<DataManagerTest.SaveRecord> loSchema = DataSchema.getSchema(DataManagerTest.SaveRecord.class);
+
+        // A value read before a write is not cached over the write
+        long lnStamp = loCache.getWriteStamp();
+        loCache.invalidate("Cached 1");
+        assertFalse(loCache.put(loSchema.toValues(createRecord(1)), lnStamp));
+        assertTrue(loCache.put(loSchema.toValues(createRecord(1)), loCache.getWriteStamp()));
+        assertNotNull(loCache.get("Cached 1"));
+    }
+
+    @Test
+    public void testCompact() throws Exception
+    {
+        startMarker();
+        DataEntityCache<DataManagerTest.SaveRecord> loCache = new DataEntityCache<DataManagerTest.SaveRecord>(DataManagerTest.SaveRecord.class, "name", 10, 0, true);
+        DataManagerTest.SaveRecord loRecord = createRecord(7);
+        loCache.put(loRecord);
+        DataSchema<DataManagerTest.SaveRecord> loSchema = DataSchema.getSchema(DataManagerTest.SaveRecord.class);
+        assertArrayEquals(loSchema.toValues(loRecord), loCache.get("Cached 7"));
+        assertNotSame(loCache.get("Cached 7"), loCache.get("Cached 7"));
+        assertEquals(7, loSchema.getValue(loCache.getObject("Cached 7"), loSchema.indexOf("value")));
+
+        DataQueryCache<DataManagerTest.SaveRecord> loQueries = new DataQueryCache<DataManagerTest.SaveRecord>(DataManagerTest.SaveRecord.class, 10, 100, 0, true);
+        DataFilter loFilter = DataFilter.equal("value", 7);
+        assertTrue(loQueries.put(loFilter, new DataCursor<DataManagerTest.SaveRecord>(DataManagerTest.SaveRecord.class, new Object[]{loRecord, createRecord(8)}), loQueries.getVersion()));
+        DataCursor<DataManagerTest.SaveRecord> loCursor = loQueries.get(loFilter);
+        assertEquals(2, loCursor.getLength());
+        assertEquals("Cached 8", loCursor.getValue(1, loSchema.indexOf("name")));
+    }
+}
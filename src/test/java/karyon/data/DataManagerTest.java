@@ -4,8 +4,30 @@ import karyon.applications.Application;
 import karyon.Date;
 import karyon.testing.KaryonTest;
 import karyon.Version;
+import karyon.exceptions.DataAccessException;
 import org.junit.*;
 
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import static org.junit.Assert.*;
 
 /**
@@ -18,6 +40,89 @@ import static org.junit.Assert.*;
 public class DataManagerTest
         extends KaryonTest
 {
+    public static class SaveRecord
+        extends DataObject
+    {
+        private static int g_nBeforeSave;
+        private static int g_nAfterSave;
+
+        private String m_cName;
+        private int m_nValue;
+
+        public SaveRecord()
+        {
+        }
+
+        public SaveRecord(String tcName, int tnValue)
+        {
+            m_cName = tcName;
+            m_nValue = tnValue;
+        }
+
+        @Override
+        protected boolean onValidate()
+        {
+            return m_cName != null;
+        }
+
+        @Override
+        protected boolean beforeSave()
+        {
+            g_nBeforeSave++;
+            return m_nValue >= 0;
+        }
+
+        @Override
+        protected void afterSave()
+        {
+            g_nAfterSave++;
+        }
+    }
+
+    /**
+     * A shard holding its objects in memory, counting the requests it receives
+     */
+    private static class MemoryShard
+        extends DataConnector
+    {
+        private final List<DataObject> m_oObjects = new ArrayList<DataObject>();
+        private final AtomicInteger m_nGets = new AtomicInteger();
+        private volatile boolean m_lFail;
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public synchronized <K extends DataObject> DataCursor<K> get(Class<K> toClass, DataFilter toFilter)
+        {
+            m_nGets.incrementAndGet();
+            if (m_lFail)
+            {
+                throw new IllegalStateException("The shard is unavailable");
+            }
+            List<Object> loMatches = new ArrayList<Object>();
+            for (DataObject loObject : m_oObjects)
+            {
+                DataSchema<K> loSchema = DataSchema.getSchema(toClass);
+                if (toFilter == null || toFilter.getValue().equals(loSchema.getValue(loObject, loSchema.indexOf(toFilter.getField()))))
+                {
+                    loMatches.add(loObject);
+                }
+            }
+            return new DataCursor<K>(toClass, loMatches.toArray());
+        }
+
+        @Override
+        public synchronized long save(Map<Class<? extends DataObject>, List<DataObject>> toObjects, boolean tlTransaction)
+        {
+            long lnSaved = 0;
+            for (List<DataObject> loObjects : toObjects.values())
+            {
+                m_oObjects.addAll(loObjects);
+                lnSaved += loObjects.size();
+            }
+            return lnSaved;
+        }
+    }
+
     @BeforeClass
     public static void setUp()
     {
@@ -146,4 +251,900 @@ public class DataManagerTest
         assertSame(loConnector, loManager.getConnector(lcKey));
     }
 
+    @Test
+    public void testGet() throws Exception
+    {
+        startMarker();
+        Connection loConnection = DriverManager.getConnection(TestDataConnector.URL);
+        try
+        {
+            Statement loStatement = loConnection.createStatement();
+            loStatement.execute("CREATE TABLE DataSourceVersion (installDate TIMESTAMP, name VARCHAR(64), version REAL)");
+            PreparedStatement loInsert = loConnection.prepareStatement("INSERT INTO DataSourceVersion VALUES (?, ?, ?)");
+            for (int i = 0; i < 250; i++)
+            {
+                loInsert.setTimestamp(1, new Timestamp(i * 1000L));
+                loInsert.setString(2, "Version " + i);
+                loInsert.setFloat(3, i);
+                loInsert.addBatch();
+            }
+            loInsert.executeBatch();
+
+            TestDataConnector loConnector = new TestDataConnector();
+            loConnector.setFetchSize(64);
+            DataManager loManager = DataManager.getInstance();
+            loManager.registerConnector("testGet", loConnector);
+            assertTrue(loManager.markDefault(loConnector));
+
+            DataCursor<DataSourceVersion> loCursor = loManager.get(DataSourceVersion.class);
+            assertEquals(250, loCursor.getLength());
+            assertSame(loManager.getConnector(DataSourceVersion.class), loCursor.getSource());
+            float lnTotal = 0;
+            while (loCursor.next())
+            {
+                lnTotal += loCursor.current().getVersion();
+            }
+            assertEquals(249 * 250 / 2, lnTotal, 0f);
+
+            assertTrue(loCursor.absolute(100));
+            assertEquals("Version 100", loCursor.current().getName());
+            assertEquals(100000L, loCursor.current().getInstallDate().getTime());
+            loCursor.close();
+
+            loCursor = loManager.get(DataSourceVersion.class, DataFilter.and(DataFilter.greaterThanOrEqual("version", 100), DataFilter.lessThan("version", 110)));
+            assertEquals(10, loCursor.getLength());
+            assertEquals(5, loCursor.filter(DataFilter.greaterThanOrEqual("version", 105)).count());
+            loCursor.close();
+        }
+        finally
+        {
+            loConnection.createStatement().execute("DROP TABLE DataSourceVersion");
+            loConnection.close();
+        }
+    }
+
+    @Test
+    public void testSaveAll() throws Exception
+    {
+        startMarker();
+        Connection loConnection = DriverManager.getConnection(TestDataConnector.URL);
+        try
+        {
+            loConnection.createStatement().execute("CREATE TABLE SaveRecord (name VARCHAR(64) NOT NULL, value INTEGER, CONSTRAINT saveRecordName UNIQUE (name))");
+
+            TestDataConnector loConnector = new TestDataConnector();
+            loConnector.setBatchSize(100);
+            DataManager loManager = DataManager.getInstance();
+            loManager.map(loConnector, SaveRecord.class);
+
+            List<SaveRecord> loRecords = new ArrayList<SaveRecord>();
+            for (int i = 0; i < 1050; i++)
+            {
+                loRecords.add(new SaveRecord("Record " + i, i));
+            }
+            // Neither of these are saved
+            loRecords.add(new SaveRecord(null, 1));
+            loRecords.add(new SaveRecord("Negative", -1));
+
+            SaveRecord.g_nBeforeSave = 0;
+            SaveRecord.g_nAfterSave = 0;
+            assertEquals(1050, loManager.saveAll(loRecords));
+            assertEquals(1051, SaveRecord.g_nBeforeSave);
+            assertEquals(1050, SaveRecord.g_nAfterSave);
+            assertEquals(1050, loManager.get(SaveRecord.class).getLength());
+
+            // A failure inside a transaction writes nothing
+            loRecords.clear();
+            loRecords.add(new SaveRecord("New record", 1));
+            loRecords.add(new SaveRecord("Record 5", 5));
+            try
+            {
+                loManager.saveAll(loRecords, true);
+                fail("A duplicate name must not be saved");
+            }
+            catch (DataAccessException ex)
+            {
+            }
+            assertEquals(1050, loManager.get(SaveRecord.class).getLength());
+
+            // Modified records in a cursor are saved and are then no longer modified
+            DataCursor<SaveRecord> loCursor = new DataCursor<SaveRecord>(SaveRecord.class, 4, 4);
+            for (int i = 0; i < 2; i++)
+            {
+                loCursor.update(i, new Object[]{"Cursor " + i, i});
+            }
+            assertEquals(2, loManager.saveAll(loCursor, true));
+            assertFalse(loCursor.isModified(0));
+            assertEquals(0, loManager.saveAll(loCursor, true));
+            assertEquals(1, loManager.get(SaveRecord.class, DataFilter.equal("name", "Cursor 1")).getLength());
+            assertEquals(1052, loManager.get(SaveRecord.class).getLength());
+
+            // Rows can only be removed by a key
+            loCursor.delete(1);
+            try
+            {
+                loManager.saveAll(loCursor, true);
+                fail("A record of a class without a key must not be removed");
+            }
+            catch (DataAccessException ex)
+            {
+            }
+            assertTrue(loCursor.hasChanges());
+            assertEquals(1052, loManager.get(SaveRecord.class).getLength());
+
+            // Records of a keyed class are updated by the key, and only the pages holding changes are visited
+            loConnector.setKey(SaveRecord.class, "name");
+            loConnector.setFetchSize(64);
+            loCursor = loManager.get(SaveRecord.class);
+            assertEquals(1052, loCursor.getLength());
+            Object[] laValues = loCursor.getValue(0);
+            loCursor.update(0, new Object[]{laValues[0], 5000});
+            assertEquals(1, loManager.saveAll(loCursor, false));
+            assertEquals(1, loCursor.getAllocatedPages());
+            loCursor.close();
+            assertEquals(1, loManager.get(SaveRecord.class, DataFilter.equal("value", 5000)).getLength());
+            assertEquals(2, loManager.saveAll(Arrays.asList(new SaveRecord("Record 6", 6000), new SaveRecord("Upserted", 1))));
+            assertEquals(1, loManager.get(SaveRecord.class, DataFilter.equal("value", 6000)).getLength());
+            // A cursor streaming a larger result holds its query open until it is closed
+            loCursor = loManager.get(SaveRecord.class);
+            assertEquals(1053, loCursor.getLength());
+            loCursor.close();
+
+            // Deleted records are removed by the key and the cursor no longer holds changes
+            loCursor = loManager.get(SaveRecord.class);
+            loCursor.update(1, new Object[]{loCursor.getValue(1)[0], 7000});
+            assertTrue(loCursor.delete(1));
+            assertTrue(loCursor.delete(2));
+            assertEquals(2, loManager.saveAll(loCursor, false));
+            assertFalse(loCursor.hasChanges());
+            assertTrue(loCursor.isDeleted(1));
+            assertNull(loCursor.get(2));
+            assertEquals(0, loManager.saveAll(loCursor, false));
+            loCursor.close();
+            loCursor = loManager.get(SaveRecord.class);
+            assertEquals(1051, loCursor.getLength());
+            loCursor.close();
+            assertEquals(0, loManager.get(SaveRecord.class, DataFilter.equal("value", 7000)).getLength());
+        }
+        finally
+        {
+            loConnection.createStatement().execute("DROP TABLE SaveRecord");
+            loConnection.close();
+        }
+    }
+
+    @Test
+    public void testConcurrentRouting() throws Exception
+    {
+        startMarker();
+        final DataManager loManager = DataManager.getInstance();
+        final DataConnector loFirst = new TestDataConnector();
+        final DataConnector loSecond = new TestDataConnector();
+        assertTrue(loManager.map(loFirst, DataCursorTest.TypedRecord.class));
+        assertSame(loFirst, loManager.getConnector(DataCursorTest.TypedRecord.class));
+        assertNotNull(loManager.isRegistered(loFirst));
+
+        // Readers always see one of the connectors while the class is moved between them
+        final AtomicInteger lnFailures = new AtomicInteger();
+        final CountDownLatch loDone = new CountDownLatch(4);
+        for (int i = 0; i < 4; i++)
+        {
+            new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    for (int j = 0; j < 100000; j++)
+                    {
+                        IDataConnector loConnector = loManager.getConnector(DataCursorTest.TypedRecord.class);
+                        if (loConnector != loFirst && loConnector != loSecond)
+                        {
+                            lnFailures.incrementAndGet();
+                        }
+                    }
+                    loDone.countDown();
+                }
+            }).start();
+        }
+        for (int i = 0; loDone.getCount() > 0; i++)
+        {
+            loManager.map(i % 2 == 0 ? loSecond : loFirst, DataCursorTest.TypedRecord.class);
+        }
+        assertTrue(loDone.await(10, TimeUnit.SECONDS));
+        assertEquals(0, lnFailures.get());
+
+        // Unregistering the connector removes its routes
+        assertTrue(loManager.map(loSecond, DataCursorTest.TypedRecord.class) || loManager.getConnector(DataCursorTest.TypedRecord.class) == loSecond);
+        assertTrue(loManager.unregisterConnector(loManager.isRegistered(loSecond)));
+        assertNull(loManager.isRegistered(loSecond));
+        assertSame(loManager.getDefault(), loManager.getConnector(DataCursorTest.TypedRecord.class));
+    }
+
+    @Test
+    public void testSharding() throws Exception
+    {
+        startMarker();
+        DataManager loManager = DataManager.getInstance();
+        MemoryShard[] laShards = new MemoryShard[]{new MemoryShard(), new MemoryShard(), new MemoryShard()};
+        ShardedDataConnector loConnector = loManager.mapSharded(SaveRecord.class, ShardedDataConnector.<SaveRecord>field("name"), laShards);
+        assertSame(loConnector, loManager.getConnector(SaveRecord.class));
+        assertEquals(3, loConnector.getShardCount());
+
+        List<SaveRecord> loRecords = new ArrayList<SaveRecord>();
+        for (int i = 0; i < 300; i++)
+        {
+            loRecords.add(new SaveRecord("Shard Record " + i, i));
+        }
+        assertEquals(300, loManager.saveAll(loRecords));
+
+        // Every record is in the shard its key hashes to, and the shards are roughly even
+        for (MemoryShard loShard : laShards)
+        {
+            assertTrue(loShard.m_oObjects.size() > 50);
+            for (DataObject loObject : loShard.m_oObjects)
+            {
+                assertSame(loShard, loConnector.getShard(loObject));
+            }
+        }
+
+        // Reads for a single key go to one shard
+        DataCursor<SaveRecord> loCursor = loManager.get(SaveRecord.class, DataFilter.equal("name", "Shard Record 42"));
+        assertEquals(1, loCursor.getLength());
+        DataSchema<SaveRecord> loSchema = DataSchema.getSchema(SaveRecord.class);
+        assertEquals(42, loCursor.getValue(0, loSchema.indexOf("value")));
+        int lnGets = 0;
+        for (MemoryShard loShard : laShards)
+        {
+            lnGets += loShard.m_nGets.get();
+        }
+        assertEquals(1, lnGets);
+
+        // Other reads are sent to every shard and merged
+        loCursor = loManager.get(SaveRecord.class);
+        assertEquals(300, loCursor.getLength());
+        Set<Object> loNames = new HashSet<Object>();
+        for (long i = 0; i < loCursor.getLength(); i++)
+        {
+            loNames.add(loCursor.getValue(i, loSchema.indexOf("name")));
+        }
+        assertEquals(300, loNames.size());
+        for (MemoryShard loShard : laShards)
+        {
+            assertTrue(loShard.m_nGets.get() >= 1);
+        }
+        loCursor.close();
+
+        // Adding a shard only moves the keys the new shard takes over
+        ShardedDataConnector loGrown = new ShardedDataConnector(ShardedDataConnector.<SaveRecord>field("name"),
+                laShards[0], laShards[1], laShards[2], new MemoryShard());
+        int lnMoved = 0;
+        for (SaveRecord loRecord : loRecords)
+        {
+            IDataConnector loShard = loGrown.getShard(loRecord);
+            if (loShard != loConnector.getShard(loRecord))
+            {
+                assertFalse(loShard == laShards[0] || loShard == laShards[1] || loShard == laShards[2]);
+                lnMoved++;
+            }
+        }
+        assertTrue(lnMoved > 0 && lnMoved < 150);
+
+        // Filtering an empty result keeps the filter of the result
+        loCursor = loManager.get(SaveRecord.class, DataFilter.equal("value", -1));
+        assertEquals(0, loCursor.getLength());
+        assertEquals(0, loCursor.filter(DataFilter.greaterThanOrEqual("value", 0)).count());
+        assertTrue(loManager.unregisterConnector(loManager.isRegistered(loConnector)));
+
+        // Paged shards are read forward only, pages read again are fetched again from the shards
+        MemoryDataConnector[] laPaged = new MemoryDataConnector[]{new MemoryDataConnector(), new MemoryDataConnector(), new MemoryDataConnector()};
+        for (MemoryDataConnector loShard : laPaged)
+        {
+            loShard.setKey(SaveRecord.class, "name");
+        }
+        ShardedDataConnector loPaged = new ShardedDataConnector(ShardedDataConnector.<SaveRecord>field("name"), laPaged);
+        List<DataObject> loObjects = new ArrayList<DataObject>();
+        for (int i = 0; i < 3000; i++)
+        {
+            loObjects.add(new SaveRecord("Paged Record " + i, i));
+        }
+        loPaged.save(Collections.<Class<? extends DataObject>, List<DataObject>>singletonMap(SaveRecord.class, loObjects), false);
+        loCursor = loPaged.get(SaveRecord.class, null);
+        assertEquals(3000, loCursor.getLength());
+        for (int lnPass = 0; lnPass < 2; lnPass++)
+        {
+            loNames.clear();
+            for (long i = 0; i < loCursor.getLength(); i++)
+            {
+                loNames.add(loCursor.getValue(i, loSchema.indexOf("name")));
+            }
+            assertEquals(3000, loNames.size());
+            assertTrue(loCursor.release(0, loCursor.getLength()) > 0);
+        }
+        loCursor.close();
+    }
+
+    @Test
+    public void testReplication() throws Exception
+    {
+        startMarker();
+        DataManager loManager = DataManager.getInstance();
+        MemoryShard loPrimary = new MemoryShard();
+        MemoryShard[] laReplicas = new MemoryShard[]{new MemoryShard(), new MemoryShard()};
+        final ReplicatedDataConnector loConnector = loManager.mapReplicated(SaveRecord.class, loPrimary, laReplicas);
+        assertSame(loConnector, loManager.getConnector(SaveRecord.class));
+
+        // Reads are spread across the replicas
+        for (ReplicatedDataConnector.ReadPolicy leReadPolicy : ReplicatedDataConnector.ReadPolicy.values())
+        {
+            loConnector.setReadPolicy(leReadPolicy);
+            for (int i = 0; i < 20; i++)
+            {
+                loManager.get(SaveRecord.class).close();
+            }
+        }
+        assertEquals(0, loPrimary.m_nGets.get());
+        assertTrue(laReplicas[0].m_nGets.get() > 0);
+        assertTrue(laReplicas[1].m_nGets.get() > 0);
+        assertEquals(40, loConnector.getReplicaRequests(0) + loConnector.getReplicaRequests(1));
+        assertTrue(loConnector.getReplicaLatency(0) > 0);
+
+        // Writes go to the primary, and the writer reads from the primary until the stickiness period has passed
+        assertEquals(1, loManager.saveAll(Collections.singletonList(new SaveRecord("Replicated", 1))));
+        assertEquals(1, loPrimary.m_oObjects.size());
+        assertEquals(0, laReplicas[0].m_oObjects.size() + laReplicas[1].m_oObjects.size());
+        assertEquals(1, loManager.get(SaveRecord.class).getLength());
+        assertEquals(1, loPrimary.m_nGets.get());
+
+        // Other threads are not affected by the write
+        final long[] laLength = new long[1];
+        Thread loThread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    laLength[0] = loConnector.get(SaveRecord.class, null).getLength();
+                }
+                catch (DataAccessException ex)
+                {
+                    laLength[0] = -1;
+                }
+            }
+        });
+        loThread.start();
+        loThread.join();
+        assertEquals(0, laLength[0]);
+
+        // Unless they share a session with the writer
+        loConnector.setStickiness(0);
+        assertEquals(0, loManager.get(SaveRecord.class).getLength());
+        loConnector.setStickiness(ReplicatedDataConnector.DEFAULT_STICKINESS);
+        final ReplicatedDataConnector.Session loSession = loConnector.openSession();
+        loThread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                loSession.attach();
+                try
+                {
+                    laLength[0] = loConnector.get(SaveRecord.class, null).getLength();
+                }
+                catch (DataAccessException ex)
+                {
+                    laLength[0] = -1;
+                }
+                finally
+                {
+                    loSession.close();
+                }
+            }
+        });
+        Thread.sleep(1);
+        assertEquals(1, loManager.saveAll(Collections.singletonList(new SaveRecord("Replicated", 2))));
+        loSession.close();
+        loThread.start();
+        loThread.join();
+        assertEquals(2, laLength[0]);
+
+        // A save made on another thread makes the caller sticky once the caller marks it
+        loThread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    DataManager.getInstance().saveAllAsync(Collections.singletonList(new SaveRecord("Replicated", 3)), false).get();
+                    laLength[0] = loConnector.get(SaveRecord.class, null).getLength();
+                    loConnector.markWrite();
+                    laLength[0] = laLength[0] * 10 + loConnector.get(SaveRecord.class, null).getLength();
+                }
+                catch (Exception ex)
+                {
+                    laLength[0] = -1;
+                }
+            }
+        });
+        loThread.start();
+        loThread.join();
+        assertEquals(3, laLength[0]);
+
+        // A failed replica is avoided until its back off has passed, then it is read from again
+        loConnector.setStickiness(0);
+        loConnector.setProbeInterval(50);
+        laReplicas[0].m_lFail = true;
+        laReplicas[1].m_lFail = true;
+        assertEquals(3, loManager.get(SaveRecord.class).getLength());
+        assertTrue(loConnector.isReplicaFailed(0) || loConnector.isReplicaFailed(1));
+        laReplicas[1].m_lFail = false;
+        int lnFailedGets = laReplicas[0].m_nGets.get();
+        for (int i = 0; i < 10; i++)
+        {
+            loManager.get(SaveRecord.class).close();
+        }
+        assertTrue(loConnector.isReplicaFailed(0));
+        assertTrue(laReplicas[0].m_nGets.get() <= lnFailedGets + 1);
+        laReplicas[0].m_lFail = false;
+        Thread.sleep(250);
+        for (int i = 0; i < 10; i++)
+        {
+            loManager.get(SaveRecord.class).close();
+        }
+        assertFalse(loConnector.isReplicaFailed(0));
+        assertFalse(loConnector.isReplicaFailed(1));
+        assertTrue(laReplicas[0].m_nGets.get() > lnFailedGets + 1);
+        assertTrue(loManager.unregisterConnector(loManager.isRegistered(loConnector)));
+    }
+
+    @Test
+    public void testEntityCache() throws Exception
+    {
+        startMarker();
+        DataManager loManager = DataManager.getInstance();
+        MemoryShard loConnector = new MemoryShard();
+        loManager.map(loConnector, SaveRecord.class);
+        DataEntityCache<SaveRecord> loCache = loManager.setCache(SaveRecord.class, "name", 100, 0);
+        assertSame(loCache, loManager.getCache(SaveRecord.class));
+        DataSchema<SaveRecord> loSchema = DataSchema.getSchema(SaveRecord.class);
+        loConnector.m_oObjects.add(new SaveRecord("Cached", 1));
+
+        // The first read loads the cache, later reads do not reach the connector
+        DataFilter loFilter = DataFilter.equal("name", "Cached");
+        for (int i = 0; i < 5; i++)
+        {
+            DataCursor<SaveRecord> loCursor = loManager.get(SaveRecord.class, loFilter);
+            assertEquals(1, loCursor.getLength());
+            assertEquals(1, loCursor.getValue(0, loSchema.indexOf("value")));
+        }
+        assertEquals(1, loConnector.m_nGets.get());
+        assertEquals(4, loCache.getHits());
+
+        // Saves update the cache, other queries are not cached
+        assertEquals(1, loManager.saveAll(Collections.singletonList(new SaveRecord("Cached", 2))));
+        assertEquals(2, loManager.get(SaveRecord.class, loFilter).getValue(0, loSchema.indexOf("value")));
+        assertEquals(1, loConnector.m_nGets.get());
+        assertEquals(2, loManager.get(SaveRecord.class).getLength());
+        assertEquals(2, loConnector.m_nGets.get());
+
+        assertTrue(loManager.removeCache(SaveRecord.class));
+        assertNull(loManager.getCache(SaveRecord.class));
+        loManager.get(SaveRecord.class, loFilter);
+        assertEquals(3, loConnector.m_nGets.get());
+        assertTrue(loManager.unregisterConnector(loManager.isRegistered(loConnector)));
+    }
+
+    @Test
+    public void testQueryCache() throws Exception
+    {
+        startMarker();
+        DataManager loManager = DataManager.getInstance();
+        MemoryShard loConnector = new MemoryShard();
+        loManager.map(loConnector, SaveRecord.class);
+        DataQueryCache<SaveRecord> loCache = loManager.setQueryCache(SaveRecord.class, 10, 100, 0);
+        assertSame(loCache, loManager.getQueryCache(SaveRecord.class));
+        for (int i = 0; i < 5; i++)
+        {
+            loConnector.m_oObjects.add(new SaveRecord("Query " + i, i));
+        }
+
+        // Repeated queries are answered from the cache, the filter is the key
+        for (int i = 0; i < 3; i++)
+        {
+            assertEquals(5, loManager.get(SaveRecord.class).getLength());
+            assertEquals(1, loManager.get(SaveRecord.class, DataFilter.equal("name", "Query 1")).getLength());
+        }
+        assertEquals(2, loConnector.m_nGets.get());
+        assertEquals(4, loCache.getHits());
+        assertEquals(2, loCache.getSize());
+
+        // A write to the class discards the results
+        long lnVersion = loCache.getVersion();
+        assertEquals(1, loManager.saveAll(Collections.singletonList(new SaveRecord("Query 5", 5))));
+        assertTrue(loCache.getVersion() > lnVersion);
+        assertEquals(0, loCache.getSize());
+        assertEquals(6, loManager.get(SaveRecord.class).getLength());
+        assertEquals(6, loManager.get(SaveRecord.class).getLength());
+        assertEquals(3, loConnector.m_nGets.get());
+
+        // Results with too many records are not cached
+        loManager.setQueryCache(SaveRecord.class, 10, 5, 0);
+        loManager.get(SaveRecord.class);
+        loManager.get(SaveRecord.class);
+        assertEquals(5, loConnector.m_nGets.get());
+
+        // Values that print alike but are not equal do not share a result
+        DataQueryCache<SaveRecord> loQueries = new DataQueryCache<SaveRecord>(SaveRecord.class, 10, 100, 0);
+        Object[] laRecords = new Object[]{new SaveRecord("Query 0", 0)};
+        assertTrue(loQueries.put(DataFilter.equal("value", 0.1f), new DataCursor<SaveRecord>(SaveRecord.class, laRecords), loQueries.getVersion()));
+        assertNull(loQueries.get(DataFilter.equal("value", 0.1d)));
+        assertNotNull(loQueries.get(DataFilter.equal("value", 0.1f)));
+        assertTrue(loQueries.put(DataFilter.equal("value", new java.util.Date(1000)), new DataCursor<SaveRecord>(SaveRecord.class, laRecords), loQueries.getVersion()));
+        assertNull(loQueries.get(DataFilter.equal("value", new java.util.Date(1001))));
+        assertNotNull(loQueries.get(DataFilter.equal("value", new java.util.Date(1000))));
+        assertTrue(loQueries.put(null, new DataCursor<SaveRecord>(SaveRecord.class, laRecords), loQueries.getVersion()));
+        assertEquals(1, loQueries.get(null).getLength());
+
+        assertTrue(loManager.removeQueryCache(SaveRecord.class));
+        assertNull(loManager.getQueryCache(SaveRecord.class));
+        assertTrue(loManager.unregisterConnector(loManager.isRegistered(loConnector)));
+    }
+
+    @Test
+    public void testAsync() throws Exception
+    {
+        startMarker();
+        DataManager loManager = DataManager.getInstance();
+        final CyclicBarrier loBarrier = new CyclicBarrier(2);
+        MemoryShard loConnector = new MemoryShard()
+        {
+            @Override
+            public <K extends DataObject> DataCursor<K> get(Class<K> toClass, DataFilter toFilter)
+            {
+                // Only completes if the other read is running at the same time
+                try
+                {
+                    loBarrier.await(10, TimeUnit.SECONDS);
+                }
+                catch (Exception ex)
+                {
+                    throw new IllegalStateException(ex);
+                }
+                return super.get(toClass, toFilter);
+            }
+
+            @Override
+            public long save(Map<Class<? extends DataObject>, List<DataObject>> toObjects, boolean tlTransaction)
+            {
+                if (((SaveRecord)toObjects.get(SaveRecord.class).get(0)).m_nValue == 0)
+                {
+                    throw new IllegalStateException("Rejected");
+                }
+                return super.save(toObjects, tlTransaction);
+            }
+        };
+        loManager.map(loConnector, SaveRecord.class);
+        assertNotNull(loManager.getExecutor());
+
+        Future<Long> loSaved = loManager.saveAllAsync(Collections.singletonList(new SaveRecord("Async", 1)), true);
+        assertEquals(1L, (long)loSaved.get(10, TimeUnit.SECONDS));
+
+        Future<DataCursor<SaveRecord>> loFirst = loManager.getAsync(SaveRecord.class, null);
+        Future<DataCursor<SaveRecord>> loSecond = loManager.getAsync(SaveRecord.class, DataFilter.equal("name", "Async"));
+        assertEquals(1, loFirst.get(10, TimeUnit.SECONDS).getLength());
+        assertEquals(1, loSecond.get(10, TimeUnit.SECONDS).getLength());
+
+        // Failures are reported through the future
+        try
+        {
+            loManager.saveAllAsync(Collections.singletonList(new SaveRecord("Async", 0)), false).get(10, TimeUnit.SECONDS);
+            fail("The save must fail as the connector rejects it");
+        }
+        catch (ExecutionException ex)
+        {
+            assertTrue(ex.getCause() instanceof IllegalStateException);
+        }
+        assertTrue(loManager.unregisterConnector(loManager.isRegistered(loConnector)));
+    }
+
+    @Test
+    public void testLogConnector() throws Exception
+    {
+        startMarker();
+        File loDirectory = File.createTempFile("karyon.data.", ".log");
+        assertTrue(loDirectory.delete());
+        try
+        {
+            DataManager loManager = DataManager.getInstance();
+            LogDataConnector loConnector = new LogDataConnector(loDirectory, 4096);
+            loConnector.setKey(SaveRecord.class, "name");
+            loManager.map(loConnector, SaveRecord.class);
+            DataSchema<SaveRecord> loSchema = DataSchema.getSchema(SaveRecord.class);
+
+            // Repeated saves of the same keys fill segments and leave dead records to compact
+            for (int lnRound = 0; lnRound < 20; lnRound++)
+            {
+                List<SaveRecord> loRecords = new ArrayList<SaveRecord>();
+                for (int i = 0; i < 50; i++)
+                {
+                    loRecords.add(new SaveRecord("Log " + i, lnRound * 100 + i));
+                }
+                assertEquals(50, loManager.saveAll(loRecords, lnRound % 2 == 0));
+            }
+            assertEquals(50, loConnector.getSize(SaveRecord.class));
+            DataCursor<SaveRecord> loCursor = loManager.get(SaveRecord.class, DataFilter.equal("name", "Log 7"));
+            assertEquals(1, loCursor.getLength());
+            assertEquals(1907, loCursor.getValue(0, loSchema.indexOf("value")));
+            assertEquals(0, loManager.get(SaveRecord.class, DataFilter.equal("name", "Missing")).getLength());
+            assertEquals(10, loManager.get(SaveRecord.class, DataFilter.greaterThanOrEqual("value", 1940)).getLength());
+
+            loConnector.compact();
+            assertTrue(loConnector.getSegmentCount(SaveRecord.class) < 5);
+            assertEquals(1907, loManager.get(SaveRecord.class, DataFilter.equal("name", "Log 7")).getValue(0, loSchema.indexOf("value")));
+            assertEquals(50, loManager.get(SaveRecord.class).getLength());
+
+            // The last save is torn, replay falls back to the record before it
+            assertEquals(1, loManager.saveAll(Collections.singletonList(new SaveRecord("Log 7", 5000))));
+            loConnector.close();
+            File[] laSegments = new File(loDirectory, SaveRecord.class.getName()).listFiles();
+            Arrays.sort(laSegments);
+            RandomAccessFile loFile = new RandomAccessFile(laSegments[laSegments.length - 1], "rw");
+            try
+            {
+                long lnLast = loFile.length() - 1;
+                loFile.seek(lnLast);
+                while (loFile.read() == 0)
+                {
+                    loFile.seek(--lnLast);
+                }
+                loFile.seek(lnLast);
+                loFile.write(0x55);
+            }
+            finally
+            {
+                loFile.close();
+            }
+
+            LogDataConnector loRecovered = new LogDataConnector(loDirectory, 4096);
+            loRecovered.setKey(SaveRecord.class, "name");
+            loManager.map(loRecovered, SaveRecord.class);
+            assertEquals(50, loRecovered.getSize(SaveRecord.class));
+            assertEquals(1907, loManager.get(SaveRecord.class, DataFilter.equal("name", "Log 7")).getValue(0, loSchema.indexOf("value")));
+            assertEquals(1, loManager.saveAll(Collections.singletonList(new SaveRecord("Log 7", 6000))));
+            assertEquals(6000, loManager.get(SaveRecord.class, DataFilter.equal("name", "Log 7")).getValue(0, loSchema.indexOf("value")));
+            loRecovered.close();
+            assertTrue(loManager.unregisterConnector(loManager.isRegistered(loRecovered)));
+            loManager.unregisterConnector(loManager.isRegistered(loConnector));
+        }
+        finally
+        {
+            File loClassDirectory = new File(loDirectory, SaveRecord.class.getName());
+            File[] laFiles = loClassDirectory.listFiles();
+            for (File loFile : laFiles == null ? new File[0] : laFiles)
+            {
+                loFile.delete();
+            }
+            loClassDirectory.delete();
+            loDirectory.delete();
+        }
+    }
+
+    @Test
+    public void testLogConnectorTransaction() throws Exception
+    {
+        startMarker();
+        File loDirectory = File.createTempFile("karyon.data.", ".log");
+        assertTrue(loDirectory.delete());
+        try
+        {
+            DataManager loManager = DataManager.getInstance();
+            LogDataConnector loConnector = new LogDataConnector(loDirectory, 1024);
+            loConnector.setKey(SaveRecord.class, "name");
+            loManager.map(loConnector, SaveRecord.class);
+
+            // A transactional save larger than a segment is committed in the last segment it uses
+            List<SaveRecord> loRecords = new ArrayList<SaveRecord>();
+            for (int i = 0; i < 100; i++)
+            {
+                loRecords.add(new SaveRecord("Transaction " + i, i));
+            }
+            assertEquals(100, loManager.saveAll(loRecords, true));
+            assertTrue(loConnector.getSegmentCount(SaveRecord.class) > 1);
+            loConnector.close();
+
+            LogDataConnector loReopened = new LogDataConnector(loDirectory, 1024);
+            loReopened.setKey(SaveRecord.class, "name");
+            loManager.map(loReopened, SaveRecord.class);
+            assertEquals(100, loReopened.getSize(SaveRecord.class));
+            assertEquals(100, loManager.get(SaveRecord.class).getLength());
+            assertEquals(0, loManager.get(SaveRecord.class, DataFilter.equal("name", "Transaction 0")).getValue(0, DataSchema.getSchema(SaveRecord.class).indexOf("value")));
+
+            // Saves after the reopen continue from the committed end of the log
+            assertEquals(1, loManager.saveAll(Collections.singletonList(new SaveRecord("Transaction 0", 500))));
+            loReopened.close();
+            LogDataConnector loRecovered = new LogDataConnector(loDirectory, 1024);
+            loRecovered.setKey(SaveRecord.class, "name");
+            loManager.map(loRecovered, SaveRecord.class);
+            assertEquals(100, loRecovered.getSize(SaveRecord.class));
+            assertEquals(500, loManager.get(SaveRecord.class, DataFilter.equal("name", "Transaction 0")).getValue(0, DataSchema.getSchema(SaveRecord.class).indexOf("value")));
+
+            // Removals are replayed, and compaction keeps them while an older segment holds the objects
+            assertEquals(2, loManager.deleteAll(Arrays.asList(new SaveRecord("Transaction 1", 0), new SaveRecord("Transaction 0", 0)), true));
+            assertEquals(98, loRecovered.getSize(SaveRecord.class));
+            loRecovered.compact();
+            loRecovered.close();
+            loRecovered = new LogDataConnector(loDirectory, 1024);
+            loRecovered.setKey(SaveRecord.class, "name");
+            loManager.map(loRecovered, SaveRecord.class);
+            assertEquals(98, loRecovered.getSize(SaveRecord.class));
+            assertEquals(0, loManager.get(SaveRecord.class, DataFilter.equal("name", "Transaction 1")).getLength());
+
+            // A transaction that fails part way is cleared, so the commit of a later save does not replay it
+            File loClassDirectory = new File(loDirectory, SaveRecord.class.getName());
+            int lnNext = 0;
+            for (String lcFile : loClassDirectory.list())
+            {
+                lnNext = Math.max(lnNext, Integer.parseInt(lcFile.substring(0, 8)) + 1);
+            }
+            File loBlocked = new File(loClassDirectory, String.format("%08d.log", lnNext));
+            assertTrue(loBlocked.mkdir());
+            loRecords.clear();
+            for (int i = 0; i < 100; i++)
+            {
+                loRecords.add(new SaveRecord("Failed " + i, i));
+            }
+            try
+            {
+                loManager.saveAll(loRecords, true);
+                fail("A new segment can not be created");
+            }
+            catch (DataAccessException ex)
+            {
+            }
+            assertEquals(98, loRecovered.getSize(SaveRecord.class));
+            assertEquals(1, loManager.saveAll(Collections.singletonList(new SaveRecord("After", 1))));
+            loRecovered.close();
+            assertTrue(loBlocked.delete());
+            loRecovered = new LogDataConnector(loDirectory, 1024);
+            loRecovered.setKey(SaveRecord.class, "name");
+            loManager.map(loRecovered, SaveRecord.class);
+            assertEquals(99, loRecovered.getSize(SaveRecord.class));
+            assertEquals(0, loManager.get(SaveRecord.class, DataFilter.equal("name", "Failed 0")).getLength());
+            assertEquals(1, loManager.get(SaveRecord.class, DataFilter.equal("name", "After")).getLength());
+            loRecovered.close();
+            loManager.unregisterConnector(loManager.isRegistered(loRecovered));
+            loManager.unregisterConnector(loManager.isRegistered(loReopened));
+            loManager.unregisterConnector(loManager.isRegistered(loConnector));
+        }
+        finally
+        {
+            File loClassDirectory = new File(loDirectory, SaveRecord.class.getName());
+            File[] laFiles = loClassDirectory.listFiles();
+            for (File loFile : laFiles == null ? new File[0] : laFiles)
+            {
+                loFile.delete();
+            }
+            loClassDirectory.delete();
+            loDirectory.delete();
+        }
+    }
+
+    @Test
+    public void testMemoryConnector() throws Exception
+    {
+        startMarker();
+        DataManager loManager = DataManager.getInstance();
+        MemoryDataConnector loConnector = new MemoryDataConnector();
+        loConnector.setKey(SaveRecord.class, "name");
+        loManager.map(loConnector, SaveRecord.class);
+        DataSchema<SaveRecord> loSchema = DataSchema.getSchema(SaveRecord.class);
+        int lnValue = loSchema.indexOf("value");
+
+        List<SaveRecord> loRecords = new ArrayList<SaveRecord>();
+        for (int i = 0; i < 100; i++)
+        {
+            loRecords.add(new SaveRecord("Memory " + i, i % 10));
+        }
+        assertEquals(100, loManager.saveAll(loRecords));
+        assertEquals(100, loConnector.getSize(SaveRecord.class));
+
+        // Without an index on value the read checks every object
+        assertEquals(10, loManager.get(SaveRecord.class, DataFilter.equal("value", 3)).getLength());
+        assertEquals(1, loConnector.getScans());
+
+        // The index is built from the objects already held
+        loConnector.addIndex(SaveRecord.class, "value", MemoryDataConnector.IndexType.RANGE);
+        assertEquals(10, loManager.get(SaveRecord.class, DataFilter.equal("value", 3)).getLength());
+        assertEquals(10, loManager.get(SaveRecord.class, DataFilter.equal("value", 3L)).getLength());
+        DataCursor<SaveRecord> loCursor = loManager.get(SaveRecord.class, DataFilter.greaterThanOrEqual("value", 8));
+        assertEquals(20, loCursor.getLength());
+        assertEquals(8, loCursor.getValue(0, lnValue));
+        assertEquals(9, loCursor.getValue(19, lnValue));
+        assertEquals(30, loManager.get(SaveRecord.class, DataFilter.lessThan("value", 2.5)).getLength());
+        assertEquals(1, loManager.get(SaveRecord.class, DataFilter.and(DataFilter.equal("name", "Memory 42"), DataFilter.lessThan("value", 5))).getLength());
+        assertEquals(20, loManager.get(SaveRecord.class, DataFilter.or(DataFilter.equal("value", 0), DataFilter.greaterThan("value", 8))).getLength());
+        assertEquals(0, loManager.get(SaveRecord.class, DataFilter.equal("name", "Missing")).getLength());
+        assertEquals(1, loConnector.getScans());
+
+        // Filtering a cursor is pushed back to the connector and answered from the index
+        assertEquals(10, loCursor.filter(DataFilter.lessThan("value", 9)).count());
+        assertEquals(1, loConnector.getScans());
+
+        // Updates move objects between index entries
+        assertEquals(1, loManager.saveAll(Collections.singletonList(new SaveRecord("Memory 3", 50))));
+        assertEquals(100, loConnector.getSize(SaveRecord.class));
+        assertEquals(9, loManager.get(SaveRecord.class, DataFilter.equal("value", 3)).getLength());
+        assertEquals(1, loManager.get(SaveRecord.class, DataFilter.greaterThan("value", 9)).getLength());
+        assertEquals(90, loManager.get(SaveRecord.class, DataFilter.notEqual("value", 5)).getLength());
+        assertEquals(2, loConnector.getScans());
+
+        // Removed objects are taken out of the indexes
+        assertEquals(1, loManager.deleteAll(Arrays.asList(new SaveRecord("Memory 3", 0), new SaveRecord("Missing", 0)), false));
+        assertEquals(99, loConnector.getSize(SaveRecord.class));
+        assertEquals(0, loManager.get(SaveRecord.class, DataFilter.greaterThan("value", 9)).getLength());
+        loManager.unregisterConnector(loManager.isRegistered(loConnector));
+    }
+
+    @Test
+    public void testWriteBehind() throws Exception
+    {
+        startMarker();
+        DataManager loManager = DataManager.getInstance();
+        MemoryDataConnector loStore = new MemoryDataConnector();
+        loStore.setKey(SaveRecord.class, "name");
+        WriteBehindDataConnector loConnector = loManager.mapWriteBehind(SaveRecord.class, "name", loStore);
+        assertSame(loConnector, loManager.mapWriteBehind(SaveRecord.class, "name", loStore));
+        int lnValue = DataSchema.getSchema(SaveRecord.class).indexOf("value");
+        try
+        {
+            // Repeated saves of a key are coalesced in the buffer
+            loConnector.setFlushInterval(60000);
+            for (int i = 0; i < 1000; i++)
+            {
+                assertEquals(1, loManager.saveAll(Collections.singletonList(new SaveRecord("Counter", i))));
+            }
+            assertEquals(999, loConnector.getCoalescedCount());
+            assertEquals(1, loConnector.getPendingCount());
+            assertEquals(0, loStore.getSize(SaveRecord.class));
+
+            // Reads write the buffered objects first
+            assertEquals(999, loManager.get(SaveRecord.class, DataFilter.equal("name", "Counter")).getValue(0, lnValue));
+            assertEquals(0, loConnector.getPendingCount());
+            assertEquals(1, loConnector.getWrittenCount());
+
+            // The flusher writes once the interval has passed
+            loConnector.setFlushInterval(10);
+            assertEquals(1, loManager.saveAll(Collections.singletonList(new SaveRecord("Status", 1))));
+            long lnEnd = System.currentTimeMillis() + 5000;
+            while (loStore.getSize(SaveRecord.class) < 2 && System.currentTimeMillis() < lnEnd)
+            {
+                Thread.sleep(5);
+            }
+            assertEquals(2, loStore.getSize(SaveRecord.class));
+
+            // A full buffer holds back new keys until the flusher has made space
+            WriteBehindDataConnector loBounded = new WriteBehindDataConnector(loStore, 4);
+            loBounded.setFlushInterval(60000);
+            loManager.map(loBounded, SaveRecord.class);
+            List<SaveRecord> loRecords = new ArrayList<SaveRecord>();
+            for (int i = 0; i < 100; i++)
+            {
+                loRecords.add(new SaveRecord("Bounded " + i, i));
+            }
+            loBounded.setKey(SaveRecord.class, "name");
+            assertEquals(100, loManager.saveAll(loRecords));
+            assertTrue(loBounded.getPendingCount() <= 4);
+            loBounded.flush();
+            assertEquals(102, loStore.getSize(SaveRecord.class));
+            assertEquals(100, loBounded.getWrittenCount());
+            loBounded.close();
+            loManager.unregisterConnector(loManager.isRegistered(loBounded));
+        }
+        finally
+        {
+            loConnector.close();
+            loManager.unregisterConnector(loManager.isRegistered(loConnector));
+        }
+    }
 }
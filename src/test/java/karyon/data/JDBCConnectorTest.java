@@ -0,0 +1,506 @@
+package karyon.data;
+
+import karyon.testing.KaryonTest;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class JDBCConnectorTest
+        extends KaryonTest
+{
+    @Test
+    public void testPoolReuse() throws Exception
+    {
+        startMarker();
+        JDBCConnectionPool loPool = new TestDataConnector().getPool();
+        Connection loConnection = loPool.getConnection();
+        Connection loPhysical = loConnection.unwrap(Connection.class);
+        loConnection.setReadOnly(true);
+        loConnection.close();
+        assertTrue(loConnection.isClosed());
+        assertEquals(1, loPool.getSize());
+        assertEquals(1, loPool.getIdleCount());
+
+        // The same physical connection is handed out again, reset to its defaults
+        Connection loAgain = loPool.getConnection();
+        assertNotSame(loConnection, loAgain);
+        assertSame(loPhysical, loAgain.unwrap(Connection.class));
+        assertFalse(loAgain.isReadOnly());
+        try
+        {
+            loConnection.createStatement();
+            fail("A returned connection must not be usable");
+        }
+        catch (SQLException ex)
+        {
+        }
+        loAgain.close();
+        loPool.close();
+        assertEquals(0, loPool.getSize());
+    }
+
+    @Test
+    public void testPoolValidation() throws Exception
+    {
+        startMarker();
+        JDBCConnectionPool loPool = new TestDataConnector().getPool();
+        loPool.setValidationQuery("VALUES 1");
+        loPool.setValidationInterval(0);
+        Connection loConnection = loPool.getConnection();
+        Connection loPhysical = loConnection.unwrap(Connection.class);
+        loConnection.close();
+
+        // A connection that fails validation is discarded rather than handed out
+        loPhysical.close();
+        loConnection = loPool.getConnection();
+        assertNotSame(loPhysical, loConnection.unwrap(Connection.class));
+        assertEquals(1, loPool.getSize());
+        loConnection.close();
+        loPool.close();
+    }
+
+    @Test
+    public void testPoolSize() throws Exception
+    {
+        startMarker();
+        JDBCConnectionPool loPool = new TestDataConnector().getPool();
+        loPool.setSize(2, 3);
+        loPool.setBorrowTimeout(50);
+        loPool.setIdleTimeout(0);
+        loPool.maintain();
+        assertEquals(2, loPool.getSize());
+        assertEquals(2, loPool.getIdleCount());
+
+        Connection[] laConnections = new Connection[3];
+        for (int i = 0; i < laConnections.length; i++)
+        {
+            laConnections[i] = loPool.getConnection();
+        }
+        try
+        {
+            loPool.getConnection();
+            fail("The pool must not open more than the maximum size");
+        }
+        catch (SQLException ex)
+        {
+        }
+        for (Connection loConnection : laConnections)
+        {
+            loConnection.close();
+        }
+        assertEquals(3, loPool.getSize());
+
+        // Idle connections above the minimum are closed
+        loPool.setIdleTimeout(1);
+        Thread.sleep(20);
+        loPool.maintain();
+        assertEquals(2, loPool.getSize());
+        loPool.close();
+    }
+
+    @Test
+    public void testPoolConcurrency() throws Exception
+    {
+        startMarker();
+        final JDBCConnectionPool loPool = new TestDataConnector().getPool();
+        loPool.setSize(0, 4);
+        final AtomicInteger lnBorrowed = new AtomicInteger();
+        final AtomicInteger lnMaxBorrowed = new AtomicInteger();
+        final AtomicInteger lnFailures = new AtomicInteger();
+        final CountDownLatch loDone = new CountDownLatch(200);
+        ExecutorService loExecutor = Executors.newFixedThreadPool(50);
+        for (int i = 0; i < 200; i++)
+        {
+            loExecutor.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        Connection loConnection = loPool.getConnection();
+                        int lnCount = lnBorrowed.incrementAndGet();
+                        int lnMax;
+                        while ((lnMax = lnMaxBorrowed.get()) < lnCount && !lnMaxBorrowed.compareAndSet(lnMax, lnCount))
+                        {
+                        }
+                        loConnection.createStatement().execute("VALUES 1");
+                        lnBorrowed.decrementAndGet();
+                        loConnection.close();
+                    }
+                    catch (SQLException ex)
+                    {
+                        lnFailures.incrementAndGet();
+                    }
+                    finally
+                    {
+                        loDone.countDown();
+                    }
+                }
+            });
+        }
+        assertTrue(loDone.await(30, TimeUnit.SECONDS));
+        loExecutor.shutdown();
+        assertEquals(0, lnFailures.get());
+        assertTrue(lnMaxBorrowed.get() <= 4);
+        assertTrue(loPool.getSize() <= 4);
+        assertEquals(loPool.getSize(), loPool.getIdleCount());
+        loPool.close();
+    }
+
+    @Test
+    public void testStatementCache() throws Exception
+    {
+        startMarker();
+        JDBCConnectionPool loPool = new TestDataConnector().getPool();
+        loPool.setSize(0, 1);
+        loPool.setStatementCacheSize(2);
+
+        Connection loConnection = loPool.getConnection();
+        PreparedStatement loStatement = loConnection.prepareStatement("VALUES 1");
+        PreparedStatement loPhysical = loStatement.unwrap(PreparedStatement.class);
+        assertSame(loConnection, loStatement.getConnection());
+        ResultSet loResults = loStatement.executeQuery();
+        loStatement.close();
+        assertTrue(loResults.isClosed());
+        assertTrue(loStatement.isClosed());
+        assertEquals(0, loPool.getStatementHits());
+        assertEquals(1, loPool.getStatementMisses());
+
+        // The statement is reused, even after the connection has been returned to the pool
+        loConnection.close();
+        loConnection = loPool.getConnection();
+        loStatement = loConnection.prepareStatement("VALUES 1");
+        assertSame(loPhysical, loStatement.unwrap(PreparedStatement.class));
+        assertEquals(1, loPool.getStatementHits());
+
+        // A statement already in use is not handed out twice
+        PreparedStatement loSecond = loConnection.prepareStatement("VALUES 1");
+        assertNotSame(loPhysical, loSecond.unwrap(PreparedStatement.class));
+        assertEquals(2, loPool.getStatementMisses());
+        loSecond.close();
+        loStatement.close();
+
+        // The least recently used statement is closed once the cache is full
+        loConnection.prepareStatement("VALUES 2").close();
+        loConnection.prepareStatement("VALUES 3").close();
+        assertTrue(loPhysical.isClosed());
+        loStatement = loConnection.prepareStatement("VALUES 1");
+        assertNotSame(loPhysical, loStatement.unwrap(PreparedStatement.class));
+        loStatement.close();
+        assertEquals(5, loPool.getStatementMisses());
+
+        // Statements left open are checked in with their settings restored when the connection is returned
+        loStatement = loConnection.prepareStatement("VALUES 1");
+        loPhysical = loStatement.unwrap(PreparedStatement.class);
+        int lnFetchSize = loPhysical.getFetchSize();
+        loStatement.setFetchSize(lnFetchSize + 7);
+        loStatement.setMaxRows(3);
+        loStatement.setQueryTimeout(5);
+        loSecond = loConnection.prepareStatement("VALUES 1");
+        PreparedStatement loSecondPhysical = loSecond.unwrap(PreparedStatement.class);
+        assertSame(loConnection, loSecond.getConnection());
+        Statement loPlain = loConnection.createStatement();
+        loConnection.close();
+        assertTrue(loStatement.isClosed());
+        assertTrue(loSecond.isClosed());
+        assertTrue(loSecondPhysical.isClosed());
+        assertTrue(loPlain.isClosed());
+        loConnection = loPool.getConnection();
+        loStatement = loConnection.prepareStatement("VALUES 1");
+        assertSame(loPhysical, loStatement.unwrap(PreparedStatement.class));
+        assertEquals(lnFetchSize, loStatement.getFetchSize());
+        assertEquals(0, loStatement.getMaxRows());
+        assertEquals(0, loStatement.getQueryTimeout());
+        loStatement.close();
+
+        // A statement evicted while it is checked out is still closed when the connection is returned
+        loStatement = loConnection.prepareStatement("VALUES 1");
+        loPhysical = loStatement.unwrap(PreparedStatement.class);
+        loConnection.prepareStatement("VALUES 2").close();
+        loConnection.prepareStatement("VALUES 3").close();
+        assertFalse(loPhysical.isClosed());
+        loConnection.close();
+        assertTrue(loStatement.isClosed());
+        assertTrue(loPhysical.isClosed());
+        loConnection = loPool.getConnection();
+
+        PreparedStatement loCached = loConnection.prepareStatement("VALUES 1").unwrap(PreparedStatement.class);
+        loConnection.close();
+        loPool.close();
+        assertTrue(loCached.isClosed());
+    }
+
+    @Test
+    public void testStreaming() throws Exception
+    {
+        startMarker();
+        Connection loConnection = DriverManager.getConnection(TestDataConnector.URL);
+        try
+        {
+            loConnection.createStatement().execute("CREATE TABLE DataSourceVersion (installDate TIMESTAMP, name VARCHAR(64), version REAL)");
+            PreparedStatement loInsert = loConnection.prepareStatement("INSERT INTO DataSourceVersion VALUES (?, ?, ?)");
+            for (int i = 299; i >= 0; i--)
+            {
+                loInsert.setTimestamp(1, new Timestamp(i * 1000L));
+                loInsert.setString(2, String.format("Version %03d", i));
+                loInsert.setFloat(3, i);
+                loInsert.addBatch();
+            }
+            loInsert.executeBatch();
+
+            TestDataConnector loConnector = new TestDataConnector();
+            loConnector.setFetchSize(64);
+            JDBCConnectionPool loPool = loConnector.getPool();
+
+            // A result that fits in the first page is read with the query alone
+            DataCursor<DataSourceVersion> loCursor = loConnector.get(DataSourceVersion.class, DataFilter.lessThan("version", 10));
+            assertEquals(10, loCursor.getLength());
+            assertEquals(loPool.getSize(), loPool.getIdleCount());
+            loCursor.close();
+
+            // A keyed class is read in key order, so released pages can be fetched again
+            loConnector.setKey(DataSourceVersion.class, "name");
+            loConnector.setCursorBudget(1);
+            loCursor = loConnector.get(DataSourceVersion.class, null);
+            assertEquals(300, loCursor.getLength());
+            int lnRead = 0;
+            while (loCursor.next())
+            {
+                assertEquals(String.format("Version %03d", lnRead++), loCursor.current().getName());
+            }
+            assertEquals(300, lnRead);
+            assertTrue(loCursor.getAllocatedPages() < loCursor.getPageCount());
+            assertTrue(loCursor.absolute(10));
+            assertEquals("Version 010", loCursor.current().getName());
+            loCursor.close();
+            assertEquals(loPool.getSize(), loPool.getIdleCount());
+
+            // Without a key the query is not run again, pages over the budget are spilled instead
+            TestDataConnector loUnkeyed = new TestDataConnector();
+            loUnkeyed.setFetchSize(64);
+            loUnkeyed.setCursorBudget(1);
+            loCursor = loUnkeyed.get(DataSourceVersion.class, null);
+            float lnTotal = 0;
+            String lcTenth = null;
+            while (loCursor.next())
+            {
+                lnTotal += loCursor.current().getVersion();
+                lcTenth = loCursor.getPosition() == 10 ? loCursor.current().getName() : lcTenth;
+            }
+            assertEquals(299 * 300 / 2, lnTotal, 0f);
+            assertTrue(loCursor.getSpilledPages() > 0);
+            assertTrue(loCursor.absolute(10));
+            assertEquals(lcTenth, loCursor.current().getName());
+            loCursor.close();
+
+            // Writing a cursor that can not fetch its pages again keeps them, so it can be written again
+            TestDataConnector loUnbounded = new TestDataConnector();
+            loUnbounded.setFetchSize(64);
+            loUnbounded.setCursorBudget(0);
+            loCursor = loUnbounded.get(DataSourceVersion.class, null);
+            ByteArrayOutputStream loFirst = new ByteArrayOutputStream();
+            assertEquals(300, DataJson.write(loCursor, loFirst));
+            ByteArrayOutputStream loSecond = new ByteArrayOutputStream();
+            assertEquals(300, DataJson.write(loCursor, loSecond));
+            assertArrayEquals(loFirst.toByteArray(), loSecond.toByteArray());
+            DataCodec<DataSourceVersion> loCodec = DataCodec.getCodec(DataSourceVersion.class);
+            loFirst.reset();
+            assertEquals(300, loCodec.write(loCursor, loFirst));
+            loSecond.reset();
+            assertEquals(300, loCodec.write(loCursor, loSecond));
+            assertArrayEquals(loFirst.toByteArray(), loSecond.toByteArray());
+            assertFalse(loCursor.isForwardOnly());
+            assertNotNull(loCursor.getValue(0));
+            loCursor.close();
+
+            JDBCPageSource loSource = new JDBCPageSource(loUnkeyed, DataSchema.getSchema(DataSourceVersion.class),
+                    "SELECT installDate, name, version FROM DataSourceVersion", new Object[0], null, false);
+            assertEquals(64, loSource.fetch(64, 64).length);
+            try
+            {
+                loSource.fetch(0, 64);
+                fail("An unordered query must not be run again");
+            }
+            catch (IllegalStateException ex)
+            {
+            }
+            loSource.close();
+            assertEquals(loUnkeyed.getPool().getSize(), loUnkeyed.getPool().getIdleCount());
+
+            // Without counting the result is read in one pass and the connection released, the
+            // pages over the budget are spilled as the cursor grows
+            loUnkeyed.setCountRows(false);
+            loCursor = loUnkeyed.get(DataSourceVersion.class, null);
+            assertEquals(300, loCursor.getLength());
+            assertEquals(loUnkeyed.getPool().getSize(), loUnkeyed.getPool().getIdleCount());
+            assertTrue(loCursor.getSpilledPages() > 0);
+            lnTotal = 0;
+            while (loCursor.next())
+            {
+                lnTotal += loCursor.current().getVersion();
+            }
+            assertEquals(299 * 300 / 2, lnTotal, 0f);
+            loCursor.close();
+
+            // The connection of an abandoned cursor goes back to the pool once the cursor is collected
+            loPool.setSize(0, 1);
+            loCursor = loConnector.get(DataSourceVersion.class, null);
+            assertEquals(0, loPool.getIdleCount());
+            loCursor = null;
+            for (int i = 0; i < 50 && loPool.getIdleCount() == 0; i++)
+            {
+                System.gc();
+                Thread.sleep(10);
+                JDBCPageSource.releaseAbandoned();
+            }
+            assertEquals(1, loPool.getIdleCount());
+            loConnector.get(DataSourceVersion.class, DataFilter.lessThan("version", 10)).close();
+            loPool.close();
+            loUnkeyed.getPool().close();
+        }
+        finally
+        {
+            loConnection.createStatement().execute("DROP TABLE DataSourceVersion");
+            loConnection.close();
+        }
+    }
+
+    @Test
+    public void testFilterNulls() throws Exception
+    {
+        startMarker();
+        Connection loConnection = DriverManager.getConnection(TestDataConnector.URL);
+        try
+        {
+            loConnection.createStatement().execute("CREATE TABLE DataSourceVersion (installDate TIMESTAMP, name VARCHAR(64), version REAL)");
+            PreparedStatement loInsert = loConnection.prepareStatement("INSERT INTO DataSourceVersion VALUES (?, ?, ?)");
+            for (int i = 0; i < 20; i++)
+            {
+                loInsert.setTimestamp(1, new Timestamp(i * 1000L));
+                loInsert.setString(2, i % 3 == 0 ? null : String.format("Version %03d", i));
+                loInsert.setFloat(3, i);
+                loInsert.addBatch();
+            }
+            loInsert.executeBatch();
+
+            // The records accepted locally are the same as those the database returns
+            TestDataConnector loConnector = new TestDataConnector();
+            DataCursor<DataSourceVersion> loAll = loConnector.get(DataSourceVersion.class, null);
+            DataFilter[] laFilters = new DataFilter[]{
+                    DataFilter.equal("name", null),
+                    DataFilter.notEqual("name", null),
+                    DataFilter.equal("name", "Version 004"),
+                    DataFilter.notEqual("name", "Version 004"),
+                    DataFilter.lessThan("name", "Version 010"),
+                    DataFilter.lessThanOrEqual("name", "Version 010"),
+                    DataFilter.greaterThan("name", "Version 010"),
+                    DataFilter.greaterThanOrEqual("name", "Version 010"),
+                    DataFilter.or(DataFilter.notEqual("name", "Version 004"), DataFilter.lessThan("version", 3))};
+            for (DataFilter loFilter : laFilters)
+            {
+                DataCursor<DataSourceVersion> loCursor = loConnector.get(DataSourceVersion.class, loFilter);
+                assertEquals(loFilter.toString(), loCursor.getLength(), count(loAll, loFilter));
+                loCursor.close();
+            }
+            assertEquals(7, count(loAll, DataFilter.equal("name", null)));
+
+            // Nulls are written with the type of the field
+            DataSchema<DataSourceVersion> loSchema = DataSchema.getSchema(DataSourceVersion.class);
+            assertEquals(Types.VARCHAR, loConnector.getSqlType(loSchema, loSchema.indexOf("name")));
+            assertEquals(Types.TIMESTAMP, loConnector.getSqlType(loSchema, loSchema.indexOf("installDate")));
+            assertEquals(Types.REAL, loConnector.getSqlType(loSchema, loSchema.indexOf("version")));
+            Map<Class<? extends DataObject>, List<DataObject>> loObjects = new HashMap<Class<? extends DataObject>, List<DataObject>>();
+            loObjects.put(DataSourceVersion.class, Collections.<DataObject>singletonList(new DataSourceVersion()));
+            assertEquals(1, loConnector.save(loObjects, true));
+            DataCursor<DataSourceVersion> loNulls = loConnector.get(DataSourceVersion.class, DataFilter.equal("name", null));
+            assertEquals(8, loNulls.getLength());
+            loNulls.close();
+            assertEquals(12, count(loAll, DataFilter.notEqual("name", "Version 004")));
+
+            // Values of another type are never ordered against the field
+            assertEquals(0, count(loAll, DataFilter.notEqual("name", 4)));
+            assertEquals(0, count(loAll, DataFilter.greaterThan("version", "Version 004")));
+            assertEquals(0, count(loAll, DataFilter.lessThan("name", null)));
+            loAll.close();
+            loConnector.getPool().close();
+        }
+        finally
+        {
+            loConnection.createStatement().execute("DROP TABLE DataSourceVersion");
+            loConnection.close();
+        }
+    }
+
+    @Test
+    public void testFieldTypes() throws Exception
+    {
+        startMarker();
+        Connection loConnection = DriverManager.getConnection(TestDataConnector.URL);
+        try
+        {
+            loConnection.createStatement().execute("CREATE TABLE TypedRecord (c_flag SMALLINT, c_byte SMALLINT, c_char CHAR(1), " +
+                    "c_short SMALLINT, c_int INTEGER, c_long BIGINT, c_float REAL, c_double DOUBLE, c_name VARCHAR(64))");
+            loConnection.createStatement().execute("INSERT INTO TypedRecord VALUES (1, 2, 'c', 3, 4, 5, 6.5, 7.5, 'Typed 1')");
+            loConnection.createStatement().execute("INSERT INTO TypedRecord VALUES (0, 0, NULL, 0, 0, 0, 0, 0, NULL)");
+
+            // Flags held as numbers and chars held as CHAR(1) are read in to primitive fields
+            TestDataConnector loConnector = new TestDataConnector()
+            {
+                @Override
+                protected String getColumnName(DataSchema<?> toSchema, int tnField)
+                {
+                    return "c_" + super.getColumnName(toSchema, tnField);
+                }
+            };
+            DataSchema<DataCursorTest.TypedRecord> loSchema = DataSchema.getSchema(DataCursorTest.TypedRecord.class);
+            DataCursor<DataCursorTest.TypedRecord> loCursor = loConnector.get(DataCursorTest.TypedRecord.class, DataFilter.equal("name", "Typed 1"));
+            assertEquals(1, loCursor.getLength());
+            assertTrue(loCursor.getBoolean(0, loSchema.indexOf("flag")));
+            assertEquals('c', loSchema.getValue(loCursor.get(0), loSchema.indexOf("char")));
+            assertEquals(4, loCursor.getInt(0, loSchema.indexOf("int")));
+            loCursor.close();
+
+            loCursor = loConnector.get(DataCursorTest.TypedRecord.class, DataFilter.equal("name", null));
+            assertEquals(1, loCursor.getLength());
+            assertFalse(loCursor.getBoolean(0, loSchema.indexOf("flag")));
+            assertEquals((char)0, loSchema.getValue(loCursor.get(0), loSchema.indexOf("char")));
+            loCursor.close();
+            loConnector.getPool().close();
+        }
+        finally
+        {
+            loConnection.createStatement().execute("DROP TABLE TypedRecord");
+            loConnection.close();
+        }
+    }
+
+    private static int count(DataCursor<DataSourceVersion> toCursor, DataFilter toFilter)
+    {
+        int lnCount = 0;
+        for (int i = 0; i < toCursor.getLength(); i++)
+        {
+            lnCount += toFilter.accept(toCursor.get(i)) ? 1 : 0;
+        }
+        return lnCount;
+    }
+}
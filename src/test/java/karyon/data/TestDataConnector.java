@@ -10,9 +10,11 @@ package karyon.data;
 public class TestDataConnector
     extends JDBCConnector
 {
+    public static final String URL = "jdbc:derby:memory:karyonTest;create=true";
+
     public TestDataConnector()
             throws ClassNotFoundException
     {
-        super("org.apache.derby.jdbc.EmbeddedDriver");
+        super("org.apache.derby.jdbc.EmbeddedDriver", URL, null);
     }
 }